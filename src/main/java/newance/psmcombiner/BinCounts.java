@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmcombiner;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Psm counts per histogram bin collected from a part of the psms. For each bin the position of the first psm that fell
+ * into it is kept, so that counts collected in parallel can be added to a histogram in the same bin order as when the
+ * psms are added one by one.
+ *
+ * @author Markus Müller
+ */
+
+class BinCounts {
+
+    private final TIntIntHashMap binIndex;
+    private final TIntArrayList bins;
+    private final TLongArrayList firstPositions;
+    private final TIntArrayList targetCnts;
+    private final TIntArrayList decoyCnts;
+
+    BinCounts() {
+
+        this.binIndex = new TIntIntHashMap(64, 0.5f, -1, -1);
+        this.bins = new TIntArrayList();
+        this.firstPositions = new TLongArrayList();
+        this.targetCnts = new TIntArrayList();
+        this.decoyCnts = new TIntArrayList();
+    }
+
+    /**
+     * @param position position of the psm in the order in which the psms are added sequentially
+     */
+    void add(int bin, long position, boolean isDecoy) {
+
+        add(bin, position, isDecoy?0:1, isDecoy?1:0);
+    }
+
+    void addAll(BinCounts binCounts) {
+
+        for (int i = 0; i < binCounts.bins.size(); i++) {
+            add(binCounts.bins.get(i), binCounts.firstPositions.get(i), binCounts.targetCnts.get(i), binCounts.decoyCnts.get(i));
+        }
+    }
+
+    private void add(int bin, long position, int targetCnt, int decoyCnt) {
+
+        int idx = binIndex.get(bin);
+        if (idx<0) {
+            binIndex.put(bin, bins.size());
+            bins.add(bin);
+            firstPositions.add(position);
+            targetCnts.add(targetCnt);
+            decoyCnts.add(decoyCnt);
+        } else {
+            if (position<firstPositions.get(idx)) firstPositions.set(idx, position);
+            targetCnts.set(idx, targetCnts.get(idx)+targetCnt);
+            decoyCnts.set(idx, decoyCnts.get(idx)+decoyCnt);
+        }
+    }
+
+    /**
+     * Adds the counts to scoreHistogram, bins are added in the order of their first psm
+     */
+    void addTo(ScoreHistogram scoreHistogram) {
+
+        Integer[] order = new Integer[bins.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (i1, i2) -> Long.compare(firstPositions.get(i1), firstPositions.get(i2)));
+
+        for (int i : order) {
+            scoreHistogram.add(bins.get(i), targetCnts.get(i), decoyCnts.get(i));
+        }
+    }
+
+    int size() {
+        return bins.size();
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmcombiner;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Map from histogram bin to the index of the bin in the count arrays of a ScoreHistogram, -1 if the bin has no
+ * entry. Histograms with few occupied bins use an open addressing hash map, which is replaced by an int[] over all
+ * bins once more than a quarter of the bins are occupied.
+ *
+ * @author Markus Müller
+ */
+
+class BinIndexMap implements Serializable {
+
+    // below this number of bins the dense array is used from the start
+    private static final int MIN_SPARSE_BINS = 4096;
+
+    private final int totNrBins;
+    private TIntIntHashMap sparse;
+    private int[] dense;
+
+    BinIndexMap(int totNrBins) {
+
+        this.totNrBins = totNrBins;
+        if (totNrBins < MIN_SPARSE_BINS) {
+            this.dense = new int[totNrBins];
+            Arrays.fill(dense, -1);
+            this.sparse = null;
+        } else {
+            this.dense = null;
+            this.sparse = new TIntIntHashMap(64, 0.5f, -1, -1);
+        }
+    }
+
+    BinIndexMap(BinIndexMap binIndexMap) {
+
+        this.totNrBins = binIndexMap.totNrBins;
+        this.dense = (binIndexMap.dense == null) ? null : binIndexMap.dense.clone();
+        this.sparse = (binIndexMap.sparse == null) ? null : new TIntIntHashMap(binIndexMap.sparse);
+    }
+
+    int get(int bin) {
+
+        if (bin < 0 || bin >= totNrBins) throw new IndexOutOfBoundsException("Bin "+bin+" not in [0,"+totNrBins+")");
+
+        return (dense != null) ? dense[bin] : sparse.get(bin);
+    }
+
+    void set(int bin, int index) {
+
+        if (bin < 0 || bin >= totNrBins) throw new IndexOutOfBoundsException("Bin "+bin+" not in [0,"+totNrBins+")");
+
+        if (dense != null) {
+            dense[bin] = index;
+        } else if (index < 0) {
+            sparse.remove(bin);
+        } else {
+            sparse.put(bin, index);
+            if (sparse.size() > totNrBins/4) toDense();
+        }
+    }
+
+    private void toDense() {
+
+        dense = new int[totNrBins];
+        Arrays.fill(dense, -1);
+        for (int bin : sparse.keys()) dense[bin] = sparse.get(bin);
+        sparse = null;
+    }
+
+    boolean isDense() {
+        return dense != null;
+    }
+
+    /**
+     * @return total number of bins, including bins without entry
+     */
+    int size() {
+        return totNrBins;
+    }
+}
@@ -30,6 +30,8 @@
 package newance.psmcombiner;
 
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmSelection;
+import newance.psmconverter.PsmTable;
 import newance.util.*;
 import org.apache.commons.cli.*;
 import newance.proteinmatch.OccamRazorSpectrumCounter;
@@ -102,15 +104,19 @@ public class CometMaxQuantCombiner extends ExecutableOptions {
             System.out.println("MaxQuant DB matching ran in " + RunTime2String.getTimeDiffString(System.currentTimeMillis() - start));
         }
 
-        start = System.currentTimeMillis();
-        GroupedFDRCalculator groupedFDRCalculator = buildGroupedFDRCalculator(cometMultiplePepXMLConverter.getPsms());
-
-        if (params.getFdrControlMethod().equals("global")) {
-            controlFDRGlobally(groupedFDRCalculator, cometMultiplePepXMLConverter, maxQuantMultipleMSMSConverter);
+        if (!params.getPsmStorage().equals("maps")) {
+            runOnPsmTables(cometMultiplePepXMLConverter, maxQuantMultipleMSMSConverter);
         } else {
-            controlFDRGroupwise(groupedFDRCalculator, cometMultiplePepXMLConverter, maxQuantMultipleMSMSConverter);
+            start = System.currentTimeMillis();
+            GroupedFDRCalculator groupedFDRCalculator = buildGroupedFDRCalculator(cometMultiplePepXMLConverter.getPsms());
+
+            if (params.getFdrControlMethod().equals("global")) {
+                controlFDRGlobally(groupedFDRCalculator, cometMultiplePepXMLConverter, maxQuantMultipleMSMSConverter);
+            } else {
+                controlFDRGroupwise(groupedFDRCalculator, cometMultiplePepXMLConverter, maxQuantMultipleMSMSConverter);
+            }
+            System.out.println("Grouped FDR calculation ran in " + RunTime2String.getTimeDiffString(System.currentTimeMillis() - start));
         }
-        System.out.println("Grouped FDR calculation ran in " + RunTime2String.getTimeDiffString(System.currentTimeMillis() - start));
 
         start = System.currentTimeMillis();
         writePeptideProteinGroupReport(uniProtDB);
@@ -122,8 +128,52 @@ public class CometMaxQuantCombiner extends ExecutableOptions {
         return 0;
     }
 
+    // psms are moved into column tables after protein matching. The psm maps of the converters are released partition
+    // by partition while the tables are filled.
+    protected void runOnPsmTables(CometMultiplePepXMLFileConverter cometMultiplePepXMLConverter, MaxQuantMultipleMSMSFileConverter maxQuantMultipleMSMSConverter) {
+
+        PsmTable.Storage storage = params.getPsmStorage().equals("offheap") ? PsmTable.Storage.OFF_HEAP : PsmTable.Storage.HEAP;
+
+        long start = System.currentTimeMillis();
+        PsmTable cometPsms = PsmTable.of(cometMultiplePepXMLConverter.getPsmStore(), storage);
+
+        PsmTable maxQuantPsms = null;
+        if (params.isIncludeMaxQuant()) {
+            maxQuantPsms = PsmTable.of(maxQuantMultipleMSMSConverter.getPsmStore(), storage);
+        }
+        System.out.println("Psm tables with "+cometPsms.size()+" Comet psms built in " + RunTime2String.getTimeDiffString(System.currentTimeMillis() - start));
+
+        try {
+            start = System.currentTimeMillis();
+            GroupedFDRCalculator groupedFDRCalculator = buildGroupedFDRCalculator(cometPsms);
+            controlFDR(groupedFDRCalculator, cometPsms, maxQuantPsms);
+            System.out.println("Grouped FDR calculation ran in " + RunTime2String.getTimeDiffString(System.currentTimeMillis() - start));
+        } finally {
+            cometPsms.close();
+            if (maxQuantPsms != null) maxQuantPsms.close();
+        }
+    }
+
     protected GroupedFDRCalculator buildGroupedFDRCalculator(ConcurrentHashMap<String, List<PeptideSpectrumMatch>> allPsms ) {
 
+        GroupedFDRCalculator groupedFDRCalculator = createGroupedFDRCalculator();
+        groupedFDRCalculator.addAll(allPsms);
+        calcLocalFDR(groupedFDRCalculator);
+
+        return groupedFDRCalculator;
+    }
+
+    protected GroupedFDRCalculator buildGroupedFDRCalculator(PsmTable allPsms) {
+
+        GroupedFDRCalculator groupedFDRCalculator = createGroupedFDRCalculator();
+        groupedFDRCalculator.addAll(allPsms);
+        calcLocalFDR(groupedFDRCalculator);
+
+        return groupedFDRCalculator;
+    }
+
+    private GroupedFDRCalculator createGroupedFDRCalculator() {
+
         if (params.getCodingProtRegExp()!=null) {
             if (params.getForcedNoncanonicalProts().isEmpty())
                 psmGrouper = new RegExpProteinGrouper(params.getCodingProtRegExp(), params.getProtCodingGroup(), params.getNoncanonicalGroup());
@@ -133,16 +183,17 @@ public class CometMaxQuantCombiner extends ExecutableOptions {
             psmGrouper = new ModificationPSMGrouper();
         }
 
-        GroupedFDRCalculator groupedFDRCalculator = new GroupedFDRCalculator(psmGrouper);
-        groupedFDRCalculator.addAll(allPsms);
+        return new GroupedFDRCalculator(psmGrouper);
+    }
+
+    private void calcLocalFDR(GroupedFDRCalculator groupedFDRCalculator) {
+
         groupedFDRCalculator.setCanCalculateFDR(params.getMinNrPsmsPerHisto());
         groupedFDRCalculator.calcClassProbs();
         if (params.isReportHistos()) groupedFDRCalculator.writeHistograms(params.getOutputDir()+File.separator+"histos", params.getOutputPrefix());
         groupedFDRCalculator.smoothHistogram(params.getSmoothDegree());
         groupedFDRCalculator.calcLocalFDR();
         if (params.isReportHistos()) groupedFDRCalculator.writeHistograms(params.getOutputDir()+File.separator+"histos", params.getOutputPrefix()+"_smoothed");
-
-        return groupedFDRCalculator;
     }
 
     protected void controlFDRGlobally(GroupedFDRCalculator groupedFDRCalculator, CometMultiplePepXMLFileConverter cometMultiplePepXMLConverter, MaxQuantMultipleMSMSFileConverter maxQuantMultipleMSMSConverter) {
@@ -238,6 +289,94 @@ public class CometMaxQuantCombiner extends ExecutableOptions {
         summaryReportWriter.close();
     }
 
+    /**
+     * Same as controlFDRGlobally and controlFDRGroupwise for psm tables. Filtered, group and combined psms are row
+     * selections of the tables.
+     */
+    protected void controlFDR(GroupedFDRCalculator groupedFDRCalculator, PsmTable cometPsms, PsmTable maxQuantPsms) {
+
+        boolean global = params.getFdrControlMethod().equals("global");
+
+        Map<String, Float> grpThresholdMap;
+        float lFDRThreshold = 0f;
+        String summaryReportFile;
+        if (global) {
+            lFDRThreshold = groupedFDRCalculator.calcLocalFDRThreshold((float)params.getFdrCometThreshold());
+            grpThresholdMap = new HashMap<>();
+            for (String group : groupedFDRCalculator.getGroups()) grpThresholdMap.put(group, lFDRThreshold);
+
+            System.out.print(groupedFDRCalculator.printTree(lFDRThreshold));
+            test(cometPsms.selectAll(),groupedFDRCalculator,lFDRThreshold);
+            summaryReportFile = params.getOutputDir() +File.separator+params.getOutputPrefix()+"_SummaryReport.txt";
+        } else {
+            grpThresholdMap = groupedFDRCalculator.calcGroupLocalFDRThreshold((float)params.getFdrCometThreshold());
+
+            System.out.print(groupedFDRCalculator.printTree(grpThresholdMap));
+            summaryReportFile = params.getOutputDir() +File.separator+ "SummaryReport.txt";
+        }
+
+        SummaryReportWriter summaryReportWriter = new SummaryReportWriter(summaryReportFile, params.isIncludeMaxQuant());
+
+        PsmSelection allCometPsms = cometPsms.selectAll();
+        PsmSelection allMaxQuantPsms = (maxQuantPsms==null)?null:maxQuantPsms.selectAll();
+
+        for (String group : groupedFDRCalculator.getGroups()) {
+
+            long start = System.currentTimeMillis();
+            PsmSelection filteredCometPsms = groupedFDRCalculator.filterPsms(allCometPsms, grpThresholdMap.get(group), group);
+            System.out.println("Comet FDR filtering ran in " + RunTime2String.getTimeDiffString(System.currentTimeMillis() - start));
+
+            if (global) test(filteredCometPsms,groupedFDRCalculator,lFDRThreshold,group);
+
+            PsmSelection combined;
+            PsmSelection groupMaxQuantPsms = null;
+            if (params.isIncludeMaxQuant()) {
+                groupMaxQuantPsms = allMaxQuantPsms.selectGroup(psmGrouper, group);
+
+                start = System.currentTimeMillis();
+                combined = CometMaxQuantPsmMerger.merge(filteredCometPsms, groupMaxQuantPsms).selectAll();
+                System.out.println("Comet-MaxQuant combiner ran in " + RunTime2String.getTimeDiffString(System.currentTimeMillis() - start));
+
+            } else {
+                combined = filteredCometPsms;
+            }
+
+            spectrumAccumulator.accept(combined);
+
+            writeToCombTabFile(combined, groupedFDRCalculator, group+"_"+params.getOutputPrefix()+"_NewAncePSMs.txt");
+            System.out.println(combined.getSpectrumCount()+" spectra combined for group " + group);
+
+            if (params.isIncludeMaxQuant()) {
+                summaryReportWriter.write(group, combined, filteredCometPsms, groupMaxQuantPsms);
+            } else {
+                summaryReportWriter.write(group, combined);
+            }
+
+            System.out.println("Write data to summary report file.");
+        }
+
+        summaryReportWriter.close();
+    }
+
+    protected void test(PsmSelection cometPsms, GroupedFDRCalculator groupedFDRCalculator, float lFDRThreshold) {
+
+        PsmSelection filtered = groupedFDRCalculator.filterPsms(cometPsms, lFDRThreshold);
+        int dCnt = filtered.size()-filtered.selectNoDecoys().size();
+
+        float[] counts = groupedFDRCalculator.getTargetDecoyCounts(lFDRThreshold);
+
+        System.out.println("root: test Psm count. tCnt= "+(filtered.size()-dCnt)+"/"+counts[1]+", dCnt= "+dCnt+"/"+counts[0]);
+    }
+
+    protected void test(PsmSelection filtered, GroupedFDRCalculator groupedFDRCalculator, float lFDRThreshold, String group) {
+
+        int dCnt = filtered.size()-filtered.selectNoDecoys().size();
+
+        float[] counts = groupedFDRCalculator.getTargetDecoyCounts(lFDRThreshold,group);
+
+        System.out.println(group+": test Psm count. tCnt= "+(filtered.size()-dCnt)+"/"+counts[1]+", dCnt= "+dCnt+"/"+counts[0]);
+    }
+
     protected void test(ConcurrentHashMap<String, List<PeptideSpectrumMatch>>  cometPsms, GroupedFDRCalculator groupedFDRCalculator, float lFDRThreshold) {
 
         ConcurrentHashMap<String, List<PeptideSpectrumMatch>>  filtered = groupedFDRCalculator.filterPsms(cometPsms, lFDRThreshold);
@@ -293,6 +432,18 @@ public class CometMaxQuantCombiner extends ExecutableOptions {
     }
 
 
+    protected void writeToCombTabFile(PsmSelection psms, GroupedFDRCalculator groupedFDRCalculator, String filename)  {
+
+        final Psm2StringFunction stringFunction = new Psm2StringFunction(Psm2StringFunction.TabStringMode.COMBINED, groupedFDRCalculator);
+
+        StringFileWriter writer = new StringFileWriter(params.getOutputDir() + File.separator +filename, stringFunction);
+
+        psms.forEachSpectrum((specID, rows) -> writer.accept(stringFunction.apply(psms.getTable(), specID, rows)));
+
+        writer.close();
+    }
+
+
     protected void writePeptideProteinGroupReport(UniProtDB uniProtDB) {
 
         if (!params.isDoPeptideProteinGrouping()) return;
@@ -349,6 +500,12 @@ public class CometMaxQuantCombiner extends ExecutableOptions {
         cmdLineOpts.addOption(Option.builder("minDC").required(false).hasArg().longOpt("minDeltaCn").desc("Minimal Comet DeltaCn in histogram").build());
         cmdLineOpts.addOption(Option.builder("maxDC").required(false).hasArg().longOpt("maxDeltaCn").desc("Maximal Comet DeltaCn in histogram").build());
         cmdLineOpts.addOption(Option.builder("nrDCB").required(false).hasArg().longOpt("nrDeltaCnBins").desc("Number of Comet DeltaCn bins in histogram").build());
+        cmdLineOpts.addOption(Option.builder("pepXP").required(false).hasArg().longOpt("pepXmlParser").desc("Parser for Comet pep.xml files: stax or jaxb (default stax).").build());
+        cmdLineOpts.addOption(Option.builder("splitPX").required(false).hasArg(false).longOpt("splitPepXmlFiles").desc("Split large pep.xml files into several parts that are parsed in parallel (only with stax parser).").build());
+        cmdLineOpts.addOption(Option.builder("heapB").required(false).hasArg().longOpt("heapBudgetMB").desc("Heap (in MB) that files parsed at the same time may use (default value: half of max heap).").build());
+        cmdLineOpts.addOption(Option.builder("cacheD").required(false).hasArg().longOpt("psmCacheDir").desc("Directory for binary caches of parsed psm files. Caches are reused in later runs if files and filter parameters did not change.").build());
+        cmdLineOpts.addOption(Option.builder("modT").required(false).hasArg().longOpt("modTranslations").desc("Comma separated list of MaxQuant modification abbreviations and their unimod names in brackets, e.g. [me:Methyl,ca:Carbamidomethyl]. de, ox, ac and ph are always translated.").build());
+        cmdLineOpts.addOption(Option.builder("psmS").required(false).hasArg().longOpt("psmStorage").desc("Storage of psms after parsing: maps, table or offheap. table keeps the psms in a compact column table, offheap keeps the table columns in memory mapped files in the psm cache or temporary directory (default maps).").build());
         cmdLineOpts.addOption(Option.builder("wP").required(false).hasArg().longOpt("write2ParamFile").desc("Filename where parameters should to written.").build());
         cmdLineOpts.addOption(Option.builder("rP").required(false).hasArg().longOpt("readParamFile").desc("Name of file from which parameters should to read.").build());
         cmdLineOpts.addOption(Option.builder("h").required(false).hasArg(false).longOpt("help").desc("Help option for command line help").build());
@@ -404,6 +561,12 @@ public class CometMaxQuantCombiner extends ExecutableOptions {
         params.add("nrThreads", getOptionString(line,"nrTh"));
         params.add("smoothDegree", getOptionString(line,"smD"));
         params.add("fdrControlMethod", getOptionString(line,"fdrM"));
+        params.add("pepXmlParser", getOptionString(line,"pepXP"));
+        params.add("splitPepXmlFiles", getOptionString(line,"splitPX"));
+        params.add("heapBudgetMB", getOptionString(line,"heapB"));
+        params.add("psmCacheDir", getOptionString(line,"cacheD"));
+        params.add("modTranslations", getOptionString(line,"modT"));
+        params.add("psmStorage", getOptionString(line,"psmS"));
 
         params.finalize();
     }
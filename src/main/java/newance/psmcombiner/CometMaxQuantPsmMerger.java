@@ -29,9 +29,10 @@
 
 package newance.psmcombiner;
 
-import gnu.trove.map.TObjectDoubleMap;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmSelection;
+import newance.psmconverter.PsmTable;
+import newance.psmconverter.ScoreSchema;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -68,11 +69,11 @@ public class CometMaxQuantPsmMerger implements BiConsumer<String, List<PeptideSp
     private List<PeptideSpectrumMatch> combine(List<PeptideSpectrumMatch> cometPsms, List<PeptideSpectrumMatch> maxQuantPsms) {
 
         List<String> maxQuantPeptides = new ArrayList<>();
-        maxQuantPsms.forEach(psm -> maxQuantPeptides.add(psm.getPeptide().toString()));
+        maxQuantPsms.forEach(psm -> maxQuantPeptides.add(psm.getLazyPeptide().toString()));
         List<PeptideSpectrumMatch> combined = null;
 
         for (PeptideSpectrumMatch cometPsm : cometPsms) {
-            String cometPeptide = cometPsm.getPeptide().toString();
+            String cometPeptide = cometPsm.getLazyPeptide().toString();
 
             for (int i=0;i<maxQuantPeptides.size();i++) {
                 if (cometPeptide.equals(maxQuantPeptides.get(i))) {
@@ -86,28 +87,59 @@ public class CometMaxQuantPsmMerger implements BiConsumer<String, List<PeptideSp
         return combined;
     }
 
-    private PeptideSpectrumMatch merge(PeptideSpectrumMatch cometPsm, PeptideSpectrumMatch maxQuantPsm) {
-
-        TObjectDoubleMap<String> scoreMap = new TObjectDoubleHashMap<>();
-        scoreMap.put("xcorr",cometPsm.getScore("xcorr"));
-        scoreMap.put("deltacn",cometPsm.getScore("deltacn"));
-        scoreMap.put("spscore",cometPsm.getScore("spscore"));
-        scoreMap.put("neg_log10_p",cometPsm.getScore("neg_log10_p"));
-        scoreMap.put("mass_diff",cometPsm.getScore("mass_diff"));
-        scoreMap.put("tot_num_ions",cometPsm.getScore("tot_num_ions"));
-        scoreMap.put("matched_num_ions",cometPsm.getScore("matched_num_ions"));
-        scoreMap.put("rt",maxQuantPsm.getScore("rt"));
-        scoreMap.put("sn",cometPsm.getScore("sn"));
-        scoreMap.put("mass",cometPsm.getScore("mass"));
-        scoreMap.put("rank",cometPsm.getScore("rank"));
-        scoreMap.put("Score",maxQuantPsm.getScore("Score"));
-        scoreMap.put("Delta score",maxQuantPsm.getScore("Delta score"));
-        scoreMap.put("Mass Error [ppm]",maxQuantPsm.getScore("Mass Error [ppm]"));
-        scoreMap.put("Intensity coverage",maxQuantPsm.getScore("Intensity coverage"));
-        scoreMap.put("Localization prob",maxQuantPsm.getScore("Localization prob"));
-
-        return new PeptideSpectrumMatch(cometPsm.getSpectrumFile(), cometPsm.getPeptide(), cometPsm.getProteinAcc(),
-                scoreMap,cometPsm.getCharge(),cometPsm.getRank(), cometPsm.getRetentionTime(), cometPsm.getScanNr(), cometPsm.getNeutralPrecMass(),
+    /**
+     * Merges the selected Comet psms with the selected MaxQuant psms of the same spectrum and peptide. Only merged psms
+     * are created, the selected rows are read directly from the tables.
+     */
+    public static PsmTable merge(PsmSelection cometPsms, PsmSelection maxQuantPsms) {
+
+        PsmTable cometTable = cometPsms.getTable();
+        PsmTable maxQuantTable = maxQuantPsms.getTable();
+        PsmTable combined = new PsmTable();
+
+        // spectra are joined by their packed ids, no spectrum key is built
+        cometPsms.forEachSpectrumId((spectrumId, cometRows) -> {
+
+            int[] maxQuantRows = maxQuantPsms.getRows(spectrumId);
+            if (maxQuantRows.length == 0) return;
+
+            String[] maxQuantPeptides = new String[maxQuantRows.length];
+            for (int i=0;i<maxQuantRows.length;i++) maxQuantPeptides[i] = maxQuantTable.getLazyPeptide(maxQuantRows[i]).toString();
+
+            List<PeptideSpectrumMatch> merged = null;
+            for (int cometRow : cometRows) {
+                String cometPeptide = cometTable.getLazyPeptide(cometRow).toString();
+
+                for (int i=0;i<maxQuantPeptides.length;i++) {
+                    if (cometPeptide.equals(maxQuantPeptides[i])) {
+                        if (merged==null) merged = new ArrayList<>();
+                        merged.add(merge(cometTable.getPsm(cometRow), maxQuantTable.getPsm(maxQuantRows[i])));
+                        break;
+                    }
+                }
+            }
+
+            if (merged != null) combined.add(spectrumId, merged);
+        });
+
+        return combined;
+    }
+
+    // comet scores followed by maxquant scores of merged psms
+    private static final String[] COMET_SCORES = {"xcorr", "deltacn", "spscore", "neg_log10_p", "mass_diff", "tot_num_ions", "matched_num_ions",
+            "sn", "mass", "rank"};
+    private static final String[] MAXQUANT_SCORES = {"rt", "Score", "Delta score", "Mass Error [ppm]", "Intensity coverage", "Localization prob"};
+    private static final ScoreSchema MERGED_SCHEMA = ScoreSchema.of("xcorr", "deltacn", "spscore", "neg_log10_p", "mass_diff", "tot_num_ions",
+            "matched_num_ions", "sn", "mass", "rank", "rt", "Score", "Delta score", "Mass Error [ppm]", "Intensity coverage", "Localization prob");
+
+    private static PeptideSpectrumMatch merge(PeptideSpectrumMatch cometPsm, PeptideSpectrumMatch maxQuantPsm) {
+
+        double[] scores = new double[MERGED_SCHEMA.size()];
+        for (String score : COMET_SCORES) scores[MERGED_SCHEMA.getSlot(score)] = cometPsm.getScore(score);
+        for (String score : MAXQUANT_SCORES) scores[MERGED_SCHEMA.getSlot(score)] = maxQuantPsm.getScore(score);
+
+        return new PeptideSpectrumMatch(cometPsm.getSpectrumFile(), cometPsm.getLazyPeptide(), cometPsm.getProteinAcc(),
+                MERGED_SCHEMA, scores, cometPsm.getCharge(),cometPsm.getRank(), cometPsm.getRetentionTime(), cometPsm.getScanNr(), cometPsm.getNeutralPrecMass(),
                 cometPsm.isDecoy(), cometPsm.isVariant(), cometPsm.getVariantPositions(), cometPsm.getVariantWTAAs());
 
     }
@@ -30,6 +30,8 @@
 package newance.psmcombiner;
 
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmTable;
+import newance.psmconverter.ScoreSchema;
 import newance.util.NewAnceParams;
 
 import java.io.*;
@@ -41,8 +43,6 @@ import java.util.*;
 
 public class CometScoreHistogram extends SmoothedScoreHistogram {
 
-    protected static List<List<Integer>> nnIndexMap = null;
-
     protected final double minXCorr;
     protected final double maxXCorr;
     protected final int nrXCorrBins;
@@ -59,6 +59,9 @@ public class CometScoreHistogram extends SmoothedScoreHistogram {
     protected final List<Float> deltaCnMids;
     protected final List<Float> spScoreMids;
 
+    // score slots of the last score schema seen in index(psm)
+    private transient volatile ScoreSlots scoreSlots = null;
+
     public CometScoreHistogram(int[] nrBins) {
         super(nrBins);
 
@@ -80,7 +83,6 @@ public class CometScoreHistogram extends SmoothedScoreHistogram {
         this.deltaCnMids = calcMids(calcBreaks((float)minDeltaCn,(float)maxDeltaCn,nrDeltaCnBins));
         this.spScoreMids = calcMids(calcBreaks((float)minSpScore,(float)maxSpScore,nrSpScoreBins));
 
-        if (nnIndexMap==null) nnIndexMap = initNNIndexMap();
         this.smoothedHistogram = null;
     }
 
@@ -108,7 +110,6 @@ public class CometScoreHistogram extends SmoothedScoreHistogram {
         this.deltaCnMids = calcMids(calcBreaks((float)minDeltaCn,(float)maxDeltaCn,nrDeltaCnBins));
         this.spScoreMids = calcMids(calcBreaks((float)minSpScore,(float)maxSpScore,nrSpScoreBins));
 
-        if (nnIndexMap==null) nnIndexMap = initNNIndexMap();
         this.smoothedHistogram = null;
     }
 
@@ -136,22 +137,59 @@ public class CometScoreHistogram extends SmoothedScoreHistogram {
         this.deltaCnMids = calcMids(calcBreaks((float)minDeltaCn,(float)maxDeltaCn,nrDeltaCnBins));
         this.spScoreMids = calcMids(calcBreaks((float)minSpScore,(float)maxSpScore,nrSpScoreBins));
 
-        if (nnIndexMap==null) nnIndexMap = initNNIndexMap();
         this.smoothedHistogram = null;
     }
 
     @Override
     protected int index(PeptideSpectrumMatch peptideSpectrumMatch) {
 
-        int xcorrIdx = get1DIndex(peptideSpectrumMatch.getScore("xcorr"), minXCorr, xCorrBinWidth, nrXCorrBins-1);
-        int deltacnIdx = get1DIndex(peptideSpectrumMatch.getScore("deltacn"), minDeltaCn, deltaCnBinWidth, nrDeltaCnBins-1);
-        int spscoreIdx = get1DIndex(peptideSpectrumMatch.getScore("spscore"), minSpScore, spScoreBinWidth, nrSpScoreBins-1);
+        ScoreSlots slots = getScoreSlots(peptideSpectrumMatch.getScoreSchema());
+
+        int xcorrIdx = get1DIndex(peptideSpectrumMatch.getScore(slots.xcorr), minXCorr, xCorrBinWidth, nrXCorrBins-1);
+        int deltacnIdx = get1DIndex(peptideSpectrumMatch.getScore(slots.deltacn), minDeltaCn, deltaCnBinWidth, nrDeltaCnBins-1);
+        int spscoreIdx = get1DIndex(peptideSpectrumMatch.getScore(slots.spscore), minSpScore, spScoreBinWidth, nrSpScoreBins-1);
 
         int index = nrXCorrBins*(nrDeltaCnBins*spscoreIdx + deltacnIdx) + xcorrIdx;
 
         return index;
     }
 
+    @Override
+    protected int index(PsmTable psmTable, int row) {
+
+        ScoreSlots slots = getScoreSlots(psmTable.getScoreSchema(row));
+
+        return index(psmTable.getScore(row, slots.xcorr), psmTable.getScore(row, slots.deltacn), psmTable.getScore(row, slots.spscore));
+    }
+
+    // psms of a search engine share their score schema, so the slots are looked up only when the schema changes
+    private ScoreSlots getScoreSlots(ScoreSchema scoreSchema) {
+
+        ScoreSlots slots = scoreSlots;
+        if (slots == null || slots.scoreSchema != scoreSchema) {
+            slots = new ScoreSlots(scoreSchema);
+            scoreSlots = slots;
+        }
+
+        return slots;
+    }
+
+    private static final class ScoreSlots {
+
+        private final ScoreSchema scoreSchema;
+        private final int xcorr;
+        private final int deltacn;
+        private final int spscore;
+
+        private ScoreSlots(ScoreSchema scoreSchema) {
+
+            this.scoreSchema = scoreSchema;
+            this.xcorr = scoreSchema.getSlot("xcorr");
+            this.deltacn = scoreSchema.getSlot("deltacn");
+            this.spscore = scoreSchema.getSlot("spscore");
+        }
+    }
+
     protected int index(double xCorr, double deltaCn, double spScore) {
 
         int xcorrIdx = get1DIndex(xCorr, minXCorr, xCorrBinWidth, nrXCorrBins-1);
@@ -189,11 +227,9 @@ public class CometScoreHistogram extends SmoothedScoreHistogram {
     @Override
     protected Set<Integer> getNeighbourIndex(int bin) {
 
-        List<Integer> scoreIdx = nnIndexMap.get(bin);
-
-        int xcorrIdx = scoreIdx.get(0);
-        int deltacnIdx = scoreIdx.get(1);
-        int spscoreIdx = scoreIdx.get(2);
+        int xcorrIdx = bin%nrXCorrBins;
+        int deltacnIdx = (bin/nrXCorrBins)%nrDeltaCnBins;
+        int spscoreIdx = bin/(nrXCorrBins*nrDeltaCnBins);
 
         Set<Integer> neighbours = new HashSet<>();
 
@@ -208,24 +244,21 @@ public class CometScoreHistogram extends SmoothedScoreHistogram {
     }
 
 
-    protected List<List<Integer>> initNNIndexMap(){
+    @Override
+    protected boolean hasSameBins(ScoreHistogram scoreHistogram) {
 
-        List<List<Integer>> indexMap = new ArrayList<>(totNrBins);
-        for (int i=0;i<totNrBins;i++) indexMap.add(new ArrayList<>(3));
+        if (!super.hasSameBins(scoreHistogram)) return false;
 
-        for (int spscoreIdx = 0; spscoreIdx < nrSpScoreBins; spscoreIdx++) {
-            for (int deltacnIdx = 0; deltacnIdx < nrDeltaCnBins; deltacnIdx++) {
-                for (int xcorrIdx = 0; xcorrIdx < nrXCorrBins; xcorrIdx++) {
-                    int index = nrXCorrBins*(nrDeltaCnBins*spscoreIdx + deltacnIdx) + xcorrIdx;
+        CometScoreHistogram other = (CometScoreHistogram) scoreHistogram;
 
-                    List<Integer> indexes = indexMap.get(index);
-                    indexes.add(xcorrIdx);
-                    indexes.add(deltacnIdx);
-                    indexes.add(spscoreIdx);
-                }
-            }
-        }
-        return indexMap;
+        return minXCorr==other.minXCorr && maxXCorr==other.maxXCorr && nrXCorrBins==other.nrXCorrBins &&
+                minDeltaCn==other.minDeltaCn && maxDeltaCn==other.maxDeltaCn && nrDeltaCnBins==other.nrDeltaCnBins &&
+                minSpScore==other.minSpScore && maxSpScore==other.maxSpScore && nrSpScoreBins==other.nrSpScoreBins;
+    }
+
+    @Override
+    protected int[] getGridShape() {
+        return new int[]{nrXCorrBins, nrDeltaCnBins, nrSpScoreBins};
     }
 
 
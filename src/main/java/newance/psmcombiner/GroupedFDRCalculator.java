@@ -29,13 +29,21 @@
 
 package newance.psmcombiner;
 
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmSelection;
+import newance.psmconverter.PsmTable;
 import newance.util.NewAnceParams;
 import newance.util.PsmGrouper;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * @author Markus Müller
@@ -47,9 +55,22 @@ public class GroupedFDRCalculator {
     protected final Map<String, HistogramTree> histogramMap;
     protected final PsmGrouper psmGrouper;
     protected final int[] nrBins;
+    protected final int nrThreads;
+
+    // smaller inputs are added on one thread
+    private static final int MIN_PARALLEL_PSMS = 50000;
 
     public GroupedFDRCalculator(PsmGrouper psmGrouper) {
 
+        this(psmGrouper, NewAnceParams.getInstance().getNrThreads());
+    }
+
+    /**
+     * @param nrThreads number of threads used to fill the histograms and to process the histogram tree
+     */
+    public GroupedFDRCalculator(PsmGrouper psmGrouper, int nrThreads) {
+
+        this.nrThreads = nrThreads;
         this.nrBins = new int[3];
         nrBins[0] = NewAnceParams.getInstance().getNrXCorrBins();
         nrBins[1] = NewAnceParams.getInstance().getNrDeltaCnBins();
@@ -107,13 +128,188 @@ public class GroupedFDRCalculator {
 
     public void addAll(ConcurrentHashMap<String,List<PeptideSpectrumMatch>> psms) {
 
-        for (String specID : psms.keySet()) {
-            for (PeptideSpectrumMatch psm : psms.get(specID)) {
-                add(psm);
+        addAll(psms, psms.size()<MIN_PARALLEL_PSMS ? 1 : nrThreads);
+    }
+
+    /**
+     * Adds the psms to the histograms using nrThreads threads. The leaf histograms are filled from counts collected in
+     * parallel and the parents from the counts of their children. The histograms are the same as when the psms are
+     * added one by one.
+     */
+    public void addAll(ConcurrentHashMap<String,List<PeptideSpectrumMatch>> psms, int nrThreads) {
+
+        if (nrThreads<=1 || !hasSameBins()) {
+            for (String specID : psms.keySet()) {
+                for (PeptideSpectrumMatch psm : psms.get(specID)) {
+                    add(psm);
+                }
+            }
+            return;
+        }
+
+        List<List<PeptideSpectrumMatch>> psmLists = new ArrayList<>(psms.values());
+        long[] positions = new long[psmLists.size()+1];
+        for (int i = 0; i < psmLists.size(); i++) positions[i+1] = positions[i]+psmLists.get(i).size();
+
+        List<Callable<Map<HistogramTree, BinCounts>>> tasks = new ArrayList<>();
+        for (int[] range : split(psmLists.size(), nrThreads)) {
+            tasks.add(() -> {
+                Map<HistogramTree, BinCounts> leafCounts = new HashMap<>();
+                for (int i = range[0]; i < range[1]; i++) {
+                    long position = positions[i];
+                    for (PeptideSpectrumMatch psm : psmLists.get(i)) {
+                        HistogramTree leaf = histogramMap.get(getNodeID(psm));
+                        if (leaf != null) {
+                            leafCounts.computeIfAbsent(leaf, l -> new BinCounts())
+                                    .add(leaf.getScoreHistogram().index(psm), position, psm.isDecoy());
+                        }
+                        position++;
+                    }
+                }
+                return leafCounts;
+            });
+        }
+
+        addCounts(invokeAll(tasks, nrThreads));
+    }
+
+
+    public void addAll(PsmTable psmTable) {
+
+        addAll(psmTable, psmTable.size()<MIN_PARALLEL_PSMS ? 1 : nrThreads);
+    }
+
+    /**
+     * Adds the rows of psmTable to the histograms using nrThreads threads, see addAll(ConcurrentHashMap, int)
+     */
+    public void addAll(PsmTable psmTable, int nrThreads) {
+
+        PsmTable.GroupColumn groupColumn = psmTable.getGroupColumn(psmGrouper);
+
+        if (nrThreads<=1 || !hasSameBins()) {
+            addAll(psmTable, groupColumn);
+            return;
+        }
+
+        List<Callable<Map<HistogramTree, BinCounts>>> tasks = new ArrayList<>();
+        for (int[] range : split(psmTable.size(), nrThreads)) {
+            tasks.add(() -> {
+                Map<HistogramTree, BinCounts> leafCounts = new HashMap<>();
+                Map<Long, HistogramTree> nodeCache = new HashMap<>();
+                for (int row = range[0]; row < range[1]; row++) {
+                    HistogramTree leaf = getNode(psmTable, row, groupColumn, nodeCache);
+                    if (leaf != null) {
+                        leafCounts.computeIfAbsent(leaf, l -> new BinCounts())
+                                .add(leaf.getScoreHistogram().index(psmTable, row), row, psmTable.isDecoy(row));
+                    }
+                }
+                return leafCounts;
+            });
+        }
+
+        addCounts(invokeAll(tasks, nrThreads));
+    }
+
+    private void addAll(PsmTable psmTable, PsmTable.GroupColumn groupColumn) {
+
+        Map<Long, HistogramTree> nodeCache = new HashMap<>();
+
+        for (int row = 0; row < psmTable.size(); row++) {
+
+            HistogramTree histogramTree = getNode(psmTable, row, groupColumn, nodeCache);
+
+            while (histogramTree != null) {
+                histogramTree.add(psmTable, row);
+                histogramTree = histogramTree.getParent();
             }
         }
     }
 
+    // the counts of each leaf are merged in the order of the psm ranges, so the result does not depend on the
+    // thread scheduling
+    private void addCounts(List<Map<HistogramTree, BinCounts>> rangeCounts) {
+
+        Map<HistogramTree, BinCounts> leafCounts = new HashMap<>();
+        for (Map<HistogramTree, BinCounts> counts : rangeCounts) {
+            for (Map.Entry<HistogramTree, BinCounts> entry : counts.entrySet()) {
+                leafCounts.computeIfAbsent(entry.getKey(), l -> new BinCounts()).addAll(entry.getValue());
+            }
+        }
+
+        addCounts(histogramTreeRoot, leafCounts);
+    }
+
+    private BinCounts addCounts(HistogramTree node, Map<HistogramTree, BinCounts> leafCounts) {
+
+        BinCounts counts;
+        if (node.isLeaf()) {
+            counts = leafCounts.get(node);
+        } else {
+            counts = new BinCounts();
+            for (HistogramTree child : node.getChildren()) {
+                BinCounts childCounts = addCounts(child, leafCounts);
+                if (childCounts != null) counts.addAll(childCounts);
+            }
+        }
+
+        if (counts != null) counts.addTo(node.getScoreHistogram());
+
+        return counts;
+    }
+
+    // counts of a leaf can only be reused for its parents if all histograms put a psm into the same bin
+    private boolean hasSameBins() {
+
+        ScoreHistogram rootHistogram = histogramTreeRoot.getScoreHistogram();
+        for (HistogramTree node : histogramMap.values()) {
+            if (!rootHistogram.hasSameBins(node.getScoreHistogram())) return false;
+        }
+
+        return true;
+    }
+
+    // splits size items into ranges, several per thread to balance the load
+    private static List<int[]> split(int size, int nrThreads) {
+
+        int nrRanges = (int) Math.min(Math.max(1, size), 4L*nrThreads);
+
+        List<int[]> ranges = new ArrayList<>(nrRanges);
+        for (int i = 0; i < nrRanges; i++) {
+            ranges.add(new int[]{(int) ((long) size*i/nrRanges), (int) ((long) size*(i+1)/nrRanges)});
+        }
+
+        return ranges;
+    }
+
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks, int nrThreads) {
+
+        ForkJoinPool pool = new ForkJoinPool(nrThreads);
+        try {
+            List<T> results = new ArrayList<>(tasks.size());
+            for (Future<T> future : pool.invokeAll(tasks)) results.add(future.get());
+
+            return results;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Parallel histogram accumulation failed: "+e.getMessage()+". Abort.", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // leaf nodes are looked up once per charge and group instead of once per row
+    private HistogramTree getNode(PsmTable psmTable, int row, PsmTable.GroupColumn groupColumn, Map<Long, HistogramTree> nodeCache) {
+
+        long key = ((long) psmTable.getCharge(row) << 32) | groupColumn.getGroupId(row);
+
+        HistogramTree node = nodeCache.get(key);
+        if (node == null && !nodeCache.containsKey(key)) {
+            node = histogramMap.get("Z"+psmTable.getCharge(row)+"_"+groupColumn.getGroup(row));
+            nodeCache.put(key, node);
+        }
+
+        return node;
+    }
+
 
     public void add(PeptideSpectrumMatch peptideSpectrumMatch) {
         String id = getNodeID(peptideSpectrumMatch);
@@ -133,6 +329,12 @@ public class GroupedFDRCalculator {
     }
 
 
+    public String getNodeID(PsmTable psmTable, int row) {
+
+        return "Z"+ psmTable.getCharge(row)+"_"+psmGrouper.apply(psmTable, row);
+    }
+
+
     public String printTree(float lFDRThreshold) {
 
         return histogramTreeRoot.print(lFDRThreshold);
@@ -147,7 +349,7 @@ public class GroupedFDRCalculator {
 
     public void smoothHistogram(int degree) {
 
-        histogramTreeRoot.smoothHistogram(degree);
+        histogramTreeRoot.smoothHistogram(degree, nrThreads);
     }
 
     public void writeHistograms(String outputDir, String filePrefix) {
@@ -164,19 +366,13 @@ public class GroupedFDRCalculator {
 
     public void setCanCalculateFDR(int minNrPsms) {
 
-        histogramTreeRoot.setCanCalculateFDR(minNrPsms);
+        histogramTreeRoot.setCanCalculateFDR(minNrPsms, nrThreads);
     }
 
 
     public void calcLocalFDR() {
 
-        for (String id : histogramMap.keySet()) {
-
-            HistogramTree node = histogramMap.get(id);
-            if (node.isLeaf()) {
-                node.calcLocalFDR();
-            }
-        }
+        histogramTreeRoot.calcLeafLocalFDR(nrThreads);
     }
 
     public float getLocalFDR(PeptideSpectrumMatch peptideSpectrumMatch) {
@@ -188,8 +384,16 @@ public class GroupedFDRCalculator {
     }
 
 
+    public float getLocalFDR(PsmTable psmTable, int row) {
+
+        HistogramTree histogramTree = histogramMap.get(getNodeID(psmTable, row));
+
+        return histogramTree.getScoreHistogram().getLocalFDR(psmTable, row);
+    }
+
+
     public void calcClassProbs() {
-        histogramTreeRoot.calcClassProbs();
+        histogramTreeRoot.calcClassProbs(nrThreads);
     }
 
 
@@ -206,7 +410,7 @@ public class GroupedFDRCalculator {
         for (String id : histogramMap.keySet()) {
 
             HistogramTree node = histogramMap.get(id);
-            if (node.isLeaf() && (group.isEmpty()) || node.getGroup().equals(group)) {
+            if (isCounted(node, group)) {
                 float[] values = node.getTargetDecoyCounts(lFDR);
                 decoySum += values[0];
                 targetSum += values[1];
@@ -218,18 +422,9 @@ public class GroupedFDRCalculator {
 
     public float calcGlobalFDR(float lFDR, String group) {
 
-        float decoySum = 0;
-        float targetSum = 0;
-
-        for (String id : histogramMap.keySet()) {
-
-            HistogramTree node = histogramMap.get(id);
-            if (node.isLeaf() && (group.isEmpty()) || node.getGroup().equals(group)) {
-                float[] values = node.getTargetDecoyCounts(lFDR);
-                decoySum += values[0];
-                targetSum += values[1];
-            }
-        }
+        float[] values = getTargetDecoyCounts(lFDR, group);
+        float decoySum = values[0];
+        float targetSum = values[1];
 
         return (decoySum+targetSum>0)?2*decoySum/(decoySum+targetSum):0f;
     }
@@ -239,53 +434,74 @@ public class GroupedFDRCalculator {
         return calcGlobalFDR(lFDR, "");
     }
 
+    // for the empty group the leaves are counted, but also the inner nodes, since their group is empty as well
+    private static boolean isCounted(HistogramTree node, String group) {
+
+        return node.isLeaf() && (group.isEmpty()) || node.getGroup().equals(group);
+    }
+
     public float calcLocalFDRThreshold(float pFDR) {
        return calcLocalFDRThreshold(pFDR, "");
     }
 
+    /**
+     * Largest local FDR cutoff before the global FDR of group first exceeds pFDR. The local FDR curves of all counted
+     * histograms are merged and the global FDR is evaluated at every local FDR value in one pass.
+     *
+     * @return local FDR value of a bin, 0 if the global FDR exceeds pFDR already at the smallest local FDR and 1 if it
+     * never exceeds pFDR
+     */
     public float calcLocalFDRThreshold(float pFDR, String group) {
 
         if (pFDR==0) return 0;
 
-        float pfdr = 0;
-        float lfdr = 0;
-        float pfdrP = 0;
-        float lfdrP = 0;
-
-        for (int i=0;i<=10;i++) {
-            lfdr = i*0.1f;
-            pfdr = calcGlobalFDR(lfdr, group);
-            if (pfdr>=pFDR) break;
-
-            pfdrP = pfdr;
-            lfdrP = lfdr;
+        List<LocalFDRCurve> curves = new ArrayList<>();
+        int n = 0;
+        for (HistogramTree node : histogramMap.values()) {
+            if (isCounted(node, group)) {
+                LocalFDRCurve curve = node.getScoreHistogram().getLocalFDRCurve();
+                curves.add(curve);
+                n += curve.size();
+            }
         }
 
-        float eps = Math.abs(pfdr-pFDR);
-        if (eps<0.0001) return lfdr;
+        TFloatArrayList lFDRs = new TFloatArrayList(n);
+        TFloatArrayList decoyCnts = new TFloatArrayList(n);
+        TFloatArrayList targetCnts = new TFloatArrayList(n);
+        for (LocalFDRCurve curve : curves) {
+            for (int k = 0; k < curve.size(); k++) {
+                lFDRs.add(curve.getCutoff(k));
+                decoyCnts.add(curve.getDecoyCnt(k));
+                targetCnts.add(curve.getTargetCnt(k));
+            }
+        }
 
-        if (pfdr<pFDR) return 1f;
+        TIntArrayList sortedIndexes = ScoreHistogram.sortIndexes(lFDRs, false);
 
-        return calcLocalFDRThreshold(lfdrP, pfdrP, lfdr, pfdr, pFDR, eps, group);
-    }
+        // same float arithmetic as calcGlobalFDR
+        float decoySum = 0;
+        float targetSum = 0;
+        float threshold = 0;
 
-    private float calcLocalFDRThreshold(float lFDRLeft, float pFDRLeft, float lFDRRight, float pFDRRight, float pFDR, float eps, String group) {
+        int k = 0;
+        while (k < n) {
 
-        float f = (pFDR-pFDRLeft)/(pFDRRight-pFDRLeft);
-        float lfdr = lFDRLeft + f*(lFDRRight-lFDRLeft);
+            float lfdr = lFDRs.get(sortedIndexes.get(k));
 
-        float pfdr = calcGlobalFDR(lfdr, group);
-        float epsN = Math.abs(pfdr-pFDR);
+            // all bins with the same local FDR are selected together
+            while (k < n && lFDRs.get(sortedIndexes.get(k))==lfdr) {
+                decoySum += decoyCnts.get(sortedIndexes.get(k));
+                targetSum += targetCnts.get(sortedIndexes.get(k));
+                k++;
+            }
 
-        if (epsN<0.0001 || epsN >= eps) return lfdr;
+            float pfdr = (decoySum+targetSum>0)?2*decoySum/(decoySum+targetSum):0f;
+            if (pfdr>pFDR) return threshold;
 
-        float lfdrN = 0;
-        if (pfdr<pFDR)
-            lfdrN = calcLocalFDRThreshold(lfdr, pfdr, lFDRRight, pFDRRight, pFDR, epsN, group);
-        else
-            lfdrN = calcLocalFDRThreshold(lFDRLeft, pFDRLeft, lfdr, pfdr, pFDR, epsN, group);
+            threshold = Math.max(threshold, lfdr);
+        }
 
-        return lfdrN;
+        return 1f;
     }
 
     public ConcurrentHashMap<String, List<PeptideSpectrumMatch>> filterPsms(ConcurrentHashMap<String, List<PeptideSpectrumMatch>>  psms, float lFDRThreshold, String group) {
@@ -337,6 +553,24 @@ public class GroupedFDRCalculator {
         return filteredPsms;
     }
 
+    public PsmSelection filterPsms(PsmSelection psms, float lFDRThreshold, String group) {
+
+        return filterPsms(psms.selectGroup(psmGrouper, group), lFDRThreshold);
+    }
+
+
+    public PsmSelection filterPsms(PsmSelection psms, float lFDRThreshold) {
+
+        PsmTable psmTable = psms.getTable();
+        PsmTable.GroupColumn groupColumn = psmTable.getGroupColumn(psmGrouper);
+        Map<Long, HistogramTree> nodeCache = new HashMap<>();
+
+        return psms.select(row -> {
+            HistogramTree node = getNode(psmTable, row, groupColumn, nodeCache);
+            return node != null && node.getScoreHistogram().getLocalFDR(psmTable, row) <= lFDRThreshold;
+        });
+    }
+
     public Set<String> getGroups() {
         return psmGrouper.getGroups();
     }
@@ -30,11 +30,17 @@
 package newance.psmcombiner;
 
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmTable;
+import newance.util.NewAnceParams;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
 
 /**
  * @author Markus Müller
@@ -79,6 +85,11 @@ public class HistogramTree {
         scoreHistogram.add(peptideSpectrumMatch);
     }
 
+    public void add(PsmTable psmTable, int row) {
+
+        scoreHistogram.add(psmTable, row);
+    }
+
     public ScoreHistogram getScoreHistogram() {
         return scoreHistogram;
     }
@@ -193,38 +204,65 @@ public class HistogramTree {
 
     public void setCanCalculateFDR(int minNrPsms) {
 
-        scoreHistogram.setCanCalculateFDR(minNrPsms);
+        setCanCalculateFDR(minNrPsms, NewAnceParams.getInstance().getNrThreads());
+    }
 
-        for (HistogramTree node : children) {
-            node.setCanCalculateFDR(minNrPsms);
-        }
+    public void setCanCalculateFDR(int minNrPsms, int nrThreads) {
+
+        forEachNode(node -> node.scoreHistogram.setCanCalculateFDR(minNrPsms), nrThreads);
     }
 
 
     public void calcClassProbs() {
 
-        scoreHistogram.calcClassProb();
+        calcClassProbs(NewAnceParams.getInstance().getNrThreads());
+    }
 
-        for (HistogramTree node : children) {
-            node.calcClassProbs();
-        }
+    public void calcClassProbs(int nrThreads) {
+
+        forEachNode(node -> node.scoreHistogram.calcClassProb(), nrThreads);
     }
 
     public void smoothHistogram(int degree) {
 
-        if (degree<=0) return;
+        smoothHistogram(degree, NewAnceParams.getInstance().getNrThreads());
+    }
 
-        for (int i=0;i<degree-1;i++) scoreHistogram.smoothHistogram(false);
-        scoreHistogram.smoothHistogram(true);
+    public void smoothHistogram(int degree, int nrThreads) {
 
-        for (HistogramTree node : children) {
-            node.smoothHistogram(degree);
-        }
+        if (degree<=0) return;
+
+        forEachNode(node -> node.scoreHistogram.smoothHistogram(degree, 1, true), nrThreads);
     }
 
 
     public void calcLocalFDR() {
 
+        calcLocalFDR(NewAnceParams.getInstance().getNrThreads());
+    }
+
+    public void calcLocalFDR(int nrThreads) {
+
+        forEachNode(node -> {
+            node.calcNodeLocalFDR();
+            if (!node.isLeaf()) node.scoreHistogram.initGamma();
+        }, nrThreads);
+    }
+
+    /**
+     * Calculates the local FDR of the leaves only. Inner nodes only provide their gamma to leaves that cannot
+     * calculate the local FDR on their own.
+     */
+    public void calcLeafLocalFDR(int nrThreads) {
+
+        forEachNode(node -> {
+            if (node.isLeaf()) node.calcNodeLocalFDR();
+            else node.scoreHistogram.initGamma();
+        }, nrThreads);
+    }
+
+    private void calcNodeLocalFDR() {
+
         if (scoreHistogram.canCalculateFDR())
             scoreHistogram.calcLocalFDR();
         else {
@@ -239,9 +277,50 @@ public class HistogramTree {
                 System.out.println("Cannot calculate local FDR of group: "+id);
             }
         }
+    }
 
-        for (HistogramTree node : children) {
-            node.calcLocalFDR();
+    // applies action to all nodes of the subtree. Subtrees are processed as fork-join tasks, a node is always
+    // processed before the tasks of its children are started.
+    private void forEachNode(Consumer<HistogramTree> action, int nrThreads) {
+
+        if (nrThreads<=1 || children.isEmpty()) {
+            action.accept(this);
+            for (HistogramTree node : children) {
+                node.forEachNode(action, 1);
+            }
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            new NodeTask(this, action).invoke();
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(nrThreads);
+            try {
+                pool.invoke(new NodeTask(this, action));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static class NodeTask extends RecursiveAction {
+
+        private final HistogramTree node;
+        private final Consumer<HistogramTree> action;
+
+        private NodeTask(HistogramTree node, Consumer<HistogramTree> action) {
+
+            this.node = node;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+
+            action.accept(node);
+
+            List<NodeTask> tasks = new ArrayList<>(node.children.size());
+            for (HistogramTree child : node.children) {
+                tasks.add(new NodeTask(child, action));
+            }
+            invokeAll(tasks);
         }
     }
 
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmcombiner;
+
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Local FDR values of the bins of a histogram in ascending order together with the cumulative decoy and target counts.
+ * The counts of all bins with a local FDR up to a cutoff are found by binary search.
+ *
+ * @author Markus Müller
+ */
+
+final class LocalFDRCurve {
+
+    private final float[] lFDRs;
+    private final float[] decoyCnts;
+    private final float[] targetCnts;
+    // cumulative counts of the first k bins, summed in the same order as the bins are sorted
+    private final float[] decoySums;
+    private final float[] targetSums;
+    // NaN values are sorted last and never exceed a cutoff
+    private final int nrValid;
+
+    // sorted indexes and counts the curve was built from
+    private final TIntArrayList sortedIndexes;
+    private final TFloatArrayList counts;
+
+    LocalFDRCurve(TIntArrayList sortedIndexes, TFloatArrayList counts, float[] lFDRs, float[] decoyCnts, float[] targetCnts) {
+
+        this.sortedIndexes = sortedIndexes;
+        this.counts = counts;
+        this.lFDRs = lFDRs;
+        this.decoyCnts = decoyCnts;
+        this.targetCnts = targetCnts;
+
+        int n = lFDRs.length;
+        this.decoySums = new float[n+1];
+        this.targetSums = new float[n+1];
+        for (int k = 0; k < n; k++) {
+            decoySums[k+1] = decoySums[k] + decoyCnts[k];
+            targetSums[k+1] = targetSums[k] + targetCnts[k];
+        }
+
+        int m = n;
+        while (m>0 && Float.isNaN(lFDRs[m-1])) m--;
+        this.nrValid = m;
+    }
+
+    /**
+     * @return decoy and target counts of all bins with local FDR <= maxlFDR
+     */
+    float[] getTargetDecoyCounts(float maxlFDR) {
+
+        int k = getNrBins(maxlFDR);
+
+        return new float[] {decoySums[k], targetSums[k]};
+    }
+
+    /**
+     * @return number of sorted bins with local FDR <= maxlFDR
+     */
+    int getNrBins(float maxlFDR) {
+
+        int lo = 0;
+        int hi = nrValid;
+        while (lo<hi) {
+            int mid = (lo+hi) >>> 1;
+            if (lFDRs[mid]>maxlFDR) hi = mid;
+            else lo = mid+1;
+        }
+
+        return (lo==nrValid) ? lFDRs.length : lo;
+    }
+
+    boolean isFor(TIntArrayList sortedIndexes, TFloatArrayList counts) {
+
+        return this.sortedIndexes==sortedIndexes && this.counts==counts;
+    }
+
+    int size() {
+        return lFDRs.length;
+    }
+
+    /**
+     * Smallest local FDR cutoff that selects bin k. Bins with NaN local FDR are selected once the cutoff reaches the
+     * largest other value of the curve, or by any cutoff if all values are NaN.
+     */
+    float getCutoff(int k) {
+
+        if (k<nrValid) return lFDRs[k];
+
+        return (nrValid>0) ? lFDRs[nrValid-1] : Float.NEGATIVE_INFINITY;
+    }
+
+    float getDecoyCnt(int k) {
+        return decoyCnts[k];
+    }
+
+    float getTargetCnt(int k) {
+        return targetCnts[k];
+    }
+}
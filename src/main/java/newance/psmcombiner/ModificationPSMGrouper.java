@@ -29,11 +29,11 @@
 
 package newance.psmcombiner;
 
+import newance.psmconverter.LazyPeptide;
 import newance.util.PsmGrouper;
-import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
 import org.expasy.mzjava.proteomics.mol.modification.Modification;
-import org.expasy.mzjava.proteomics.mol.modification.ModificationList;
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmTable;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -50,9 +50,19 @@ public class ModificationPSMGrouper extends PsmGrouper {
     @Override
     public String apply(String s, PeptideSpectrumMatch psm) {
 
-        ModificationList mods = psm.getPeptide().getModifications(ModAttachment.sideChainSet);
+        return getGroup(psm.getLazyPeptide());
+    }
+
+    @Override
+    public String apply(PsmTable psmTable, int row) {
+
+        return getGroup(psmTable.getLazyPeptide(row));
+    }
+
+    // the group only depends on the side chain modifications, so the mzjava Peptide is not needed
+    private String getGroup(LazyPeptide peptide) {
 
-        for (Modification mod : mods) {
+        for (Modification mod : peptide.getSideChainModifications()) {
 
             if (mod.getLabel().equalsIgnoreCase("phospho"))
                 return "Phospho_STY";
@@ -55,7 +55,7 @@ public class Psm2PeptideStringFunction implements BiFunction<String, List<Peptid
         List<String> peptides = new ArrayList<>();
         for (PeptideSpectrumMatch psm : peptideSpectrumMatchData) {
 
-            String peptide = (mode==StringMode.SEQUENCE)?psm.getPeptide().toSymbolString():psm.getPeptide().toString();
+            String peptide = (mode==StringMode.SEQUENCE)?psm.toSymbolString():psm.getLazyPeptide().toString();
 
             peptides.add(peptide);
         }
@@ -29,10 +29,9 @@
 
 package newance.psmcombiner;
 
+import newance.psmconverter.LazyPeptide;
 import newance.psmconverter.PeptideSpectrumMatch;
-import org.expasy.mzjava.proteomics.mol.Peptide;
-import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
-import org.expasy.mzjava.proteomics.mol.modification.Modification;
+import newance.psmconverter.PsmTable;
 
 import java.util.List;
 import java.util.function.BiFunction;
@@ -71,6 +70,20 @@ public class Psm2StringFunction implements BiFunction<String, List<PeptideSpectr
     }
 
 
+    /**
+     * Same as apply(specID, psms) for the rows of a spectrum in a psm table
+     */
+    public String apply(PsmTable psmTable, String specID, int[] rows) {
+
+        StringBuilder txt = new StringBuilder();
+        for (int row : rows) {
+            txt.append(getTabString(specID, psmTable.getPsm(row)));
+        }
+
+        return txt.toString();
+    }
+
+
     public String getHeader() {
 
         if (tabStringMode == TabStringMode.COMET)
@@ -109,12 +122,12 @@ public class Psm2StringFunction implements BiFunction<String, List<PeptideSpectr
         int rank = (int) psm.getScore("rank");
         String lfdrStr = (groupedFDRCalculator==null)?"NaN":String.format("%.5f",groupedFDRCalculator.getLocalFDR(psm));
         String expectStr = String.format("%.5f",psm.getScore("neg_log10_p"));
-        Peptide peptide = psm.getPeptide();
+        LazyPeptide peptide = psm.getLazyPeptide();
         String pepMass = String.format("%.5f",peptide.getMolecularMass());
-        String modifString = getModifString(peptide);
+        String modifString = peptide.getModificationColumns();
         String variantString = getVariantString(psm);
 
-        return  psm.getPeptide().toString()+"\t"+psm.getPeptide().toSymbolString()+"\t"+pepMass+"\t"+modifString+"\t"+protACs+"\t"+
+        return  peptide.toString()+"\t"+peptide.getSequence()+"\t"+pepMass+"\t"+modifString+"\t"+protACs+"\t"+
                 variantString+"\t"+ psm.isDecoy()+"\t"+rank+"\t"+ psm.getScore("xcorr")+"\t"+psm.getScore("deltacn")+"\t"+
                 psm.getScore("spscore")+"\t"+expectStr+"\t+"+ psm.getScore("mass_diff")+"\t"+(int)psm.getScore("tot_num_ions")+"\t"+
                 (int)psm.getScore("matched_num_ions")+"\t"+ lfdrStr;
@@ -132,12 +145,12 @@ public class Psm2StringFunction implements BiFunction<String, List<PeptideSpectr
         int rank = (int) psm.getScore("rank");
         String lfdrStr = (groupedFDRCalculator==null)?"NaN":String.format("%.5f",groupedFDRCalculator.getLocalFDR(psm));
         String expectStr = String.format("%.5f",psm.getScore("neg_log10_p"));
-        Peptide peptide = psm.getPeptide();
+        LazyPeptide peptide = psm.getLazyPeptide();
         String pepMass = String.format("%.5f",peptide.getMolecularMass());
-        String modifString = getModifString(peptide);
+        String modifString = peptide.getModificationColumns();
         String variantString = getVariantString(psm);
 
-        return  psm.getPeptide().toString()+"\t"+psm.getPeptide().toSymbolString()+"\t"+pepMass+"\t"+modifString+"\t"+protACs+"\t"+variantString+"\t"+psm.isDecoy()+"\t"+
+        return  peptide.toString()+"\t"+peptide.getSequence()+"\t"+pepMass+"\t"+modifString+"\t"+protACs+"\t"+variantString+"\t"+psm.isDecoy()+"\t"+
                 rank+"\t"+psm.getScore("xcorr")+"\t"+psm.getScore("deltacn")+"\t"+psm.getScore("spscore")+"\t"+expectStr+"\t+" +
                 psm.getScore("mass_diff")+"\t"+(int)psm.getScore("tot_num_ions")+"\t"+(int)psm.getScore("matched_num_ions")+"\t"+
                 lfdrStr;
@@ -148,62 +161,15 @@ public class Psm2StringFunction implements BiFunction<String, List<PeptideSpectr
         String protACs = psm.getProteinAcc().toString();
         boolean isVariant = (protACs.contains("variant__"));
         int rank = (int) psm.getScore("rank");
-        Peptide peptide = psm.getPeptide();
+        LazyPeptide peptide = psm.getLazyPeptide();
         String pepMass = String.format("%.5f",peptide.getMolecularMass());
-        String modifString = getModifString(peptide);
+        String modifString = peptide.getModificationColumns();
 
-        return  psm.getPeptide().toString()+"\t"+psm.getPeptide().toSymbolString()+"\t"+pepMass+"\t"+modifString+"\t"+protACs+"\t"+isVariant+"\t"+psm.isDecoy()+"\t"+
+        return  peptide.toString()+"\t"+peptide.getSequence()+"\t"+pepMass+"\t"+modifString+"\t"+protACs+"\t"+isVariant+"\t"+psm.isDecoy()+"\t"+
                 rank+"\t"+psm.getScore("Mass Error [ppm]")+"\t"+psm.getScore("Score")+"\t"+psm.getScore("Delta score")+"\t"+
                 psm.getScore("Localization prob");
     }
 
-    private String getModifString(Peptide peptide)  {
-
-        if (!peptide.hasModifications()) return "NA\tNA\tNA\tNA";
-
-        String modifNames = "";
-        String modifPos = "";
-        String modifMass = "";
-        String modifAA = "";
-
-        if (peptide.hasModificationAt(ModAttachment.N_TERM)) {
-            for (Modification modif : peptide.getModifications(ModAttachment.nTermSet)) {
-                modifNames = (modifNames.isEmpty())?modif.getLabel():","+modif.getLabel();
-                modifPos = (modifPos.isEmpty())?"0":",0";
-                String massStr = String.format("%.5f",modif.getMolecularMass());
-                modifMass = (modifMass.isEmpty())?massStr:","+massStr;
-                modifAA = (modifAA.isEmpty())?"NT":",NT";
-            }
-        }
-
-        if (peptide.hasModificationAt(ModAttachment.SIDE_CHAIN)) {
-            for (int i : peptide.getModificationIndexes(ModAttachment.sideChainSet)) {
-
-                for (Modification modif : peptide.getModificationsAt(i, ModAttachment.sideChainSet)) {
-                    modifNames = (modifNames.isEmpty())?modif.getLabel():","+modif.getLabel();
-                    String posStr = String.format("%d",i+1);
-                    modifPos = (modifPos.isEmpty())?posStr:","+posStr;
-                    String massStr = String.format("%.5f",modif.getMolecularMass());
-                    modifMass = (modifMass.isEmpty())?massStr:","+massStr;
-                    modifAA = (modifAA.isEmpty())?peptide.getSymbol(i).getSymbol():","+peptide.getSymbol(i).getSymbol();
-                }
-            }
-        }
-
-        if (peptide.hasModificationAt(ModAttachment.C_TERM)) {
-            for (Modification modif : peptide.getModifications(ModAttachment.cTermSet)) {
-                modifNames = (modifNames.isEmpty())?modif.getLabel():","+modif.getLabel();
-                String posStr = String.format("%d",peptide.size()+1);
-                modifPos = (modifPos.isEmpty())?posStr:","+posStr;
-                String massStr = String.format("%.5f",modif.getMolecularMass());
-                modifMass = (modifMass.isEmpty())?massStr:","+massStr;
-                modifAA = (modifAA.isEmpty())?"NT":",NT";
-            }
-        }
-
-        return modifNames+"\t"+modifPos+"\t"+modifMass+"\t"+modifAA;
-    }
-
     private String getVariantString(PeptideSpectrumMatch psm) {
         if (!psm.isVariant()) return "false\tNA\tNA";
 
@@ -30,10 +30,13 @@
 package newance.psmcombiner;
 
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.ProteinAccessionSet;
+import newance.psmconverter.PsmTable;
 import newance.util.PsmGrouper;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,12 +49,15 @@ public class RegExpProteinGrouper extends PsmGrouper {
     private final Set<String> exclude;
     private final String masterGroup;
     private final String otherGroup;
+    // protein sets are shared between psms, so the group is calculated once per set
+    private final ConcurrentHashMap<ProteinAccessionSet,String> groupCache;
 
     public RegExpProteinGrouper(Pattern regExp, String masterGroup, String otherGroup) {
         this.regExp = regExp;
         this.masterGroup = masterGroup;
         this.otherGroup = otherGroup;
         this.exclude = null;
+        this.groupCache = new ConcurrentHashMap<>();
     }
 
     public RegExpProteinGrouper(Pattern regExp, Set<String> exclude, String masterGroup, String otherGroup) {
@@ -59,12 +65,31 @@ public class RegExpProteinGrouper extends PsmGrouper {
         this.masterGroup = masterGroup;
         this.otherGroup = otherGroup;
         this.exclude = exclude;
+        this.groupCache = new ConcurrentHashMap<>();
     }
 
     @Override
     public String apply(String specID, PeptideSpectrumMatch psm) {
 
-        Set<String> proteins = psm.getProteinAcc();
+        return getCachedGroup(psm.getProteinAcc());
+    }
+
+    @Override
+    public String apply(PsmTable psmTable, int row) {
+
+        return getCachedGroup(psmTable.getProteinAcc(row));
+    }
+
+    private String getCachedGroup(Set<String> proteins) {
+
+        if (proteins instanceof ProteinAccessionSet) {
+            return groupCache.computeIfAbsent((ProteinAccessionSet) proteins, this::getGroup);
+        }
+
+        return getGroup(proteins);
+    }
+
+    private String getGroup(Set<String> proteins) {
 
         for (String protein : proteins) {
 
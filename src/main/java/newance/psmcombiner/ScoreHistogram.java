@@ -28,32 +28,39 @@
  */
 package newance.psmcombiner;
 
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmTable;
 
 import java.io.File;
 import java.io.Serializable;
 import java.util.*;
 
 /**
+ * Counts, gamma and lFDR values are stored in primitive arrays with one entry per occupied bin, in the order in which
+ * the bins were first filled. indexMap gives the position of a bin in these arrays.
+ *
  * @author Markus Müller
  */
 
 public abstract class ScoreHistogram implements Serializable {
 
-    protected final List<Float> gamma;
-    protected final List<Float> lFDR;
-    protected List<Integer> sortedIndexes;
-    protected final List<Float> pFDR;
-    protected List<Float> targetCnts;
-    protected List<Float> decoyCnts;
-    protected final List<Integer> indexMap;
-    protected List<Integer> psmBins;
+    protected final TFloatArrayList gamma;
+    protected final TFloatArrayList lFDR;
+    protected TIntArrayList sortedIndexes;
+    protected final TFloatArrayList pFDR;
+    protected TFloatArrayList targetCnts;
+    protected TFloatArrayList decoyCnts;
+    protected final BinIndexMap indexMap;
+    protected TIntArrayList psmBins;
     protected float totTargetCnt;
     protected float totDecoyCnt;
     protected final int totNrBins;
     protected final int[] nrBins;
     protected final int dimension;
     protected int currIndex;
+    private transient LocalFDRCurve lFDRCurve;
     protected double pi_0;
     protected double pi_1;
     protected boolean canCalculateFDR;
@@ -68,15 +75,14 @@ public abstract class ScoreHistogram implements Serializable {
         for (int c : nrBins) cnt *= c;
         totNrBins = cnt;
 
-        targetCnts = new ArrayList<>();
-        decoyCnts = new ArrayList<>();
-        psmBins = new ArrayList<>();
-        gamma = new ArrayList<>();
-        lFDR = new ArrayList<>();
-        pFDR = new ArrayList<>();
+        targetCnts = new TFloatArrayList();
+        decoyCnts = new TFloatArrayList();
+        psmBins = new TIntArrayList();
+        gamma = new TFloatArrayList();
+        lFDR = new TFloatArrayList();
+        pFDR = new TFloatArrayList();
         sortedIndexes = null;
-        indexMap = new ArrayList<>(totNrBins);
-        for (int i=0;i<totNrBins;i++) indexMap.add(-1);
+        indexMap = new BinIndexMap(totNrBins);
         currIndex = 0;
         canCalculateFDR = false;
         pi_0 = -1.0;
@@ -90,18 +96,18 @@ public abstract class ScoreHistogram implements Serializable {
         this.nrBins = scoreHistogram.nrBins;
         this.dimension = scoreHistogram.dimension;
         totNrBins = scoreHistogram.totNrBins;
-        targetCnts = new ArrayList<>(scoreHistogram.targetCnts);
-        decoyCnts = new ArrayList<>(scoreHistogram.decoyCnts);
-        psmBins = new ArrayList<>(scoreHistogram.psmBins);
-        gamma = new ArrayList<>(scoreHistogram.gamma);
-        lFDR = new ArrayList<>(scoreHistogram.lFDR);
-        pFDR = new ArrayList<>(scoreHistogram.pFDR);
+        targetCnts = new TFloatArrayList(scoreHistogram.targetCnts);
+        decoyCnts = new TFloatArrayList(scoreHistogram.decoyCnts);
+        psmBins = new TIntArrayList(scoreHistogram.psmBins);
+        gamma = new TFloatArrayList(scoreHistogram.gamma);
+        lFDR = new TFloatArrayList(scoreHistogram.lFDR);
+        pFDR = new TFloatArrayList(scoreHistogram.pFDR);
         if (scoreHistogram.sortedIndexes!=null)
-            sortedIndexes = new ArrayList<>(scoreHistogram.sortedIndexes);
+            sortedIndexes = new TIntArrayList(scoreHistogram.sortedIndexes);
         else
             sortedIndexes = null;
 
-        indexMap = new ArrayList<>(scoreHistogram.indexMap);
+        indexMap = new BinIndexMap(scoreHistogram.indexMap);
         currIndex = scoreHistogram.currIndex;
         canCalculateFDR = scoreHistogram.canCalculateFDR;
         pi_0 = scoreHistogram.pi_0;
@@ -117,7 +123,15 @@ public abstract class ScoreHistogram implements Serializable {
 
     public void add(PeptideSpectrumMatch peptideSpectrumMatch) {
 
-        int bin = index(peptideSpectrumMatch);
+        add(index(peptideSpectrumMatch), peptideSpectrumMatch.isDecoy());
+    }
+
+    public void add(PsmTable psmTable, int row) {
+
+        add(index(psmTable, row), psmTable.isDecoy(row));
+    }
+
+    private void add(int bin, boolean decoy) {
 
         int idx = indexMap.get(bin);
         if (idx<0) {
@@ -126,7 +140,7 @@ public abstract class ScoreHistogram implements Serializable {
             currIndex++;
         }
 
-        float isDecoy =  peptideSpectrumMatch.isDecoy()?1:0;
+        float isDecoy =  decoy?1:0;
 
         if (idx < 0) { // new bin
             targetCnts.add(1-isDecoy);
@@ -140,11 +154,40 @@ public abstract class ScoreHistogram implements Serializable {
         else totDecoyCnt++;
     }
 
+    /**
+     * Adds targetCnt target and decoyCnt decoy psms to bin. Same result as adding the psms one by one.
+     */
+    protected void add(int bin, int targetCnt, int decoyCnt) {
+
+        int idx = indexMap.get(bin);
+        if (idx<0) {
+            indexMap.set(bin,currIndex);
+            psmBins.add(bin);
+            currIndex++;
+            targetCnts.add(targetCnt);
+            decoyCnts.add(decoyCnt);
+        } else {
+            targetCnts.set(idx,targetCnts.get(idx)+targetCnt);
+            decoyCnts.set(idx,decoyCnts.get(idx)+decoyCnt);
+        }
+
+        totTargetCnt += targetCnt;
+        totDecoyCnt += decoyCnt;
+    }
+
+    /**
+     * @return true if every psm falls into the same bin in this histogram and in scoreHistogram
+     */
+    protected boolean hasSameBins(ScoreHistogram scoreHistogram) {
+
+        return getClass()==scoreHistogram.getClass() && Arrays.equals(nrBins, scoreHistogram.nrBins);
+    }
+
     protected void calcClassProb() {
 
-        List<Float> pvalues = calcPValues();
+        float[] pvalues = calcPValues();
 
-        int n = pvalues.size();
+        int n = pvalues.length;
 
         if (n==0) {
             pi_0 = pi_1 = 0.5;
@@ -154,7 +197,7 @@ public abstract class ScoreHistogram implements Serializable {
         float th = 0.05f/n;
         int i;
         for (i=0;i<n;i++) {
-            if (pvalues.get(i)>th) break;
+            if (pvalues[i]>th) break;
         }
 
         pi_1 = 1.05f*i/n;
@@ -172,32 +215,31 @@ public abstract class ScoreHistogram implements Serializable {
         pi_0 = 1.0 - pi_1;
     }
 
-    protected List<Float> calcPValues() {
-
-        List<Float> d = new ArrayList<>();
-        List<Float> t = new ArrayList<>();
+    // only the sorted count values are needed, so the counts are sorted directly instead of sorting indexes
+    protected float[] calcPValues() {
 
-        for (Float cnt: decoyCnts) {
-            t.add(cnt);
-            if (cnt>0) d.add(cnt);
-        }
+        float[] t = decoyCnts.toArray();
+        Arrays.sort(t);
 
-        List<Integer> sortedIdxD = sortIndexes(d,false);
-        List<Integer> sortedIdxT = sortIndexes(t,false);
-        List<Float> pvalues = new ArrayList<>();
+        int start = 0;
+        while (start<t.length && !(t[start]>0)) start++;
+        int end = t.length;
+        while (end>start && Float.isNaN(t[end-1])) end--;
+        float[] d = Arrays.copyOfRange(t, start, end);
 
-        int n = sortedIdxD.size();
-        int m = sortedIdxT.size();
+        int n = d.length;
+        int m = t.length;
+        TFloatArrayList pvalues = new TFloatArrayList();
 
         for (int i=0,j=0;j<n;j++) {
 
-            while (i<m && t.get(sortedIdxT.get(i))<d.get(sortedIdxD.get(j))) {
+            while (i<m && t[i]<d[j]) {
                 i++;
                 pvalues.add(1.0f*j/n);
             }
         }
 
-        return pvalues;
+        return pvalues.toArray();
     }
 
     protected void calcGamma() {
@@ -213,6 +255,12 @@ public abstract class ScoreHistogram implements Serializable {
         }
     }
 
+    // gamma is calculated lazily, tree nodes calculate it before their children read it from several threads
+    protected void initGamma() {
+
+        if (gamma.isEmpty()) calcGamma();
+    }
+
     public float getGamma(int bin) {
 
         if (gamma.isEmpty()) calcGamma();
@@ -234,6 +282,13 @@ public abstract class ScoreHistogram implements Serializable {
         return getLocalFDR(bin);
     }
 
+    public float getLocalFDR(PsmTable psmTable, int row) {
+
+        if (lFDR.isEmpty()) calcLocalFDR();
+
+        return getLocalFDR(index(psmTable, row));
+    }
+
     public float getLocalFDR(int bin) {
 
         if (lFDR.isEmpty()) calcLocalFDR();
@@ -273,9 +328,9 @@ public abstract class ScoreHistogram implements Serializable {
 
         gamma.clear();
         lFDR.clear();
-        for (Integer bin : psmBins) {
+        for (int i=0;i<psmBins.size();i++) {
 
-            float g = parent.getGamma(bin);
+            float g = parent.getGamma(psmBins.get(i));
 
             gamma.add(g);
             float lfdr = 0;
@@ -290,57 +345,83 @@ public abstract class ScoreHistogram implements Serializable {
 
     public float[] getTargetDecoyCounts(float maxlFDR) {
 
+        return getLocalFDRCurve().getTargetDecoyCounts(maxlFDR);
+    }
+
+    /**
+     * Local FDR values of the bins in ascending order with their counts. The curve is rebuilt after the local FDR has
+     * been recalculated.
+     */
+    LocalFDRCurve getLocalFDRCurve() {
+
+        return getLocalFDRCurve(targetCnts, decoyCnts, indexMap);
+    }
+
+    // counts are taken from the bins of tCounts and dCounts given by idxMap
+    protected LocalFDRCurve getLocalFDRCurve(TFloatArrayList tCounts, TFloatArrayList dCounts, BinIndexMap idxMap) {
+
         if (lFDR.isEmpty()) calcLocalFDR();
 
-        float decoySum = 0;
-        float targetSum = 0;
-        float decoySumP = 0;
-        float targetSumP = 0;
-        float fdrP = 0;
-
-        for (int i = 0; i < sortedIndexes.size(); i++) {
-            int idx = sortedIndexes.get(i);
-
-            float fdr = lFDR.get(idx);
-            if (fdr>maxlFDR) {
-                float f = (fdr-maxlFDR)/(fdr-fdrP);
-                decoySum = decoySum + f*(decoySumP-decoySum);
-                targetSum = targetSum + f*(targetSumP-targetSum);
-                break;
-            }
+        LocalFDRCurve curve = lFDRCurve;
+        if (curve==null || !curve.isFor(sortedIndexes, dCounts)) {
+
+            int n = sortedIndexes.size();
+            float[] lFDRs = new float[n];
+            float[] dCnts = new float[n];
+            float[] tCnts = new float[n];
 
-            decoySum += decoyCnts.get(idx);
-            targetSum += targetCnts.get(idx);
+            for (int k = 0; k < n; k++) {
+                int i = sortedIndexes.get(k);
+                lFDRs[k] = lFDR.get(i);
+
+                int idx = idxMap.get(psmBins.get(i));
+                if (idx>=0) {
+                    dCnts[k] = dCounts.get(idx);
+                    tCnts[k] = tCounts.get(idx);
+                }
+            }
 
-            fdrP = fdr;
-            decoySumP = decoySum;
-            targetSumP = targetSum;
+            curve = new LocalFDRCurve(sortedIndexes, dCounts, lFDRs, dCnts, tCnts);
+            lFDRCurve = curve;
         }
 
-        return new float[] {decoySum, targetSum};
+        return curve;
     }
 
     protected static List<Integer> sortIndexes(List<Float> array, boolean reverse) {
 
-        List<Integer> sortedIndexes = new ArrayList<>();
+        float[] values = new float[array.size()];
+        for (int i=0; i < values.length; i++) values[i] = array.get(i);
 
-        for (int i=0; i < array.size(); i++) {
-            sortedIndexes.add(i);
+        TIntArrayList sorted = sortIndexes(new TFloatArrayList(values), reverse);
+
+        List<Integer> sortedIndexes = new ArrayList<>(sorted.size());
+        for (int i=0; i < sorted.size(); i++) sortedIndexes.add(sorted.get(i));
+
+        return sortedIndexes;
+    }
+
+    /**
+     * Stable sort of the indexes of array by the values in array. Each value and its index are packed into one long,
+     * so that the indexes are sorted without comparator and boxing. Values are ordered as by Float.compare.
+     */
+    protected static TIntArrayList sortIndexes(TFloatArrayList array, boolean reverse) {
+
+        int n = array.size();
+        long[] keys = new long[n];
+        for (int i=0; i < n; i++) {
+            int bits = Float.floatToIntBits(array.get(i));
+            int key = bits ^ ((bits >> 31) & 0x7fffffff);
+            if (reverse) key = ~key;
+            keys[i] = ((long) key << 32) | i;
         }
 
-        Comparator<Integer> comparator = new Comparator<Integer>() {
-            @Override
-            public int compare(Integer i1, Integer i2) {
-                if (reverse)
-                    return array.get(i2).compareTo(array.get(i1));
-                else
-                    return array.get(i1).compareTo(array.get(i2));
-            }
-        };
+        Arrays.sort(keys);
 
-        sortedIndexes.sort(comparator);
+        int[] sortedIndexes = new int[n];
+        for (int i=0; i < n; i++) sortedIndexes[i] = (int) keys[i];
 
-        return sortedIndexes;
+        return TIntArrayList.wrap(sortedIndexes);
     }
 
     public List<Float> calcMids(List<Float> breaks) {
@@ -386,6 +467,13 @@ public abstract class ScoreHistogram implements Serializable {
     }
 
     protected abstract int index(PeptideSpectrumMatch peptideSpectrumMatch);
+
+    // subclasses can read the scores directly from the table columns
+    protected int index(PsmTable psmTable, int row) {
+
+        return index(psmTable.getPsm(row));
+    }
+
     protected abstract Set<Integer> getNeighbourIndex(int bin);
     public abstract void write(File outputFile);
     protected abstract List<Float> getMids(int bin);
@@ -423,34 +511,81 @@ public abstract class ScoreHistogram implements Serializable {
     }
 
     public List<Float> getGamma() {
-        return gamma;
+        return asList(gamma);
     }
 
     public List<Float> getlFDR() {
-        return lFDR;
+        return asList(lFDR);
     }
 
     public List<Integer> getSortedIndexes() {
-        return sortedIndexes;
+        return (sortedIndexes==null) ? null : asList(sortedIndexes);
     }
 
     public List<Float> getpFDR() {
-        return pFDR;
+        return asList(pFDR);
     }
 
     public List<Float> getTargetCnts() {
-        return targetCnts;
+        return asList(targetCnts);
     }
 
     public List<Float> getDecoyCnts() {
-        return decoyCnts;
+        return asList(decoyCnts);
     }
 
+    /**
+     * @return list with the index of each bin in the count lists, -1 for empty bins
+     */
     public List<Integer> getIndexMap() {
-        return indexMap;
+
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(int bin) {
+                return indexMap.get(bin);
+            }
+
+            @Override
+            public int size() {
+                return indexMap.size();
+            }
+        };
     }
 
     public List<Integer> getPsmBins() {
-        return psmBins;
+        return asList(psmBins);
+    }
+
+    // read only views of the primitive lists
+    protected static List<Float> asList(TFloatArrayList values) {
+
+        return new AbstractList<Float>() {
+            @Override
+            public Float get(int index) {
+                if (index >= values.size()) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+values.size());
+                return values.get(index);
+            }
+
+            @Override
+            public int size() {
+                return values.size();
+            }
+        };
+    }
+
+    protected static List<Integer> asList(TIntArrayList values) {
+
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(int index) {
+                if (index >= values.size()) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+values.size());
+                return values.get(index);
+            }
+
+            @Override
+            public int size() {
+                return values.size();
+            }
+        };
     }
 }
@@ -29,11 +29,13 @@
 
 package newance.psmcombiner;
 
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmTable;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
 /**
  * @author Markus Müller
@@ -43,6 +45,7 @@ public abstract class SmoothedScoreHistogram extends ScoreHistogram {
 
     protected float tmpCnt;
     protected SmoothedScoreHistogram smoothedHistogram;
+    private transient SmoothingStencil stencil;
 
     public SmoothedScoreHistogram(int[] nrBins) {
 
@@ -66,6 +69,15 @@ public abstract class SmoothedScoreHistogram extends ScoreHistogram {
             return super.getGamma(bin);
     }
 
+    @Override
+    protected void initGamma() {
+
+        if (smoothedHistogram!=null)
+            smoothedHistogram.initGamma();
+        else
+            super.initGamma();
+    }
+
     public List<Float> getGamma() {
 
         if (smoothedHistogram!=null)
@@ -86,6 +98,17 @@ public abstract class SmoothedScoreHistogram extends ScoreHistogram {
     }
 
 
+    public float getLocalFDR(PsmTable psmTable, int row) {
+
+        int bin = index(psmTable, row);
+
+        if (smoothedHistogram!=null)
+            return smoothedHistogram.getLocalFDR(bin);
+        else
+            return super.getLocalFDR(bin);
+    }
+
+
     public void removeSpikeNoiseHistogram(boolean adjustTotalCounts) {
         if (smoothedHistogram==null) {
             smoothedHistogram = new CometScoreHistogram(this);
@@ -96,11 +119,22 @@ public abstract class SmoothedScoreHistogram extends ScoreHistogram {
 
 
     public void smoothHistogram(boolean adjustTotalCounts) {
+        smoothHistogram(1, 1, adjustTotalCounts);
+    }
+
+    /**
+     * Smooths the histogram iterations times over the neighbours within radius (L1 distance on the bin grid).
+     * Equivalent to calling smoothHistogram(false) iterations-1 times followed by smoothHistogram(adjustTotalCounts)
+     * for radius 1.
+     */
+    public void smoothHistogram(int iterations, int radius, boolean adjustTotalCounts) {
+        if (iterations<=0) return;
+
         if (smoothedHistogram==null) {
             smoothedHistogram = new CometScoreHistogram(this);
         }
 
-        smoothedHistogram.smooth(adjustTotalCounts);
+        smoothedHistogram.smooth(iterations, radius, adjustTotalCounts);
     }
 
     public void calcLocalFDR() {
@@ -118,67 +152,34 @@ public abstract class SmoothedScoreHistogram extends ScoreHistogram {
     }
 
     @Override
-    public float[] getTargetDecoyCounts(float maxlFDR) {
-
-        if (smoothedHistogram!=null) {
-
-            if (smoothedHistogram.getlFDR().isEmpty()) smoothedHistogram.calcLocalFDR();
-            return smoothedHistogram.getTargetDecoyCounts(targetCnts,decoyCnts,indexMap,maxlFDR);
-        }
-        else {
-            return super.getTargetDecoyCounts(maxlFDR);
-        }
-
-
-    }
-
-    private float[] getTargetDecoyCounts(List<Float> tCounts, List<Float> dCounts, List<Integer> idxMap, float maxlFDR) {
-
-        float decoySum = 0;
-        float targetSum = 0;
-        float decoySumP = 0;
-        float targetSumP = 0;
-        float fdrP = 0;
-
-        for (int i : sortedIndexes) {
-
-            float fdr = lFDR.get(i);
-            if (fdr>maxlFDR) {
-                float f = (fdr-maxlFDR)/(fdr-fdrP);
-                decoySum = decoySum + f*(decoySumP-decoySum);
-                targetSum = targetSum + f*(targetSumP-targetSum);
-                break;
-            }
-
-            int idx = idxMap.get(psmBins.get(i));
-            if (idx>=0) {
-                decoySum += dCounts.get(idx);
-                targetSum += tCounts.get(idx);
-            }
+    LocalFDRCurve getLocalFDRCurve() {
 
-            fdrP = fdr;
-            decoySumP = decoySum;
-            targetSumP = targetSum;
-        }
-
-        return new float[] {decoySum, targetSum};
+        if (smoothedHistogram!=null)
+            return smoothedHistogram.getLocalFDRCurve(targetCnts,decoyCnts,indexMap);
+        else
+            return super.getLocalFDRCurve();
     }
 
 
     // remove cells that have no target counts within a neigborhood
     private void removeSpikeNoise(boolean adjustTotalCounts) {
 
-        List<Float> newTargetCnts = new ArrayList<>();
-        List<Float> newDecoyCnts = new ArrayList<>();
-        List<Integer> newPsmBins = new ArrayList<>();
+        TFloatArrayList newTargetCnts = new TFloatArrayList();
+        TFloatArrayList newDecoyCnts = new TFloatArrayList();
+        TIntArrayList newPsmBins = new TIntArrayList();
         currIndex = 0;
 
-        for (Integer bin : psmBins) {
+        SmoothingStencil stencil = getStencil(1);
+        int[] coords = new int[stencil.getDimension()];
+        int[] neighbours = new int[stencil.getMaxNrNeighbours()];
 
-            Set<Integer> neighbours = getNeighbourIndex(bin);
+        for (int k = 0; k < psmBins.size(); k++) {
+
+            int bin = psmBins.get(k);
+            int nrNN = stencil.getNeighbours(bin, coords, neighbours);
             float targetCounts = 0;
-            for (Integer n : neighbours) {
-                int idxNN = indexMap.get(n);
+            for (int j = 0; j < nrNN; j++) {
+                int idxNN = indexMap.get(neighbours[j]);
                 if (idxNN>=0 && idxNN<targetCnts.size()) {
                     targetCounts += targetCnts.get(idxNN);
                 }
@@ -210,7 +211,7 @@ public abstract class SmoothedScoreHistogram extends ScoreHistogram {
     protected void adjustTotalCounts() {
 
         tmpCnt = 0;
-        targetCnts.forEach(cnt -> tmpCnt += cnt);
+        for (int i=0;i<targetCnts.size();i++) tmpCnt += targetCnts.get(i);
         if (tmpCnt>0) {
             for (int i=0;i<targetCnts.size();i++) targetCnts.set(i,targetCnts.get(i)*totTargetCnt/tmpCnt);
         } else {
@@ -218,7 +219,7 @@ public abstract class SmoothedScoreHistogram extends ScoreHistogram {
         }
 
         tmpCnt = 0;
-        decoyCnts.forEach(cnt -> tmpCnt += cnt);
+        for (int i=0;i<decoyCnts.size();i++) tmpCnt += decoyCnts.get(i);
         if (tmpCnt>0) {
             for (int i=0;i<decoyCnts.size();i++) decoyCnts.set(i,decoyCnts.get(i)*totDecoyCnt/tmpCnt);
         } else {
@@ -226,88 +227,93 @@ public abstract class SmoothedScoreHistogram extends ScoreHistogram {
         }
     }
 
-    private void smooth(boolean adjustTotalCounts) {
-
-        List<Float> newTargetCnts = new ArrayList<>(targetCnts);
-        List<Float> newDecoyCnts = new ArrayList<>(decoyCnts);
-        List<Integer> newPsmBins = new ArrayList<>(psmBins);
+    // smooths the counts iterations times with the mean over the bin and its neighbours within radius. Empty bins next
+    // to occupied bins are added in each iteration. Total counts are adjusted after the last iteration only.
+    private void smooth(int iterations, int radius, boolean adjustTotalCounts) {
 
-        List<Float> tmpTargetCnts = new ArrayList<>();
-        List<Float> tmpDecoyCnts = new ArrayList<>();
-        List<Integer> tmpPsmBins = new ArrayList<>();
-        List<Integer> nnPsmBins = new ArrayList<>();
+        SmoothingStencil stencil = getStencil(radius);
+        int[] coords = new int[stencil.getDimension()];
+        int[] neighbours = new int[stencil.getMaxNrNeighbours()];
 
-        for (Integer bin : psmBins) {
+        int size = psmBins.size();
+        int[] bins = psmBins.toArray();
+        float[] tCnts = targetCnts.toArray();
+        float[] dCnts = decoyCnts.toArray();
+        float[] newTCnts = new float[size];
+        float[] newDCnts = new float[size];
 
-            tmpTargetCnts.clear();
-            tmpDecoyCnts.clear();
-            tmpPsmBins.clear();
+        for (int iter = 0; iter < iterations; iter++) {
 
-            int idx = indexMap.get(bin);
-            float targetCounts = targetCnts.get(idx);
-            float decoyCounts = decoyCnts.get(idx);
-            int cnt = 1;
-
-            Set<Integer> neighbours = getNeighbourIndex(bin);
-            for (Integer n : neighbours) {
-                int idxNN = indexMap.get(n);
-                if (idxNN<0) {
-                    tmpTargetCnts.add(0f);
-                    tmpDecoyCnts.add(0f);
-                    tmpPsmBins.add(n);
-                    nnPsmBins.add(n);
-                } else  if (idxNN<targetCnts.size()) {
-                    targetCounts += targetCnts.get(idxNN);
-                    decoyCounts += decoyCnts.get(idxNN);
-                }
-                cnt++;
+            int oldSize = size;
+            if (newTCnts.length < oldSize) {
+                newTCnts = new float[tCnts.length];
+                newDCnts = new float[dCnts.length];
             }
 
-            targetCounts /= cnt;
-            decoyCounts /= cnt;
-
-            newTargetCnts.addAll(tmpTargetCnts);
-            newDecoyCnts.addAll(tmpDecoyCnts);
-            newPsmBins.addAll(tmpPsmBins);
+            for (int k = 0; k < oldSize; k++) {
+
+                float targetCounts = tCnts[k];
+                float decoyCounts = dCnts[k];
+
+                int nrNN = stencil.getNeighbours(bins[k], coords, neighbours);
+                for (int j = 0; j < nrNN; j++) {
+                    int n = neighbours[j];
+                    int idxNN = indexMap.get(n);
+                    if (idxNN<0) {
+                        // empty neighbours are added here, their smoothed counts are set below
+                        if (size==bins.length) bins = Arrays.copyOf(bins, grow(size, stencil));
+                        bins[size] = n;
+                        indexMap.set(n,size);
+                        size++;
+                    } else if (idxNN<oldSize) {
+                        targetCounts += tCnts[idxNN];
+                        decoyCounts += dCnts[idxNN];
+                    }
+                }
 
-            for (Integer n : tmpPsmBins) {
-                indexMap.set(n,currIndex);
-                currIndex++;
+                newTCnts[k] = targetCounts/(nrNN+1);
+                newDCnts[k] = decoyCounts/(nrNN+1);
             }
 
-            newTargetCnts.set(idx,targetCounts);
-            newDecoyCnts.set(idx,decoyCounts);
-        }
-
-        // set counts for neighbours of cells with psms
-        for (Integer bin : nnPsmBins) {
+            if (newTCnts.length < size) {
+                newTCnts = Arrays.copyOf(newTCnts, bins.length);
+                newDCnts = Arrays.copyOf(newDCnts, bins.length);
+            }
 
-            Set<Integer> neighbours = getNeighbourIndex(bin);
+            // set counts for neighbours of cells with psms
+            for (int k = oldSize; k < size; k++) {
 
-            int idx = indexMap.get(bin);
-            float targetCounts = 0;
-            float decoyCounts = 0;
-            int cnt = 1;
+                float targetCounts = 0;
+                float decoyCounts = 0;
 
-            for (Integer n : neighbours) {
-                int idxNN = indexMap.get(n);
-                if (idxNN>=0 && idxNN<targetCnts.size()) {
-                    targetCounts += targetCnts.get(idxNN);
-                    decoyCounts += decoyCnts.get(idxNN);
+                int nrNN = stencil.getNeighbours(bins[k], coords, neighbours);
+                for (int j = 0; j < nrNN; j++) {
+                    int idxNN = indexMap.get(neighbours[j]);
+                    if (idxNN>=0 && idxNN<oldSize) {
+                        targetCounts += tCnts[idxNN];
+                        decoyCounts += dCnts[idxNN];
+                    }
                 }
-                cnt++;
-            }
 
-            targetCounts /= cnt;
-            decoyCounts /= cnt;
+                newTCnts[k] = targetCounts/(nrNN+1);
+                newDCnts[k] = decoyCounts/(nrNN+1);
+            }
 
-            newTargetCnts.set(idx,targetCounts);
-            newDecoyCnts.set(idx,decoyCounts);
+            float[] tmp = tCnts;
+            tCnts = newTCnts;
+            newTCnts = tmp;
+            tmp = dCnts;
+            dCnts = newDCnts;
+            newDCnts = tmp;
         }
 
-        targetCnts = newTargetCnts;
-        decoyCnts = newDecoyCnts;
-        psmBins = newPsmBins;
+        targetCnts = new TFloatArrayList(size);
+        targetCnts.add(tCnts,0,size);
+        decoyCnts = new TFloatArrayList(size);
+        decoyCnts.add(dCnts,0,size);
+        psmBins = new TIntArrayList(size);
+        psmBins.add(bins,0,size);
+        currIndex = size;
 
         if (adjustTotalCounts) adjustTotalCounts();
 
@@ -316,4 +322,23 @@ public abstract class SmoothedScoreHistogram extends ScoreHistogram {
         pFDR.clear();
     }
 
+    private static int grow(int size, SmoothingStencil stencil) {
+        return (int) Math.min(stencil.getTotNrBins(), Math.max(16L, 2L*size));
+    }
+
+    /**
+     * Grid of the histogram bins used for smoothing. The first coordinate runs fastest in the bin index.
+     */
+    protected int[] getGridShape() {
+        return nrBins;
+    }
+
+    private SmoothingStencil getStencil(int radius) {
+
+        if (stencil==null || !stencil.fits(getGridShape(),radius))
+            stencil = new SmoothingStencil(getGridShape(),radius);
+
+        return stencil;
+    }
+
 }
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmcombiner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Neighbourhood of a bin in a histogram grid. The neighbours of a bin are all bins within L1 distance radius, that is
+ * the 2*dimension direct neighbours for radius 1. Bins are numbered with the first coordinate running fastest, and the
+ * neighbours are found by adding precomputed offsets to the bin number. Neighbours are returned in a fixed order:
+ * by distance, and for radius 1 as +1, -1 along the first, second, ... coordinate.
+ *
+ * @author Markus Müller
+ */
+
+class SmoothingStencil {
+
+    private final int[] shape;
+    private final int[] strides;
+    private final int totNrBins;
+    private final int radius;
+    // coordinate differences and bin offsets of the neighbours
+    private final int[][] deltas;
+    private final int[] offsets;
+
+    SmoothingStencil(int[] shape, int radius) {
+
+        if (radius < 1) throw new IllegalArgumentException("Smoothing radius has to be positive. Abort.");
+
+        this.shape = shape.clone();
+        this.radius = radius;
+        this.strides = new int[shape.length];
+
+        int cnt = 1;
+        for (int d = 0; d < shape.length; d++) {
+            strides[d] = cnt;
+            cnt *= shape[d];
+        }
+        this.totNrBins = cnt;
+
+        List<int[]> deltaList = new ArrayList<>();
+        for (int distance = 1; distance <= radius; distance++) {
+            addDeltas(new int[shape.length], 0, distance, deltaList);
+        }
+
+        this.deltas = deltaList.toArray(new int[deltaList.size()][]);
+        this.offsets = new int[deltas.length];
+        for (int i = 0; i < deltas.length; i++) {
+            for (int d = 0; d < shape.length; d++) offsets[i] += deltas[i][d]*strides[d];
+        }
+    }
+
+    // all coordinate differences with L1 norm distance, differences along the first coordinate come first
+    private static void addDeltas(int[] delta, int dim, int distance, List<int[]> deltaList) {
+
+        if (distance == 0) {
+            deltaList.add(delta.clone());
+            return;
+        }
+        if (dim == delta.length) return;
+
+        for (int step = 1; step <= distance; step++) {
+            delta[dim] = step;
+            addDeltas(delta, dim+1, distance-step, deltaList);
+            delta[dim] = -step;
+            addDeltas(delta, dim+1, distance-step, deltaList);
+        }
+        delta[dim] = 0;
+        addDeltas(delta, dim+1, distance, deltaList);
+    }
+
+    /**
+     * Writes the neighbours of bin that lie inside the grid into neighbours
+     *
+     * @param coords array of length dimension used to hold the coordinates of bin
+     * @param neighbours array of length getMaxNrNeighbours()
+     * @return number of neighbours
+     */
+    int getNeighbours(int bin, int[] coords, int[] neighbours) {
+
+        int rest = bin;
+        for (int d = 0; d < shape.length; d++) {
+            coords[d] = rest % shape[d];
+            rest /= shape[d];
+        }
+
+        int cnt = 0;
+        for (int i = 0; i < deltas.length; i++) {
+
+            int[] delta = deltas[i];
+            boolean inside = true;
+            for (int d = 0; d < shape.length && inside; d++) {
+                int c = coords[d] + delta[d];
+                inside = c >= 0 && c < shape[d];
+            }
+
+            if (inside) neighbours[cnt++] = bin + offsets[i];
+        }
+
+        return cnt;
+    }
+
+    int getMaxNrNeighbours() {
+        return offsets.length;
+    }
+
+    int getDimension() {
+        return shape.length;
+    }
+
+    int getTotNrBins() {
+        return totNrBins;
+    }
+
+    int getRadius() {
+        return radius;
+    }
+
+    boolean fits(int[] shape, int radius) {
+        return this.radius == radius && Arrays.equals(this.shape, shape);
+    }
+}
@@ -30,6 +30,8 @@
 package newance.psmcombiner;
 
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmSelection;
+import newance.psmconverter.PsmTable;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -61,22 +63,35 @@ public class SpectrumAccumulator implements BiConsumer<String, List<PeptideSpect
         if (peptideSpectrumMatchData.isEmpty()) return;
 
         for (PeptideSpectrumMatch psm : peptideSpectrumMatchData) {
-            String peptideSeq = psm.getPeptide().toSymbolString();
+            add(psm.toSymbolString(), psm.getProteinAcc(), psm);
+        }
+    }
+
+    public void accept(PsmSelection psms) {
+
+        PsmTable psmTable = psms.getTable();
 
-            peptideProteinMap.putIfAbsent(peptideSeq,Collections.synchronizedSet(new HashSet<>()));
-            peptidePSMMap.putIfAbsent(peptideSeq,Collections.synchronizedList(new ArrayList<>()));
+        for (int i = 0; i < psms.size(); i++) {
+            int row = psms.getRow(i);
+            add(psmTable.getLazyPeptide(row).getSequence(), psmTable.getProteinAcc(row), psmTable.getPsm(row));
+        }
+    }
 
-            peptidePSMMap.get(peptideSeq).add(psm);
+    private void add(String peptideSeq, Set<String> proteins, PeptideSpectrumMatch psm) {
 
-            for (String protein : psm.getProteinAcc()) {
-                proteinPeptideMap.putIfAbsent(protein,Collections.synchronizedSet(new HashSet<>()));
+        peptideProteinMap.putIfAbsent(peptideSeq,Collections.synchronizedSet(new HashSet<>()));
+        peptidePSMMap.putIfAbsent(peptideSeq,Collections.synchronizedList(new ArrayList<>()));
 
-                proteinPeptideMap.get(protein).add(peptideSeq);
-                peptideProteinMap.get(peptideSeq).add(protein);
-            }
+        peptidePSMMap.get(peptideSeq).add(psm);
 
-            totSpectrumCount++;
+        for (String protein : proteins) {
+            proteinPeptideMap.putIfAbsent(protein,Collections.synchronizedSet(new HashSet<>()));
+
+            proteinPeptideMap.get(protein).add(peptideSeq);
+            peptideProteinMap.get(peptideSeq).add(protein);
         }
+
+        totSpectrumCount++;
     }
 
     public ConcurrentHashMap<String, Set<String>> getProteinPeptideMap() {
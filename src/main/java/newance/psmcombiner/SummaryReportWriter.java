@@ -30,6 +30,7 @@
 package newance.psmcombiner;
 
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmSelection;
 import newance.util.NewAnceParams;
 import newance.util.ProcessPsmUtils;
 
@@ -102,6 +103,37 @@ public class SummaryReportWriter {
         }
     }
 
+    public void write(String group, PsmSelection combinedPsms, PsmSelection cometPsms, PsmSelection maxQuantPsms) {
+
+        if (reportWriter==null) return;
+
+        PsmSelection noDecoyCombinedPsms = combinedPsms.selectNoDecoys();
+        PsmSelection noDecoyCometPsms = cometPsms.selectNoDecoys();
+        PsmSelection noDecoyMaxQuantPsms = maxQuantPsms.selectNoDecoys();
+
+        try {
+            reportWriter.write(group+"\t"+noDecoyCometPsms.size()+"\t"+ noDecoyMaxQuantPsms.size()+"\t"+
+                    noDecoyCombinedPsms.size()+"\t"+ProcessPsmUtils.countUniquePeptides(noDecoyCometPsms)+"\t"+
+                    ProcessPsmUtils.countUniquePeptides(noDecoyMaxQuantPsms)+"\t"+ ProcessPsmUtils.countUniquePeptides(noDecoyCombinedPsms)+"\n");
+
+        } catch (IOException e) {
+        }
+    }
+
+
+    public void write(String group, PsmSelection cometPsms) {
+
+        if (reportWriter==null) return;
+
+        PsmSelection noDecoyCometPsms = cometPsms.selectNoDecoys();
+
+        try {
+            reportWriter.write(group+"\t"+noDecoyCometPsms.size()+"\t"+ProcessPsmUtils.countUniquePeptides(noDecoyCometPsms)+"\n");
+
+        } catch (IOException e) {
+        }
+    }
+
     public void close() {
         try {
             if (reportWriter!=null) reportWriter.close();
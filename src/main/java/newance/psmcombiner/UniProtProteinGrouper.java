@@ -59,7 +59,7 @@ public class UniProtProteinGrouper extends PsmGrouper {
 
     @Override
     public String apply(String s, PeptideSpectrumMatch psm) {
-        String seq = psm.getPeptide().toSymbolString();
+        String seq = psm.toSymbolString();
         if (psm.isDecoy()) seq = reverse(seq);
 
         if (uniProtDB.contains(seq.toCharArray()))
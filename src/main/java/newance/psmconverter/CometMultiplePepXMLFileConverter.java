@@ -34,9 +34,6 @@ import newance.util.RegExpFileFilter;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -60,25 +57,15 @@ public class CometMultiplePepXMLFileConverter extends MultiplePsmFileConverter {
         List<File> psmFileList = Arrays.asList(new File(psmRootDirName).listFiles(new RegExpFileFilter(regex)));
         checkState(!psmFileList.isEmpty());
 
-        int nrTasks = psmFileList.size();
-        ExecutorService exe = Executors.newFixedThreadPool(nrTasks);
-
-        CountDownLatch latch = new CountDownLatch(nrTasks);
-        for (int i = 0; i < nrTasks; i++) {
-            exe.submit(new CometPepXmlConverter(psmFileList.get(i), psms, latch));
-        }
-
-        try {
-            latch.await();
-
-            System.out.println("Number of Comet spectra converted: "+psms.size());
-            System.out.println("Comet PepXML conversion ran in " + (System.currentTimeMillis() - start) / 1000d + "s");
-
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        List<SinglePsmFileConverter> converters = new ArrayList<>();
+        for (File psmFile : psmFileList) {
+            converters.add(new CometPepXmlConverter(psmFile, psms));
         }
 
-        exe.shutdown();
+        PsmFileConversionScheduler.getInstance().run(converters);
 
+        System.out.println("Number of Comet spectra converted: "+psms.getSpectrumCount());
+        System.out.println(CometPepXmlConverter.getModResolutionCache());
+        System.out.println("Comet PepXML conversion ran in " + (System.currentTimeMillis() - start) / 1000d + "s");
     }
 }
@@ -6,6 +6,7 @@ import newance.psmconverter.pepxml_v120.ModInfoDataType;
 import newance.psmconverter.pepxml_v120.MsmsPipelineAnalysis;
 import newance.psmconverter.pepxml_v120.NameValueType;
 import newance.util.NewAnceParams;
+import newance.util.PsmPredicate;
 import org.expasy.mzjava.core.mol.PeriodicTable;
 import org.expasy.mzjava.proteomics.mol.AminoAcid;
 import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
@@ -33,14 +34,21 @@ import static newance.psmconverter.pepxml_v120.MsmsPipelineAnalysis.MsmsRunSumma
 public class CometPEFFPepXmlReader {
 
     protected final boolean discardAmbiguous;
-    protected final ModificationMatchResolver modMatchResolver;
+    protected final ModificationResolutionCache modResolutionCache;
 
     protected static final BitSet UNKNOWN_AA = new BitSet();
 
+    private static JAXBContext jaxbContext = null;
+
     public CometPEFFPepXmlReader(boolean discardAmbiguousSequences, ModificationMatchResolver modMatchResolver) {
 
+        this(discardAmbiguousSequences, new ModificationResolutionCache(modMatchResolver));
+    }
+
+    public CometPEFFPepXmlReader(boolean discardAmbiguousSequences, ModificationResolutionCache modResolutionCache) {
+
         this.discardAmbiguous = discardAmbiguousSequences;
-        this.modMatchResolver = modMatchResolver;
+        this.modResolutionCache = modResolutionCache;
 
         UNKNOWN_AA.set('B');
         UNKNOWN_AA.set('J');
@@ -63,8 +71,7 @@ public class CometPEFFPepXmlReader {
 
     private void parse(XMLStreamReader xsr, PeptideSpectrumMatchList peptideSpectrumMatchList) throws XMLStreamException, JAXBException {
 
-        JAXBContext jc = JAXBContext.newInstance(SpectrumQuery.class);
-        Unmarshaller unmarshaller = jc.createUnmarshaller();
+        Unmarshaller unmarshaller = getJAXBContext().createUnmarshaller();
 
         do {
 
@@ -101,12 +108,36 @@ public class CometPEFFPepXmlReader {
         xsr.close();
     }
 
+    private static synchronized JAXBContext getJAXBContext() throws JAXBException {
+
+        // JAXBContext is thread safe and expensive to build, so it is shared between all files
+        if (jaxbContext == null) jaxbContext = JAXBContext.newInstance(SpectrumQuery.class);
+
+        return jaxbContext;
+    }
+
     protected void processSearchHit(PeptideSpectrumMatchList peptideSpectrumMatchList, SpectrumInfo spectrumInfo, SearchHit searchHit) {
 
         if (!peptideSpectrumMatchList.isValidSpectrum(spectrumInfo)) return;
 
         String peptideSequence = searchHit.getPeptide();
 
+        PsmPredicate psmPredicate = peptideSpectrumMatchList.getPsmPredicate();
+        if (!psmPredicate.checkCharge(spectrumInfo.getCharge()) || !psmPredicate.checkRank((int) searchHit.getHitRank()) ||
+                !psmPredicate.checkPeptideLength(peptideSequence.length()))
+            return;
+
+        Double mainScore = getHitAttributeScore(psmPredicate.getScoreName(), searchHit.getMassdiff().doubleValue(),
+                searchHit.getTotNumIons().doubleValue(), searchHit.getNumMatchedIons().doubleValue());
+        if (mainScore == null) {
+            for (NameValueType searchScore : searchHit.getSearchScore()) {
+
+                Double score = getSearchScore(psmPredicate.getScoreName(), searchScore.getName(), searchScore.getValueAttribute());
+                if (score != null) mainScore = score;
+            }
+        }
+        if (mainScore == null || !psmPredicate.checkScore(mainScore)) return;
+
         if(discardAmbiguous && containsUnknownAA(peptideSequence))
             return;
 
@@ -136,19 +167,7 @@ public class CometPEFFPepXmlReader {
 
         for (NameValueType searchScore : searchHit.getSearchScore()) {
 
-            final String name = searchScore.getName();
-            final double score = parseDouble(searchScore.getValueAttribute());
-            peptideMatch.addScore(name, score);
-
-            if (name.equals("expect")) {
-                double negLogP;
-                if (score>10e-50)
-                    negLogP = -Math.log10(score);
-                else
-                    negLogP =  -Math.log10(10e-50);
-
-                peptideMatch.addScore("neg_log10_p",negLogP);
-            }
+            addSearchScore(peptideMatch, searchScore.getName(), searchScore.getValueAttribute());
         }
 
         peptideMatch.addScore("mass_diff",searchHit.getMassdiff().doubleValue());
@@ -158,6 +177,53 @@ public class CometPEFFPepXmlReader {
         peptideSpectrumMatchList.resultRead(spectrumInfo, peptideMatch);
     }
 
+    protected void addSearchScore(PeptideMatchDataWrapper peptideMatch, String name, String value) {
+
+        final double score = parseDouble(value);
+        peptideMatch.addScore(name, score);
+
+        if (name.equals("expect")) {
+            peptideMatch.addScore("neg_log10_p",negLog10P(score));
+        }
+    }
+
+    /**
+     * @return value that addSearchScore stores for scoreName when it is called with name and value, or null if
+     * scoreName is not set by this search score
+     */
+    protected Double getSearchScore(String scoreName, String name, String value) {
+
+        if (name.equals(scoreName)) return parseDouble(value);
+        if (name.equals("expect") && scoreName.equals("neg_log10_p")) return negLog10P(parseDouble(value));
+
+        return null;
+    }
+
+    /**
+     * @return value of scoreName if it is one of the scores taken from the search_hit attributes, null otherwise
+     */
+    protected Double getHitAttributeScore(String scoreName, double massDiff, double totNumIons, double numMatchedIons) {
+
+        switch (scoreName) {
+            case "mass_diff":
+                return massDiff;
+            case "tot_num_ions":
+                return totNumIons;
+            case "matched_num_ions":
+                return numMatchedIons;
+            default:
+                return null;
+        }
+    }
+
+    protected double negLog10P(double expect) {
+
+        if (expect>10e-50)
+            return -Math.log10(expect);
+        else
+            return -Math.log10(10e-50);
+    }
+
     protected boolean containsUnknownAA(String peptideSequence) {
 
         for(int i = 0, size = peptideSequence.length(); i < size; i++){
@@ -178,19 +244,22 @@ public class CometPEFFPepXmlReader {
 
                 int position = modAaMass.getPosition().intValue() - 1;
                 AminoAcid residue = peptideMatch.getAminoAcid(position);
-                ModificationMatch modMatch = peptideMatch.addModificationMatch(position, adjustMass(modAaMass.getMass(), residue));
-                resolveMod(modMatch);
+                double massShift = adjustMass(modAaMass.getMass(), residue);
+                ModificationMatch modMatch = peptideMatch.addModificationMatch(position, massShift);
+                resolveMod(modMatch, residue, ModAttachment.SIDE_CHAIN, massShift);
             }
         }
         if (modInfo.getModNtermMass() != null) {
 
-            ModificationMatch modMatch = peptideMatch.addModificationMatch(ModAttachment.N_TERM, adjustMass(modInfo.getModNtermMass(), ModAttachment.N_TERM));
-            resolveMod(modMatch);
+            double massShift = adjustMass(modInfo.getModNtermMass(), ModAttachment.N_TERM);
+            ModificationMatch modMatch = peptideMatch.addModificationMatch(ModAttachment.N_TERM, massShift);
+            resolveMod(modMatch, null, ModAttachment.N_TERM, massShift);
         }
         if (modInfo.getModCtermMass() != null) {
 
-            ModificationMatch modMatch = peptideMatch.addModificationMatch(ModAttachment.C_TERM, adjustMass(modInfo.getModCtermMass(), ModAttachment.C_TERM));
-            resolveMod(modMatch);
+            double massShift = adjustMass(modInfo.getModCtermMass(), ModAttachment.C_TERM);
+            ModificationMatch modMatch = peptideMatch.addModificationMatch(ModAttachment.C_TERM, massShift);
+            resolveMod(modMatch, null, ModAttachment.C_TERM, massShift);
         }
 
         if (modInfo.getAminoacidSubstitution()!=null && !modInfo.getAminoacidSubstitution().isEmpty() && !peptideMatch.isDecoy()) {
@@ -211,9 +280,9 @@ public class CometPEFFPepXmlReader {
         }
     }
 
-    protected void resolveMod(ModificationMatch modMatch) {
+    protected void resolveMod(ModificationMatch modMatch, AminoAcid residue, ModAttachment modAttachment, double massShift) {
 
-        Optional<Modification> modOpt = modMatchResolver.resolve(modMatch);
+        Optional<Modification> modOpt = modResolutionCache.resolve(modMatch, residue, modAttachment, massShift);
         if(modOpt.isPresent())
             modMatch.addPotentialModification(modOpt.get());
     }
@@ -0,0 +1,548 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import newance.util.FileRangeInputStream;
+import newance.util.FileRangeSplitter;
+import newance.util.NewAnceParams;
+import newance.util.PsmPredicate;
+import org.expasy.mzjava.proteomics.mol.AminoAcid;
+import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
+import org.expasy.mzjava.proteomics.ms.ident.ModificationMatch;
+import org.expasy.mzjava.proteomics.ms.ident.ModificationMatchResolver;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Streaming version of CometPEFFPepXmlReader. The spectrum_query and search_hit attributes are read directly from the
+ * StAX event stream into SpectrumInfo and PeptideMatchDataWrapper objects, without building the JAXB SpectrumQuery
+ * object graph. The output is identical to the one of the JAXB reader.
+ * <p>
+ * The checks of the PsmPredicate are applied to the raw attribute values: spectra with a charge outside the charge
+ * range and search hits with a too high rank, a peptide length outside the length range or an insufficient main
+ * score are skipped before any PeptideMatchDataWrapper is built.
+ *
+ * @author Markus Müller
+ */
+
+public class CometPEFFPepXmlStAXReader extends CometPEFFPepXmlReader {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte[] SPECTRUM_QUERY_START = "<spectrum_query".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SPECTRUM_QUERY_END = "</spectrum_query>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RANGE_ROOT_START = "<spectrum_query_range>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RANGE_ROOT_END = "</spectrum_query_range>".getBytes(StandardCharsets.UTF_8);
+
+    public CometPEFFPepXmlStAXReader(boolean discardAmbiguousSequences, ModificationMatchResolver modMatchResolver) {
+
+        super(discardAmbiguousSequences, modMatchResolver);
+    }
+
+    public CometPEFFPepXmlStAXReader(boolean discardAmbiguousSequences, ModificationResolutionCache modResolutionCache) {
+
+        super(discardAmbiguousSequences, modResolutionCache);
+    }
+
+    @Override
+    public void parse(File file, PeptideSpectrumMatchList peptideSpectrumMatchList) {
+
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+
+            parse(inputStream, peptideSpectrumMatchList);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Splits the file at spectrum_query start tags into nrRanges byte ranges, which are parsed in parallel. Each
+     * range is read into its own partition and the partitions are added to peptideSpectrumMatchList in file order, so
+     * the result is identical to the one of parse(file, peptideSpectrumMatchList). Files with several
+     * msms_run_summary elements cannot be split into valid xml fragments and are parsed serially.
+     *
+     * @param file the pep.xml file
+     * @param peptideSpectrumMatchList the list to which the psms are added
+     * @param nrRanges number of ranges parsed in parallel
+     */
+    public void parse(File file, PeptideSpectrumMatchList peptideSpectrumMatchList, int nrRanges) {
+
+        List<FileRangeSplitter.FileRange> ranges = (nrRanges > 1) ? splitSpectrumQueries(file, nrRanges) : Collections.emptyList();
+
+        if (ranges.size() <= 1) {
+            parse(file, peptideSpectrumMatchList);
+            return;
+        }
+
+        List<RangeParseTask> tasks = new ArrayList<>();
+        for (FileRangeSplitter.FileRange range : ranges) {
+            tasks.add(new RangeParseTask(file, range, peptideSpectrumMatchList.createPartition()));
+        }
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(ranges.size());
+            try {
+                for (RangeParseTask task : tasks) pool.execute(task);
+                for (RangeParseTask task : tasks) task.join();
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        for (RangeParseTask task : tasks) {
+
+            if (task.error != null) {
+                System.out.println("Cannot split " + file + " into spectrum_query ranges (" + task.error.getMessage() + "). Parsing it serially.");
+                parse(file, peptideSpectrumMatchList);
+                return;
+            }
+        }
+
+        for (RangeParseTask task : tasks) {
+            peptideSpectrumMatchList.addAll(task.partition);
+        }
+    }
+
+    protected List<FileRangeSplitter.FileRange> splitSpectrumQueries(File file, int nrRanges) {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            long first = FileRangeSplitter.indexOf(channel, SPECTRUM_QUERY_START, 0, channel.size());
+            long last = FileRangeSplitter.lastIndexOf(channel, SPECTRUM_QUERY_END, 0, channel.size());
+            if (first < 0 || last < first) return Collections.emptyList();
+
+            return new FileRangeSplitter("<spectrum_query", false).split(channel, first, last + SPECTRUM_QUERY_END.length, nrRanges);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void parse(InputStream inputStream, PeptideSpectrumMatchList peptideSpectrumMatchList) {
+
+        try {
+            XMLStreamReader xsr = XMLInputFactory.newFactory().createXMLStreamReader(inputStream, "UTF-8");
+            parse(xsr, peptideSpectrumMatchList);
+            xsr.close();
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void parse(XMLStreamReader xsr, PeptideSpectrumMatchList peptideSpectrumMatchList) throws XMLStreamException {
+
+        SpectrumInfo spectrumInfo = null;
+        SearchHitRecord searchHit = new SearchHitRecord();
+        PsmPredicate psmPredicate = peptideSpectrumMatchList.getPsmPredicate();
+
+        while (xsr.hasNext()) {
+
+            int event = xsr.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+
+                String name = xsr.getLocalName();
+                if ("spectrum_query".equals(name)) {
+
+                    spectrumInfo = readSpectrumInfo(xsr);
+                    if (!psmPredicate.checkCharge(spectrumInfo.getCharge()) || !peptideSpectrumMatchList.isValidSpectrum(spectrumInfo)) {
+                        skipElement(xsr);
+                        spectrumInfo = null;
+                    }
+                } else if ("search_hit".equals(name) && spectrumInfo != null) {
+
+                    if (readSearchHit(xsr, searchHit, psmPredicate))
+                        processSearchHit(peptideSpectrumMatchList, spectrumInfo, searchHit);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+
+                String name = xsr.getLocalName();
+                if ("spectrum_query".equals(name))
+                    spectrumInfo = null;
+                else if ("msms_pipeline_analysis".equals(name))
+                    break;
+            }
+        }
+    }
+
+    // skips all children of the current element, the reader is positioned at the end element afterwards
+    private static void skipElement(XMLStreamReader xsr) throws XMLStreamException {
+
+        int depth = 1;
+        while (depth > 0) {
+
+            int event = xsr.next();
+            if (event == XMLStreamConstants.START_ELEMENT) depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+        }
+    }
+
+    /**
+     * Parses the spectrum_query elements of one byte range. The range is wrapped into a synthetic root element to
+     * obtain a well formed xml fragment.
+     */
+    private class RangeParseTask extends RecursiveAction {
+
+        private final File file;
+        private final FileRangeSplitter.FileRange range;
+        private final PeptideSpectrumMatchList partition;
+        private XMLStreamException error = null;
+
+        private RangeParseTask(File file, FileRangeSplitter.FileRange range, PeptideSpectrumMatchList partition) {
+
+            this.file = file;
+            this.range = range;
+            this.partition = partition;
+        }
+
+        @Override
+        protected void compute() {
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+                InputStream inputStream = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                        new ByteArrayInputStream(RANGE_ROOT_START),
+                        new BufferedInputStream(new FileRangeInputStream(channel, range.getStart(), range.getEnd()), BUFFER_SIZE),
+                        new ByteArrayInputStream(RANGE_ROOT_END))));
+
+                XMLStreamReader xsr = XMLInputFactory.newFactory().createXMLStreamReader(inputStream, "UTF-8");
+                parse(xsr, partition);
+                xsr.close();
+            } catch (XMLStreamException e) {
+                error = e;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    protected SpectrumInfo readSpectrumInfo(XMLStreamReader xsr) {
+
+        String spectrum = null;
+        int scanNumber = 0;
+        int charge = 0;
+        int index = 0;
+        double precursorNeutralMass = 0.0;
+        double retentionTime = 0.0;
+
+        for (int i = 0, n = xsr.getAttributeCount(); i < n; i++) {
+
+            String value = xsr.getAttributeValue(i);
+            switch (xsr.getAttributeLocalName(i)) {
+                case "spectrum":
+                    spectrum = value;
+                    break;
+                case "start_scan":
+                    scanNumber = (int) Long.parseLong(value);
+                    break;
+                case "precursor_neutral_mass":
+                    precursorNeutralMass = Double.parseDouble(value);
+                    break;
+                case "assumed_charge":
+                    charge = Integer.parseInt(value);
+                    break;
+                case "index":
+                    index = (int) Long.parseLong(value);
+                    break;
+                case "retention_time_sec":
+                    retentionTime = Double.parseDouble(value);
+                    break;
+                default:
+            }
+        }
+
+        if (spectrum == null) throw new IllegalStateException("spectrum_query without spectrum attribute at " + xsr.getLocation());
+
+        SpectrumInfo spectrumInfo = new SpectrumInfo(spectrum);
+        spectrumInfo.setScanNumber(scanNumber);
+        spectrumInfo.setPrecursorNeutralMass(precursorNeutralMass);
+        spectrumInfo.setCharge(charge);
+        spectrumInfo.setIndex(index);
+        spectrumInfo.setRetentionTime(retentionTime/60.0);
+        spectrumInfo.setPrecursorIntensity(0.0);
+
+        return spectrumInfo;
+    }
+
+    /**
+     * Reads the search_hit element at the current position of <code>xsr</code> including all its children. Only the
+     * direct alternative_protein, modification_info and search_score children of the search_hit are used, all
+     * other sub-elements (analysis_result, xlink, ...) are skipped. If rank or peptide length do not pass the
+     * predicate, the rest of the element is skipped without reading it.
+     *
+     * @param xsr the stream reader positioned at the search_hit start element
+     * @param searchHit the record that is filled with the hit values
+     * @param psmPredicate predicate applied to rank, peptide length and main score
+     * @return true if the hit passes the predicate
+     */
+    protected boolean readSearchHit(XMLStreamReader xsr, SearchHitRecord searchHit, PsmPredicate psmPredicate) throws XMLStreamException {
+
+        searchHit.clear();
+
+        for (int i = 0, n = xsr.getAttributeCount(); i < n; i++) {
+
+            String value = xsr.getAttributeValue(i);
+            switch (xsr.getAttributeLocalName(i)) {
+                case "peptide":
+                    searchHit.peptide = value;
+                    break;
+                case "protein":
+                    searchHit.protein = value;
+                    break;
+                case "hit_rank":
+                    searchHit.rank = (int) Long.parseLong(value);
+                    break;
+                case "num_missed_cleavages":
+                    searchHit.numMissedCleavages = Integer.parseInt(value);
+                    break;
+                case "massdiff":
+                    searchHit.massDiff = Double.parseDouble(value);
+                    break;
+                case "tot_num_ions":
+                    searchHit.totNumIons = Integer.parseInt(value);
+                    break;
+                case "num_matched_ions":
+                    searchHit.numMatchedIons = Integer.parseInt(value);
+                    break;
+                default:
+            }
+        }
+
+        if (searchHit.peptide == null || !psmPredicate.checkRank(searchHit.rank) || !psmPredicate.checkPeptideLength(searchHit.peptide.length())) {
+            skipElement(xsr);
+            return false;
+        }
+
+        int depth = 1;
+        boolean inModInfo = false;
+        while (depth > 0) {
+
+            int event = xsr.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+
+                depth++;
+                String name = xsr.getLocalName();
+                if (depth == 2) {
+
+                    if ("search_score".equals(name)) {
+
+                        searchHit.scoreNames.add(xsr.getAttributeValue(null, "name"));
+                        searchHit.scoreValues.add(xsr.getAttributeValue(null, "value"));
+                    } else if ("alternative_protein".equals(name)) {
+
+                        searchHit.altProteins.add(xsr.getAttributeValue(null, "protein"));
+                    } else if ("modification_info".equals(name)) {
+
+                        inModInfo = true;
+                        searchHit.hasModInfo = true;
+                        searchHit.modNtermMass = parseOptionalDouble(xsr.getAttributeValue(null, "mod_nterm_mass"));
+                        searchHit.modCtermMass = parseOptionalDouble(xsr.getAttributeValue(null, "mod_cterm_mass"));
+                    }
+                } else if (depth == 3 && inModInfo) {
+
+                    if ("mod_aminoacid_mass".equals(name)) {
+
+                        searchHit.addModAminoacidMass(Integer.parseInt(xsr.getAttributeValue(null, "position")) - 1,
+                                Double.parseDouble(xsr.getAttributeValue(null, "mass")));
+                    } else if ("aminoacid_substitution".equals(name)) {
+
+                        searchHit.substitutionPositions.add(Integer.parseInt(xsr.getAttributeValue(null, "position")) - 1);
+                        searchHit.substitutionWTAAs.add(xsr.getAttributeValue(null, "orig_aa").charAt(0));
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+
+                if (depth == 2 && inModInfo) inModInfo = false;
+                depth--;
+            }
+        }
+
+        String scoreName = psmPredicate.getScoreName();
+        Double mainScore = getHitAttributeScore(scoreName, searchHit.massDiff, searchHit.totNumIons, searchHit.numMatchedIons);
+        if (mainScore == null) {
+            for (int i = 0; i < searchHit.scoreNames.size(); i++) {
+
+                Double score = getSearchScore(scoreName, searchHit.scoreNames.get(i), searchHit.scoreValues.get(i));
+                if (score != null) mainScore = score;
+            }
+        }
+
+        return mainScore != null && psmPredicate.checkScore(mainScore);
+    }
+
+    // spectrum filter and predicate were already checked when the spectrum_query and search_hit elements were read
+    protected void processSearchHit(PeptideSpectrumMatchList peptideSpectrumMatchList, SpectrumInfo spectrumInfo, SearchHitRecord searchHit) {
+
+        String peptideSequence = searchHit.peptide;
+
+        if(discardAmbiguous && containsUnknownAA(peptideSequence))
+            return;
+
+        Set<String> proteins = new HashSet<>();
+        proteins.add(searchHit.protein);
+        for (String altProtein : searchHit.altProteins) {
+            proteins.add(altProtein);
+        }
+
+        if (!peptideSpectrumMatchList.isValidProtein(proteins)) return;
+
+        PeptideMatchDataWrapper peptideMatch = new PeptideMatchDataWrapper(peptideSequence);
+        peptideMatch.setRank(searchHit.rank);
+        peptideMatch.setProteins(proteins);
+
+        boolean isDecoy = containsOnlyProteinPattern(proteins, NewAnceParams.getInstance().getCometDecoyProtPrefix());
+        peptideMatch.setDecoy(isDecoy); // must be called before copyModInfo
+
+        peptideMatch.setNumMissedCleavages(searchHit.numMissedCleavages);
+
+        copyModInfo(peptideMatch, searchHit);
+
+        for (int i = 0; i < searchHit.scoreNames.size(); i++) {
+
+            addSearchScore(peptideMatch, searchHit.scoreNames.get(i), searchHit.scoreValues.get(i));
+        }
+
+        peptideMatch.addScore("mass_diff", searchHit.massDiff);
+        peptideMatch.addScore("tot_num_ions", searchHit.totNumIons);
+        peptideMatch.addScore("matched_num_ions", searchHit.numMatchedIons);
+
+        peptideSpectrumMatchList.resultRead(spectrumInfo, peptideMatch);
+    }
+
+    protected void copyModInfo(PeptideMatchDataWrapper peptideMatch, SearchHitRecord searchHit) {
+
+        if (!searchHit.hasModInfo) return;
+
+        for (int i = 0; i < searchHit.nrModAminoacidMasses; i++) {
+
+            int position = searchHit.modPositions[i];
+            AminoAcid residue = peptideMatch.getAminoAcid(position);
+            double massShift = adjustMass(searchHit.modMasses[i], residue);
+            ModificationMatch modMatch = peptideMatch.addModificationMatch(position, massShift);
+            resolveMod(modMatch, residue, ModAttachment.SIDE_CHAIN, massShift);
+        }
+        if (searchHit.modNtermMass != null) {
+
+            double massShift = adjustMass(searchHit.modNtermMass, ModAttachment.N_TERM);
+            ModificationMatch modMatch = peptideMatch.addModificationMatch(ModAttachment.N_TERM, massShift);
+            resolveMod(modMatch, null, ModAttachment.N_TERM, massShift);
+        }
+        if (searchHit.modCtermMass != null) {
+
+            double massShift = adjustMass(searchHit.modCtermMass, ModAttachment.C_TERM);
+            ModificationMatch modMatch = peptideMatch.addModificationMatch(ModAttachment.C_TERM, massShift);
+            resolveMod(modMatch, null, ModAttachment.C_TERM, massShift);
+        }
+
+        if (!searchHit.substitutionPositions.isEmpty() && !peptideMatch.isDecoy()) {
+
+            peptideMatch.setVariant(true);
+            peptideMatch.setVariantPositions(new ArrayList<>(searchHit.substitutionPositions));
+            peptideMatch.setVariantWTAAs(new ArrayList<>(searchHit.substitutionWTAAs));
+        }
+    }
+
+    private static Double parseOptionalDouble(String value) {
+
+        return (value == null) ? null : Double.valueOf(value);
+    }
+
+    /**
+     * Reusable holder for the raw values of one search_hit element
+     */
+    protected static class SearchHitRecord {
+
+        protected String peptide;
+        protected String protein;
+        protected final List<String> altProteins = new ArrayList<>();
+        protected int rank;
+        protected int numMissedCleavages;
+        protected double massDiff;
+        protected int totNumIons;
+        protected int numMatchedIons;
+        protected final List<String> scoreNames = new ArrayList<>();
+        protected final List<String> scoreValues = new ArrayList<>();
+
+        protected boolean hasModInfo;
+        protected Double modNtermMass;
+        protected Double modCtermMass;
+        protected int nrModAminoacidMasses;
+        protected int[] modPositions = new int[8];
+        protected double[] modMasses = new double[8];
+        protected final List<Integer> substitutionPositions = new ArrayList<>();
+        protected final List<Character> substitutionWTAAs = new ArrayList<>();
+
+        protected void clear() {
+
+            peptide = null;
+            protein = null;
+            altProteins.clear();
+            rank = -1;
+            numMissedCleavages = -1;
+            massDiff = 0.0;
+            totNumIons = 0;
+            numMatchedIons = 0;
+            scoreNames.clear();
+            scoreValues.clear();
+
+            hasModInfo = false;
+            modNtermMass = null;
+            modCtermMass = null;
+            nrModAminoacidMasses = 0;
+            substitutionPositions.clear();
+            substitutionWTAAs.clear();
+        }
+
+        protected void addModAminoacidMass(int position, double mass) {
+
+            if (nrModAminoacidMasses == modPositions.length) {
+                modPositions = Arrays.copyOf(modPositions, 2 * modPositions.length);
+                modMasses = Arrays.copyOf(modMasses, 2 * modMasses.length);
+            }
+
+            modPositions[nrModAminoacidMasses] = position;
+            modMasses[nrModAminoacidMasses] = mass;
+            nrModAminoacidMasses++;
+        }
+    }
+}
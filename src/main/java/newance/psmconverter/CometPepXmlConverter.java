@@ -28,6 +28,7 @@
  */
 package newance.psmconverter;
 
+import newance.util.NewAnceParams;
 import newance.util.PsmPredicate;
 import org.expasy.mzjava.core.ms.AbsoluteTolerance;
 import org.expasy.mzjava.proteomics.mol.modification.Modification;
@@ -35,7 +36,6 @@ import org.expasy.mzjava.proteomics.ms.ident.ModListModMatchResolver;
 
 import java.io.File;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
 
 /**
  * @author Markus Müller
@@ -43,14 +43,26 @@ import java.util.concurrent.CountDownLatch;
 
 public class CometPepXmlConverter extends SinglePsmFileConverter {
 
-    public CometPepXmlConverter(File msmsFile, Map<String,List<PeptideSpectrumMatch>> psms, CountDownLatch latch) {
+    // pep.xml files are only split into ranges of at least this size
+    private static final long MIN_RANGE_SIZE = 64L*1024*1024;
 
-        super(msmsFile, psms, latch);
+    // modification resolutions are shared by all pep.xml files and parser threads
+    private static ModificationResolutionCache modResolutionCache = null;
+
+    public CometPepXmlConverter(File msmsFile, PartitionedPsmStore psms) {
+
+        super(msmsFile, psms);
     }
+
     @Override
-    public void run() {
+    protected double getHeapFootprintFactor() {
 
-        System.out.println("Reading " + psmFile);
+        // pep.xml is verbose, most of it (alternative hits, ion series, run summaries) is never kept in memory
+        return 0.5;
+    }
+
+    @Override
+    protected Map<String, List<PeptideSpectrumMatch>> parsePsmFile() {
 
         final Map<String, List<PeptideSpectrumMatch>> psmMap = new HashMap<>();
 
@@ -59,15 +71,35 @@ public class CometPepXmlConverter extends SinglePsmFileConverter {
 
         PeptideSpectrumMatchList peptideSpectrumMatchList = new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, psmMap);
 
-        Collection<Modification> modifications = params.getModifications();
-        ModListModMatchResolver modMatchResolver = new ModListModMatchResolver(new AbsoluteTolerance(params.getModifMatchMassTol()), modifications);
+        ModificationResolutionCache modResolutionCache = getModResolutionCache();
+
+        if (params.getPepXmlParser().equals("jaxb")) {
+            CometPEFFPepXmlReader psmReader = new CometPEFFPepXmlReader( true, modResolutionCache);
+            psmReader.parse(psmFile, peptideSpectrumMatchList);
+        } else {
+            CometPEFFPepXmlStAXReader psmReader = new CometPEFFPepXmlStAXReader( true, modResolutionCache);
+            int nrRanges = params.isSplitPepXmlFiles() ? (int) Math.min(params.getNrThreads(), 1 + psmFile.length()/MIN_RANGE_SIZE) : 1;
+            psmReader.parse(psmFile, peptideSpectrumMatchList, nrRanges);
+        }
+
+        return psmMap;
+    }
+
+    @Override
+    protected String getCacheKey() {
+
+        return super.getCacheKey() + "\tscore=" + params.getCometMainScore() + ":" + params.getCometMainScoreMinValue();
+    }
 
-        CometPEFFPepXmlReader psmReader = new CometPEFFPepXmlReader( true, modMatchResolver);
-        psmReader.parse(psmFile, peptideSpectrumMatchList);
+    public static synchronized ModificationResolutionCache getModResolutionCache() {
 
-        addPsms(psmMap);
+        if (modResolutionCache == null) {
+            NewAnceParams params = NewAnceParams.getInstance();
+            Collection<Modification> modifications = params.getModifications();
+            ModListModMatchResolver modMatchResolver = new ModListModMatchResolver(new AbsoluteTolerance(params.getModifMatchMassTol()), modifications);
+            modResolutionCache = new ModificationResolutionCache(modMatchResolver);
+        }
 
-        if (latch!=null) latch.countDown();
-        System.out.println("Finished reading " + psmFile+". Latch count: "+((latch!=null)?latch.getCount():-1));
+        return modResolutionCache;
     }
 }
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Column store backed by Java arrays and bitsets
+ *
+ * @author Markus Müller
+ */
+
+class HeapPsmColumnStore extends PsmColumnStore {
+
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE-8;
+
+    private final int[][] intColumns;
+    private float[] retentionTimes;
+    private double[] neutralPrecMasses;
+    private final BitSet decoys;
+    private final BitSet variants;
+    private int[] scoreOffsets;
+    private double[] scores;
+
+    HeapPsmColumnStore(int rowCapacity, int scoreCapacity) {
+
+        rowCapacity = Math.max(1, rowCapacity);
+
+        this.intColumns = new int[NR_INT_COLUMNS][rowCapacity];
+        this.retentionTimes = new float[rowCapacity];
+        this.neutralPrecMasses = new double[rowCapacity];
+        this.decoys = new BitSet();
+        this.variants = new BitSet();
+        this.scoreOffsets = new int[rowCapacity];
+        this.scores = new double[Math.max(1, scoreCapacity)];
+    }
+
+    @Override
+    void ensureCapacity(int nrRows, long nrScores) {
+
+        if (nrRows > retentionTimes.length) {
+            int newCapacity = (int) Math.min(MAX_ARRAY_SIZE, Math.max(nrRows, 2L*retentionTimes.length));
+
+            for (int i = 0; i < NR_INT_COLUMNS; i++) intColumns[i] = Arrays.copyOf(intColumns[i], newCapacity);
+            retentionTimes = Arrays.copyOf(retentionTimes, newCapacity);
+            neutralPrecMasses = Arrays.copyOf(neutralPrecMasses, newCapacity);
+            scoreOffsets = Arrays.copyOf(scoreOffsets, newCapacity);
+        }
+
+        if (nrScores > scores.length) {
+            if (nrScores > MAX_ARRAY_SIZE)
+                throw new IllegalStateException("Too many scores for heap psm table ("+nrScores+"). Use off-heap storage. Abort.");
+
+            scores = Arrays.copyOf(scores, (int) Math.min(MAX_ARRAY_SIZE, Math.max(nrScores, 2L*scores.length)));
+        }
+    }
+
+    @Override
+    int getInt(int column, int row) {
+        return intColumns[column][row];
+    }
+
+    @Override
+    void setInt(int column, int row, int value) {
+        intColumns[column][row] = value;
+    }
+
+    @Override
+    float getRetentionTime(int row) {
+        return retentionTimes[row];
+    }
+
+    @Override
+    void setRetentionTime(int row, float retentionTime) {
+        retentionTimes[row] = retentionTime;
+    }
+
+    @Override
+    double getNeutralPrecMass(int row) {
+        return neutralPrecMasses[row];
+    }
+
+    @Override
+    void setNeutralPrecMass(int row, double neutralPrecMass) {
+        neutralPrecMasses[row] = neutralPrecMass;
+    }
+
+    @Override
+    boolean isDecoy(int row) {
+        return decoys.get(row);
+    }
+
+    @Override
+    boolean isVariant(int row) {
+        return variants.get(row);
+    }
+
+    @Override
+    void setFlags(int row, boolean isDecoy, boolean isVariant) {
+        decoys.set(row, isDecoy);
+        variants.set(row, isVariant);
+    }
+
+    @Override
+    long getScoreOffset(int row) {
+        return scoreOffsets[row];
+    }
+
+    @Override
+    void setScoreOffset(int row, long offset) {
+        scoreOffsets[row] = (int) offset;
+    }
+
+    @Override
+    double getScore(long index) {
+        return scores[(int) index];
+    }
+
+    @Override
+    void setScore(long index, double score) {
+        scores[(int) index] = score;
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import org.expasy.mzjava.proteomics.mol.AminoAcid;
+import org.expasy.mzjava.proteomics.mol.Peptide;
+import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
+import org.expasy.mzjava.proteomics.mol.modification.Modification;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Peptide stored as sequence plus modifications. The mzjava Peptide is only built when it is first needed, which for
+ * most psms is never, since they do not pass the FDR filter. The molecular mass and the modification strings of the
+ * output files are computed once per peptide. LazyPeptides are shared between psms through the PeptidePool.
+ *
+ * @author Markus Müller
+ */
+
+public final class LazyPeptide {
+
+    public static final int N_TERM_POS = -1;
+    public static final int C_TERM_POS = -2;
+
+    private final String sequence;
+    private final String signature;
+    // modifications ordered n-term, side chains by position, c-term
+    private final int[] modPositions;
+    private final Modification[] modifications;
+
+    private volatile Peptide peptide;
+    private volatile String peptideString;
+    private volatile String modificationColumns;
+    private volatile double molecularMass;
+
+    LazyPeptide(String sequence, Multimap<Integer, Modification> sideChainModMap, Multimap<ModAttachment, Modification> termModMap, String signature) {
+
+        this.sequence = sequence;
+        this.signature = signature;
+
+        int nrMods = sideChainModMap.size() + termModMap.size();
+        this.modPositions = new int[nrMods];
+        this.modifications = new Modification[nrMods];
+
+        int i = 0;
+        for (Modification modification : termModMap.get(ModAttachment.N_TERM)) {
+            modPositions[i] = N_TERM_POS;
+            modifications[i++] = modification;
+        }
+
+        List<Integer> positions = new ArrayList<>(sideChainModMap.keySet());
+        Collections.sort(positions);
+        for (Integer position : positions) {
+            for (Modification modification : sideChainModMap.get(position)) {
+                modPositions[i] = position;
+                modifications[i++] = modification;
+            }
+        }
+
+        for (Modification modification : termModMap.get(ModAttachment.C_TERM)) {
+            modPositions[i] = C_TERM_POS;
+            modifications[i++] = modification;
+        }
+
+        this.peptide = null;
+        this.peptideString = null;
+        this.modificationColumns = null;
+        this.molecularMass = Double.NaN;
+    }
+
+    /**
+     * @return LazyPeptide holding peptide. The peptide is not pooled.
+     */
+    public static LazyPeptide of(Peptide peptide) {
+
+        Multimap<Integer, Modification> sideChainModMap = ArrayListMultimap.create();
+        Multimap<ModAttachment, Modification> termModMap = ArrayListMultimap.create();
+
+        if (peptide.hasModificationAt(ModAttachment.N_TERM)) {
+            termModMap.putAll(ModAttachment.N_TERM, peptide.getModifications(ModAttachment.nTermSet));
+        }
+        if (peptide.hasModificationAt(ModAttachment.SIDE_CHAIN)) {
+            for (int i : peptide.getModificationIndexes(ModAttachment.sideChainSet)) {
+                sideChainModMap.putAll(i, peptide.getModificationsAt(i, ModAttachment.sideChainSet));
+            }
+        }
+        if (peptide.hasModificationAt(ModAttachment.C_TERM)) {
+            termModMap.putAll(ModAttachment.C_TERM, peptide.getModifications(ModAttachment.cTermSet));
+        }
+
+        String sequence = peptide.toSymbolString();
+        LazyPeptide lazyPeptide = new LazyPeptide(sequence, sideChainModMap, termModMap, PeptidePool.getSignature(sequence, sideChainModMap, termModMap));
+        lazyPeptide.peptide = peptide;
+
+        return lazyPeptide;
+    }
+
+    /**
+     * @return the peptide, which is built on the first call
+     */
+    public Peptide getPeptide() {
+
+        Peptide result = peptide;
+        if (result == null) {
+            synchronized (this) {
+                result = peptide;
+                if (result == null) {
+                    result = buildPeptide();
+                    peptide = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private Peptide buildPeptide() {
+
+        List<AminoAcid> aminoAcids = new ArrayList<>(sequence.length());
+        for (int i = 0; i < sequence.length(); i++) {
+            aminoAcids.add(AminoAcid.valueOf(sequence.substring(i, i + 1)));
+        }
+
+        Multimap<Integer, Modification> sideChainModMap = ArrayListMultimap.create();
+        Multimap<ModAttachment, Modification> termModMap = ArrayListMultimap.create();
+        for (int i = 0; i < modPositions.length; i++) {
+            if (modPositions[i] == N_TERM_POS) termModMap.put(ModAttachment.N_TERM, modifications[i]);
+            else if (modPositions[i] == C_TERM_POS) termModMap.put(ModAttachment.C_TERM, modifications[i]);
+            else sideChainModMap.put(modPositions[i], modifications[i]);
+        }
+
+        return new Peptide(aminoAcids, sideChainModMap, termModMap);
+    }
+
+    public boolean isMaterialized() {
+        return peptide != null;
+    }
+
+    /**
+     * @return amino acid sequence without modifications
+     */
+    public String getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return sequence and modifications as described in PeptidePool.getSignature
+     */
+    public String getSignature() {
+        return signature;
+    }
+
+    public boolean hasModifications() {
+        return modifications.length > 0;
+    }
+
+    public int getModificationCount() {
+        return modifications.length;
+    }
+
+    /**
+     * @return position of i-th modification, N_TERM_POS or C_TERM_POS for terminal modifications
+     */
+    public int getModificationPosition(int i) {
+        return modPositions[i];
+    }
+
+    public Modification getModification(int i) {
+        return modifications[i];
+    }
+
+    /**
+     * @return side chain modifications ordered by position
+     */
+    public List<Modification> getSideChainModifications() {
+
+        List<Modification> sideChainMods = new ArrayList<>();
+        for (int i = 0; i < modifications.length; i++) {
+            if (modPositions[i] >= 0) sideChainMods.add(modifications[i]);
+        }
+
+        return sideChainMods;
+    }
+
+    public double getMolecularMass() {
+
+        double mass = molecularMass;
+        if (Double.isNaN(mass)) {
+            mass = getPeptide().getMolecularMass();
+            molecularMass = mass;
+        }
+
+        return mass;
+    }
+
+    /**
+     * @return tab separated modification names, positions, masses and amino acids as written to the psm tab files
+     */
+    public String getModificationColumns() {
+
+        String columns = modificationColumns;
+        if (columns == null) {
+            columns = hasModifications() ? getModificationColumns(getPeptide()) : "NA\tNA\tNA\tNA";
+            modificationColumns = columns;
+        }
+
+        return columns;
+    }
+
+    private static String getModificationColumns(Peptide peptide)  {
+
+        if (!peptide.hasModifications()) return "NA\tNA\tNA\tNA";
+
+        String modifNames = "";
+        String modifPos = "";
+        String modifMass = "";
+        String modifAA = "";
+
+        if (peptide.hasModificationAt(ModAttachment.N_TERM)) {
+            for (Modification modif : peptide.getModifications(ModAttachment.nTermSet)) {
+                modifNames = (modifNames.isEmpty())?modif.getLabel():","+modif.getLabel();
+                modifPos = (modifPos.isEmpty())?"0":",0";
+                String massStr = String.format("%.5f",modif.getMolecularMass());
+                modifMass = (modifMass.isEmpty())?massStr:","+massStr;
+                modifAA = (modifAA.isEmpty())?"NT":",NT";
+            }
+        }
+
+        if (peptide.hasModificationAt(ModAttachment.SIDE_CHAIN)) {
+            for (int i : peptide.getModificationIndexes(ModAttachment.sideChainSet)) {
+
+                for (Modification modif : peptide.getModificationsAt(i, ModAttachment.sideChainSet)) {
+                    modifNames = (modifNames.isEmpty())?modif.getLabel():","+modif.getLabel();
+                    String posStr = String.format("%d",i+1);
+                    modifPos = (modifPos.isEmpty())?posStr:","+posStr;
+                    String massStr = String.format("%.5f",modif.getMolecularMass());
+                    modifMass = (modifMass.isEmpty())?massStr:","+massStr;
+                    modifAA = (modifAA.isEmpty())?peptide.getSymbol(i).getSymbol():","+peptide.getSymbol(i).getSymbol();
+                }
+            }
+        }
+
+        if (peptide.hasModificationAt(ModAttachment.C_TERM)) {
+            for (Modification modif : peptide.getModifications(ModAttachment.cTermSet)) {
+                modifNames = (modifNames.isEmpty())?modif.getLabel():","+modif.getLabel();
+                String posStr = String.format("%d",peptide.size()+1);
+                modifPos = (modifPos.isEmpty())?posStr:","+posStr;
+                String massStr = String.format("%.5f",modif.getMolecularMass());
+                modifMass = (modifMass.isEmpty())?massStr:","+massStr;
+                modifAA = (modifAA.isEmpty())?"NT":",NT";
+            }
+        }
+
+        return modifNames+"\t"+modifPos+"\t"+modifMass+"\t"+modifAA;
+    }
+
+    /**
+     * @return same as getPeptide().toString(), computed once
+     */
+    @Override
+    public String toString() {
+
+        String str = peptideString;
+        if (str == null) {
+            str = getPeptide().toString();
+            peptideString = str;
+        }
+
+        return str;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        return signature.equals(((LazyPeptide) o).signature);
+    }
+
+    @Override
+    public int hashCode() {
+        return signature.hashCode();
+    }
+}
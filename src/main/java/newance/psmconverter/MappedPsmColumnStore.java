@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Column store backed by memory mapped temporary files. The columns live outside of the Java heap and are paged in
+ * and out by the operating system, so tables can be larger than the heap. Each column is mapped in regions of
+ * REGION_SIZE bytes, which are added when the table grows. The files are deleted when the store is closed.
+ *
+ * @author Markus Müller
+ */
+
+class MappedPsmColumnStore extends PsmColumnStore {
+
+    private static final int REGION_BITS = 24;
+    // 16 MB, a multiple of all element sizes
+    static final int REGION_SIZE = 1 << REGION_BITS;
+    private static final long REGION_MASK = REGION_SIZE-1;
+
+    private final MappedColumn[] intColumns;
+    private final MappedColumn retentionTimes;
+    private final MappedColumn neutralPrecMasses;
+    private final MappedColumn flags;
+    private final MappedColumn scoreOffsets;
+    private final MappedColumn scores;
+
+    MappedPsmColumnStore(File directory) {
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new RuntimeException("Cannot create directory "+directory+" for off-heap psm table. Abort.");
+
+        this.intColumns = new MappedColumn[NR_INT_COLUMNS];
+        for (int i = 0; i < NR_INT_COLUMNS; i++) intColumns[i] = new MappedColumn(directory, "int"+i, 4);
+        this.retentionTimes = new MappedColumn(directory, "rt", 4);
+        this.neutralPrecMasses = new MappedColumn(directory, "mass", 8);
+        this.flags = new MappedColumn(directory, "flags", 1);
+        this.scoreOffsets = new MappedColumn(directory, "offsets", 8);
+        this.scores = new MappedColumn(directory, "scores", 8);
+    }
+
+    @Override
+    void ensureCapacity(int nrRows, long nrScores) {
+
+        for (MappedColumn column : intColumns) column.ensureCapacity(nrRows);
+        retentionTimes.ensureCapacity(nrRows);
+        neutralPrecMasses.ensureCapacity(nrRows);
+        flags.ensureCapacity(nrRows);
+        scoreOffsets.ensureCapacity(nrRows);
+        scores.ensureCapacity(nrScores);
+    }
+
+    @Override
+    int getInt(int column, int row) {
+        return intColumns[column].region(row).getInt(intColumns[column].position(row));
+    }
+
+    @Override
+    void setInt(int column, int row, int value) {
+        intColumns[column].region(row).putInt(intColumns[column].position(row), value);
+    }
+
+    @Override
+    float getRetentionTime(int row) {
+        return retentionTimes.region(row).getFloat(retentionTimes.position(row));
+    }
+
+    @Override
+    void setRetentionTime(int row, float retentionTime) {
+        retentionTimes.region(row).putFloat(retentionTimes.position(row), retentionTime);
+    }
+
+    @Override
+    double getNeutralPrecMass(int row) {
+        return neutralPrecMasses.region(row).getDouble(neutralPrecMasses.position(row));
+    }
+
+    @Override
+    void setNeutralPrecMass(int row, double neutralPrecMass) {
+        neutralPrecMasses.region(row).putDouble(neutralPrecMasses.position(row), neutralPrecMass);
+    }
+
+    @Override
+    boolean isDecoy(int row) {
+        return (flags.region(row).get(flags.position(row)) & 1) != 0;
+    }
+
+    @Override
+    boolean isVariant(int row) {
+        return (flags.region(row).get(flags.position(row)) & 2) != 0;
+    }
+
+    @Override
+    void setFlags(int row, boolean isDecoy, boolean isVariant) {
+        flags.region(row).put(flags.position(row), (byte) ((isDecoy ? 1 : 0) | (isVariant ? 2 : 0)));
+    }
+
+    @Override
+    long getScoreOffset(int row) {
+        return scoreOffsets.region(row).getLong(scoreOffsets.position(row));
+    }
+
+    @Override
+    void setScoreOffset(int row, long offset) {
+        scoreOffsets.region(row).putLong(scoreOffsets.position(row), offset);
+    }
+
+    @Override
+    double getScore(long index) {
+        return scores.region(index).getDouble(scores.position(index));
+    }
+
+    @Override
+    void setScore(long index, double score) {
+        scores.region(index).putDouble(scores.position(index), score);
+    }
+
+    @Override
+    public void close() {
+
+        for (MappedColumn column : intColumns) column.close();
+        retentionTimes.close();
+        neutralPrecMasses.close();
+        flags.close();
+        scoreOffsets.close();
+        scores.close();
+    }
+
+    private static final class MappedColumn {
+
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private final int elementSize;
+        private MappedByteBuffer[] regions;
+        private int nrRegions;
+
+        private MappedColumn(File directory, String name, int elementSize) {
+
+            this.elementSize = elementSize;
+            this.regions = new MappedByteBuffer[16];
+            this.nrRegions = 0;
+
+            try {
+                this.file = File.createTempFile("psmtable_"+name+"_", ".col", directory);
+                file.deleteOnExit();
+                this.randomAccessFile = new RandomAccessFile(file, "rw");
+                this.channel = randomAccessFile.getChannel();
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot create column file for off-heap psm table in "+directory+". Abort.", e);
+            }
+        }
+
+        private void ensureCapacity(long nrElements) {
+
+            long nrBytes = nrElements*elementSize;
+
+            while ((long) nrRegions*REGION_SIZE < nrBytes) {
+                if (nrRegions == regions.length) regions = Arrays.copyOf(regions, 2*regions.length);
+
+                try {
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, (long) nrRegions*REGION_SIZE, REGION_SIZE);
+                    region.order(ByteOrder.nativeOrder());
+                    regions[nrRegions++] = region;
+                } catch (IOException e) {
+                    throw new RuntimeException("Cannot map region of off-heap psm table file "+file+". Abort.", e);
+                }
+            }
+        }
+
+        private MappedByteBuffer region(long index) {
+            return regions[(int) ((index*elementSize) >>> REGION_BITS)];
+        }
+
+        private int position(long index) {
+            return (int) ((index*elementSize) & REGION_MASK);
+        }
+
+        private void close() {
+
+            try {
+                channel.close();
+                randomAccessFile.close();
+            } catch (IOException e) {
+                System.out.println("Cannot close off-heap psm table file "+file);
+            }
+            regions = new MappedByteBuffer[0];
+            nrRegions = 0;
+            file.delete();
+        }
+    }
+}
@@ -32,7 +32,6 @@ import newance.util.PsmPredicate;
 
 import java.io.File;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
 
 /**
  * @author Markus Müller
@@ -40,14 +39,36 @@ import java.util.concurrent.CountDownLatch;
 
 public class MaxQuantMSMSConverter extends SinglePsmFileConverter {
 
-    public MaxQuantMSMSConverter(File msmsFile, Map<String,List<PeptideSpectrumMatch>> psms, CountDownLatch latch) {
+    // msms.txt files are only split into ranges of at least this size
+    private static final long MIN_RANGE_SIZE = 64L*1024*1024;
 
-        super(msmsFile, psms, latch);
+    public MaxQuantMSMSConverter(File msmsFile, PartitionedPsmStore psms) {
+
+        super(msmsFile, psms);
+    }
+
+    // ratio between the heap used by the peptides.txt index and the file size
+    private static final double PEPTIDE_INDEX_FOOTPRINT_FACTOR = 2.0;
+
+    @Override
+    protected double getHeapFootprintFactor() {
+
+        // psm objects of all rows that pass the filter are kept in memory
+        return 2.0;
     }
 
-    public void run() {
+    @Override
+    public long getEstimatedHeapFootprint() {
 
-        System.out.println("Reading " + psmFile);
+        // the peptides.txt index is loaded by the conversion task, it is counted for every msms.txt file of the
+        // directory, since the tasks do not know which of them loads it
+        File peptidesFile = new File(psmFile.getAbsoluteFile().getParent(), "peptides.txt");
+
+        return super.getEstimatedHeapFootprint() + (long) (peptidesFile.length() * PEPTIDE_INDEX_FOOTPRINT_FACTOR);
+    }
+
+    @Override
+    protected Map<String, List<PeptideSpectrumMatch>> parsePsmFile() {
 
         final Map<String, List<PeptideSpectrumMatch>> psmMap = new HashMap<>();
 
@@ -57,11 +78,19 @@ public class MaxQuantMSMSConverter extends SinglePsmFileConverter {
         PeptideSpectrumMatchList peptideSpectrumMatchList = new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, psmMap);
 
         MaxQuantPsmReader2 psmReader = new MaxQuantPsmReader2();
-        psmReader.parse(psmFile, peptideSpectrumMatchList);
+        int nrRanges = (int) Math.min(params.getNrThreads(), 1 + psmFile.length()/MIN_RANGE_SIZE);
+        psmReader.parse(psmFile, peptideSpectrumMatchList, nrRanges);
+
+        return psmMap;
+    }
+
+    @Override
+    protected String getCacheKey() {
 
-        addPsms(psmMap);
+        // protein accessions and mutations are taken from peptides.txt
+        File peptidesFile = new File(psmFile.getParent(), "peptides.txt");
 
-        latch.countDown();
-        System.out.println("Finished reading " + psmFile+". Latch count: "+latch.getCount());
+        return super.getCacheKey() + "\tscore=" + params.getMaxQuantMainScore() + ":" + params.getMaxQuantMainScoreMinValue() +
+                "\tpeptides=" + peptidesFile.length() + ":" + peptidesFile.lastModified();
     }
 }
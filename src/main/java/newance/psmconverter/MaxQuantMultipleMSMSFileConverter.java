@@ -35,9 +35,6 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -69,24 +66,15 @@ public class MaxQuantMultipleMSMSFileConverter extends MultiplePsmFileConverter
 
         checkState(!psmFileList.isEmpty());
 
-        int nrTasks = psmFileList.size();
-        ExecutorService exe = Executors.newFixedThreadPool(nrTasks);
-
-        CountDownLatch latch = new CountDownLatch(nrTasks);
-        for (int i = 0; i < nrTasks; i++) {
-            exe.submit(new MaxQuantMSMSConverter(psmFileList.get(i), psms, latch));
+        List<SinglePsmFileConverter> converters = new ArrayList<>();
+        for (File psmFile : psmFileList) {
+            converters.add(new MaxQuantMSMSConverter(psmFile, psms));
         }
 
-        try {
-            latch.await();
-
-            System.out.println("Number of MaxQuant spectra converted: "+psms.size());
-            System.out.println("MaxQuant msms.txt conversion ran in " + (System.currentTimeMillis() - start) / 1000d + "s");
-
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        PsmFileConversionScheduler.getInstance().run(converters);
+        MaxQuantPeptideIndex.clear();
 
-        exe.shutdown();
+        System.out.println("Number of MaxQuant spectra converted: "+psms.getSpectrumCount());
+        System.out.println("MaxQuant msms.txt conversion ran in " + (System.currentTimeMillis() - start) / 1000d + "s");
     }
 }
@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import newance.util.DelimitedRecord;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Immutable index of the MaxQuant peptides.txt file of a directory. It maps peptide sequences to their leading razor
+ * protein (used for decoys) and to the mutation names of mutated peptides. Each peptides.txt file is loaded only once
+ * by the first reader that needs it and the index is shared by all readers of msms.txt files in the same directory.
+ * Readers of the same directory wait until the index is loaded. A binary
+ * snapshot of the index is written next to peptides.txt and used instead of the text file as long as the text file is
+ * not changed.
+ *
+ * @author Markus Müller
+ */
+
+public final class MaxQuantPeptideIndex {
+
+    public static final String SNAPSHOT_EXTENSION = ".index";
+
+    private static final int MAGIC = 0x4e415049; // NAPI
+    private static final int VERSION = 1;
+
+    static final MaxQuantPeptideIndex EMPTY = new MaxQuantPeptideIndex(Collections.emptyMap(), Collections.emptyMap());
+    private static final Map<File, FutureTask<MaxQuantPeptideIndex>> indexes = new ConcurrentHashMap<>();
+
+    private final Map<String, String> proteinMap;
+    private final Map<String, String> mutationMap;
+
+    private MaxQuantPeptideIndex(Map<String, String> proteinMap, Map<String, String> mutationMap) {
+
+        this.proteinMap = Collections.unmodifiableMap(proteinMap);
+        this.mutationMap = Collections.unmodifiableMap(mutationMap);
+    }
+
+    public boolean containsPeptide(String peptideSeq) {
+        return proteinMap.containsKey(peptideSeq);
+    }
+
+    public String getProtein(String peptideSeq) {
+        return proteinMap.get(peptideSeq);
+    }
+
+    public boolean isMutated(String peptideSeq) {
+        return mutationMap.containsKey(peptideSeq);
+    }
+
+    public String getMutationNames(String peptideSeq) {
+        return mutationMap.get(peptideSeq);
+    }
+
+    public int size() {
+        return proteinMap.size();
+    }
+
+    /**
+     * @return index of the peptides file. The index is loaded in the calling thread, unless another thread already
+     * loads it, in which case this waits for it. The index is empty if the file does not exist.
+     */
+    public static MaxQuantPeptideIndex get(File peptidesFile) {
+
+        FutureTask<MaxQuantPeptideIndex> task = getTask(peptidesFile);
+        task.run(); // does nothing if the task was already started
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot load peptides file " + peptidesFile + ". Abort.", e.getCause());
+        }
+    }
+
+    /**
+     * Removes all loaded indexes, so that their memory can be released after the conversion
+     */
+    public static void clear() {
+
+        indexes.clear();
+    }
+
+    private static FutureTask<MaxQuantPeptideIndex> getTask(File peptidesFile) {
+
+        File file = peptidesFile.getAbsoluteFile();
+
+        FutureTask<MaxQuantPeptideIndex> task = indexes.get(file);
+        if (task != null) return task;
+
+        FutureTask<MaxQuantPeptideIndex> newTask = new FutureTask<>(() -> load(file));
+        task = indexes.putIfAbsent(file, newTask);
+
+        return (task != null) ? task : newTask;
+    }
+
+    static MaxQuantPeptideIndex load(File peptidesFile) throws IOException {
+
+        if (!peptidesFile.exists()) {
+
+            System.out.println("WARNING: peptides file "+peptidesFile.getAbsolutePath()+" not found !");
+            return EMPTY;
+        }
+
+        File snapshotFile = new File(peptidesFile.getPath() + SNAPSHOT_EXTENSION);
+        MaxQuantPeptideIndex index = readSnapshot(peptidesFile, snapshotFile);
+        if (index != null) return index;
+
+        index = parse(peptidesFile);
+        writeSnapshot(peptidesFile, snapshotFile, index);
+
+        return index;
+    }
+
+    private static MaxQuantPeptideIndex parse(File peptidesFile) throws IOException {
+
+        Map<String, String> proteinMap = new HashMap<>();
+        Map<String, String> mutationMap = new HashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(peptidesFile), StandardCharsets.UTF_8))) {
+
+            DelimitedRecord record = new DelimitedRecord('\t');
+
+            String line = reader.readLine();
+            if (line == null) return EMPTY;
+
+            record.set(line);
+            int proteinCol = MaxQuantPsmReader2.getRequiredColumnIndex(record, "Leading razor protein", peptidesFile);
+            int sequenceCol = MaxQuantPsmReader2.getRequiredColumnIndex(record, "Sequence", peptidesFile);
+            int mutatedCol = record.getColumnIndex("Mutated");
+            int mutationNamesCol = record.getColumnIndex("Mutation names");
+
+            while ((line = reader.readLine()) != null) {
+
+                if (line.isEmpty()) continue;
+                record.set(line);
+
+                String proteinStr = record.getString(proteinCol);
+                if (proteinStr.startsWith("REV__")) {
+                    proteinStr = proteinStr.replace("REV__","DECOY_");
+                }
+
+                String peptideSeq = record.getString(sequenceCol);
+                proteinMap.put(peptideSeq,proteinStr);
+
+                if (mutatedCol >= 0 && record.equals(mutatedCol, "Yes")) {
+                    mutationMap.put(peptideSeq, record.getString(mutationNamesCol));
+                }
+            }
+        }
+
+        return new MaxQuantPeptideIndex(proteinMap, mutationMap);
+    }
+
+    private static MaxQuantPeptideIndex readSnapshot(File peptidesFile, File snapshotFile) {
+
+        if (!snapshotFile.exists()) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 1 << 16))) {
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if (in.readLong() != peptidesFile.length() || in.readLong() != peptidesFile.lastModified()) return null;
+
+            int nrPeptides = in.readInt();
+            Map<String, String> proteinMap = new HashMap<>(2 * nrPeptides);
+            for (int i = 0; i < nrPeptides; i++) proteinMap.put(in.readUTF(), in.readUTF());
+
+            int nrMutated = in.readInt();
+            Map<String, String> mutationMap = new HashMap<>(2 * nrMutated);
+            for (int i = 0; i < nrMutated; i++) mutationMap.put(in.readUTF(), readNullableUTF(in));
+
+            return new MaxQuantPeptideIndex(proteinMap, mutationMap);
+        } catch (IOException e) {
+
+            System.out.println("WARNING: ignoring invalid peptides index file " + snapshotFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file, which is then moved, so that concurrent runs never see an incomplete
+     * snapshot. Write errors are reported, but do not stop the run.
+     */
+    private static void writeSnapshot(File peptidesFile, File snapshotFile, MaxQuantPeptideIndex index) {
+
+        File tmpFile = null;
+
+        try {
+            // unique name, several processes may write the same snapshot
+            tmpFile = File.createTempFile(snapshotFile.getName() + ".", ".tmp", snapshotFile.getAbsoluteFile().getParentFile());
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(peptidesFile.length());
+                out.writeLong(peptidesFile.lastModified());
+
+                out.writeInt(index.proteinMap.size());
+                for (Map.Entry<String, String> entry : index.proteinMap.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+
+                out.writeInt(index.mutationMap.size());
+                for (Map.Entry<String, String> entry : index.mutationMap.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    writeNullableUTF(out, entry.getValue());
+                }
+            }
+
+            Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+
+            System.out.println("WARNING: cannot write peptides index file " + snapshotFile + ": " + e.getMessage());
+            if (tmpFile != null) tmpFile.delete();
+        }
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
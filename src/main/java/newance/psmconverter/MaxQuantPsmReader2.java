@@ -31,18 +31,24 @@ import com.google.common.base.Optional;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
-import org.apache.commons.io.FilenameUtils;
+import newance.util.DelimitedRecord;
+import newance.util.FileRangeInputStream;
+import newance.util.FileRangeSplitter;
 import org.expasy.mzjava.proteomics.mol.AminoAcid;
 import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
 import org.expasy.mzjava.proteomics.mol.modification.Modification;
 import org.expasy.mzjava.proteomics.mol.modification.ModificationResolver;
-import org.expasy.mzjava.proteomics.mol.modification.unimod.UnimodModificationResolver;
 
-import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.sql.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,132 +58,150 @@ import java.util.regex.Pattern;
 
 public class MaxQuantPsmReader2 {
 
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] NEW_LINE = "\n".getBytes(StandardCharsets.UTF_8);
+
     private final ModificationResolver modResolver;
-    private final Map<String,String> peptidesProteinMap; // for decoys
-    private final Map<String,String> peptidesMutationMap; // for decoys
+    private MaxQuantPeptideIndex peptideIndex; // for decoys
+    private final Map<String,ModifiedSequence> modifiedSequenceCache; // modified sequences are repeated for many spectra
 
     private final Pattern aaPattern = Pattern.compile("(.)\\((..)\\)|([A-Z])");
 
     public MaxQuantPsmReader2() {
 
-        this.modResolver = makeDefaultModResolver();
-        this.peptidesProteinMap = new HashMap<>();
-        this.peptidesMutationMap = new HashMap<>();
+        this.modResolver = ModificationResolverService.getInstance();
+        this.peptideIndex = MaxQuantPeptideIndex.EMPTY;
+        this.modifiedSequenceCache = new ConcurrentHashMap<>();
     }
 
-    private static UnimodModificationResolver makeDefaultModResolver() {
+    public void parse(File file, PeptideSpectrumMatchList callback) {
+
+        loadPeptidesFile(file);
 
-        UnimodModificationResolver modResolver = new UnimodModificationResolver();
-        modResolver.putTranslate("de", "Deamidated");
-        modResolver.putTranslate("ox", "Oxidation");
-        modResolver.putTranslate("ac", "Acetyl");
-        modResolver.putTranslate("ph", "Phospho");
-        return modResolver;
+        parse(file, "\t", callback);
     }
 
-    private void extractPeptideProteinMap(File peptidesFile) {
+    /**
+     * Splits the msms.txt file at line ends into nrRanges byte ranges, which are parsed in parallel. The header is
+     * parsed once and shared by all ranges. Each range is read into its own partition and the partitions are added
+     * to peptideSpectrumMatchList in file order, so the result is identical to the one of parse(file, peptideSpectrumMatchList).
+     *
+     * @param file the msms.txt file
+     * @param peptideSpectrumMatchList the list to which the psms are added
+     * @param nrRanges number of ranges parsed in parallel
+     */
+    public void parse(File file, PeptideSpectrumMatchList peptideSpectrumMatchList, int nrRanges) {
+
+        if (nrRanges <= 1) {
+            parse(file, peptideSpectrumMatchList);
+            return;
+        }
 
-        peptidesProteinMap.clear();
+        loadPeptidesFile(file);
 
-        try {
-            // load the driver into memory
-            Class.forName("org.relique.jdbc.csv.CsvDriver");
+        MsmsColumns columns;
+        List<FileRangeSplitter.FileRange> ranges;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
 
-            Properties props = new Properties();
-            props.put("fileExtension", "." + FilenameUtils.getExtension(peptidesFile.getName()));
-            // create a connection. The first command line parameter is assumed to
-            //  be the directory in which the .csv files are held
-            Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + peptidesFile.getParent() + "?separator=" + URLEncoder.encode("\t", "UTF-8"), props);
+            long headerEnd = FileRangeSplitter.indexOf(channel, NEW_LINE, 0, channel.size());
+            if (headerEnd < 0) return;
 
-            // create a Statement object to execute the query with
-            Statement stmt = conn.createStatement();
+            ByteBuffer buffer = ByteBuffer.allocate((int) headerEnd);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) break;
+            }
 
-            // Select the ID and NAME columns from sample.csv
-            ResultSet results = stmt.executeQuery("SELECT * FROM " + FilenameUtils.removeExtension(peptidesFile.getName()));
+            String header = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+            if (header.endsWith("\r")) header = header.substring(0, header.length() - 1);
 
-            while (results.next()) {
-                String proteinStr = results.getString("Leading razor protein");
-                if (proteinStr.startsWith("REV__")) {
-                    proteinStr = proteinStr.replace("REV__","DECOY_");
-                }
+            DelimitedRecord record = new DelimitedRecord('\t');
+            record.set(header);
+            columns = new MsmsColumns(record, file);
 
-                String peptideSeq = results.getString("Sequence");
-                peptidesProteinMap.put(peptideSeq,proteinStr);
+            ranges = new FileRangeSplitter("\n", true).split(channel, headerEnd + 1, channel.size(), nrRanges);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
 
-                if (results.findColumn("Mutated")>0) {
-                    String isVariant = results.getString("Mutated");
+        List<RangeParseTask> tasks = new ArrayList<>();
+        for (FileRangeSplitter.FileRange range : ranges) {
+            tasks.add(new RangeParseTask(file, range, columns, peptideSpectrumMatchList.createPartition()));
+        }
 
-                    if (isVariant.equals("Yes")) {
-                        peptidesMutationMap.put(peptideSeq, results.getString("Mutation names"));
-                    }
-                }
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, ranges.size()));
+            try {
+                for (RangeParseTask task : tasks) pool.execute(task);
+                for (RangeParseTask task : tasks) task.join();
+            } finally {
+                pool.shutdown();
             }
+        }
 
-            // clean up
-            results.close();
-            stmt.close();
-            conn.close();
-        } catch (ClassNotFoundException | SQLException | UnsupportedEncodingException e) {
-            throw new IllegalStateException(e);
+        for (RangeParseTask task : tasks) {
+            peptideSpectrumMatchList.addAll(task.partition);
         }
     }
 
-    public void parse(File file, PeptideSpectrumMatchList callback) {
-
-        if (peptidesProteinMap.isEmpty()) {
+    private void loadPeptidesFile(File file) {
 
-            File peptidesFile = new File(file.getParent()+File.separator+"peptides.txt");
-            if (peptidesFile.exists()) {
-                extractPeptideProteinMap(peptidesFile);
-            }
-            else {
-                System.out.println("WARNING: peptides file "+peptidesFile.getAbsolutePath()+" not found !");
-            }
+        if (peptideIndex.size() == 0) {
+            peptideIndex = MaxQuantPeptideIndex.get(new File(file.getAbsoluteFile().getParent(), "peptides.txt"));
         }
-
-        parse(file, "\t", callback);
     }
 
     public void parse(File file, String delimiter, PeptideSpectrumMatchList peptideSpectrumMatchList) {
 
-        try {
-            // load the driver into memory
-            Class.forName("org.relique.jdbc.csv.CsvDriver");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+
+            DelimitedRecord record = new DelimitedRecord(delimiter.charAt(0));
 
-            Properties props = new Properties();
-            props.put("fileExtension", "." + FilenameUtils.getExtension(file.getName()));
-            // create a connection. The first command line parameter is assumed to
-            //  be the directory in which the .csv files are held
-            Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + file.getParent() + "?separator=" + URLEncoder.encode(delimiter, "UTF-8"), props);
+            String line = reader.readLine();
+            if (line == null) return;
 
-            // create a Statement object to execute the query with
-            Statement stmt = conn.createStatement();
+            record.set(line);
+            MsmsColumns columns = new MsmsColumns(record, file);
 
-            // Select the ID and NAME columns from sample.csv
-            ResultSet results = stmt.executeQuery("SELECT * FROM " + FilenameUtils.removeExtension(file.getName()));
+            parse(reader, record, columns, peptideSpectrumMatchList);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-            while (results.next()) {
+    private void parse(BufferedReader reader, DelimitedRecord record, MsmsColumns columns, PeptideSpectrumMatchList peptideSpectrumMatchList) throws IOException {
 
-                SpectrumInfo spectrumInfo = getSpectrumInfo(results);
-                if (!peptideSpectrumMatchList.isValidSpectrum(spectrumInfo)) continue;
+        String line;
+        while ((line = reader.readLine()) != null) {
 
-                List<PeptideMatchDataWrapper> psms = makePeptideMatches(results);
-                for (PeptideMatchDataWrapper psm : psms) {
+            if (line.isEmpty()) continue;
+            record.set(line);
 
-                    if (peptideSpectrumMatchList.isValidProtein(psm.getProteins())) peptideSpectrumMatchList.resultRead(spectrumInfo, psm);
-                }
+            SpectrumInfo spectrumInfo = getSpectrumInfo(record, columns);
+            if (!peptideSpectrumMatchList.isValidSpectrum(spectrumInfo)) continue;
+
+            List<PeptideMatchDataWrapper> psms = makePeptideMatches(record, columns);
+            for (PeptideMatchDataWrapper psm : psms) {
+
+                if (peptideSpectrumMatchList.isValidProtein(psm.getProteins())) peptideSpectrumMatchList.resultRead(spectrumInfo, psm);
             }
+        }
+    }
 
-            // clean up
-            results.close();
-            stmt.close();
-            conn.close();
-        } catch (ClassNotFoundException | SQLException | UnsupportedEncodingException e) {
-            throw new IllegalStateException(e);
+    public PeptideMatchDataWrapper makeModifiedPeptideMatch(String modifiedSequence) {
+
+        ModifiedSequence parsed = modifiedSequenceCache.get(modifiedSequence);
+        if (parsed == null) {
+
+            parsed = parseModifiedSequence(modifiedSequence);
+            modifiedSequenceCache.put(modifiedSequence, parsed);
         }
+
+        return parsed.newPeptideMatch();
     }
 
-    public PeptideMatchDataWrapper makeModifiedPeptideMatch(String modifiedSequence) throws SQLException {
+    private ModifiedSequence parseModifiedSequence(String modifiedSequence) {
 
         Matcher matcher = aaPattern.matcher(modifiedSequence);
 
@@ -214,49 +238,31 @@ public class MaxQuantPsmReader2 {
             }
         }
 
-        PeptideMatchDataWrapper peptideMatch = new PeptideMatchDataWrapper(sequence);
-        for (Object key : modMatchMap.keySet()) {
-
-            for (Modification mod : modMatchMap.get(key)) {
-
-                if (key instanceof Integer) {
-
-                    int position = (Integer) key;
-                    peptideMatch.addModificationMatch(position, mod);
-                } else if (key instanceof ModAttachment) {
-
-                    ModAttachment modAttachment = (ModAttachment) key;
-                    peptideMatch.addModificationMatch(modAttachment, mod);
-                }
-            }
-        }
-
-        return peptideMatch;
+        return new ModifiedSequence(sequence, modMatchMap);
     }
 
-    public PeptideMatchDataWrapper makeFirstModifiedPeptideMatch(ResultSet results) throws SQLException {
+    public PeptideMatchDataWrapper makeFirstModifiedPeptideMatch(DelimitedRecord record, MsmsColumns columns) {
 
-        String peptide = results.getString("Modified sequence");
-        PeptideMatchDataWrapper psm = makeModifiedPeptideMatch(peptide);
-        String peptideSeq = results.getString("Sequence");
+        PeptideMatchDataWrapper psm = makeModifiedPeptideMatch(record.getString(columns.modifiedSequence));
+        String peptideSeq = record.getString(columns.sequence);
         boolean isDecoy = true;
-        boolean isVariant = peptidesMutationMap.containsKey(peptideSeq);
+        boolean isVariant = peptideIndex.isMutated(peptideSeq);
 
         Set<String> proteins = new HashSet<>();
-        for (String ac : getAccessionCode(results)) {
+        for (String ac : getAccessionCode(record, columns)) {
 
             boolean decoy =  ac.equals("DECOY");
 
             // other protein ids than uniprot
             if (decoy) {
-                if (peptidesProteinMap.containsKey(peptideSeq))
-                    proteins.add(peptidesProteinMap.get(peptideSeq));
+                if (peptideIndex.containsPeptide(peptideSeq))
+                    proteins.add(peptideIndex.getProtein(peptideSeq));
                 else
                     System.out.println("WARNING: peptide seq "+peptideSeq+" not found in peptides.txt.");
             } else {
                 isDecoy = false;
                 if (isVariant)
-                    proteins.add(ac+" "+peptidesMutationMap.get(peptideSeq));
+                    proteins.add(ac+" "+peptideIndex.getMutationNames(peptideSeq));
                 else
                     proteins.add(ac);
             }
@@ -266,14 +272,14 @@ public class MaxQuantPsmReader2 {
         psm.setDecoy(isDecoy);
         psm.setVariant(isVariant);
 
-        setValuesFirst(psm, results);
+        setValuesFirst(psm, record, columns);
 
         return psm;
     }
 
-   public PeptideMatchDataWrapper makeSecondModifiedPeptideMatch(ResultSet results) throws SQLException {
+   public PeptideMatchDataWrapper makeSecondModifiedPeptideMatch(DelimitedRecord record, MsmsColumns columns) {
 
-        String[] allSequences = results.getString("All modified sequences").split(";");
+        String[] allSequences = record.getString(columns.allModifiedSequences).split(";");
 
         if (allSequences.length<=1) return null;
 
@@ -283,46 +289,45 @@ public class MaxQuantPsmReader2 {
         Set<String> proteins = new HashSet<>();
         proteins.add("unknown second hit");
 
-        setValuesSecond(psm, results);
+        setValuesSecond(psm, record, columns);
 
         return psm;
     }
 
 
-    public List<PeptideMatchDataWrapper> makePeptideMatches(ResultSet results) throws SQLException {
+    public List<PeptideMatchDataWrapper> makePeptideMatches(DelimitedRecord record, MsmsColumns columns) {
 
         List<PeptideMatchDataWrapper> psms = new ArrayList<>();
-        psms.add(makeFirstModifiedPeptideMatch(results));
-//        PeptideMatchDataWrapper psm = makeSecondModifiedPeptideMatch(results);
+        psms.add(makeFirstModifiedPeptideMatch(record, columns));
+//        PeptideMatchDataWrapper psm = makeSecondModifiedPeptideMatch(record, columns);
 //        if (psm!=null) psms.add(psm);
 
         return psms;
     }
 
-    protected SpectrumInfo getSpectrumInfo(ResultSet results) throws SQLException {
+    protected SpectrumInfo getSpectrumInfo(DelimitedRecord record, MsmsColumns columns) {
 
-        int charge = results.getInt("Charge");
-        int scanNumber = results.getInt("Scan number");
-        int scanIndex = results.getInt("Scan index");
-        String rawFile = results.getString("Raw file");
+        int charge = record.getInt(columns.charge);
+        int scanNumber = record.getInt(columns.scanNumber);
+        int scanIndex = record.getInt(columns.scanIndex);
+        String rawFile = record.getString(columns.rawFile);
 
         SpectrumInfo spectrumInfo = new SpectrumInfo(rawFile + "." + scanNumber + "." + scanNumber + "." + charge);
         spectrumInfo.setCharge(charge);
         spectrumInfo.setIndex(scanIndex);
         spectrumInfo.setScanNumber(scanNumber);
-        spectrumInfo.setPrecursorNeutralMass(results.getDouble("Mass"));
-        spectrumInfo.setRetentionTime(results.getDouble("Retention time"));
+        spectrumInfo.setPrecursorNeutralMass(record.getDouble(columns.mass));
+        spectrumInfo.setRetentionTime(record.getDouble(columns.retentionTime));
 
         return spectrumInfo;
     }
 
-    protected Collection<String> getAccessionCode(ResultSet results) throws SQLException {
+    protected Collection<String> getAccessionCode(DelimitedRecord record, MsmsColumns columns) {
 
-        String proteins = results.getString("Proteins");
-        String reverse = results.getString("Reverse");
+        String proteins = record.getString(columns.proteins);
         if (proteins != null) {
 
-            if (reverse.equals("+")) {
+            if (record.equals(columns.reverse, "+")) {
                 return Lists.newArrayList("DECOY");
             }
 
@@ -334,21 +339,21 @@ public class MaxQuantPsmReader2 {
         }
     }
 
-    protected void setValuesFirst(PeptideMatchDataWrapper peptideMatch, ResultSet results) throws SQLException {
+    protected void setValuesFirst(PeptideMatchDataWrapper peptideMatch, DelimitedRecord record, MsmsColumns columns) {
 
-        peptideMatch.setNumMissedCleavages(results.getInt("Missed cleavages"));
-        peptideMatch.addScore("Number of Matches", results.getDouble("Number of Matches"));
-        peptideMatch.addScore("Score", results.getDouble("Score"));
-        peptideMatch.addScore("Delta score", results.getDouble("Delta score"));
-        peptideMatch.addScore("Mass Error [ppm]", results.getDouble("Mass Error [ppm]"));
-        peptideMatch.addScore("Intensity coverage", results.getDouble("Intensity coverage"));
-        peptideMatch.addScore("Localization prob", results.getDouble("Localization prob"));
+        peptideMatch.setNumMissedCleavages(record.getInt(columns.missedCleavages));
+        peptideMatch.addScore("Number of Matches", record.getDouble(columns.numberOfMatches));
+        peptideMatch.addScore("Score", record.getDouble(columns.score));
+        peptideMatch.addScore("Delta score", record.getDouble(columns.deltaScore));
+        peptideMatch.addScore("Mass Error [ppm]", record.getDouble(columns.massError));
+        peptideMatch.addScore("Intensity coverage", record.getDouble(columns.intensityCoverage));
+        peptideMatch.addScore("Localization prob", record.getDouble(columns.localizationProb));
         peptideMatch.setRank(1);
     }
 
-    protected void setValuesSecond(PeptideMatchDataWrapper peptideMatch, ResultSet results) throws SQLException {
+    protected void setValuesSecond(PeptideMatchDataWrapper peptideMatch, DelimitedRecord record, MsmsColumns columns) {
 
-        String[] allScores = results.getString("All scores").split(";");
+        String[] allScores = record.getString(columns.allScores).split(";");
 
         double score = Double.parseDouble(allScores[1]);
 
@@ -360,4 +365,137 @@ public class MaxQuantPsmReader2 {
         peptideMatch.addScore("Delta score", deltaScore);
         peptideMatch.setRank(2);
     }
+
+    /**
+     * Parses the lines of one byte range of a msms.txt file
+     */
+    private class RangeParseTask extends RecursiveAction {
+
+        private final File file;
+        private final FileRangeSplitter.FileRange range;
+        private final MsmsColumns columns;
+        private final PeptideSpectrumMatchList partition;
+
+        private RangeParseTask(File file, FileRangeSplitter.FileRange range, MsmsColumns columns, PeptideSpectrumMatchList partition) {
+
+            this.file = file;
+            this.range = range;
+            this.columns = columns;
+            this.partition = partition;
+        }
+
+        @Override
+        protected void compute() {
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(
+                         new FileRangeInputStream(channel, range.getStart(), range.getEnd()), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+
+                parse(reader, new DelimitedRecord('\t'), columns, partition);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static int getRequiredColumnIndex(DelimitedRecord header, String name, File file) {
+
+        int index = header.getColumnIndex(name);
+        if (index < 0) throw new IllegalStateException("Column '" + name + "' not found in " + file.getAbsolutePath() + ". Abort.");
+
+        return index;
+    }
+
+    /**
+     * Indexes of the msms.txt columns, resolved once from the header line
+     */
+    public static final class MsmsColumns {
+
+        private final int charge;
+        private final int scanNumber;
+        private final int scanIndex;
+        private final int rawFile;
+        private final int mass;
+        private final int retentionTime;
+        private final int modifiedSequence;
+        private final int sequence;
+        private final int proteins;
+        private final int reverse;
+        private final int missedCleavages;
+        private final int numberOfMatches;
+        private final int score;
+        private final int deltaScore;
+        private final int massError;
+        private final int intensityCoverage;
+        private final int localizationProb;
+        private final int allModifiedSequences;
+        private final int allScores;
+
+        public MsmsColumns(DelimitedRecord header, File file) {
+
+            charge = getRequiredColumnIndex(header, "Charge", file);
+            scanNumber = getRequiredColumnIndex(header, "Scan number", file);
+            scanIndex = getRequiredColumnIndex(header, "Scan index", file);
+            rawFile = getRequiredColumnIndex(header, "Raw file", file);
+            mass = getRequiredColumnIndex(header, "Mass", file);
+            retentionTime = getRequiredColumnIndex(header, "Retention time", file);
+            modifiedSequence = getRequiredColumnIndex(header, "Modified sequence", file);
+            sequence = getRequiredColumnIndex(header, "Sequence", file);
+            proteins = getRequiredColumnIndex(header, "Proteins", file);
+            reverse = getRequiredColumnIndex(header, "Reverse", file);
+            missedCleavages = getRequiredColumnIndex(header, "Missed cleavages", file);
+            numberOfMatches = getRequiredColumnIndex(header, "Number of Matches", file);
+            score = getRequiredColumnIndex(header, "Score", file);
+            deltaScore = getRequiredColumnIndex(header, "Delta score", file);
+            massError = getRequiredColumnIndex(header, "Mass Error [ppm]", file);
+            intensityCoverage = getRequiredColumnIndex(header, "Intensity coverage", file);
+            localizationProb = getRequiredColumnIndex(header, "Localization prob", file);
+            allModifiedSequences = header.getColumnIndex("All modified sequences");
+            allScores = header.getColumnIndex("All scores");
+        }
+    }
+
+    /**
+     * Parsed modified sequence, from which a new peptide match is created for each psm
+     */
+    private static final class ModifiedSequence {
+
+        private final List<AminoAcid> aminoAcids;
+        private final List<Object> modKeys;
+        private final List<Modification> mods;
+
+        private ModifiedSequence(List<AminoAcid> aminoAcids, ListMultimap<Object, Modification> modMatchMap) {
+
+            this.aminoAcids = Collections.unmodifiableList(aminoAcids);
+            this.modKeys = new ArrayList<>();
+            this.mods = new ArrayList<>();
+
+            for (Object key : modMatchMap.keySet()) {
+                for (Modification mod : modMatchMap.get(key)) {
+                    modKeys.add(key);
+                    mods.add(mod);
+                }
+            }
+        }
+
+        private PeptideMatchDataWrapper newPeptideMatch() {
+
+            PeptideMatchDataWrapper peptideMatch = new PeptideMatchDataWrapper(aminoAcids);
+            for (int i = 0; i < mods.size(); i++) {
+
+                Object key = modKeys.get(i);
+                if (key instanceof Integer) {
+
+                    int position = (Integer) key;
+                    peptideMatch.addModificationMatch(position, mods.get(i));
+                } else if (key instanceof ModAttachment) {
+
+                    ModAttachment modAttachment = (ModAttachment) key;
+                    peptideMatch.addModificationMatch(modAttachment, mods.get(i));
+                }
+            }
+
+            return peptideMatch;
+        }
+    }
 }
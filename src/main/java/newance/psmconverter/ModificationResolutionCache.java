@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import com.google.common.base.Optional;
+import org.expasy.mzjava.proteomics.mol.AminoAcid;
+import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
+import org.expasy.mzjava.proteomics.mol.modification.Modification;
+import org.expasy.mzjava.proteomics.ms.ident.ModificationMatch;
+import org.expasy.mzjava.proteomics.ms.ident.ModificationMatchResolver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe cache of modification match resolutions. Search results contain only a few distinct modified
+ * residues, so the resolver is called once per residue, attachment and mass and all other modification matches are
+ * resolved by a hash lookup. Masses are keyed by their exact value, so that each mass is always resolved by the resolver
+ * itself and the result does not depend on which mass was seen first.
+ *
+ * @author Markus Müller
+ */
+
+public class ModificationResolutionCache {
+
+    private final ModificationMatchResolver modMatchResolver;
+    private final ConcurrentHashMap<Key, Optional<Modification>> cache;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    public ModificationResolutionCache(ModificationMatchResolver modMatchResolver) {
+
+        this.modMatchResolver = modMatchResolver;
+        this.cache = new ConcurrentHashMap<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    /**
+     * @param modMatch the modification match, which is passed to the resolver if the result is not cached yet
+     * @param residue the modified residue or null for terminal modifications
+     * @param modAttachment attachment of the modification
+     * @param massShift mass of the modification match
+     * @return resolved modification
+     */
+    public Optional<Modification> resolve(ModificationMatch modMatch, AminoAcid residue, ModAttachment modAttachment, double massShift) {
+
+        Key key = new Key(residue, modAttachment, Double.doubleToLongBits(massShift));
+
+        Optional<Modification> modOpt = cache.get(key);
+        if (modOpt != null) {
+            hits.increment();
+            return modOpt;
+        }
+
+        misses.increment();
+        modOpt = modMatchResolver.resolve(modMatch);
+        Optional<Modification> cached = cache.putIfAbsent(key, modOpt);
+
+        return (cached == null) ? modOpt : cached;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+
+        long total = getHits() + getMisses();
+        return (total == 0) ? 0.0 : getHits() / (double) total;
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public String toString() {
+
+        return "Modification resolution cache: " + getHits() + " hits, " + getMisses() + " misses, " + size() + " entries, hit rate " +
+                String.format("%.2f", 100 * getHitRate()) + "%";
+    }
+
+    private static final class Key {
+
+        private final AminoAcid residue;
+        private final ModAttachment modAttachment;
+        private final long mass;
+
+        private Key(AminoAcid residue, ModAttachment modAttachment, long mass) {
+
+            this.residue = residue;
+            this.modAttachment = modAttachment;
+            this.mass = mass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key key = (Key) o;
+            return mass == key.mass && residue == key.residue && modAttachment == key.modAttachment;
+        }
+
+        @Override
+        public int hashCode() {
+
+            int result = (residue == null) ? 0 : residue.hashCode();
+            result = 31 * result + modAttachment.hashCode();
+            return 31 * result + Long.hashCode(mass);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import com.google.common.base.Optional;
+import newance.util.NewAnceParams;
+import org.expasy.mzjava.proteomics.mol.modification.Modification;
+import org.expasy.mzjava.proteomics.mol.modification.ModificationResolver;
+import org.expasy.mzjava.proteomics.mol.modification.unimod.UnimodModificationResolver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide modification resolver. Unimod is loaded only once, when the first modification is resolved. Labels
+ * are first translated (MaxQuant abbreviations de, ox, ac, ph and the modTranslations parameter), then looked up in
+ * the modifications parameter and finally in Unimod. Resolved labels are memoized, so the resolver can be used by
+ * many reader threads at the same time.
+ *
+ * @author Markus Müller
+ */
+
+public class ModificationResolverService implements ModificationResolver {
+
+    private static ModificationResolverService instance = null;
+
+    private final Map<String, String> translations;
+    private final Map<String, Modification> userModifications;
+    private final ConcurrentHashMap<String, Optional<Modification>> resolved;
+    private UnimodModificationResolver unimodResolver;
+
+    public static synchronized ModificationResolverService getInstance() {
+
+        if (instance == null) {
+            NewAnceParams params = NewAnceParams.getInstance();
+            instance = new ModificationResolverService(params.getModTranslations(), params.getModifications());
+        }
+
+        return instance;
+    }
+
+    ModificationResolverService(Map<String, String> userTranslations, Iterable<Modification> userModifications) {
+
+        this.translations = new HashMap<>();
+        this.translations.put("de", "Deamidated");
+        this.translations.put("ox", "Oxidation");
+        this.translations.put("ac", "Acetyl");
+        this.translations.put("ph", "Phospho");
+        this.translations.putAll(userTranslations);
+
+        this.userModifications = new HashMap<>();
+        for (Modification modification : userModifications) {
+            this.userModifications.put(modification.getLabel(), modification);
+        }
+
+        this.resolved = new ConcurrentHashMap<>();
+        this.unimodResolver = null;
+    }
+
+    @Override
+    public Optional<Modification> resolve(String label) {
+
+        Optional<Modification> modOpt = resolved.get(label);
+        if (modOpt != null) return modOpt;
+
+        String name = translations.getOrDefault(label, label);
+        Modification modification = userModifications.get(name);
+        modOpt = (modification != null) ? Optional.of(modification) : resolveUnimod(name);
+
+        Optional<Modification> previous = resolved.putIfAbsent(label, modOpt);
+        return (previous != null) ? previous : modOpt;
+    }
+
+    private synchronized Optional<Modification> resolveUnimod(String name) {
+
+        if (unimodResolver == null) {
+            unimodResolver = new UnimodModificationResolver();
+            for (Map.Entry<String, String> translation : translations.entrySet()) {
+                unimodResolver.putTranslate(translation.getKey(), translation.getValue());
+            }
+        }
+
+        Optional<Modification> modOpt = unimodResolver.resolve(name);
+        return (modOpt != null) ? modOpt : Optional.<Modification>absent();
+    }
+}
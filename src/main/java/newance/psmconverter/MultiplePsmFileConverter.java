@@ -44,13 +44,13 @@ public abstract class MultiplePsmFileConverter {
 
     protected final String psmRootDirName;
     protected final Pattern regex;
-    protected final ConcurrentHashMap<String,List<PeptideSpectrumMatch>> psms;
+    protected final PartitionedPsmStore psms;
 
     public MultiplePsmFileConverter(String psmRootDirName, Pattern regex) {
 
         this.psmRootDirName = psmRootDirName;
         this.regex = regex;
-        this.psms = new ConcurrentHashMap<>();
+        this.psms = new PartitionedPsmStore();
     }
 
 
@@ -60,7 +60,7 @@ public abstract class MultiplePsmFileConverter {
 
         if (uniProtDB==null) return;
 
-        psms.forEach(100000,new AddUniProtIds2Psm(uniProtDB));
+        psms.forEachParallel(new AddUniProtIds2Psm(uniProtDB));
     }
 
     public void reportDBProteins() {
@@ -68,7 +68,17 @@ public abstract class MultiplePsmFileConverter {
         psms.forEach((id,psm) -> System.out.println(id+", "+psm.get(0).getPeptide().toString()+", "+psm.get(0).getProteinAcc().toString()));
     }
 
+    /**
+     * @return map from spectrum key to psms of all psm files. The map is built on first access.
+     */
     public ConcurrentHashMap<String, List<PeptideSpectrumMatch>> getPsms() {
+        return psms.toMap();
+    }
+
+    /**
+     * @return psms with one partition per psm file
+     */
+    public PartitionedPsmStore getPsmStore() {
         return psms;
     }
 }
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Psms of several psm files stored as one partition per file. Each SinglePsmFileConverter publishes the spectrum map of
+ * its file once, so the converters do not contend on a shared map. The psm lists are unmodifiable after publication
+ * and can be read without locks.
+ * <p>
+ * Spectrum keys contain the raw file name and do not overlap between partitions. If they do, the flattened map returned
+ * by toMap() contains the concatenated psm lists. toMap() moves the spectra of the partitions into the flattened map, so
+ * that each spectrum is only referenced once. The flattened map then takes the place of the emptied partitions.
+ *
+ * @author Markus Müller
+ */
+
+public class PartitionedPsmStore {
+
+    private final ConcurrentHashMap<String, Map<String, List<PeptideSpectrumMatch>>> partitions;
+    private volatile ConcurrentHashMap<String, List<PeptideSpectrumMatch>> flattened;
+
+    public PartitionedPsmStore() {
+
+        this.partitions = new ConcurrentHashMap<>();
+        this.flattened = null;
+    }
+
+    /**
+     * Adds psmMap as partition with name partitionName. The map is owned by the store afterwards.
+     */
+    public void publish(String partitionName, Map<String, List<PeptideSpectrumMatch>> psmMap) {
+
+        for (Map.Entry<String, List<PeptideSpectrumMatch>> entry : psmMap.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+
+        if (partitions.putIfAbsent(partitionName, psmMap) != null)
+            throw new IllegalStateException("Psm partition "+partitionName+" published twice. Abort.");
+    }
+
+    /**
+     * @return the partitions and the flattened map if toMap() was called
+     */
+    public Collection<Map<String, List<PeptideSpectrumMatch>>> getPartitions() {
+
+        Map<String, List<PeptideSpectrumMatch>> map = flattened;
+        if (map == null) return Collections.unmodifiableCollection(partitions.values());
+
+        List<Map<String, List<PeptideSpectrumMatch>>> all = new ArrayList<>(partitions.values());
+        all.add(map);
+
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * @return the psms of partitionName, which are empty once they were moved by toMap()
+     */
+    public Map<String, List<PeptideSpectrumMatch>> getPartition(String partitionName) {
+        return partitions.get(partitionName);
+    }
+
+    public int getNrPartitions() {
+        return partitions.size();
+    }
+
+    public int getSpectrumCount() {
+
+        int cnt = 0;
+        for (Map<String, List<PeptideSpectrumMatch>> partition : getPartitions()) cnt += partition.size();
+
+        return cnt;
+    }
+
+    /**
+     * Calls consumer for the spectra of all partitions. Partitions and the spectra within a partition are processed
+     * in parallel, consumer has to be thread safe.
+     */
+    public void forEachParallel(BiConsumer<String, List<PeptideSpectrumMatch>> consumer) {
+
+        getPartitions().parallelStream().forEach(partition ->
+                partition.entrySet().parallelStream().forEach(entry -> consumer.accept(entry.getKey(), entry.getValue())));
+    }
+
+    public void forEach(BiConsumer<String, List<PeptideSpectrumMatch>> consumer) {
+
+        for (Map<String, List<PeptideSpectrumMatch>> partition : getPartitions()) partition.forEach(consumer);
+    }
+
+    /**
+     * @return map from spectrum key to psms of all partitions. The map is built on the first call. The spectra of each
+     * partition are moved to the map and the partition is released, so that the psms are not referenced twice.
+     * Partitions published later are moved by the next call.
+     */
+    public synchronized ConcurrentHashMap<String, List<PeptideSpectrumMatch>> toMap() {
+
+        ConcurrentHashMap<String, List<PeptideSpectrumMatch>> map = flattened;
+        if (map == null) map = new ConcurrentHashMap<>(Math.max(16, 2*getSpectrumCount()));
+
+        for (Map.Entry<String, Map<String, List<PeptideSpectrumMatch>>> partition : partitions.entrySet()) {
+
+            if (partition.getValue().isEmpty()) continue;
+
+            for (Map.Entry<String, List<PeptideSpectrumMatch>> entry : partition.getValue().entrySet()) {
+                map.merge(entry.getKey(), entry.getValue(), PartitionedPsmStore::concat);
+            }
+            partition.setValue(Collections.emptyMap());
+        }
+
+        flattened = map;
+        return map;
+    }
+
+    /**
+     * Removes the partitions one after the other and passes them to consumer, so that each partition can be released
+     * as soon as it is processed. The store is empty afterwards.
+     */
+    public synchronized void drain(Consumer<Map<String, List<PeptideSpectrumMatch>>> consumer) {
+
+        for (String partitionName : new ArrayList<>(partitions.keySet())) consumer.accept(partitions.remove(partitionName));
+
+        Map<String, List<PeptideSpectrumMatch>> map = flattened;
+        flattened = null;
+        if (map != null) consumer.accept(map);
+    }
+
+    public synchronized void clear() {
+
+        partitions.clear();
+        if (flattened != null) flattened.clear();
+        flattened = null;
+    }
+
+    private static List<PeptideSpectrumMatch> concat(List<PeptideSpectrumMatch> psms1, List<PeptideSpectrumMatch> psms2) {
+
+        List<PeptideSpectrumMatch> psms = new ArrayList<>(psms1.size()+psms2.size());
+        psms.addAll(psms1);
+        psms.addAll(psms2);
+
+        return Collections.unmodifiableList(psms);
+    }
+}
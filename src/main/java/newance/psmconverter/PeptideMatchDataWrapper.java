@@ -369,18 +369,34 @@ public class PeptideMatchDataWrapper  {
      */
     public Peptide toPeptide() {
 
-        return toPeptide(modificationMatchResolver);
+        return toLazyPeptide(modificationMatchResolver).getPeptide();
     }
 
     /**
      * Convert this PeptideMatchDataWrapper to a peptide using the supplied <code>modificationMatchResolver</code>
-     * to convert ModificationMatch instances to Modifications.
+     * to convert ModificationMatch instances to Modifications. Identical peptides are shared through the PeptidePool.
      *
      * @return the peptide
      * @throws UnresolvableModificationMatchException if a modification match cannot be resolved to a modification
      */
     public Peptide toPeptide(ModificationMatchResolver modMatchResolver) {
 
+        return toLazyPeptide(modMatchResolver).getPeptide();
+    }
+
+    /**
+     * Same as toPeptide(), but the mzjava Peptide is not built
+     */
+    public LazyPeptide toLazyPeptide() {
+
+        return toLazyPeptide(modificationMatchResolver);
+    }
+
+    /**
+     * Same as toPeptide(modMatchResolver), but the mzjava Peptide is not built
+     */
+    public LazyPeptide toLazyPeptide(ModificationMatchResolver modMatchResolver) {
+
         Multimap<Integer, Modification> sideChainModMap = ArrayListMultimap.create();
         Multimap<ModAttachment, Modification> termModMap = ArrayListMultimap.create();
         if (sideChainMatchMap!=null) {
@@ -417,7 +433,7 @@ public class PeptideMatchDataWrapper  {
             }
         }
 
-        return new Peptide(aminoAcids, sideChainModMap, termModMap);
+        return PeptidePool.getInstance().internLazy(sequence, sideChainModMap, termModMap);
     }
 
     public Peptide toBarePeptide() {
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import com.google.common.collect.Multimap;
+import org.expasy.mzjava.proteomics.mol.Peptide;
+import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
+import org.expasy.mzjava.proteomics.mol.modification.Modification;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide pool of peptides. The same peptide is found in many spectra of many files, and all
+ * PeptideSpectrumMatch objects of a peptide share one LazyPeptide instance. Peptides are identified by their
+ * sequence and a signature of their modifications (position, label and mass). The mzjava Peptide of a pooled peptide
+ * is built at most once. The pool can be used by all reader threads concurrently.
+ *
+ * @author Markus Müller
+ */
+
+public class PeptidePool {
+
+    private static PeptidePool instance = null;
+
+    private final ConcurrentHashMap<String, LazyPeptide> peptideMap;
+
+    public static synchronized PeptidePool getInstance() {
+        if (instance==null) {
+            instance = new PeptidePool();
+        }
+
+        return instance;
+    }
+
+    private PeptidePool() {
+
+        peptideMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the pooled peptide with this sequence and modifications. The mzjava Peptide is built only if the pool
+     * does not contain it yet.
+     */
+    public Peptide intern(String sequence, Multimap<Integer, Modification> sideChainModMap, Multimap<ModAttachment, Modification> termModMap) {
+
+        return internLazy(sequence, sideChainModMap, termModMap).getPeptide();
+    }
+
+    /**
+     * @return the pooled LazyPeptide with this sequence and modifications. No mzjava Peptide is built.
+     */
+    public LazyPeptide internLazy(String sequence, Multimap<Integer, Modification> sideChainModMap, Multimap<ModAttachment, Modification> termModMap) {
+
+        String signature = getSignature(sequence, sideChainModMap, termModMap);
+
+        LazyPeptide peptide = peptideMap.get(signature);
+        if (peptide != null) return peptide;
+
+        peptide = new LazyPeptide(sequence, sideChainModMap, termModMap, signature);
+        LazyPeptide pooled = peptideMap.putIfAbsent(signature, peptide);
+
+        return (pooled == null) ? peptide : pooled;
+    }
+
+    /**
+     * @return the pooled LazyPeptide equal to peptide. If the pool does not contain it yet, peptide is added.
+     */
+    public LazyPeptide intern(Peptide peptide) {
+
+        LazyPeptide lazyPeptide = LazyPeptide.of(peptide);
+        LazyPeptide pooled = peptideMap.putIfAbsent(lazyPeptide.getSignature(), lazyPeptide);
+
+        return (pooled == null) ? lazyPeptide : pooled;
+    }
+
+    /**
+     * @return the sequence if the peptide is not modified, the sequence followed by position:label:mass of each
+     * modification otherwise. N- and C-terminal modifications have position n and c.
+     */
+    public static String getSignature(String sequence, Multimap<Integer, Modification> sideChainModMap, Multimap<ModAttachment, Modification> termModMap) {
+
+        if (sideChainModMap.isEmpty() && termModMap.isEmpty()) return sequence;
+
+        StringBuilder signature = new StringBuilder(sequence);
+
+        appendModifications(signature, "n", termModMap.get(ModAttachment.N_TERM));
+
+        List<Integer> positions = new ArrayList<>(sideChainModMap.keySet());
+        Collections.sort(positions);
+        for (Integer position : positions) {
+            appendModifications(signature, position.toString(), sideChainModMap.get(position));
+        }
+
+        appendModifications(signature, "c", termModMap.get(ModAttachment.C_TERM));
+
+        return signature.toString();
+    }
+
+    private static void appendModifications(StringBuilder signature, String position, Collection<Modification> modifications) {
+
+        for (Modification modification : modifications) {
+            signature.append('|').append(position).append(':').append(modification.getLabel()).append(':').append(modification.getMolecularMass());
+        }
+    }
+
+    public int size() {
+        return peptideMap.size();
+    }
+
+    public void clear() {
+        peptideMap.clear();
+    }
+}
@@ -28,13 +28,11 @@
  */
 package newance.psmconverter;
 
-import gnu.trove.impl.unmodifiable.TUnmodifiableObjectDoubleMap;
 import gnu.trove.map.TObjectDoubleMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 import org.expasy.mzjava.proteomics.mol.AminoAcid;
 import org.expasy.mzjava.proteomics.mol.Peptide;
 
-import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -45,9 +43,10 @@ import java.util.Set;
 public class PeptideSpectrumMatch {
 
     private final String spectrumFile;
-    private final Peptide peptide;
-    private final Set<String> proteinAcc;
-    private final TObjectDoubleMap<String> scoreMap;
+    private final LazyPeptide peptide;
+    private ProteinAccessionSet proteinAcc;
+    private final ScoreSchema scoreSchema;
+    private final double[] scores;
     private final int charge;
     private final int rank;
     private final boolean isDecoy;
@@ -61,10 +60,53 @@ public class PeptideSpectrumMatch {
     public PeptideSpectrumMatch(String spectrumFile, Peptide peptide, Set<String> proteinAccs, TObjectDoubleMap<String> scoreMap, int charge, int rank, float retentionTime,
                                 int scanNr, double neutralPrecMass, boolean isDecoy, boolean isVariant, List<Integer> variantPositions, List<Character> variantWTAAs) {
 
+        this(spectrumFile, LazyPeptide.of(peptide), proteinAccs, scoreMap, charge, rank, retentionTime, scanNr, neutralPrecMass, isDecoy,
+                isVariant, variantPositions, variantWTAAs);
+    }
+
+    public PeptideSpectrumMatch(String spectrumFile, LazyPeptide peptide, Set<String> proteinAccs, TObjectDoubleMap<String> scoreMap, int charge, int rank, float retentionTime,
+                                int scanNr, double neutralPrecMass, boolean isDecoy, boolean isVariant, List<Integer> variantPositions, List<Character> variantWTAAs) {
+
+        this(spectrumFile, peptide, proteinAccs, ScoreSchema.of(scoreMap), scoreMap, charge, rank, retentionTime, scanNr, neutralPrecMass, isDecoy,
+                isVariant, variantPositions, variantWTAAs);
+    }
+
+    private PeptideSpectrumMatch(String spectrumFile, LazyPeptide peptide, Set<String> proteinAccs, ScoreSchema scoreSchema, TObjectDoubleMap<String> scoreMap,
+                                 int charge, int rank, float retentionTime, int scanNr, double neutralPrecMass, boolean isDecoy, boolean isVariant,
+                                 List<Integer> variantPositions, List<Character> variantWTAAs) {
+
+        this(spectrumFile, peptide, proteinAccs, scoreSchema, scoreSchema.toArray(scoreMap), charge, rank, retentionTime, scanNr, neutralPrecMass, isDecoy,
+                isVariant, variantPositions, variantWTAAs);
+    }
+
+    /**
+     * @param scoreSchema schema of the scores
+     * @param scores scores in the slots of scoreSchema. The array is not copied.
+     */
+    public PeptideSpectrumMatch(String spectrumFile, Peptide peptide, Set<String> proteinAccs, ScoreSchema scoreSchema, double[] scores, int charge, int rank,
+                                float retentionTime, int scanNr, double neutralPrecMass, boolean isDecoy, boolean isVariant, List<Integer> variantPositions,
+                                List<Character> variantWTAAs) {
+
+        this(spectrumFile, LazyPeptide.of(peptide), proteinAccs, scoreSchema, scores, charge, rank, retentionTime, scanNr, neutralPrecMass, isDecoy,
+                isVariant, variantPositions, variantWTAAs);
+    }
+
+    /**
+     * @param peptide peptide, which is only built when getPeptide is called
+     * @param scoreSchema schema of the scores
+     * @param scores scores in the slots of scoreSchema. The array is not copied.
+     */
+    public PeptideSpectrumMatch(String spectrumFile, LazyPeptide peptide, Set<String> proteinAccs, ScoreSchema scoreSchema, double[] scores, int charge, int rank,
+                                float retentionTime, int scanNr, double neutralPrecMass, boolean isDecoy, boolean isVariant, List<Integer> variantPositions,
+                                List<Character> variantWTAAs) {
+
+        if (scores.length != scoreSchema.size()) throw new IllegalArgumentException("Score array does not fit schema "+scoreSchema);
+
         this.spectrumFile = spectrumFile;
         this.peptide = peptide;
-        this.proteinAcc = proteinAccs;
-        this.scoreMap = scoreMap;
+        this.proteinAcc = ProteinAccessionDictionary.getInstance().getSet(proteinAccs);
+        this.scoreSchema = scoreSchema;
+        this.scores = scores;
         this.charge = charge;
         this.isDecoy = isDecoy;
         this.rank = rank;
@@ -78,22 +120,55 @@ public class PeptideSpectrumMatch {
 
     public Peptide getPeptide() {
 
+        return peptide.getPeptide();
+    }
+
+    public LazyPeptide getLazyPeptide() {
+
         return peptide;
     }
 
     public Set<String> getProteinAcc() {
 
-        return Collections.unmodifiableSet(proteinAcc);
+        return proteinAcc;
     }
 
+    /**
+     * @return a new map with all scores of this psm
+     */
     public TObjectDoubleMap<String> getScoreMap() {
 
+        TObjectDoubleMap<String> scoreMap = new TObjectDoubleHashMap<>(2 * scores.length);
+        for (int i = 0; i < scores.length; i++) scoreMap.put(scoreSchema.getName(i), scores[i]);
+
         return scoreMap;
     }
 
+    public ScoreSchema getScoreSchema() {
+
+        return scoreSchema;
+    }
+
+    public boolean hasScore(String score) {
+
+        return scoreSchema.contains(score);
+    }
+
+    /**
+     * @return score or 0 if the psm has no such score
+     */
     public double getScore(String score) {
 
-        return scoreMap.get(score);
+        return getScore(scoreSchema.getSlot(score));
+    }
+
+    /**
+     * @param slot slot of the score in the schema of this psm (see getScoreSchema)
+     * @return score or 0 if slot is -1
+     */
+    public double getScore(int slot) {
+
+        return (slot < 0) ? 0.0 : scores[slot];
     }
 
     public int getCharge() {
@@ -103,7 +178,7 @@ public class PeptideSpectrumMatch {
 
     public String toSymbolString() {
 
-        return peptide.toSymbolString();
+        return peptide.getSequence();
     }
 
     public boolean isDecoy() {
@@ -111,8 +186,9 @@ public class PeptideSpectrumMatch {
         return isDecoy;
     }
 
+    // protein sets are shared between psms, so a new set is taken from the dictionary instead of changing the set
     public void addProteinAcc(Set<String> newProteinAccs) {
-        this.proteinAcc.addAll(newProteinAccs);
+        this.proteinAcc = ProteinAccessionDictionary.getInstance().union(proteinAcc, newProteinAccs);
     }
 
     public String getSpectrumFile() {
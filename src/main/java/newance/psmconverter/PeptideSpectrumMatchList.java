@@ -31,7 +31,6 @@ package newance.psmconverter;
 
 import newance.util.PsmPredicate;
 import org.expasy.mzjava.core.ms.spectrum.MsnSpectrum;
-import org.expasy.mzjava.proteomics.mol.Peptide;
 import newance.util.SpectrumFilter;
 import newance.util.NewAnceParams;
 import newance.util.SpectrumKeyFunction;
@@ -83,7 +82,7 @@ public class PeptideSpectrumMatchList {
 
     public void resultRead(SpectrumInfo spectrumInfo, PeptideMatchDataWrapper searchResult)  {
 
-        String key = spectrumKeyFunction.apply(spectrumInfo);
+        String key = getSpectrumKey(spectrumInfo);
         if (spectrumFilter != null && !spectrumFilter.apply(key)) return;
 
         boolean isDecoy = searchResult.isDecoy();
@@ -108,7 +107,8 @@ public class PeptideSpectrumMatchList {
         List<Integer> variantPositions = searchResult.getVariantPositions();
         List<Character> variantWTAAs = searchResult.getVariantWTAAs();
 
-        Peptide peptide = searchResult.toPeptide();
+        // the mzjava Peptide is only built for psms that are written to the output
+        LazyPeptide peptide = searchResult.toLazyPeptide();
 
         PeptideSpectrumMatch psm = new PeptideSpectrumMatch(spectrumFile, peptide, protACs,
                 searchResult.getScoreMap(),spectrumInfo.getCharge(),rank, rt,
@@ -136,24 +136,64 @@ public class PeptideSpectrumMatchList {
 
     public boolean isValidSpectrum(SpectrumInfo spectrumInfo) {
 
-        String key = spectrumKeyFunction.apply(spectrumInfo);
+        String key = getSpectrumKey(spectrumInfo);
         if (spectrumFilter != null && !spectrumFilter.apply(key)) return false;
 
         return true;
     }
 
+    // the key is computed for the first hit of a spectrum and then kept in spectrumInfo
+    private String getSpectrumKey(SpectrumInfo spectrumInfo) {
+
+        String key = spectrumInfo.getSpectrumKey();
+        if (key == null) {
+            key = spectrumKeyFunction.apply(spectrumInfo);
+            spectrumInfo.setSpectrumKey(key);
+        }
+
+        return key;
+    }
+
+    public PsmPredicate getPsmPredicate() {
+        return psmPredicate;
+    }
+
+    /**
+     * Creates an empty list with the same key function and filters. Partitions can be filled independently by
+     * different threads and are then added to this list with addAll.
+     */
+    public PeptideSpectrumMatchList createPartition() {
+
+        return new PeptideSpectrumMatchList(spectrumKeyFunction, psmPredicate, new LinkedHashMap<>());
+    }
+
+    /**
+     * Adds the psms of a partition to this list. If partitions are added in file order, the result is the same as
+     * if all psms had been read into this list directly.
+     */
+    public void addAll(PeptideSpectrumMatchList partition) {
+
+        for (Map.Entry<String, List<PeptideSpectrumMatch>> entry : partition.psmMap.entrySet()) {
+
+            psmMap.putIfAbsent(entry.getKey(),new ArrayList<>());
+            psmMap.get(entry.getKey()).addAll(entry.getValue());
+        }
+    }
 
     private Set<String> removeProt(Set<String> acs, Pattern proteinPattern) {
 
-        Set<String> trueACs = new HashSet<>(acs);
+        Set<String> trueACs = null;
 
         Matcher matcher;
         for (String ac : acs) {
             matcher = proteinPattern.matcher(ac);
-            if (matcher.find()) trueACs.remove(ac);
+            if (matcher.find()) {
+                if (trueACs == null) trueACs = new HashSet<>(acs);
+                trueACs.remove(ac);
+            }
         }
 
-        return trueACs;
+        return (trueACs == null) ? acs : trueACs;
     }
 
 }
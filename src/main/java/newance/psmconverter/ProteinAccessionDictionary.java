@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide dictionary of protein accessions. Each accession gets an int id and each distinct set of accessions
+ * is stored once as ProteinAccessionSet, which is shared by all psms with these proteins. Accession strings are
+ * stored once as well.
+ *
+ * @author Markus Müller
+ */
+
+public class ProteinAccessionDictionary {
+
+    private static ProteinAccessionDictionary instance = null;
+
+    private final ConcurrentHashMap<String, Integer> accessionIds;
+    private final ConcurrentHashMap<ProteinAccessionSet, ProteinAccessionSet> proteinSets;
+    private volatile String[] accessions;
+    private int nrAccessions;
+
+    public static synchronized ProteinAccessionDictionary getInstance() {
+        if (instance==null) {
+            instance = new ProteinAccessionDictionary();
+        }
+
+        return instance;
+    }
+
+    private ProteinAccessionDictionary() {
+
+        accessionIds = new ConcurrentHashMap<>();
+        proteinSets = new ConcurrentHashMap<>();
+        accessions = new String[1024];
+        nrAccessions = 0;
+    }
+
+    public int getId(String accession) {
+
+        Integer id = accessionIds.get(accession);
+        if (id != null) return id;
+
+        return accessionIds.computeIfAbsent(accession, this::register);
+    }
+
+    private synchronized int register(String accession) {
+
+        String[] array = accessions;
+        if (nrAccessions == array.length) array = Arrays.copyOf(array, 2 * array.length);
+
+        array[nrAccessions] = accession;
+        accessions = array;
+
+        return nrAccessions++;
+    }
+
+    public String getAccession(int id) {
+
+        return accessions[id];
+    }
+
+    /**
+     * @return the shared set containing the accessions
+     */
+    public ProteinAccessionSet getSet(Collection<String> proteinAccs) {
+
+        if (proteinAccs instanceof ProteinAccessionSet) return (ProteinAccessionSet) proteinAccs;
+
+        int[] ids = new int[proteinAccs.size()];
+        int i = 0;
+        for (String accession : proteinAccs) ids[i++] = getId(accession);
+
+        return intern(ids);
+    }
+
+    /**
+     * @return the shared set containing the accessions of proteinSet and proteinAccs. If proteinAccs does not add
+     * any accession, proteinSet itself is returned.
+     */
+    public ProteinAccessionSet union(ProteinAccessionSet proteinSet, Collection<String> proteinAccs) {
+
+        if (proteinSet.containsAll(proteinAccs)) return proteinSet;
+
+        int[] ids = Arrays.copyOf(proteinSet.getIds(), proteinSet.size() + proteinAccs.size());
+        int i = proteinSet.size();
+        for (String accession : proteinAccs) ids[i++] = getId(accession);
+
+        return intern(ids);
+    }
+
+    private ProteinAccessionSet intern(int[] ids) {
+
+        Arrays.sort(ids);
+
+        int size = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1]) ids[size++] = ids[i];
+        }
+        if (size < ids.length) ids = Arrays.copyOf(ids, size);
+
+        String[] accs = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) accs[i] = getAccession(ids[i]);
+
+        ProteinAccessionSet proteinSet = new ProteinAccessionSet(ids, accs);
+        ProteinAccessionSet pooled = proteinSets.putIfAbsent(proteinSet, proteinSet);
+
+        return (pooled == null) ? proteinSet : pooled;
+    }
+
+    public int getNrAccessions() {
+        return accessionIds.size();
+    }
+
+    public int getNrProteinSets() {
+        return proteinSets.size();
+    }
+}
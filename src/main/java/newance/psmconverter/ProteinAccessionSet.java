@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Immutable set of protein accessions created by ProteinAccessionDictionary. The accession ids are kept as sorted
+ * int array and the hash code is computed once. The accessions are iterated in lexicographic order.
+ *
+ * @author Markus Müller
+ */
+
+public final class ProteinAccessionSet extends AbstractSet<String> {
+
+    private final int[] ids;
+    private final String[] accessions;
+    private final int hash;
+
+    ProteinAccessionSet(int[] ids, String[] accessions) {
+
+        this.ids = ids;
+        this.accessions = accessions;
+        Arrays.sort(this.accessions);
+
+        int h = 0;
+        for (String accession : accessions) h += accession.hashCode();
+        this.hash = h;
+    }
+
+    int[] getIds() {
+        return ids;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+
+        return Arrays.asList(accessions).iterator();
+    }
+
+    @Override
+    public int size() {
+
+        return ids.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+
+        return (o instanceof String) && Arrays.binarySearch(accessions, o) >= 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) return true;
+        if (o instanceof ProteinAccessionSet) {
+            ProteinAccessionSet other = (ProteinAccessionSet) o;
+            return hash == other.hash && Arrays.equals(ids, other.ids);
+        }
+
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+
+        return hash;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import java.io.Closeable;
+
+/**
+ * Storage of the primitive columns of a PsmTable. Dictionaries stay in the table, the store only holds the values
+ * and ids of the rows.
+ *
+ * @author Markus Müller
+ */
+
+abstract class PsmColumnStore implements Closeable {
+
+    // int columns
+    static final int CHARGE = 0;
+    static final int RANK = 1;
+    static final int SCAN_NR = 2;
+    static final int PEPTIDE = 3;
+    static final int PROTEINS = 4;
+    static final int SPECTRUM_FILE = 5;
+    static final int SPECTRUM = 6;
+    static final int VARIANT_POSITIONS = 7;
+    static final int VARIANT_WTAAS = 8;
+    static final int SCHEMA = 9;
+    static final int NR_INT_COLUMNS = 10;
+
+    abstract void ensureCapacity(int nrRows, long nrScores);
+
+    abstract int getInt(int column, int row);
+
+    abstract void setInt(int column, int row, int value);
+
+    abstract float getRetentionTime(int row);
+
+    abstract void setRetentionTime(int row, float retentionTime);
+
+    abstract double getNeutralPrecMass(int row);
+
+    abstract void setNeutralPrecMass(int row, double neutralPrecMass);
+
+    abstract boolean isDecoy(int row);
+
+    abstract boolean isVariant(int row);
+
+    abstract void setFlags(int row, boolean isDecoy, boolean isVariant);
+
+    // index of the first score of row in the score column
+    abstract long getScoreOffset(int row);
+
+    abstract void setScoreOffset(int row, long offset);
+
+    abstract double getScore(long index);
+
+    abstract void setScore(long index, double score);
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,523 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.hash.Hashing;
+import gnu.trove.list.array.TDoubleArrayList;
+import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
+import org.expasy.mzjava.proteomics.mol.modification.Modification;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary cache of the psms read from one psm file. The cache file name contains a hash of the cache key, which is
+ * made of the psm file path, size and modification time and of all parameters that influence which psms are read.
+ * <p>
+ * The psms are stored column wise: spectrum keys, spectrum files, peptide sequences, modification labels,
+ * proteins and score names are stored in a string dictionary, peptides and protein sets in their own dictionaries,
+ * and all other psm fields as primitive columns. Scores are stored with the score schema of each psm: the schemas
+ * are stored once as lists of score names and each row has a schema id and its score values. The cache is memory
+ * mapped when it is read, so reading is mostly I/O.
+ *
+ * @author Markus Müller
+ */
+
+public class PsmFileCache {
+
+    private static final int MAGIC = 0x4e415043; // NAPC
+    private static final int VERSION = 2;
+
+    private static final int N_TERM_POS = LazyPeptide.N_TERM_POS;
+    private static final int C_TERM_POS = LazyPeptide.C_TERM_POS;
+
+    // the cache is read as one memory mapped buffer, which is limited to 2 GB
+    private static final long MAX_CACHE_SIZE = Integer.MAX_VALUE;
+
+    private static final byte DECOY_FLAG = 1;
+    private static final byte VARIANT_FLAG = 2;
+
+    private final File cacheFile;
+    private final String key;
+    private final Map<String, Modification> modificationMap;
+
+    public PsmFileCache(File cacheDir, File psmFile, String key) {
+
+        this.key = key;
+        this.cacheFile = new File(cacheDir, psmFile.getName() + "." + Hashing.md5().hashString(key, StandardCharsets.UTF_8).toString() + ".psmcache");
+        this.modificationMap = new HashMap<>();
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * @return the cached psms or null if there is no valid cache for the key
+     */
+    public Map<String, List<PeptideSpectrumMatch>> read() {
+
+        if (!cacheFile.exists()) return null;
+
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+
+            if (channel.size() > MAX_CACHE_SIZE) throw new IOException("file is larger than 2 GB");
+
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+
+            System.out.println("WARNING: ignoring invalid psm cache file " + cacheFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Map<String, List<PeptideSpectrumMatch>> read(ByteBuffer buffer) throws IOException {
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) throw new IOException("wrong format");
+        if (!key.equals(readString(buffer))) return null;
+
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) strings[i] = readString(buffer);
+
+        LazyPeptide[] peptides = new LazyPeptide[buffer.getInt()];
+        for (int i = 0; i < peptides.length; i++) peptides[i] = readPeptide(buffer, strings);
+
+        ProteinAccessionSet[] proteinSets = new ProteinAccessionSet[buffer.getInt()];
+        for (int i = 0; i < proteinSets.length; i++) {
+
+            List<String> proteins = new ArrayList<>();
+            for (int id : readInts(buffer, buffer.getInt())) proteins.add(strings[id]);
+            proteinSets[i] = ProteinAccessionDictionary.getInstance().getSet(proteins);
+        }
+
+        ScoreSchema[] scoreSchemas = new ScoreSchema[buffer.getInt()];
+        for (int i = 0; i < scoreSchemas.length; i++) {
+
+            int[] nameIds = readInts(buffer, buffer.getInt());
+            String[] names = new String[nameIds.length];
+            for (int j = 0; j < nameIds.length; j++) names[j] = strings[nameIds[j]];
+            scoreSchemas[i] = ScoreSchema.of(names);
+        }
+
+        int nrRows = buffer.getInt();
+        int[] keys = readInts(buffer, nrRows);
+        int[] spectrumFiles = readInts(buffer, nrRows);
+        int[] peptideIds = readInts(buffer, nrRows);
+        int[] proteinSetIds = readInts(buffer, nrRows);
+        int[] charges = readInts(buffer, nrRows);
+        int[] ranks = readInts(buffer, nrRows);
+        int[] scanNrs = readInts(buffer, nrRows);
+        float[] retentionTimes = readFloats(buffer, nrRows);
+        double[] precMasses = readDoubles(buffer, nrRows);
+        byte[] flags = new byte[nrRows];
+        buffer.get(flags);
+        int[] variantCounts = readInts(buffer, nrRows);
+        int[] variantPositions = readInts(buffer, buffer.getInt());
+        char[] variantWTAAs = readChars(buffer, variantPositions.length);
+
+        int[] schemaIds = readInts(buffer, nrRows);
+        double[] scores = readDoubles(buffer, buffer.getInt());
+
+        Map<String, List<PeptideSpectrumMatch>> psms = new HashMap<>();
+        int variantOffset = 0;
+        int scoreOffset = 0;
+        for (int row = 0; row < nrRows; row++) {
+
+            ScoreSchema scoreSchema = scoreSchemas[schemaIds[row]];
+            double[] psmScores = Arrays.copyOfRange(scores, scoreOffset, scoreOffset + scoreSchema.size());
+            scoreOffset += scoreSchema.size();
+
+            List<Integer> positions = null;
+            List<Character> wtAAs = null;
+            if (variantCounts[row] >= 0) {
+                positions = new ArrayList<>();
+                wtAAs = new ArrayList<>();
+                for (int i = 0; i < variantCounts[row]; i++, variantOffset++) {
+                    positions.add(variantPositions[variantOffset]);
+                    wtAAs.add(variantWTAAs[variantOffset]);
+                }
+            }
+
+            PeptideSpectrumMatch psm = new PeptideSpectrumMatch(strings[spectrumFiles[row]], peptides[peptideIds[row]], proteinSets[proteinSetIds[row]], scoreSchema, psmScores,
+                    charges[row], ranks[row], retentionTimes[row], scanNrs[row], precMasses[row], (flags[row] & DECOY_FLAG) != 0,
+                    (flags[row] & VARIANT_FLAG) != 0, positions, wtAAs);
+
+            psms.putIfAbsent(strings[keys[row]], new ArrayList<>());
+            psms.get(strings[keys[row]]).add(psm);
+        }
+
+        return psms;
+    }
+
+    private LazyPeptide readPeptide(ByteBuffer buffer, String[] strings) throws IOException {
+
+        String sequence = strings[buffer.getInt()];
+
+        Multimap<Integer, Modification> sideChainModMap = ArrayListMultimap.create();
+        Multimap<ModAttachment, Modification> termModMap = ArrayListMultimap.create();
+
+        int nrMods = buffer.getInt();
+        for (int i = 0; i < nrMods; i++) {
+
+            int position = buffer.getInt();
+            Modification modification = resolveModification(strings[buffer.getInt()], buffer.getDouble());
+
+            if (position == N_TERM_POS) termModMap.put(ModAttachment.N_TERM, modification);
+            else if (position == C_TERM_POS) termModMap.put(ModAttachment.C_TERM, modification);
+            else sideChainModMap.put(position, modification);
+        }
+
+        return PeptidePool.getInstance().internLazy(sequence, sideChainModMap, termModMap);
+    }
+
+    // modifications are stored by label and mass. They are resolved with the modifications from the parameters or
+    // with unimod by the ModificationResolverService. If this does not give back the stored mass, the cache is not used.
+    private Modification resolveModification(String label, double mass) throws IOException {
+
+        Modification modification = modificationMap.get(label);
+
+        if (modification == null) {
+
+            Optional<Modification> modOpt = ModificationResolverService.getInstance().resolve(label);
+            if (modOpt.isPresent()) modification = modOpt.get();
+
+            if (modification == null) throw new IOException("cannot resolve modification " + label);
+            modificationMap.put(label, modification);
+        }
+
+        if (Math.abs(modification.getMolecularMass() - mass) > 0.000001) throw new IOException("mass of modification " + label + " changed");
+
+        return modification;
+    }
+
+    /**
+     * Writes the psms to the cache file. The file is written to a temporary file first and then moved, so that
+     * concurrent runs never see an incomplete cache. Write errors are reported, but do not stop the run. Caches that
+     * would be larger than 2 GB cannot be memory mapped and are not written.
+     */
+    public void write(Map<String, List<PeptideSpectrumMatch>> psms) {
+
+        File tmpFile = null;
+
+        try {
+            tmpFile = File.createTempFile(cacheFile.getName() + ".", ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new SizeLimitedOutputStream(new FileOutputStream(tmpFile), MAX_CACHE_SIZE), 1 << 16))) {
+                write(psms, out);
+            }
+
+            Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+
+            System.out.println("WARNING: cannot write psm cache file " + cacheFile + ": " + e.getMessage());
+            if (tmpFile != null) tmpFile.delete();
+        }
+    }
+
+    private void write(Map<String, List<PeptideSpectrumMatch>> psms, DataOutputStream out) throws IOException {
+
+        Dictionary<String> strings = new Dictionary<>();
+        Dictionary<String> peptideSignatures = new Dictionary<>();
+        List<int[]> peptideEntries = new ArrayList<>();
+        List<double[]> peptideMasses = new ArrayList<>();
+        Dictionary<List<Integer>> proteinSets = new Dictionary<>();
+        Dictionary<ScoreSchema> scoreSchemas = new Dictionary<>();
+
+        int nrRows = 0;
+        for (List<PeptideSpectrumMatch> list : psms.values()) nrRows += list.size();
+
+        int[] keys = new int[nrRows];
+        int[] spectrumFiles = new int[nrRows];
+        int[] peptideIds = new int[nrRows];
+        int[] proteinSetIds = new int[nrRows];
+        int[] charges = new int[nrRows];
+        int[] ranks = new int[nrRows];
+        int[] scanNrs = new int[nrRows];
+        float[] retentionTimes = new float[nrRows];
+        double[] precMasses = new double[nrRows];
+        byte[] flags = new byte[nrRows];
+        int[] variantCounts = new int[nrRows];
+        List<Integer> variantPositions = new ArrayList<>();
+        List<Character> variantWTAAs = new ArrayList<>();
+        int[] schemaIds = new int[nrRows];
+        TDoubleArrayList scores = new TDoubleArrayList();
+
+        int row = 0;
+        for (Map.Entry<String, List<PeptideSpectrumMatch>> entry : psms.entrySet()) {
+
+            for (PeptideSpectrumMatch psm : entry.getValue()) {
+
+                keys[row] = strings.add(entry.getKey());
+                spectrumFiles[row] = strings.add(psm.getSpectrumFile());
+                peptideIds[row] = addPeptide(psm.getLazyPeptide(), strings, peptideSignatures, peptideEntries, peptideMasses);
+
+                List<Integer> proteinSet = new ArrayList<>();
+                for (String protein : psm.getProteinAcc()) proteinSet.add(strings.add(protein));
+                proteinSetIds[row] = proteinSets.add(proteinSet);
+
+                charges[row] = psm.getCharge();
+                ranks[row] = psm.getRank();
+                scanNrs[row] = psm.getScanNr();
+                retentionTimes[row] = psm.getRetentionTime();
+                precMasses[row] = psm.getNeutralPrecMass();
+                flags[row] = (byte) ((psm.isDecoy() ? DECOY_FLAG : 0) | (psm.isVariant() ? VARIANT_FLAG : 0));
+
+                if (psm.getVariantPositions() == null || psm.getVariantWTAAs() == null) {
+                    variantCounts[row] = -1;
+                } else {
+                    variantCounts[row] = psm.getVariantPositions().size();
+                    variantPositions.addAll(psm.getVariantPositions());
+                    variantWTAAs.addAll(psm.getVariantWTAAs());
+                }
+
+                schemaIds[row] = scoreSchemas.add(psm.getScoreSchema());
+                for (int i = 0; i < psm.getScoreSchema().size(); i++) scores.add(psm.getScore(i));
+
+                row++;
+            }
+        }
+
+        // score names are stored in the string dictionary as well
+        int[][] schemaNameIds = new int[scoreSchemas.size()][];
+        for (int i = 0; i < schemaNameIds.length; i++) {
+
+            ScoreSchema scoreSchema = scoreSchemas.get(i);
+            schemaNameIds[i] = new int[scoreSchema.size()];
+            for (int j = 0; j < scoreSchema.size(); j++) schemaNameIds[i][j] = strings.add(scoreSchema.getName(j));
+        }
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, key);
+
+        out.writeInt(strings.size());
+        for (int i = 0; i < strings.size(); i++) writeString(out, strings.get(i));
+
+        out.writeInt(peptideEntries.size());
+        for (int i = 0; i < peptideEntries.size(); i++) {
+
+            int[] entry = peptideEntries.get(i);
+            double[] masses = peptideMasses.get(i);
+
+            out.writeInt(entry[0]);
+            out.writeInt(masses.length);
+            for (int j = 0; j < masses.length; j++) {
+                out.writeInt(entry[1 + 2*j]);
+                out.writeInt(entry[2 + 2*j]);
+                out.writeDouble(masses[j]);
+            }
+        }
+
+        out.writeInt(proteinSets.size());
+        for (int i = 0; i < proteinSets.size(); i++) {
+            List<Integer> proteinSet = proteinSets.get(i);
+            out.writeInt(proteinSet.size());
+            for (int id : proteinSet) out.writeInt(id);
+        }
+
+        out.writeInt(schemaNameIds.length);
+        for (int[] nameIds : schemaNameIds) {
+            out.writeInt(nameIds.length);
+            writeInts(out, nameIds);
+        }
+
+        out.writeInt(nrRows);
+        writeInts(out, keys);
+        writeInts(out, spectrumFiles);
+        writeInts(out, peptideIds);
+        writeInts(out, proteinSetIds);
+        writeInts(out, charges);
+        writeInts(out, ranks);
+        writeInts(out, scanNrs);
+        for (float v : retentionTimes) out.writeFloat(v);
+        for (double v : precMasses) out.writeDouble(v);
+        out.write(flags);
+        writeInts(out, variantCounts);
+        out.writeInt(variantPositions.size());
+        for (int v : variantPositions) out.writeInt(v);
+        for (char v : variantWTAAs) out.writeChar(v);
+
+        writeInts(out, schemaIds);
+        out.writeInt(scores.size());
+        for (int i = 0; i < scores.size(); i++) out.writeDouble(scores.get(i));
+    }
+
+    // peptide entries are {sequence id, position_1, label id_1, ..., position_n, label id_n} plus the masses of the modifications
+    private int addPeptide(LazyPeptide peptide, Dictionary<String> strings, Dictionary<String> peptideSignatures,
+                           List<int[]> peptideEntries, List<double[]> peptideMasses) {
+
+        int nrMods = peptide.getModificationCount();
+        int[] entry = new int[1 + 2*nrMods];
+        double[] masses = new double[nrMods];
+
+        entry[0] = strings.add(peptide.getSequence());
+        for (int i = 0; i < nrMods; i++) {
+
+            Modification mod = peptide.getModification(i);
+            entry[1 + 2*i] = peptide.getModificationPosition(i);
+            entry[2 + 2*i] = strings.add(mod.getLabel());
+            masses[i] = mod.getMolecularMass();
+        }
+
+        int id = peptideSignatures.add(peptide.getSignature());
+        if (id == peptideEntries.size()) {
+            peptideEntries.add(entry);
+            peptideMasses.add(masses);
+        }
+
+        return id;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+
+        for (int v : values) out.writeInt(v);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int n) {
+
+        int[] values = new int[n];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4*n);
+
+        return values;
+    }
+
+    private static float[] readFloats(ByteBuffer buffer, int n) {
+
+        float[] values = new float[n];
+        buffer.asFloatBuffer().get(values);
+        buffer.position(buffer.position() + 4*n);
+
+        return values;
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer, int n) {
+
+        double[] values = new double[n];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + 8*n);
+
+        return values;
+    }
+
+    private static char[] readChars(ByteBuffer buffer, int n) {
+
+        char[] values = new char[n];
+        buffer.asCharBuffer().get(values);
+        buffer.position(buffer.position() + 2*n);
+
+        return values;
+    }
+
+    // assigns consecutive ids to distinct values
+    private static class Dictionary<T> {
+
+        private final Map<T, Integer> ids = new HashMap<>();
+        private final List<T> values = new ArrayList<>();
+
+        private int add(T value) {
+
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                ids.put(value, id);
+                values.add(value);
+            }
+
+            return id;
+        }
+
+        private T get(int id) {
+            return values.get(id);
+        }
+
+        private int size() {
+            return values.size();
+        }
+    }
+
+    // stops writing as soon as more than maxSize bytes are written
+    private static class SizeLimitedOutputStream extends FilterOutputStream {
+
+        private final long maxSize;
+        private long size;
+
+        private SizeLimitedOutputStream(OutputStream out, long maxSize) {
+
+            super(out);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+
+            checkSize(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            checkSize(len);
+            out.write(b, off, len);
+        }
+
+        private void checkSize(int len) throws IOException {
+
+            size += len;
+            if (size > maxSize) throw new IOException("psm cache would be larger than 2 GB and is not written");
+        }
+    }
+}
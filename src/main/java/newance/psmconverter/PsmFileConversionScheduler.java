@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import newance.util.NewAnceParams;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs SinglePsmFileConverter tasks on a work stealing pool shared by all MultiplePsmFileConverter instances. The pool
+ * size is given by the nrThreads parameter. Tasks are started largest file first, so that the big files do not end
+ * up at the tail of the run. Tasks that split their file into parallel parts run these parts on the same pool.
+ * <p>
+ * A task is only started if its estimated heap footprint fits into the heap budget together with the footprints of
+ * the running tasks. A task larger than the budget is started when no other task is running.
+ *
+ * @author Markus Müller
+ */
+
+public class PsmFileConversionScheduler {
+
+    private static PsmFileConversionScheduler instance = null;
+
+    private final ForkJoinPool pool;
+    private final long heapBudget;
+    private long reservedBytes;
+    private long maxReservedBytes;
+
+    public static synchronized PsmFileConversionScheduler getInstance() {
+        if (instance==null) {
+            NewAnceParams params = NewAnceParams.getInstance();
+            instance = new PsmFileConversionScheduler(params.getNrThreads(), params.getHeapBudget());
+        }
+
+        return instance;
+    }
+
+    public PsmFileConversionScheduler(int nrThreads, long heapBudget) {
+
+        this.pool = new ForkJoinPool(nrThreads);
+        this.heapBudget = heapBudget;
+        this.reservedBytes = 0;
+        this.maxReservedBytes = 0;
+    }
+
+    /**
+     * Runs all converters and returns when they are finished. Exceptions thrown by a converter are rethrown.
+     */
+    public void run(List<? extends SinglePsmFileConverter> converters) {
+
+        List<SinglePsmFileConverter> sorted = new ArrayList<>(converters);
+        sorted.sort(Comparator.comparingLong((SinglePsmFileConverter c) -> c.getPsmFile().length()).reversed());
+
+        List<ConversionTask> tasks = new ArrayList<>();
+        for (SinglePsmFileConverter converter : sorted) {
+
+            long footprint = converter.getEstimatedHeapFootprint();
+            reserve(footprint);
+
+            ConversionTask task = new ConversionTask(converter, footprint);
+            tasks.add(task);
+            pool.execute(task);
+        }
+
+        for (ConversionTask task : tasks) {
+            task.join();
+        }
+    }
+
+    private synchronized void reserve(long bytes) {
+
+        try {
+            while (reservedBytes > 0 && reservedBytes + bytes > heapBudget) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+
+        reservedBytes += bytes;
+        maxReservedBytes = Math.max(maxReservedBytes, reservedBytes);
+    }
+
+    private synchronized void release(long bytes) {
+
+        reservedBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * @return sum of the estimated heap footprints of the running tasks
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public synchronized long getMaxReservedBytes() {
+        return maxReservedBytes;
+    }
+
+    public long getHeapBudget() {
+        return heapBudget;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    private class ConversionTask extends RecursiveAction {
+
+        private final SinglePsmFileConverter converter;
+        private final long footprint;
+
+        private ConversionTask(SinglePsmFileConverter converter, long footprint) {
+
+            this.converter = converter;
+            this.footprint = footprint;
+        }
+
+        @Override
+        protected void compute() {
+
+            long start = System.currentTimeMillis();
+
+            try {
+                converter.run();
+            } finally {
+                release(footprint);
+            }
+
+            double seconds = Math.max(0.001, (System.currentTimeMillis() - start) / 1000d);
+            double mb = converter.getPsmFile().length() / (1024d * 1024d);
+            System.out.println(String.format("Parsed %s (%.1f MB) in %.3fs, %.1f MB/s. Reserved heap %.1f MB", converter.getPsmFile(),
+                    mb, seconds, mb / seconds, getReservedBytes() / (1024d * 1024d)));
+        }
+    }
+}
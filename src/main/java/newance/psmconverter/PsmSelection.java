@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import newance.util.PsmGrouper;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Ascending row indexes of a PsmTable. Filtering and grouping create new selections of the same table instead of
+ * copying psms. Since the rows of a spectrum are contiguous in the table, they are also contiguous in a selection.
+ *
+ * @author Markus Müller
+ */
+
+public class PsmSelection {
+
+    private final PsmTable table;
+    private final int[] rows;
+
+    /**
+     * @param rows ascending row indexes. The array is not copied.
+     */
+    public PsmSelection(PsmTable table, int[] rows) {
+
+        this.table = table;
+        this.rows = rows;
+    }
+
+    public PsmTable getTable() {
+        return table;
+    }
+
+    public int size() {
+        return rows.length;
+    }
+
+    public boolean isEmpty() {
+        return rows.length == 0;
+    }
+
+    public int getRow(int i) {
+        return rows[i];
+    }
+
+    public PsmSelection select(IntPredicate rowPredicate) {
+
+        int[] selected = new int[rows.length];
+        int cnt = 0;
+        for (int row : rows) {
+            if (rowPredicate.test(row)) selected[cnt++] = row;
+        }
+
+        return new PsmSelection(table, (cnt == rows.length) ? rows : Arrays.copyOf(selected, cnt));
+    }
+
+    public PsmSelection selectGroup(PsmGrouper psmGrouper, String group) {
+
+        PsmTable.GroupColumn groupColumn = table.getGroupColumn(psmGrouper);
+        int groupId = groupColumn.getGroupId(group);
+
+        return select(row -> groupColumn.getGroupId(row) == groupId);
+    }
+
+    public PsmSelection selectNoDecoys() {
+
+        return select(row -> !table.isDecoy(row));
+    }
+
+    /**
+     * @return selected rows of spectrum or an empty array if no row of this spectrum is selected
+     */
+    public int[] getRows(String spectrumKey) {
+
+        return getRows(table.getSpectrumIndex(spectrumKey));
+    }
+
+    /**
+     * @param spectrumId packed spectrum id (see SpectrumIdDictionary)
+     * @return selected rows of spectrum or an empty array if no row of this spectrum is selected
+     */
+    public int[] getRows(long spectrumId) {
+
+        return getRows(table.getSpectrumIndex(spectrumId));
+    }
+
+    private int[] getRows(int spectrumIndex) {
+
+        if (spectrumIndex < 0) return new int[0];
+
+        int start = lowerBound(table.getFirstRow(spectrumIndex));
+        int end = lowerBound(table.getEndRow(spectrumIndex));
+
+        return Arrays.copyOfRange(rows, start, end);
+    }
+
+    // index of first selected row >= row
+    private int lowerBound(int row) {
+
+        int idx = Arrays.binarySearch(rows, row);
+        return (idx >= 0) ? idx : -idx-1;
+    }
+
+    public int getSpectrumCount() {
+
+        int cnt = 0;
+        int lastSpectrumIndex = -1;
+        for (int row : rows) {
+            int spectrumIndex = table.getSpectrumIndex(row);
+            if (spectrumIndex != lastSpectrumIndex) cnt++;
+            lastSpectrumIndex = spectrumIndex;
+        }
+
+        return cnt;
+    }
+
+    /**
+     * Calls consumer with the spectrum key and the selected rows of each spectrum in row order. The keys are rebuilt
+     * from the packed spectrum ids, use forEachSpectrumId if the keys are not needed.
+     */
+    public void forEachSpectrum(BiConsumer<String, int[]> consumer) {
+
+        forEachSpectrumId((spectrumId, spectrumRows) -> consumer.accept(SpectrumIdDictionary.getInstance().getKey(spectrumId), spectrumRows));
+    }
+
+    /**
+     * Calls consumer with the packed spectrum id and the selected rows of each spectrum in row order
+     */
+    public void forEachSpectrumId(SpectrumRowsConsumer consumer) {
+
+        int start = 0;
+        while (start < rows.length) {
+            int spectrumIndex = table.getSpectrumIndex(rows[start]);
+            int end = start+1;
+            while (end < rows.length && table.getSpectrumIndex(rows[end]) == spectrumIndex) end++;
+
+            consumer.accept(table.getSpectrumIdByIndex(spectrumIndex), Arrays.copyOfRange(rows, start, end));
+            start = end;
+        }
+    }
+
+    public interface SpectrumRowsConsumer {
+
+        void accept(long spectrumId, int[] rows);
+    }
+}
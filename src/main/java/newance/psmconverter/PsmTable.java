@@ -0,0 +1,543 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import newance.util.NewAnceParams;
+import newance.util.PsmGrouper;
+import org.expasy.mzjava.proteomics.mol.Peptide;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.*;
+
+/**
+ * Columnar store of psms. Charge, rank, retention time, mass, scan number, scores and decoy and variant flags are kept
+ * in primitive columns. Peptides, protein sets, spectrum files, score schemas and variant annotations
+ * are dictionary encoded, so each distinct value is stored only once.
+ *
+ * The primitive columns are either kept on the heap or in memory mapped files (Storage.OFF_HEAP). Rows are read
+ * by their index, a psm object is only created by getPsm. Off-heap tables have to be closed to release their files.
+ *
+ * The rows of a spectrum are added together and are therefore contiguous. The spectrum index maps the packed id of
+ * each spectrum (see SpectrumIdDictionary) to its row range. A table is filled by one thread and can be read by several threads once it is complete.
+ *
+ * @author Markus Müller
+ */
+
+public class PsmTable implements Closeable {
+
+    public enum Storage {HEAP, OFF_HEAP}
+
+    private final PsmColumnStore columns;
+    private int size;
+    private long nrScores;
+
+    private final Dictionary<LazyPeptide> peptides;
+    private final Dictionary<Set<String>> proteins;
+    private final Dictionary<String> spectrumFiles;
+    private final Dictionary<ScoreSchema> schemas;
+    private final Dictionary<List<Integer>> variantPositions;
+    private final Dictionary<List<Character>> variantWTAAs;
+
+    // spectrum index: rows of spectrum i are spectrumStarts[i] to spectrumStarts[i+1]-1 and spectrumIds[i] is the
+    // packed id of spectrum i (see SpectrumIdDictionary). Spectrum keys are only rebuilt by getSpectrumKey.
+    private final TLongIntMap spectrumIndexes;
+    private long[] spectrumIds;
+    private int[] spectrumStarts;
+    private int nrSpectra;
+
+    private GroupColumn groupColumn;
+
+    public PsmTable() {
+
+        this(1024, 8*1024);
+    }
+
+    public PsmTable(int rowCapacity, int scoreCapacity) {
+
+        this(new HeapPsmColumnStore(rowCapacity, scoreCapacity));
+    }
+
+    /**
+     * Creates an empty table with columns in memory mapped files in directory
+     */
+    public static PsmTable createOffHeap(File directory) {
+
+        return new PsmTable(new MappedPsmColumnStore(directory));
+    }
+
+    private PsmTable(PsmColumnStore columns) {
+
+        this.columns = columns;
+        this.size = 0;
+        this.nrScores = 0;
+
+        this.peptides = new Dictionary<>();
+        this.proteins = new Dictionary<>();
+        this.spectrumFiles = new Dictionary<>();
+        this.schemas = new Dictionary<>();
+        this.variantPositions = new Dictionary<>();
+        this.variantWTAAs = new Dictionary<>();
+
+        this.spectrumIndexes = new TLongIntHashMap(1024, 0.5f, -1, -1);
+        this.spectrumIds = new long[1024];
+        this.spectrumStarts = new int[1025];
+        this.spectrumStarts[0] = 0;
+        this.nrSpectra = 0;
+
+        this.groupColumn = null;
+    }
+
+    /**
+     * Copies the psms of psmMap into a new heap table. The arrays are allocated with the exact number of psms and scores.
+     */
+    public static PsmTable of(Map<String, List<PeptideSpectrumMatch>> psmMap) {
+
+        return of(psmMap, Storage.HEAP);
+    }
+
+    /**
+     * Copies the psms of psmMap into a new table. Off-heap tables are created in the psm cache directory or, if it
+     * is not set, in the temporary directory.
+     */
+    public static PsmTable of(Map<String, List<PeptideSpectrumMatch>> psmMap, Storage storage) {
+
+        PsmTable table = create(Collections.singletonList(psmMap), storage);
+        table.addAll(psmMap);
+
+        return table;
+    }
+
+    /**
+     * Moves the psms of psmStore into a new table, partition by partition. Each partition is removed from psmStore as
+     * soon as it is copied, so that the psm objects of only one partition are live next to the table. psmStore is
+     * empty afterwards. The psms of a spectrum found in several partitions are concatenated as in PartitionedPsmStore.toMap().
+     */
+    public static PsmTable of(PartitionedPsmStore psmStore, Storage storage) {
+
+        PsmTable table = create(psmStore.getPartitions(), storage);
+
+        // the row ranges of all spectra are fixed first, so that the rows of a spectrum stay contiguous
+        for (Map<String, List<PeptideSpectrumMatch>> psmMap : psmStore.getPartitions()) table.countRows(psmMap);
+        for (int i = 0; i < table.nrSpectra; i++) table.spectrumStarts[i+1] += table.spectrumStarts[i];
+
+        int[] nextRows = Arrays.copyOf(table.spectrumStarts, table.nrSpectra);
+        psmStore.drain(psmMap -> table.fillRows(psmMap, nextRows));
+
+        return table;
+    }
+
+    // empty table with capacity for all psms of partitions
+    private static PsmTable create(Collection<Map<String, List<PeptideSpectrumMatch>>> partitions, Storage storage) {
+
+        int nrRows = 0;
+        long nrScores = 0;
+        for (Map<String, List<PeptideSpectrumMatch>> psmMap : partitions) {
+            for (List<PeptideSpectrumMatch> psms : psmMap.values()) {
+                nrRows += psms.size();
+                for (PeptideSpectrumMatch psm : psms) nrScores += psm.getScoreSchema().size();
+            }
+        }
+
+        PsmTable table;
+        if (storage == Storage.OFF_HEAP) {
+            String cacheDir = NewAnceParams.getInstance().getPsmCacheDir();
+            table = createOffHeap(new File(cacheDir.isEmpty() ? System.getProperty("java.io.tmpdir") : cacheDir));
+        } else {
+            if (nrScores > Integer.MAX_VALUE-8) throw new IllegalStateException("Too many scores for heap psm table ("+nrScores+"). Use off-heap storage. Abort.");
+            table = new PsmTable(nrRows, (int) nrScores);
+        }
+
+        table.columns.ensureCapacity(nrRows, nrScores);
+
+        return table;
+    }
+
+    private void addAll(Map<String, List<PeptideSpectrumMatch>> psmMap) {
+
+        for (Map.Entry<String, List<PeptideSpectrumMatch>> entry : psmMap.entrySet()) add(entry.getKey(), entry.getValue());
+    }
+
+    // adds the spectra of psmMap to the spectrum index and their number of psms to spectrumStarts
+    private void countRows(Map<String, List<PeptideSpectrumMatch>> psmMap) {
+
+        for (Map.Entry<String, List<PeptideSpectrumMatch>> entry : psmMap.entrySet()) {
+
+            if (entry.getValue().isEmpty()) continue;
+
+            long spectrumId = SpectrumIdDictionary.getInstance().getId(entry.getKey());
+            int spectrumIndex = spectrumIndexes.get(spectrumId);
+            if (spectrumIndex < 0) spectrumIndex = addSpectrum(spectrumId);
+
+            spectrumStarts[spectrumIndex+1] += entry.getValue().size();
+        }
+    }
+
+    // writes the psms of psmMap to the next free rows of their spectra
+    private void fillRows(Map<String, List<PeptideSpectrumMatch>> psmMap, int[] nextRows) {
+
+        for (Map.Entry<String, List<PeptideSpectrumMatch>> entry : psmMap.entrySet()) {
+
+            if (entry.getValue().isEmpty()) continue;
+
+            int spectrumIndex = spectrumIndexes.get(SpectrumIdDictionary.getInstance().getId(entry.getKey()));
+            for (PeptideSpectrumMatch psm : entry.getValue()) setRow(nextRows[spectrumIndex]++, spectrumIndex, psm);
+
+            size += entry.getValue().size();
+        }
+    }
+
+    /**
+     * Adds all psms of a spectrum. The psms of a spectrum have to be added in one call.
+     */
+    public void add(String spectrumKey, List<PeptideSpectrumMatch> psms) {
+
+        add(SpectrumIdDictionary.getInstance().getId(spectrumKey), psms);
+    }
+
+    /**
+     * @param spectrumId packed spectrum id (see SpectrumIdDictionary)
+     */
+    public void add(long spectrumId, List<PeptideSpectrumMatch> psms) {
+
+        if (psms.isEmpty()) return;
+        if (spectrumIndexes.containsKey(spectrumId))
+            throw new IllegalStateException("Psms of spectrum "+SpectrumIdDictionary.getInstance().getKey(spectrumId)+" were already added to psm table. Abort.");
+
+        int spectrumIndex = addSpectrum(spectrumId);
+
+        for (PeptideSpectrumMatch psm : psms) {
+            columns.ensureCapacity(size+1, nrScores+psm.getScoreSchema().size());
+            setRow(size++, spectrumIndex, psm);
+        }
+
+        spectrumStarts[spectrumIndex+1] = size;
+    }
+
+    private int addSpectrum(long spectrumId) {
+
+        int spectrumIndex = nrSpectra++;
+        spectrumIndexes.put(spectrumId, spectrumIndex);
+
+        if (nrSpectra == spectrumIds.length) {
+            spectrumIds = Arrays.copyOf(spectrumIds, 2*nrSpectra);
+            spectrumStarts = Arrays.copyOf(spectrumStarts, 2*nrSpectra+1);
+        }
+        spectrumIds[spectrumIndex] = spectrumId;
+
+        return spectrumIndex;
+    }
+
+    // the capacity of the columns has to be ensured by the caller. Scores are appended to the score column.
+    private void setRow(int row, int spectrumIndex, PeptideSpectrumMatch psm) {
+
+        ScoreSchema schema = psm.getScoreSchema();
+
+        columns.setInt(PsmColumnStore.CHARGE, row, psm.getCharge());
+        columns.setInt(PsmColumnStore.RANK, row, psm.getRank());
+        columns.setInt(PsmColumnStore.SCAN_NR, row, psm.getScanNr());
+        columns.setRetentionTime(row, psm.getRetentionTime());
+        columns.setNeutralPrecMass(row, psm.getNeutralPrecMass());
+        columns.setFlags(row, psm.isDecoy(), psm.isVariant());
+
+        columns.setInt(PsmColumnStore.PEPTIDE, row, peptides.encode(psm.getLazyPeptide()));
+        columns.setInt(PsmColumnStore.PROTEINS, row, proteins.encode(psm.getProteinAcc()));
+        columns.setInt(PsmColumnStore.SPECTRUM_FILE, row, spectrumFiles.encode(psm.getSpectrumFile()));
+        columns.setInt(PsmColumnStore.SPECTRUM, row, spectrumIndex);
+        columns.setInt(PsmColumnStore.VARIANT_POSITIONS, row, variantPositions.encode(psm.getVariantPositions()));
+        columns.setInt(PsmColumnStore.VARIANT_WTAAS, row, variantWTAAs.encode(psm.getVariantWTAAs()));
+
+        columns.setInt(PsmColumnStore.SCHEMA, row, schemas.encode(schema));
+        columns.setScoreOffset(row, nrScores);
+        for (int i = 0; i < schema.size(); i++) columns.setScore(nrScores++, psm.getScore(i));
+
+        groupColumn = null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCharge(int row) {
+        return columns.getInt(PsmColumnStore.CHARGE, row);
+    }
+
+    public int getRank(int row) {
+        return columns.getInt(PsmColumnStore.RANK, row);
+    }
+
+    public int getScanNr(int row) {
+        return columns.getInt(PsmColumnStore.SCAN_NR, row);
+    }
+
+    public float getRetentionTime(int row) {
+        return columns.getRetentionTime(row);
+    }
+
+    public double getNeutralPrecMass(int row) {
+        return columns.getNeutralPrecMass(row);
+    }
+
+    public boolean isDecoy(int row) {
+        return columns.isDecoy(row);
+    }
+
+    public boolean isVariant(int row) {
+        return columns.isVariant(row);
+    }
+
+    public int getPeptideId(int row) {
+        return columns.getInt(PsmColumnStore.PEPTIDE, row);
+    }
+
+    public Peptide getPeptide(int row) {
+        return peptides.get(getPeptideId(row)).getPeptide();
+    }
+
+    public LazyPeptide getLazyPeptide(int row) {
+        return peptides.get(getPeptideId(row));
+    }
+
+    public int getNrPeptides() {
+        return peptides.size();
+    }
+
+    public int getProteinAccId(int row) {
+        return columns.getInt(PsmColumnStore.PROTEINS, row);
+    }
+
+    public Set<String> getProteinAcc(int row) {
+        return proteins.get(getProteinAccId(row));
+    }
+
+    public String getSpectrumFile(int row) {
+        return spectrumFiles.get(columns.getInt(PsmColumnStore.SPECTRUM_FILE, row));
+    }
+
+    public List<Integer> getVariantPositions(int row) {
+        return variantPositions.get(columns.getInt(PsmColumnStore.VARIANT_POSITIONS, row));
+    }
+
+    public List<Character> getVariantWTAAs(int row) {
+        return variantWTAAs.get(columns.getInt(PsmColumnStore.VARIANT_WTAAS, row));
+    }
+
+    public ScoreSchema getScoreSchema(int row) {
+        return schemas.get(columns.getInt(PsmColumnStore.SCHEMA, row));
+    }
+
+    /**
+     * @param slot slot of the score in the schema of this row (see getScoreSchema)
+     * @return score or 0 if slot is -1
+     */
+    public double getScore(int row, int slot) {
+
+        return (slot < 0) ? 0.0 : columns.getScore(columns.getScoreOffset(row)+slot);
+    }
+
+    /**
+     * @return score or 0 if the row has no such score
+     */
+    public double getScore(int row, String score) {
+
+        return getScore(row, getScoreSchema(row).getSlot(score));
+    }
+
+    /**
+     * @return a new psm with the values of this row. Peptide, protein set and variant lists are shared with the table.
+     */
+    public PeptideSpectrumMatch getPsm(int row) {
+
+        ScoreSchema schema = getScoreSchema(row);
+        long offset = columns.getScoreOffset(row);
+        double[] rowScores = new double[schema.size()];
+        for (int i = 0; i < rowScores.length; i++) rowScores[i] = columns.getScore(offset+i);
+
+        return new PeptideSpectrumMatch(getSpectrumFile(row), getLazyPeptide(row), getProteinAcc(row), schema, rowScores,
+                getCharge(row), getRank(row), getRetentionTime(row), getScanNr(row), getNeutralPrecMass(row), isDecoy(row),
+                isVariant(row), getVariantPositions(row), getVariantWTAAs(row));
+    }
+
+    /**
+     * @return index of the spectrum of row in this table
+     */
+    public int getSpectrumIndex(int row) {
+        return columns.getInt(PsmColumnStore.SPECTRUM, row);
+    }
+
+    /**
+     * @return packed spectrum id of row (see SpectrumIdDictionary)
+     */
+    public long getSpectrumId(int row) {
+        return spectrumIds[getSpectrumIndex(row)];
+    }
+
+    public String getSpectrumKey(int row) {
+        return SpectrumIdDictionary.getInstance().getKey(getSpectrumId(row));
+    }
+
+    public int getSpectrumCount() {
+        return nrSpectra;
+    }
+
+    /**
+     * @return index of the spectrum with this packed id or -1 if the table has no psms for this spectrum
+     */
+    public int getSpectrumIndex(long spectrumId) {
+        return spectrumIndexes.get(spectrumId);
+    }
+
+    /**
+     * @return index of the spectrum with this key or -1 if the table has no psms for this spectrum
+     */
+    public int getSpectrumIndex(String spectrumKey) {
+        return getSpectrumIndex(SpectrumIdDictionary.getInstance().getId(spectrumKey));
+    }
+
+    public long getSpectrumIdByIndex(int spectrumIndex) {
+        return spectrumIds[spectrumIndex];
+    }
+
+    public String getSpectrumKeyByIndex(int spectrumIndex) {
+        return SpectrumIdDictionary.getInstance().getKey(spectrumIds[spectrumIndex]);
+    }
+
+    public int getFirstRow(int spectrumIndex) {
+        return spectrumStarts[spectrumIndex];
+    }
+
+    // exclusive
+    public int getEndRow(int spectrumIndex) {
+        return spectrumStarts[spectrumIndex+1];
+    }
+
+    public PsmSelection selectAll() {
+
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) rows[i] = i;
+
+        return new PsmSelection(this, rows);
+    }
+
+    /**
+     * The groups of all rows are calculated once per grouper and kept until the next row is added.
+     */
+    public synchronized GroupColumn getGroupColumn(PsmGrouper psmGrouper) {
+
+        if (groupColumn == null || groupColumn.psmGrouper != psmGrouper) {
+            groupColumn = new GroupColumn(this, psmGrouper);
+        }
+
+        return groupColumn;
+    }
+
+    /**
+     * Releases the column files of off-heap tables. The table cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+
+        columns.close();
+    }
+
+    /**
+     * Dictionary encoded groups of the rows of a table
+     */
+    public static final class GroupColumn {
+
+        private final PsmGrouper psmGrouper;
+        private final Dictionary<String> groups;
+        private final int[] groupIds;
+
+        private GroupColumn(PsmTable table, PsmGrouper psmGrouper) {
+
+            this.psmGrouper = psmGrouper;
+            this.groups = new Dictionary<>();
+            this.groupIds = new int[table.size()];
+
+            for (int row = 0; row < table.size(); row++) {
+                groupIds[row] = groups.encode(psmGrouper.apply(table, row));
+            }
+        }
+
+        public String getGroup(int row) {
+            return groups.get(groupIds[row]);
+        }
+
+        public int getGroupId(int row) {
+            return groupIds[row];
+        }
+
+        /**
+         * @return id of group or -1 if no row belongs to this group
+         */
+        public int getGroupId(String group) {
+            return groups.getId(group);
+        }
+
+        public int getNrGroups() {
+            return groups.size();
+        }
+    }
+
+    private static final class Dictionary<T> {
+
+        private final List<T> values = new ArrayList<>();
+        private final Map<T, Integer> ids = new HashMap<>();
+
+        private int encode(T value) {
+
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+
+            return id;
+        }
+
+        private int getId(T value) {
+
+            Integer id = ids.get(value);
+            return (id == null) ? -1 : id;
+        }
+
+        private T get(int id) {
+            return values.get(id);
+        }
+
+        private int size() {
+            return values.size();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import gnu.trove.map.TObjectDoubleMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps score names to fixed slots, so that psms can hold their scores in a double[]. All psms of a search engine
+ * have the same score names and therefore share one schema. Schemas are immutable and interned by their score
+ * names, so two psms with the same score names always have the same schema instance.
+ *
+ * @author Markus Müller
+ */
+
+public final class ScoreSchema {
+
+    private static final ConcurrentHashMap<List<String>, ScoreSchema> schemas = new ConcurrentHashMap<>();
+    // psms are created in long runs with the same score names, the last schema is checked first
+    private static final ThreadLocal<ScoreSchema> lastSchema = new ThreadLocal<>();
+
+    public static final ScoreSchema EMPTY = of();
+
+    private final String[] names;
+    private final TObjectIntMap<String> slots;
+
+    private ScoreSchema(String[] names) {
+
+        this.names = names;
+        this.slots = new TObjectIntHashMap<>(2 * names.length, 0.5f, -1);
+        for (int i = 0; i < names.length; i++) slots.put(names[i], i);
+    }
+
+    /**
+     * @return the schema with these score names. The slots are assigned in alphabetical order of the names.
+     */
+    public static ScoreSchema of(String... names) {
+
+        String[] sorted = names.clone();
+        Arrays.sort(sorted);
+
+        List<String> key = Arrays.asList(sorted);
+        ScoreSchema schema = schemas.get(key);
+        if (schema != null) return schema;
+
+        return schemas.computeIfAbsent(key, k -> new ScoreSchema(sorted));
+    }
+
+    /**
+     * @return the schema with the score names of scoreMap
+     */
+    public static ScoreSchema of(TObjectDoubleMap<String> scoreMap) {
+
+        ScoreSchema schema = lastSchema.get();
+        if (schema != null && schema.matches(scoreMap)) return schema;
+
+        schema = of(scoreMap.keys(new String[scoreMap.size()]));
+        lastSchema.set(schema);
+
+        return schema;
+    }
+
+    private boolean matches(TObjectDoubleMap<String> scoreMap) {
+
+        if (scoreMap.size() != names.length) return false;
+
+        for (String name : names) {
+            if (!scoreMap.containsKey(name)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return scores of scoreMap in the slots of this schema
+     */
+    public double[] toArray(TObjectDoubleMap<String> scoreMap) {
+
+        double[] scores = new double[names.length];
+        for (int i = 0; i < names.length; i++) scores[i] = scoreMap.get(names[i]);
+
+        return scores;
+    }
+
+    /**
+     * @return slot of the score or -1 if the schema has no such score
+     */
+    public int getSlot(String name) {
+        return slots.get(name);
+    }
+
+    public boolean contains(String name) {
+        return slots.containsKey(name);
+    }
+
+    public String getName(int slot) {
+        return names[slot];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public List<String> getNames() {
+        return Arrays.asList(names.clone());
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(names);
+    }
+}
@@ -31,10 +31,7 @@ package newance.psmconverter;
 import newance.util.NewAnceParams;
 
 import java.io.File;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.*;
 
 /**
  * @author Markus Müller
@@ -44,30 +41,88 @@ public abstract class SinglePsmFileConverter implements Runnable {
 
     protected final File psmFile;
     protected final NewAnceParams params;
-    protected final Map<String,List<PeptideSpectrumMatch>> psms;
-    protected final CountDownLatch latch;
+    protected final PartitionedPsmStore psms;
 
-    public SinglePsmFileConverter(File psmFile, Map<String,List<PeptideSpectrumMatch>> psms, CountDownLatch latch) {
+    public SinglePsmFileConverter(File psmFile, PartitionedPsmStore psms) {
 
         this.params = NewAnceParams.getInstance();
         this.psmFile = psmFile;
         this.psms = psms;
-        this.latch = latch;
     }
 
-    public abstract void run();
+    /**
+     * Reads the psms of psmFile and publishes them as partition of psms. If the psmCacheDir parameter is set, the psms are read from
+     * the binary cache if there is a valid one, otherwise the file is parsed and the cache is written.
+     */
+    @Override
+    public void run() {
 
-    protected void addPsms(Map<String, List<PeptideSpectrumMatch>> psmMap) {
+        PsmFileCache cache = params.getPsmCacheDir().isEmpty() ? null : new PsmFileCache(new File(params.getPsmCacheDir()), psmFile, getCacheKey());
+
+        Map<String, List<PeptideSpectrumMatch>> psmMap = (cache == null) ? null : cache.read();
 
-        for (String spectrumID : psmMap.keySet()) {
+        if (psmMap == null) {
 
-            List<PeptideSpectrumMatch> matches = psmMap.get(spectrumID);
+            System.out.println("Reading " + psmFile);
+            psmMap = parsePsmFile();
+            if (cache != null) cache.write(psmMap);
+        } else {
 
-            if (psms.containsKey(spectrumID)) {
-                psms.get(spectrumID).addAll(matches);
-            } else {
-                psms.put(spectrumID,Collections.synchronizedList(matches));
-            }
+            System.out.println("Read " + psmFile + " from cache " + cache.getCacheFile());
         }
+
+        addPsms(psmMap);
+
+        System.out.println("Finished reading " + psmFile);
+    }
+
+    /**
+     * @return map from spectrum key to the psms of this spectrum read from psmFile
+     */
+    protected abstract Map<String, List<PeptideSpectrumMatch>> parsePsmFile();
+
+    /**
+     * @return string that changes whenever psmFile or a parameter that influences the psms read from psmFile changes
+     */
+    protected String getCacheKey() {
+
+        List<String> modifications = new ArrayList<>();
+        for (Object modification : params.getModifications()) modifications.add(modification.toString());
+        Collections.sort(modifications);
+
+        return getClass().getName() + "\t" + psmFile.getAbsolutePath() + "\t" + psmFile.length() + "\t" + psmFile.lastModified() +
+                "\tcharge=" + params.getMinCharge() + "-" + params.getMaxCharge() +
+                "\tlength=" + params.getMinPeptideLength() + "-" + params.getMaxPeptideLength() +
+                "\tmaxRank=" + params.getMaxRank() +
+                "\tspectrumRegExp=" + params.getSpectrumRegExp() +
+                "\texcludedProtPattern=" + params.getExcludedProtPattern() +
+                "\tdecoyPrefix=" + params.getCometDecoyProtPrefix() +
+                "\tmodifications=" + modifications +
+                "\tmodTranslations=" + new TreeMap<>(params.getModTranslations()) +
+                "\tmodifMatchMassTol=" + params.getModifMatchMassTol();
+    }
+
+    public File getPsmFile() {
+        return psmFile;
+    }
+
+    /**
+     * @return estimate of the heap used while this file is converted
+     */
+    public long getEstimatedHeapFootprint() {
+
+        return (long) (psmFile.length() * getHeapFootprintFactor());
+    }
+
+    // ratio between heap used during conversion and file size
+    protected double getHeapFootprintFactor() {
+
+        return 1.0;
+    }
+
+    // the spectrum map of psmFile is published once, there is no shared map to lock
+    protected void addPsms(Map<String, List<PeptideSpectrumMatch>> psmMap) {
+
+        psms.publish(psmFile.getAbsolutePath(), psmMap);
     }
 }
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide dictionary of spectrum file names, so that all psms of a spectrum file share one name string. The
+ * spectra of a file are usually read one after the other, therefore the last name returned to a thread is checked
+ * first and no substring is created if it matches.
+ *
+ * @author Markus Müller
+ */
+
+public class SpectrumFileDictionary {
+
+    private static SpectrumFileDictionary instance = null;
+
+    private final ConcurrentHashMap<String, String> spectrumFiles;
+    private final ThreadLocal<String> lastSpectrumFile;
+
+    public static synchronized SpectrumFileDictionary getInstance() {
+        if (instance==null) {
+            instance = new SpectrumFileDictionary();
+        }
+
+        return instance;
+    }
+
+    private SpectrumFileDictionary() {
+
+        spectrumFiles = new ConcurrentHashMap<>();
+        lastSpectrumFile = new ThreadLocal<>();
+    }
+
+    /**
+     * @return shared string equal to spectrum.substring(0, end)
+     */
+    public String get(String spectrum, int end) {
+
+        String last = lastSpectrumFile.get();
+        if (last != null && last.length() == end && spectrum.startsWith(last)) return last;
+
+        String spectrumFile = spectrum.substring(0, end);
+        String shared = spectrumFiles.putIfAbsent(spectrumFile, spectrumFile);
+        if (shared == null) shared = spectrumFile;
+
+        lastSpectrumFile.set(shared);
+
+        return shared;
+    }
+
+    public int size() {
+        return spectrumFiles.size();
+    }
+}
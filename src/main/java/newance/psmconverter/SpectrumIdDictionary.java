@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide dictionary that packs spectrum keys of the form rawFile.scan.scan.charge into a long: 20 bits raw file
+ * id, 36 bits scan number and 8 bits charge. Only the raw file names are stored, the key string is rebuilt by getKey.
+ * Keys of another form are stored in their own table and packed as table index with charge 0, so that every key can
+ * be packed and getKey(getId(key)) always returns key.
+ *
+ * @author Markus Müller
+ */
+
+public class SpectrumIdDictionary {
+
+    private static final int CHARGE_BITS = 8;
+    private static final int SCAN_BITS = 36;
+    private static final long MAX_CHARGE = (1L << CHARGE_BITS)-1;
+    private static final long MAX_SCAN = (1L << SCAN_BITS)-1;
+    private static final int MAX_RAW_FILES = 1 << (64-SCAN_BITS-CHARGE_BITS);
+
+    private static SpectrumIdDictionary instance = null;
+
+    private final ConcurrentHashMap<String, Integer> rawFileIds;
+    private volatile String[] rawFiles;
+    private int nrRawFiles;
+    private final ConcurrentHashMap<String, Integer> otherKeyIds;
+    private volatile String[] otherKeys;
+    private int nrOtherKeys;
+    // keys of a raw file are usually packed one after the other, so the last raw file of a thread is checked first
+    private final ThreadLocal<RawFile> lastRawFile;
+
+    public static synchronized SpectrumIdDictionary getInstance() {
+        if (instance==null) {
+            instance = new SpectrumIdDictionary();
+        }
+
+        return instance;
+    }
+
+    private SpectrumIdDictionary() {
+
+        rawFileIds = new ConcurrentHashMap<>();
+        rawFiles = new String[64];
+        nrRawFiles = 0;
+        otherKeyIds = new ConcurrentHashMap<>();
+        otherKeys = new String[64];
+        nrOtherKeys = 0;
+        lastRawFile = new ThreadLocal<>();
+    }
+
+    public long getId(String spectrumKey) {
+
+        int chargeDot = spectrumKey.lastIndexOf('.');
+        int endScanDot = (chargeDot > 0) ? spectrumKey.lastIndexOf('.', chargeDot-1) : -1;
+        int startScanDot = (endScanDot > 0) ? spectrumKey.lastIndexOf('.', endScanDot-1) : -1;
+
+        if (startScanDot > 0) {
+            long scan = parseNumber(spectrumKey, startScanDot+1, endScanDot, MAX_SCAN);
+            long charge = parseNumber(spectrumKey, chargeDot+1, spectrumKey.length(), MAX_CHARGE);
+            int scanLength = endScanDot-startScanDot-1;
+
+            if (scan >= 0 && charge > 0 && chargeDot-endScanDot-1 == scanLength &&
+                    spectrumKey.regionMatches(startScanDot+1, spectrumKey, endScanDot+1, scanLength)) {
+                return pack(getRawFileId(spectrumKey, startScanDot), scan, charge);
+            }
+        }
+
+        Integer id = otherKeyIds.get(spectrumKey);
+        if (id == null) id = addOtherKey(spectrumKey);
+
+        return (long) id << CHARGE_BITS;
+    }
+
+    public String getKey(long spectrumId) {
+
+        int charge = getCharge(spectrumId);
+        if (charge == 0) return otherKeys[(int) (spectrumId >>> CHARGE_BITS)];
+
+        String rawFile = rawFiles[getRawFileId(spectrumId)];
+        long scan = getScanNr(spectrumId);
+
+        return rawFile+"."+scan+"."+scan+"."+charge;
+    }
+
+    public static int getRawFileId(long spectrumId) {
+        return (int) (spectrumId >>> (SCAN_BITS+CHARGE_BITS));
+    }
+
+    public static long getScanNr(long spectrumId) {
+        return (spectrumId >>> CHARGE_BITS) & MAX_SCAN;
+    }
+
+    public static int getCharge(long spectrumId) {
+        return (int) (spectrumId & MAX_CHARGE);
+    }
+
+    public int getNrRawFiles() {
+        return rawFileIds.size();
+    }
+
+    private static long pack(int rawFileId, long scan, long charge) {
+
+        return ((long) rawFileId << (SCAN_BITS+CHARGE_BITS)) | (scan << CHARGE_BITS) | charge;
+    }
+
+    // decimal number without sign and leading zeros, or -1
+    private static long parseNumber(String str, int start, int end, long max) {
+
+        if (start >= end || (str.charAt(start) == '0' && end-start > 1)) return -1;
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') return -1;
+
+            value = 10*value+(c-'0');
+            if (value > max) return -1;
+        }
+
+        return value;
+    }
+
+    private int getRawFileId(String spectrumKey, int end) {
+
+        RawFile last = lastRawFile.get();
+        if (last != null && last.name.length() == end && spectrumKey.startsWith(last.name)) return last.id;
+
+        String name = spectrumKey.substring(0, end);
+        Integer id = rawFileIds.get(name);
+        if (id == null) id = addRawFile(name);
+
+        lastRawFile.set(new RawFile(name, id));
+
+        return id;
+    }
+
+    private synchronized int addRawFile(String name) {
+
+        Integer id = rawFileIds.get(name);
+        if (id != null) return id;
+
+        if (nrRawFiles == MAX_RAW_FILES) throw new IllegalStateException("Too many raw files for spectrum ids ("+MAX_RAW_FILES+"). Abort.");
+
+        String[] names = (nrRawFiles == rawFiles.length) ? Arrays.copyOf(rawFiles, 2*nrRawFiles) : rawFiles;
+        names[nrRawFiles] = name;
+        rawFiles = names;
+
+        // the name is published before the id, so getKey finds the name of every id handed out
+        rawFileIds.put(name, nrRawFiles);
+
+        return nrRawFiles++;
+    }
+
+    private synchronized int addOtherKey(String spectrumKey) {
+
+        Integer id = otherKeyIds.get(spectrumKey);
+        if (id != null) return id;
+
+        if (nrOtherKeys == Integer.MAX_VALUE-8) throw new IllegalStateException("Too many spectrum keys not of the form rawFile.scan.scan.charge. Abort.");
+
+        String[] keys = (nrOtherKeys == otherKeys.length) ? Arrays.copyOf(otherKeys, (int) Math.min(2L*nrOtherKeys, Integer.MAX_VALUE-8)) : otherKeys;
+        keys[nrOtherKeys] = spectrumKey;
+        otherKeys = keys;
+
+        otherKeyIds.put(spectrumKey, nrOtherKeys);
+
+        return nrOtherKeys++;
+    }
+
+    private static final class RawFile {
+
+        private final String name;
+        private final int id;
+
+        private RawFile(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+}
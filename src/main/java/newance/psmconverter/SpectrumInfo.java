@@ -38,6 +38,7 @@ public class SpectrumInfo {
 
     private final String spectrumFile;
     private final String spectrum;
+    private String spectrumKey;
     private int scanNumber;
     private double retentionTime;
     private double precursorNeutralMass;
@@ -48,13 +49,23 @@ public class SpectrumInfo {
 
     public SpectrumInfo(String spectrum) {
         this.spectrum = spectrum;
-        this.spectrumFile = spectrum.substring(0,spectrum.indexOf("."));
+        this.spectrumFile = SpectrumFileDictionary.getInstance().get(spectrum, spectrum.indexOf('.'));
+        this.spectrumKey = null;
     }
 
     public String getSpectrum() {
         return spectrum;
     }
 
+    // key of the spectrum in the psm map, it is computed once by PeptideSpectrumMatchList
+    public String getSpectrumKey() {
+        return spectrumKey;
+    }
+
+    public void setSpectrumKey(String spectrumKey) {
+        this.spectrumKey = spectrumKey;
+    }
+
     public int getScanNumber() {
         return scanNumber;
     }
@@ -32,28 +32,58 @@ import org.expasy.mzjava.core.ms.spectrum.MsnSpectrum;
 import org.expasy.mzjava.proteomics.ms.ident.SpectrumIdentifier;
 import newance.util.SpectrumKeyFunction;
 
-import java.util.regex.Pattern;
-
 /**
+ * Spectrum key: the spectrum title up to the first space, with leading zeros removed from all numbers following a
+ * dot (e.g. run1.00123.00123.2 -> run1.123.123.2). Equivalent to replaceAll("\\.[0]+", ".") on the title, but
+ * written out by hand: titles without such zeros are returned without copy and other titles are built in a
+ * reused per thread buffer.
+ *
  * @author Markus Müller
  */
 
 public class SpectrumKeyFunctionImpl implements SpectrumKeyFunction<MsnSpectrum> {
 
-    private Pattern regEx = Pattern.compile("\\.[0]+");
+    private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(128));
 
     @Override
     public String apply(SpectrumInfo spectrumInfo) {
 
-        String comment = spectrumInfo.getSpectrum();
+        return normalize(spectrumInfo.getSpectrum());
+    }
+
+    public static String normalize(String comment) {
+
+        int end = comment.indexOf(' ');
+        if (end < 1) end = comment.length();
 
-        int firstSpace = comment.indexOf(' ');
+        int first = indexOfLeadingZero(comment, 0, end);
+        if (first < 0) return (end == comment.length()) ? comment : comment.substring(0, end);
 
-        if (firstSpace>=1) comment = comment.substring(0,firstSpace);
+        StringBuilder buffer = buffers.get();
+        buffer.setLength(0);
+        buffer.append(comment, 0, first);
 
-        comment = regEx.matcher(comment).replaceAll(".");
+        int pos = first;
+        while (pos < end) {
 
-        return comment;
+            char c = comment.charAt(pos++);
+            buffer.append(c);
+
+            if (c == '.') {
+                while (pos < end && comment.charAt(pos) == '0') pos++;
+            }
+        }
+
+        return buffer.toString();
     }
 
+    // position of the first '.' followed by '0' or -1
+    private static int indexOfLeadingZero(String comment, int from, int end) {
+
+        for (int i = from; i < end - 1; i++) {
+            if (comment.charAt(i) == '.' && comment.charAt(i + 1) == '0') return i;
+        }
+
+        return -1;
+    }
 }
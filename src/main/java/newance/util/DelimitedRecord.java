@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.util;
+
+import java.util.Arrays;
+
+/**
+ * Reusable view on one line of a delimited text file (e.g. MaxQuant msms.txt). Field boundaries are indexed once
+ * per line and numeric fields are parsed directly from the line characters, so only the fields that are needed as
+ * strings are copied.
+ *
+ * @author Markus Müller
+ */
+
+public class DelimitedRecord {
+
+    // powers of ten that are exactly representable as double
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+    }
+
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private final char delimiter;
+    private String line;
+    private int[] fieldStarts;
+    private int[] fieldEnds;
+    private int nrFields;
+
+    public DelimitedRecord(char delimiter) {
+
+        this.delimiter = delimiter;
+        this.line = "";
+        this.fieldStarts = new int[64];
+        this.fieldEnds = new int[64];
+        this.nrFields = 0;
+    }
+
+    public void set(String line) {
+
+        this.line = line;
+        this.nrFields = 0;
+
+        int start = 0;
+        int length = line.length();
+        for (int i = 0; i <= length; i++) {
+
+            if (i == length || line.charAt(i) == delimiter) {
+
+                if (nrFields == fieldStarts.length) {
+                    fieldStarts = Arrays.copyOf(fieldStarts, 2 * nrFields);
+                    fieldEnds = Arrays.copyOf(fieldEnds, 2 * nrFields);
+                }
+
+                fieldStarts[nrFields] = start;
+                fieldEnds[nrFields] = i;
+                nrFields++;
+                start = i + 1;
+            }
+        }
+    }
+
+    public int getNrFields() {
+        return nrFields;
+    }
+
+    /**
+     * @return index of the column with this name in a header line or -1 if there is no such column. Names are
+     * compared case insensitive if there is no exact match.
+     */
+    public int getColumnIndex(String name) {
+
+        for (int i = 0; i < nrFields; i++) {
+            if (equals(i, name)) return i;
+        }
+
+        for (int i = 0; i < nrFields; i++) {
+            if (getString(i).equalsIgnoreCase(name)) return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return field value or null if the line has no field with this index
+     */
+    public String getString(int index) {
+
+        if (index < 0 || index >= nrFields) return null;
+
+        return line.substring(fieldStarts[index], fieldEnds[index]);
+    }
+
+    public boolean isEmpty(int index) {
+
+        return index < 0 || index >= nrFields || fieldStarts[index] == fieldEnds[index];
+    }
+
+    public boolean equals(int index, String value) {
+
+        if (index < 0 || index >= nrFields) return false;
+
+        int length = fieldEnds[index] - fieldStarts[index];
+        return length == value.length() && line.regionMatches(fieldStarts[index], value, 0, length);
+    }
+
+    /**
+     * @return field value as int, 0 if the field is empty or missing
+     */
+    public int getInt(int index) {
+
+        if (isEmpty(index)) return 0;
+
+        int pos = fieldStarts[index];
+        int end = fieldEnds[index];
+
+        boolean negative = line.charAt(pos) == '-';
+        if (negative || line.charAt(pos) == '+') pos++;
+
+        if (pos == end || end - pos > 9) return Integer.parseInt(getString(index));
+
+        int value = 0;
+        for (; pos < end; pos++) {
+
+            char c = line.charAt(pos);
+            if (c < '0' || c > '9') return Integer.parseInt(getString(index));
+
+            value = 10 * value + (c - '0');
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return field value as double, 0 if the field is empty or missing. Decimals with up to 15 significant digits are
+     * converted without creating a string, all other values are passed to Double.parseDouble. Both give the same
+     * correctly rounded result.
+     */
+    public double getDouble(int index) {
+
+        if (isEmpty(index)) return 0.0;
+
+        int pos = fieldStarts[index];
+        int end = fieldEnds[index];
+
+        boolean negative = line.charAt(pos) == '-';
+        if (negative || line.charAt(pos) == '+') pos++;
+
+        long mantissa = 0;
+        int nrDigits = 0;
+        int exp10 = 0;
+        boolean hasDigits = false;
+        boolean afterPoint = false;
+
+        for (; pos < end; pos++) {
+
+            char c = line.charAt(pos);
+            if (c >= '0' && c <= '9') {
+
+                hasDigits = true;
+                if (mantissa > 0 || c != '0') {
+                    if (++nrDigits > MAX_EXACT_DIGITS) return Double.parseDouble(getString(index));
+                    mantissa = 10 * mantissa + (c - '0');
+                }
+                if (afterPoint) exp10--;
+            } else if (c == '.' && !afterPoint) {
+
+                afterPoint = true;
+            } else {
+
+                break;
+            }
+        }
+
+        if (!hasDigits) return Double.parseDouble(getString(index));
+
+        if (pos < end) {
+
+            char c = line.charAt(pos);
+            if (c != 'e' && c != 'E') return Double.parseDouble(getString(index));
+            pos++;
+
+            boolean negativeExp = pos < end && line.charAt(pos) == '-';
+            if (pos < end && (negativeExp || line.charAt(pos) == '+')) pos++;
+            if (pos == end || end - pos > 3) return Double.parseDouble(getString(index));
+
+            int exp = 0;
+            for (; pos < end; pos++) {
+
+                c = line.charAt(pos);
+                if (c < '0' || c > '9') return Double.parseDouble(getString(index));
+                exp = 10 * exp + (c - '0');
+            }
+
+            exp10 += negativeExp ? -exp : exp;
+        }
+
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (exp10 >= 0 && exp10 < POW10.length) {
+            value = mantissa * POW10[exp10];
+        } else if (exp10 < 0 && -exp10 < POW10.length) {
+            value = mantissa / POW10[-exp10];
+        } else {
+            return Double.parseDouble(getString(index));
+        }
+
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a text file into consecutive byte ranges. Range boundaries are placed at occurrences of a marker byte
+ * sequence (e.g. "<spectrum_query" or "\n"), so that each range can be parsed independently. Marker search is done
+ * on memory mapped windows of the file, only the regions around the nominal split positions are scanned.
+ *
+ * @author Markus Müller
+ */
+
+public class FileRangeSplitter {
+
+    private static final int WINDOW_SIZE = 1 << 20;
+
+    private final byte[] marker;
+    private final boolean startAfterMarker;
+
+    /**
+     * @param marker byte sequence at which ranges are split
+     * @param startAfterMarker if true ranges start right after the marker, otherwise at the marker
+     */
+    public FileRangeSplitter(String marker, boolean startAfterMarker) {
+
+        this.marker = marker.getBytes(StandardCharsets.UTF_8);
+        this.startAfterMarker = startAfterMarker;
+    }
+
+    /**
+     * Splits the region [from,to) of the file into at most nrRanges ranges of approximately equal size. Ranges are
+     * returned in file order and cover the region without gaps.
+     */
+    public List<FileRange> split(FileChannel channel, long from, long to, int nrRanges) throws IOException {
+
+        List<FileRange> ranges = new ArrayList<>();
+
+        long rangeSize = (to - from) / Math.max(1, nrRanges);
+        long start = from;
+        for (int i = 1; i < nrRanges && rangeSize > 0; i++) {
+
+            long nominal = Math.max(from + i * rangeSize, start + 1);
+            if (nominal >= to) break;
+
+            long pos = indexOf(channel, marker, nominal, to);
+            if (pos < 0) break;
+
+            long end = startAfterMarker ? pos + marker.length : pos;
+            if (end <= start || end >= to) continue;
+
+            ranges.add(new FileRange(start, end));
+            start = end;
+        }
+
+        ranges.add(new FileRange(start, to));
+
+        return ranges;
+    }
+
+    /**
+     * @return position of the first occurrence of pattern in [from,to) or -1 if there is none
+     */
+    public static long indexOf(FileChannel channel, byte[] pattern, long from, long to) throws IOException {
+
+        long windowStart = from;
+        while (windowStart + pattern.length <= to) {
+
+            long windowEnd = Math.min(to, windowStart + WINDOW_SIZE + pattern.length - 1);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+
+            for (int i = 0, last = buffer.limit() - pattern.length; i <= last; i++) {
+
+                if (matches(buffer, i, pattern)) return windowStart + i;
+            }
+
+            windowStart += WINDOW_SIZE;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return position of the last occurrence of pattern in [from,to) or -1 if there is none
+     */
+    public static long lastIndexOf(FileChannel channel, byte[] pattern, long from, long to) throws IOException {
+
+        long windowEnd = to;
+        while (windowEnd - pattern.length >= from) {
+
+            long windowStart = Math.max(from, windowEnd - WINDOW_SIZE - pattern.length + 1);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+
+            for (int i = buffer.limit() - pattern.length; i >= 0; i--) {
+
+                if (matches(buffer, i, pattern)) return windowStart + i;
+            }
+
+            windowEnd -= WINDOW_SIZE;
+        }
+
+        return -1;
+    }
+
+    private static boolean matches(MappedByteBuffer buffer, int offset, byte[] pattern) {
+
+        for (int j = 0; j < pattern.length; j++) {
+
+            if (buffer.get(offset + j) != pattern[j]) return false;
+        }
+
+        return true;
+    }
+
+    public static class FileRange {
+
+        private final long start;
+        private final long end;
+
+        public FileRange(long start, long end) {
+
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long getLength() {
+            return end - start;
+        }
+
+        @Override
+        public String toString() {
+            return "["+start+","+end+")";
+        }
+    }
+}
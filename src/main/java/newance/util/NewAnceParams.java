@@ -36,6 +36,7 @@ import java.io.*;
 import java.nio.file.InvalidPathException;
 import java.util.*;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * @author Markus Müller
@@ -121,6 +122,16 @@ public class NewAnceParams implements Serializable {
     private double maxQuantMainScoreMinValue = 10f;
     private double cometMainScoreMinValue = 1f;
 
+    private String pepXmlParser = "stax";
+    private boolean splitPepXmlFiles = false;
+    private int heapBudgetMB = 0;
+    private String psmCacheDir = "";
+    // MaxQuant modification abbreviations (e.g. me:Methyl) in addition to de, ox, ac and ph
+    private Map<String,String> modTranslations = new HashMap<>();
+    // maps: psms are kept in maps of psm lists, table: psms are copied into a columnar PsmTable after parsing,
+    // offheap: like table, but the columns are kept in memory mapped files in psmCacheDir (or the temporary directory)
+    private String psmStorage = "maps";
+
     private final Map<String,String> variableValueMap;
 
     public static NewAnceParams getInstance() {
@@ -187,6 +198,12 @@ public class NewAnceParams implements Serializable {
         res +=  "doPeptideProteinGrouping="+doPeptideProteinGrouping+"\n";
         res +=  "writeParamsFile="+writeParamsFile+"\n";
         res +=  "readParamsFile="+readParamsFile+"\n";
+        res +=  "pepXmlParser="+pepXmlParser+"\n";
+        res +=  "splitPepXmlFiles="+splitPepXmlFiles+"\n";
+        res +=  "heapBudgetMB="+heapBudgetMB+"\n";
+        res +=  "psmCacheDir="+psmCacheDir+"\n";
+        res +=  "modTranslations="+modTranslations.entrySet().stream().map(e -> e.getKey()+":"+e.getValue()).collect(Collectors.joining(",","[","]"))+"\n";
+        res +=  "psmStorage="+psmStorage+"\n";
 
         return res;
     }
@@ -434,6 +451,32 @@ public class NewAnceParams implements Serializable {
             outputPrefix = variableValueMap.get("cometMainScore");
         }
 
+        if (variableValueMap.containsKey("pepXmlParser")) {
+            pepXmlParser = getStringValue("pepXmlParser",variableValueMap.get("pepXmlParser").trim().toLowerCase(),
+                    new HashSet<>(Arrays.asList(new String[]{"stax","jaxb"})));
+        }
+
+        if (variableValueMap.containsKey("splitPepXmlFiles")) {
+            splitPepXmlFiles = getBooleanValue("splitPepXmlFiles",variableValueMap.get("splitPepXmlFiles"));
+        }
+
+        if (variableValueMap.containsKey("heapBudgetMB")) {
+            heapBudgetMB = getIntegerValue("heapBudgetMB",variableValueMap.get("heapBudgetMB"));
+        }
+
+        if (variableValueMap.containsKey("psmCacheDir")) {
+            psmCacheDir = getNewDirectoryValue("psmCacheDir",variableValueMap.get("psmCacheDir"));
+        }
+
+        if (variableValueMap.containsKey("modTranslations")) {
+            modTranslations = getTranslationValue("modTranslations",variableValueMap.get("modTranslations"));
+        }
+
+        if (variableValueMap.containsKey("psmStorage")) {
+            psmStorage = getStringValue("psmStorage",variableValueMap.get("psmStorage").trim().toLowerCase(),
+                    new HashSet<>(Arrays.asList(new String[]{"maps","table","offheap"})));
+        }
+
         checkVariableValues();
 
         if (!writeParamsFile.isEmpty()) {
@@ -448,6 +491,7 @@ public class NewAnceParams implements Serializable {
         if (modifMatchMassTol<0.0) throw new RuntimeException("Error in modifMatchMassTol value: "+modifMatchMassTol+". Abort.");
         if (maxRank<=0) throw new RuntimeException("Error in maxRank value: "+maxRank+". Abort.");
         if (nrThreads<=0) throw new RuntimeException("Error in nrThreads value: "+nrThreads+". Abort.");
+        if (heapBudgetMB<0) throw new RuntimeException("Error in heapBudgetMB value: "+heapBudgetMB+". Abort.");
         if (fdrCometThreshold<0.0 || fdrCometThreshold>1.0) throw new RuntimeException("Error in fdrCometThreshold value: "+fdrCometThreshold+". Abort.");
         if (maxRank<=0) throw new RuntimeException("Error in maxRank value: "+maxRank+". Abort.");
 
@@ -608,6 +652,21 @@ public class NewAnceParams implements Serializable {
         }
     }
 
+    private Map<String,String> getTranslationValue(String variable, String value) {
+
+        Map<String,String> translations = new HashMap<>();
+        for (String translation : getSetValue(variable, value)) {
+
+            String[] fields = translation.split(":");
+            if (fields.length!=2 || fields[0].trim().isEmpty() || fields[1].trim().isEmpty())
+                throw new RuntimeException("Invalid value "+value+" for variable "+variable+". Not a list of abbreviation:modification pairs.");
+
+            translations.put(fields[0].trim(), fields[1].trim());
+        }
+
+        return translations;
+    }
+
     private Set<String> getSetValue(String variable, String value) {
 
         if (value.equals("[]")) {
@@ -815,4 +874,33 @@ public class NewAnceParams implements Serializable {
     public double getCometMainScoreMinValue() {
         return cometMainScoreMinValue;
     }
+
+    public String getPepXmlParser() {
+        return pepXmlParser;
+    }
+
+    public boolean isSplitPepXmlFiles() {
+        return splitPepXmlFiles;
+    }
+
+    public int getHeapBudgetMB() {
+        return heapBudgetMB;
+    }
+
+    // heap budget for concurrent psm file parsing. If heapBudgetMB is not set, half of the max heap is used
+    public long getHeapBudget() {
+        return (heapBudgetMB>0) ? heapBudgetMB*1024L*1024L : Runtime.getRuntime().maxMemory()/2;
+    }
+
+    public String getPsmCacheDir() {
+        return psmCacheDir;
+    }
+
+    public Map<String, String> getModTranslations() {
+        return modTranslations;
+    }
+
+    public String getPsmStorage() {
+        return psmStorage;
+    }
 }
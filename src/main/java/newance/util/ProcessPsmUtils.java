@@ -31,6 +31,8 @@ package newance.util;
 
 import newance.psmcombiner.Psm2PeptideStringFunction;
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmSelection;
+import newance.psmconverter.PsmTable;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -98,5 +100,22 @@ public class ProcessPsmUtils {
         return peptides.size();
     }
 
+    public static int countUniquePeptides(PsmSelection psms) {
+
+        PsmTable psmTable = psms.getTable();
+        // peptides are dictionary encoded, so each peptide of the table is converted to a sequence only once
+        BitSet seenPeptides = new BitSet(psmTable.getNrPeptides());
+        Set<String> peptides = new HashSet<>();
+
+        for (int i = 0; i < psms.size(); i++) {
+            int peptideId = psmTable.getPeptideId(psms.getRow(i));
+            if (seenPeptides.get(peptideId)) continue;
+
+            seenPeptides.set(peptideId);
+            peptides.add(psmTable.getPeptide(psms.getRow(i)).toSymbolString());
+        }
+
+        return peptides.size();
+    }
 
 }
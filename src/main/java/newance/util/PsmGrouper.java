@@ -30,6 +30,7 @@
 package newance.util;
 
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmTable;
 
 import java.util.Set;
 import java.util.function.BiFunction;
@@ -40,6 +41,14 @@ import java.util.function.BiFunction;
 
 public abstract class PsmGrouper implements BiFunction<String, PeptideSpectrumMatch, String> {
 
+    /**
+     * Group of a row of a psm table. Groupers that only need some columns can override this to avoid creating a psm.
+     */
+    public String apply(PsmTable psmTable, int row) {
+
+        return apply(psmTable.getSpectrumKey(row), psmTable.getPsm(row));
+    }
+
     public abstract String getMasterGroup();
     public abstract Set<String> getGroups();
 }
@@ -72,25 +72,43 @@ public class PsmPredicate implements Serializable {
 
         if (!psm.getScoreMap().containsKey(this.scoreName)) return false;
 
+        if (!checkScore(psm.getScore(scoreName))) return false;
+
+        if (!checkRank(psm.getRank())) return false;
+
+        if (!checkPeptideLength(psm.getSequence().length())) return false;
+
+        return checkCharge(charge);
+    }
+
+    // The single checks below are used by the psm readers to reject hits from raw values before any objects are built
+
+    public boolean checkScore(double score) {
+
         if (order==ScoreOrder.LARGER) {
-            if (psm.getScore(scoreName) < minPsmScore) return false;
+            return !(score < minPsmScore);
         } else {
-            if (psm.getScore(scoreName) > minPsmScore) return false;
+            return !(score > minPsmScore);
         }
+    }
 
-        if (psm.getRank() > this.maxRank) return false;
+    public boolean checkRank(int rank) {
 
-        String peptide = psm.getSequence();
-        if (peptide.length() < this.minPeptideLength) {
-            return false;
-        } else if (peptide.length() > this.maxPeptideLength) {
-            return false;
-        }
+        return rank <= this.maxRank;
+    }
 
-        if (charge<minCharge) return false;
-        if (charge>maxCharge) return false;
+    public boolean checkPeptideLength(int length) {
+
+        return length >= this.minPeptideLength && length <= this.maxPeptideLength;
+    }
+
+    public boolean checkCharge(int charge) {
+
+        return charge >= minCharge && charge <= maxCharge;
+    }
 
-        return true;
+    public String getScoreName() {
+        return scoreName;
     }
 
 }
@@ -32,6 +32,7 @@ package newance.psmcombiner;
 import gnu.trove.map.TObjectDoubleMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmTable;
 import org.expasy.mzjava.proteomics.mol.Peptide;
 import newance.util.NewAnceParams;
 import org.junit.Assert;
@@ -63,6 +64,27 @@ public class CometMaxQuantPsmMergerTest {
 
     }
 
+    @Test
+    public void test_mergeTable() {
+
+        PsmTable cometPsms = PsmTable.of(getCometPsms());
+        PsmTable mqPsms = PsmTable.of(getMQPsms());
+
+        PsmTable combined = CometMaxQuantPsmMerger.merge(cometPsms.selectAll(), mqPsms.selectAll());
+
+        Assert.assertEquals(1, combined.getSpectrumCount());
+        Assert.assertEquals(2, combined.size());
+        Assert.assertEquals("PEPTIDE",combined.getPeptide(0).toString());
+        Assert.assertEquals("PEPTIDER",combined.getPeptide(1).toString());
+        Assert.assertEquals(1.0,combined.getScore(0,"xcorr"),0.00001);
+        Assert.assertEquals(2.0,combined.getScore(1,"Score"),0.00001);
+
+        // maxquant psms that are not selected are not merged
+        combined = CometMaxQuantPsmMerger.merge(cometPsms.selectAll(), mqPsms.selectAll().select(row -> mqPsms.getScore(row,"Score") > 1.5));
+        Assert.assertEquals(1, combined.size());
+        Assert.assertEquals("PEPTIDER",combined.getPeptide(0).toString());
+    }
+
     public static ConcurrentHashMap<String, List<PeptideSpectrumMatch>> getCometPsms()
     {
 
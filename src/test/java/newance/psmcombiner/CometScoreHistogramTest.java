@@ -435,6 +435,34 @@ public class CometScoreHistogramTest {
 
     }
 
+    @Test
+    public void test_SmoothIterations() {
+
+        CometScoreHistogram repeated = buildScoreHisto();
+        CometScoreHistogram iterated = buildScoreHisto();
+
+        addPsms(10, 20, 5, repeated, false);
+        addPsms(10, 20, 5, iterated, false);
+        addPsms(0, 0, 0, repeated, true);
+        addPsms(0, 0, 0, iterated, true);
+
+        repeated.smoothHistogram(false);
+        repeated.smoothHistogram(false);
+        repeated.smoothHistogram(true);
+        iterated.smoothHistogram(3, 1, true);
+
+        SmoothedScoreHistogram s1 = repeated.smoothedHistogram;
+        SmoothedScoreHistogram s2 = iterated.smoothedHistogram;
+
+        Assert.assertEquals(s1.psmBins, s2.psmBins);
+        Assert.assertEquals(s1.targetCnts, s2.targetCnts);
+        Assert.assertEquals(s1.decoyCnts, s2.decoyCnts);
+        for (int i = 0; i < s1.psmBins.size(); i++) {
+            Assert.assertEquals(i, s2.indexMap.get(s2.psmBins.get(i)));
+        }
+        Assert.assertEquals(repeated.getTotTargetCnt(), iterated.getTotTargetCnt(), 0.0001);
+    }
+
     @Test
     public void test_Smooth3() {
         smooth3(true);
@@ -32,14 +32,16 @@ package newance.psmcombiner;
 import gnu.trove.map.TObjectDoubleMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 import newance.psmconverter.PeptideSpectrumMatch;
+import newance.psmconverter.PsmSelection;
+import newance.psmconverter.PsmTable;
 import org.expasy.mzjava.proteomics.mol.Peptide;
 import newance.util.NewAnceParams;
+import newance.util.ProcessPsmUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -302,6 +304,195 @@ public class GroupedFDRCalculatorTest {
     }
 
 
+    @Test
+    public void test_psmTable() {
+
+        ConcurrentHashMap<String, List<PeptideSpectrumMatch>> psms = randomPsms(2000, 17);
+
+        RegExpProteinGrouper psmGrouper = new RegExpProteinGrouper(Pattern.compile("^sp"),"canonical","cryptic");
+
+        GroupedFDRCalculator mapCalculator = new GroupedFDRCalculator(psmGrouper);
+        mapCalculator.addAll(psms);
+        mapCalculator.setCanCalculateFDR(1);
+        mapCalculator.calcClassProbs();
+        mapCalculator.calcLocalFDR();
+
+        PsmTable psmTable = PsmTable.of(psms);
+        GroupedFDRCalculator tableCalculator = new GroupedFDRCalculator(psmGrouper);
+        tableCalculator.addAll(psmTable);
+        tableCalculator.setCanCalculateFDR(1);
+        tableCalculator.calcClassProbs();
+        tableCalculator.calcLocalFDR();
+
+        for (String label : mapCalculator.histogramMap.keySet()) {
+            ScoreHistogram mapHisto = mapCalculator.histogramMap.get(label).getScoreHistogram();
+            ScoreHistogram tableHisto = tableCalculator.histogramMap.get(label).getScoreHistogram();
+
+            Assert.assertEquals(mapHisto.getTotTargetCnt(), tableHisto.getTotTargetCnt(), 0.00001);
+            Assert.assertEquals(mapHisto.getTotDecoyCnt(), tableHisto.getTotDecoyCnt(), 0.00001);
+        }
+
+        for (int row = 0; row < psmTable.size(); row++) {
+            PeptideSpectrumMatch psm = psms.get(psmTable.getSpectrumKey(row)).get(0);
+            Assert.assertEquals(mapCalculator.getLocalFDR(psm), tableCalculator.getLocalFDR(psmTable, row), 0.00001);
+        }
+
+        for (String group : mapCalculator.getGroups()) {
+            for (float lFDR : new float[]{0.1f, 0.5f, 1f}) {
+                ConcurrentHashMap<String, List<PeptideSpectrumMatch>> filtered = mapCalculator.filterPsms(psms, lFDR, group);
+                PsmSelection selection = tableCalculator.filterPsms(psmTable.selectAll(), lFDR, group);
+
+                Assert.assertEquals(ProcessPsmUtils.countPsms(filtered), selection.size());
+                Assert.assertEquals(filtered.size(), selection.getSpectrumCount());
+            }
+        }
+    }
+
+    @Test
+    public void test_parallelAddAll() {
+
+        ConcurrentHashMap<String, List<PeptideSpectrumMatch>> psms = randomPsms(5000, 23);
+        PsmTable psmTable = PsmTable.of(psms);
+        RegExpProteinGrouper psmGrouper = new RegExpProteinGrouper(Pattern.compile("^sp"),"canonical","cryptic");
+
+        GroupedFDRCalculator sequential = new GroupedFDRCalculator(psmGrouper);
+        sequential.addAll(psms, 1);
+        GroupedFDRCalculator parallel = new GroupedFDRCalculator(psmGrouper);
+        parallel.addAll(psms, 3);
+        assertSameHistograms(sequential, parallel);
+
+        sequential = new GroupedFDRCalculator(psmGrouper);
+        sequential.addAll(psmTable, 1);
+        parallel = new GroupedFDRCalculator(psmGrouper);
+        parallel.addAll(psmTable, 3);
+        assertSameHistograms(sequential, parallel);
+    }
+
+    @Test
+    public void test_parallelTreePasses() {
+
+        ConcurrentHashMap<String, List<PeptideSpectrumMatch>> psms = randomPsms(5000, 31);
+        RegExpProteinGrouper psmGrouper = new RegExpProteinGrouper(Pattern.compile("^sp"),"canonical","cryptic");
+
+        GroupedFDRCalculator sequential = new GroupedFDRCalculator(psmGrouper, 1);
+        GroupedFDRCalculator parallel = new GroupedFDRCalculator(psmGrouper, 4);
+
+        // leaves have too few psms and take gamma from their parents
+        for (GroupedFDRCalculator calculator : Arrays.asList(sequential, parallel)) {
+            calculator.addAll(psms);
+            calculator.setCanCalculateFDR(1500);
+            calculator.calcClassProbs();
+            calculator.smoothHistogram(2);
+            calculator.calcLocalFDR();
+        }
+
+        for (String label : sequential.histogramMap.keySet()) {
+            HistogramTree expected = sequential.histogramMap.get(label);
+            HistogramTree actual = parallel.histogramMap.get(label);
+
+            Assert.assertEquals(label, expected.getScoreHistogram().canCalculateFDR(), actual.getScoreHistogram().canCalculateFDR());
+            Assert.assertEquals(label, expected.getScoreHistogram().getPi_1(), actual.getScoreHistogram().getPi_1(), 0.0);
+            Assert.assertEquals(label, expected.getScoreHistogram().getGamma(), actual.getScoreHistogram().getGamma());
+        }
+
+        for (List<PeptideSpectrumMatch> psmList : psms.values()) {
+            for (PeptideSpectrumMatch psm : psmList) {
+                Assert.assertEquals(sequential.getLocalFDR(psm), parallel.getLocalFDR(psm), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void test_calcLocalFDRThreshold() {
+
+        ConcurrentHashMap<String, List<PeptideSpectrumMatch>> psms = randomPsms(3000, 41);
+        RegExpProteinGrouper psmGrouper = new RegExpProteinGrouper(Pattern.compile("^sp"),"canonical","cryptic");
+
+        GroupedFDRCalculator groupedFDRCalculator = new GroupedFDRCalculator(psmGrouper, 1);
+        groupedFDRCalculator.addAll(psms);
+        groupedFDRCalculator.setCanCalculateFDR(1);
+        groupedFDRCalculator.calcClassProbs();
+        groupedFDRCalculator.calcLocalFDR();
+
+        for (String group : new String[]{"", "canonical", "cryptic"}) {
+
+            // local FDR values of the histograms counted for the group
+            TreeSet<Float> cutoffs = new TreeSet<>();
+            for (HistogramTree node : groupedFDRCalculator.histogramMap.values()) {
+                if (!(node.isLeaf() && group.isEmpty() || node.getGroup().equals(group))) continue;
+
+                LocalFDRCurve curve = node.getScoreHistogram().getLocalFDRCurve();
+                for (int k = 0; k < curve.size(); k++) cutoffs.add(curve.getCutoff(k));
+            }
+
+            for (float pFDR : new float[]{0.01f, 0.05f, 0.1f, 0.2f, 0.5f}) {
+
+                // first local FDR value at which the global FDR exceeds pFDR
+                float expected = 1f;
+                float last = 0f;
+                for (float cutoff : cutoffs) {
+                    if (groupedFDRCalculator.calcGlobalFDR(cutoff, group)>pFDR) {
+                        expected = last;
+                        break;
+                    }
+                    last = Math.max(last, cutoff);
+                }
+
+                float threshold = groupedFDRCalculator.calcLocalFDRThreshold(pFDR, group);
+                Assert.assertEquals(expected, threshold, 0.0);
+                if (threshold>0) Assert.assertTrue(groupedFDRCalculator.calcGlobalFDR(threshold, group)<=pFDR);
+            }
+        }
+    }
+
+    private static void assertSameHistograms(GroupedFDRCalculator expected, GroupedFDRCalculator actual) {
+
+        for (String label : expected.histogramMap.keySet()) {
+            ScoreHistogram expectedHisto = expected.histogramMap.get(label).getScoreHistogram();
+            ScoreHistogram actualHisto = actual.histogramMap.get(label).getScoreHistogram();
+
+            Assert.assertEquals(label, expectedHisto.psmBins, actualHisto.psmBins);
+            Assert.assertEquals(label, expectedHisto.targetCnts, actualHisto.targetCnts);
+            Assert.assertEquals(label, expectedHisto.decoyCnts, actualHisto.decoyCnts);
+            Assert.assertEquals(expectedHisto.getTotTargetCnt(), actualHisto.getTotTargetCnt(), 0.0);
+            Assert.assertEquals(expectedHisto.getTotDecoyCnt(), actualHisto.getTotDecoyCnt(), 0.0);
+        }
+    }
+
+    private static ConcurrentHashMap<String, List<PeptideSpectrumMatch>> randomPsms(int nrPsms, long seed) {
+
+        NewAnceParams params = NewAnceParams.getInstance();
+        CometScoreHistogram cometScoreHistogram = CometScoreHistogramTest.buildScoreHisto();
+
+        List<Float> xcorrMids = cometScoreHistogram.calcMids(cometScoreHistogram.calcBreaks((float)params.getMinXCorr(),(float)params.getMaxXCorr(),params.getNrXCorrBins()));
+        List<Float> deltacnMids = cometScoreHistogram.calcMids(cometScoreHistogram.calcBreaks((float)params.getMinDeltaCn(),(float)params.getMaxDeltaCn(),params.getNrDeltaCnBins()));
+        List<Float> spscoreMids = cometScoreHistogram.calcMids(cometScoreHistogram.calcBreaks((float)params.getMinSpScore(),(float)params.getMaxSpScore(),params.getNrSpScoreBins()));
+
+        Set<String> canonicalProts = new HashSet<>(Arrays.asList("sp|protein1", "protein2"));
+        Set<String> crypticProts = new HashSet<>(Arrays.asList("protein3"));
+
+        ConcurrentHashMap<String, List<PeptideSpectrumMatch>> psms = new ConcurrentHashMap<>();
+        Random random = new Random(seed);
+        for (int i=0;i<nrPsms;i++) {
+            boolean isDecoy = random.nextInt(3) == 0;
+            int offset = isDecoy ? 0 : xcorrMids.size()/4;
+
+            TObjectDoubleMap<String> scoreMap = new TObjectDoubleHashMap<>();
+            scoreMap.put("xcorr", xcorrMids.get(Math.min(xcorrMids.size()-1, offset+random.nextInt(xcorrMids.size()/2))));
+            scoreMap.put("deltacn", deltacnMids.get(random.nextInt(deltacnMids.size())));
+            scoreMap.put("spscore", spscoreMids.get(random.nextInt(spscoreMids.size())));
+
+            Set<String> prots = random.nextBoolean() ? canonicalProts : crypticProts;
+            int charge = params.getMinCharge()+random.nextInt(2);
+
+            psms.put("spec"+i, Collections.synchronizedList(new ArrayList<>()));
+            psms.get("spec"+i).add(new PeptideSpectrumMatch("spectrumFile",Peptide.parse("PEPTIDE"), prots, scoreMap, charge, 1,
+                    100, i, 1001.1, isDecoy, false, null, null));
+        }
+
+        return psms;
+    }
+
     public static void addPsms(int xcorrIdx, int deltacnIdx, int spscoreIdx, GroupedFDRCalculator groupedFDRCalculator, Set<String> prots, int freq, boolean isDecoy)
     {
         NewAnceParams params = NewAnceParams.getInstance();
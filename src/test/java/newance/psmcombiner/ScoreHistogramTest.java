@@ -29,6 +29,8 @@
 
 package newance.psmcombiner;
 
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -62,4 +64,43 @@ public class ScoreHistogramTest {
         }
     }
 
+    @Test
+    public void sortIndexesPrimitiveTest() {
+
+        TFloatArrayList array = new TFloatArrayList(new float[]{0.5f, 0.1f, 0.5f, -0.0f, 0.0f, 1f, 0.1f});
+
+        TIntArrayList sorted = ScoreHistogram.sortIndexes(array, false);
+        Assert.assertArrayEquals(new int[]{3, 4, 1, 6, 0, 2, 5}, sorted.toArray());
+
+        // ties keep their order in reverse sorting as well
+        sorted = ScoreHistogram.sortIndexes(array, true);
+        Assert.assertArrayEquals(new int[]{5, 0, 2, 1, 6, 4, 3}, sorted.toArray());
+    }
+
+    @Test
+    public void binIndexMapTest() {
+
+        BinIndexMap sparse = new BinIndexMap(64000);
+        Assert.assertFalse(sparse.isDense());
+        Assert.assertEquals(64000, sparse.size());
+        Assert.assertEquals(-1, sparse.get(100));
+
+        sparse.set(100, 0);
+        sparse.set(63999, 1);
+        Assert.assertEquals(0, sparse.get(100));
+        Assert.assertEquals(1, sparse.get(63999));
+
+        BinIndexMap copy = new BinIndexMap(sparse);
+        sparse.set(100, -1);
+        Assert.assertEquals(-1, sparse.get(100));
+        Assert.assertEquals(0, copy.get(100));
+
+        for (int bin = 0; bin <= 16000; bin++) sparse.set(bin, bin+2);
+        Assert.assertTrue(sparse.isDense());
+        Assert.assertEquals(2, sparse.get(0));
+        Assert.assertEquals(1, sparse.get(63999));
+        Assert.assertEquals(-1, sparse.get(20000));
+
+        Assert.assertTrue(new BinIndexMap(1000).isDense());
+    }
 }
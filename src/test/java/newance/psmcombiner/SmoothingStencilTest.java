@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmcombiner;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * @author Markus Müller
+ */
+
+public class SmoothingStencilTest {
+
+    @Test
+    public void test_radius1() {
+
+        SmoothingStencil stencil = new SmoothingStencil(new int[]{40, 40, 40}, 1);
+        int[] coords = new int[3];
+        int[] neighbours = new int[stencil.getMaxNrNeighbours()];
+
+        Assert.assertEquals(6, stencil.getMaxNrNeighbours());
+
+        int bin = 40*(40*5 + 20) + 10;
+        Assert.assertEquals(6, stencil.getNeighbours(bin, coords, neighbours));
+        Assert.assertArrayEquals(new int[]{bin+1, bin-1, bin+40, bin-40, bin+1600, bin-1600}, neighbours);
+
+        Assert.assertEquals(3, stencil.getNeighbours(0, coords, neighbours));
+        Assert.assertArrayEquals(new int[]{1, 40, 1600}, Arrays.copyOf(neighbours, 3));
+
+        Assert.assertEquals(3, stencil.getNeighbours(63999, coords, neighbours));
+        Assert.assertArrayEquals(new int[]{63998, 63959, 62399}, Arrays.copyOf(neighbours, 3));
+
+        // no wrap around at the end of a row
+        Assert.assertEquals(3, stencil.getNeighbours(39, coords, neighbours));
+        Assert.assertArrayEquals(new int[]{38, 79, 1639}, Arrays.copyOf(neighbours, 3));
+    }
+
+    @Test
+    public void test_radius2() {
+
+        SmoothingStencil stencil = new SmoothingStencil(new int[]{10, 10, 10}, 2);
+        int[] coords = new int[3];
+        int[] neighbours = new int[stencil.getMaxNrNeighbours()];
+
+        // 6 neighbours at distance 1 and 18 at distance 2
+        Assert.assertEquals(24, stencil.getMaxNrNeighbours());
+        Assert.assertEquals(24, stencil.getNeighbours(555, coords, neighbours));
+        Assert.assertEquals(9, stencil.getNeighbours(0, coords, neighbours));
+
+        for (int i = 0; i < 9; i++) {
+            int n = neighbours[i];
+            Assert.assertTrue(n%10 + (n/10)%10 + n/100 <= 2);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_invalidRadius() {
+        new SmoothingStencil(new int[]{10, 10}, 0);
+    }
+}
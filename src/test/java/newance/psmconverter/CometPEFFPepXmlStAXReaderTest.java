@@ -0,0 +1,358 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import com.google.common.base.Optional;
+import newance.util.NewAnceParams;
+import newance.util.PsmPredicate;
+import org.expasy.mzjava.core.ms.AbsoluteTolerance;
+import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
+import org.expasy.mzjava.proteomics.mol.modification.Modification;
+import org.expasy.mzjava.proteomics.ms.ident.ModListModMatchResolver;
+import org.expasy.mzjava.proteomics.ms.ident.ModificationMatch;
+import org.expasy.mzjava.proteomics.ms.ident.ModificationMatchResolver;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * @author Markus Müller
+ */
+
+public class CometPEFFPepXmlStAXReaderTest {
+
+    private static final String PEPXML =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<msms_pipeline_analysis xmlns=\"http://regis-web.systemsbiology.net/pepXML\">\n" +
+            " <msms_run_summary base_name=\"run1\">\n" +
+            "  <spectrum_query spectrum=\"run1.00123.00123.2\" start_scan=\"123\" end_scan=\"123\" precursor_neutral_mass=\"1000.5\" assumed_charge=\"2\" index=\"1\" retention_time_sec=\"120.0\">\n" +
+            "   <search_result>\n" +
+            "    <search_hit hit_rank=\"1\" peptide=\"PEPTIDEKR\" protein=\"PROT1\" num_tot_proteins=\"2\" num_matched_ions=\"5\" tot_num_ions=\"16\" massdiff=\"0.01\" num_missed_cleavages=\"1\">\n" +
+            "     <alternative_protein protein=\"PROT2\">\n" +
+            "      <modification_info><mod_aminoacid_mass position=\"1\" mass=\"200.0\"/></modification_info>\n" +
+            "     </alternative_protein>\n" +
+            "     <modification_info>\n" +
+            "      <aminoacid_substitution position=\"3\" orig_aa=\"A\"/>\n" +
+            "     </modification_info>\n" +
+            "     <search_score name=\"xcorr\" value=\"2.5\"/>\n" +
+            "     <search_score name=\"expect\" value=\"1.0E-3\"/>\n" +
+            "     <analysis_result analysis=\"peptideprophet\"><search_score name=\"xcorr\" value=\"9.9\"/></analysis_result>\n" +
+            "    </search_hit>\n" +
+            "    <search_hit hit_rank=\"2\" peptide=\"PEPTIDEKK\" protein=\"PROT3\" num_tot_proteins=\"1\" num_matched_ions=\"4\" tot_num_ions=\"16\" massdiff=\"0.02\" num_missed_cleavages=\"0\">\n" +
+            "     <search_score name=\"xcorr\" value=\"2.0\"/>\n" +
+            "    </search_hit>\n" +
+            "   </search_result>\n" +
+            "  </spectrum_query>\n" +
+            "  <spectrum_query spectrum=\"run1.00124.00124.3\" start_scan=\"124\" end_scan=\"124\" precursor_neutral_mass=\"1500.5\" assumed_charge=\"3\" index=\"2\" retention_time_sec=\"180.0\">\n" +
+            "   <search_result>\n" +
+            "    <search_hit hit_rank=\"1\" peptide=\"PEPTIDEXR\" protein=\"PROT1\" num_tot_proteins=\"1\" num_matched_ions=\"5\" tot_num_ions=\"16\" massdiff=\"0.01\" num_missed_cleavages=\"0\">\n" +
+            "     <search_score name=\"xcorr\" value=\"3.0\"/>\n" +
+            "    </search_hit>\n" +
+            "   </search_result>\n" +
+            "  </spectrum_query>\n" +
+            " </msms_run_summary>\n" +
+            "</msms_pipeline_analysis>\n";
+
+    @Test
+    public void testParse() {
+
+        NewAnceParams params = NewAnceParams.getInstance();
+
+        final Map<String, List<PeptideSpectrumMatch>> psmMap = new HashMap<>();
+
+        PsmPredicate psmPredicate = new PsmPredicate(1, 5, 8, 25, 1, "xcorr", 1.0, PsmPredicate.ScoreOrder.LARGER);
+        PeptideSpectrumMatchList peptideSpectrumMatchList = new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, psmMap);
+
+        ModListModMatchResolver modMatchResolver = new ModListModMatchResolver(new AbsoluteTolerance(params.getModifMatchMassTol()), params.getModifications());
+        CometPEFFPepXmlStAXReader psmReader = new CometPEFFPepXmlStAXReader(true, modMatchResolver);
+
+        psmReader.parse(new ByteArrayInputStream(PEPXML.getBytes(StandardCharsets.UTF_8)), peptideSpectrumMatchList);
+
+        Assert.assertEquals(1, psmMap.size());
+        Assert.assertTrue(psmMap.containsKey("run1.123.123.2"));
+
+        List<PeptideSpectrumMatch> psms = psmMap.get("run1.123.123.2");
+        Assert.assertEquals(1, psms.size());
+
+        PeptideSpectrumMatch psm = psms.get(0);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("PROT1", "PROT2")), psm.getProteinAcc());
+        Assert.assertEquals(2, psm.getCharge());
+        Assert.assertEquals(1, psm.getRank());
+        Assert.assertEquals(123, psm.getScanNr());
+        Assert.assertEquals(2.0, psm.getRetentionTime(), 0.00001);
+        Assert.assertEquals(1000.5, psm.getNeutralPrecMass(), 0.00001);
+        Assert.assertEquals(2.5, psm.getScore("xcorr"), 0.00001);
+        Assert.assertEquals(3.0, psm.getScore("neg_log10_p"), 0.00001);
+        Assert.assertEquals(0.01, psm.getScore("mass_diff"), 0.00001);
+        Assert.assertEquals(16.0, psm.getScore("tot_num_ions"), 0.00001);
+        Assert.assertEquals(5.0, psm.getScore("matched_num_ions"), 0.00001);
+        Assert.assertTrue(psm.isVariant());
+        Assert.assertEquals(Collections.singletonList(2), psm.getVariantPositions());
+        Assert.assertEquals(Collections.singletonList('A'), psm.getVariantWTAAs());
+        Assert.assertFalse(psm.isDecoy());
+    }
+
+    @Test
+    public void testSameAsJAXB() throws IOException {
+
+        String pepXml =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<msms_pipeline_analysis xmlns=\"http://regis-web.systemsbiology.net/pepXML\">\n" +
+                " <msms_run_summary base_name=\"run1\">\n" +
+                "  <spectrum_query spectrum=\"run1.00123.00123.2\" start_scan=\"123\" end_scan=\"123\" precursor_neutral_mass=\"1000.5\" assumed_charge=\"2\" index=\"1\" retention_time_sec=\"120.0\">\n" +
+                "   <search_result>\n" +
+                "    <search_hit hit_rank=\"1\" peptide=\"PEPMIDEKR\" protein=\"PROT1\" num_tot_proteins=\"3\" num_matched_ions=\"5\" tot_num_ions=\"16\" massdiff=\"0.01\" num_missed_cleavages=\"1\">\n" +
+                "     <alternative_protein protein=\"PROT2\"/>\n" +
+                "     <alternative_protein protein=\"PROT4\">\n" +
+                "      <modification_info><mod_aminoacid_mass position=\"1\" mass=\"200.0\"/></modification_info>\n" +
+                "     </alternative_protein>\n" +
+                "     <modification_info mod_nterm_mass=\"43.0184\">\n" +
+                "      <mod_aminoacid_mass position=\"4\" mass=\"147.0354\"/>\n" +
+                "      <aminoacid_substitution position=\"3\" orig_aa=\"A\"/>\n" +
+                "     </modification_info>\n" +
+                "     <search_score name=\"xcorr\" value=\"2.5\"/>\n" +
+                "     <search_score name=\"deltacn\" value=\"0.1\"/>\n" +
+                "     <search_score name=\"expect\" value=\"1.0E-3\"/>\n" +
+                "     <analysis_result analysis=\"peptideprophet\"><search_score name=\"xcorr\" value=\"9.9\"/></analysis_result>\n" +
+                "    </search_hit>\n" +
+                "    <search_hit hit_rank=\"2\" peptide=\"PEPTIDEKK\" protein=\"DECOY_PROT3\" num_tot_proteins=\"1\" num_matched_ions=\"4\" tot_num_ions=\"16\" massdiff=\"-0.02\" num_missed_cleavages=\"0\">\n" +
+                "     <modification_info><aminoacid_substitution position=\"2\" orig_aa=\"K\"/></modification_info>\n" +
+                "     <search_score name=\"xcorr\" value=\"2.0\"/>\n" +
+                "     <search_score name=\"expect\" value=\"+-0.5\"/>\n" +
+                "    </search_hit>\n" +
+                "   </search_result>\n" +
+                "  </spectrum_query>\n" +
+                "  <spectrum_query spectrum=\"run1.00124.00124.3\" start_scan=\"124\" end_scan=\"124\" precursor_neutral_mass=\"1500.5\" assumed_charge=\"3\" index=\"2\" retention_time_sec=\"180.0\">\n" +
+                "   <search_result>\n" +
+                "    <search_hit hit_rank=\"1\" peptide=\"PEPTIDEXR\" protein=\"PROT1\" num_tot_proteins=\"1\" num_matched_ions=\"5\" tot_num_ions=\"16\" massdiff=\"0.01\" num_missed_cleavages=\"0\">\n" +
+                "     <search_score name=\"xcorr\" value=\"3.0\"/>\n" +
+                "    </search_hit>\n" +
+                "    <search_hit hit_rank=\"2\" peptide=\"PEPTIDESR\" protein=\"PROT5\" num_tot_proteins=\"1\" num_matched_ions=\"6\" tot_num_ions=\"16\" massdiff=\"0.03\" num_missed_cleavages=\"0\">\n" +
+                "     <modification_info mod_cterm_mass=\"17.0027\"/>\n" +
+                "     <search_score name=\"xcorr\" value=\"1.5\"/>\n" +
+                "    </search_hit>\n" +
+                "   </search_result>\n" +
+                "  </spectrum_query>\n" +
+                " </msms_run_summary>\n" +
+                "</msms_pipeline_analysis>\n";
+
+        File file = File.createTempFile("jaxb", ".pep.xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), pepXml.getBytes(StandardCharsets.UTF_8));
+
+        final Modification oxidation = Modification.parseModification("Oxidation:O");
+        final Modification acetyl = Modification.parseModification("Acetyl:C2H2O");
+        final Modification methyl = Modification.parseModification("Methyl:CH2");
+        ModificationMatchResolver modMatchResolver = new ModificationMatchResolver() {
+            @Override
+            public Optional<Modification> resolve(ModificationMatch modMatch) {
+                if (modMatch.getModAttachment() == ModAttachment.N_TERM) return Optional.of(acetyl);
+                if (modMatch.getModAttachment() == ModAttachment.C_TERM) return Optional.of(methyl);
+                return Optional.of(oxidation);
+            }
+        };
+        PsmPredicate psmPredicate = new PsmPredicate(1, 5, 8, 25, 2, "xcorr", 1.0, PsmPredicate.ScoreOrder.LARGER);
+
+        Map<String, List<PeptideSpectrumMatch>> jaxbMap = new LinkedHashMap<>();
+        new CometPEFFPepXmlReader(true, modMatchResolver).parse(file, new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, jaxbMap));
+
+        Map<String, List<PeptideSpectrumMatch>> staxMap = new LinkedHashMap<>();
+        new CometPEFFPepXmlStAXReader(true, modMatchResolver).parse(file, new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, staxMap));
+
+        Assert.assertEquals(2, jaxbMap.size());
+        Assert.assertEquals(2, jaxbMap.get("run1.123.123.2").size());
+        Assert.assertEquals(1, jaxbMap.get("run1.124.124.3").size());
+
+        Assert.assertEquals(new ArrayList<>(jaxbMap.keySet()), new ArrayList<>(staxMap.keySet()));
+        for (String key : jaxbMap.keySet()) {
+
+            List<PeptideSpectrumMatch> expected = jaxbMap.get(key);
+            List<PeptideSpectrumMatch> actual = staxMap.get(key);
+            Assert.assertEquals(expected.size(), actual.size());
+
+            for (int i = 0; i < expected.size(); i++) {
+
+                PeptideSpectrumMatch e = expected.get(i);
+                PeptideSpectrumMatch a = actual.get(i);
+
+                Assert.assertEquals(e.getSpectrumFile(), a.getSpectrumFile());
+                Assert.assertEquals(e.getPeptide(), a.getPeptide());
+                Assert.assertEquals(e.getLazyPeptide().getSignature(), a.getLazyPeptide().getSignature());
+                Assert.assertEquals(e.getProteinAcc(), a.getProteinAcc());
+                Assert.assertEquals(e.getScoreMap().keySet(), a.getScoreMap().keySet());
+                for (String score : e.getScoreMap().keySet()) Assert.assertEquals(e.getScore(score), a.getScore(score), 0.0);
+                Assert.assertEquals(e.getCharge(), a.getCharge());
+                Assert.assertEquals(e.getRank(), a.getRank());
+                Assert.assertEquals(e.getRetentionTime(), a.getRetentionTime(), 0.0);
+                Assert.assertEquals(e.getScanNr(), a.getScanNr());
+                Assert.assertEquals(e.getNeutralPrecMass(), a.getNeutralPrecMass(), 0.0);
+                Assert.assertEquals(e.isDecoy(), a.isDecoy());
+                Assert.assertEquals(e.isVariant(), a.isVariant());
+                Assert.assertEquals(e.getVariantPositions(), a.getVariantPositions());
+                Assert.assertEquals(e.getVariantWTAAs(), a.getVariantWTAAs());
+            }
+        }
+    }
+
+    @Test
+    public void testPredicatePushdown() {
+
+        NewAnceParams params = NewAnceParams.getInstance();
+        ModListModMatchResolver modMatchResolver = new ModListModMatchResolver(new AbsoluteTolerance(params.getModifMatchMassTol()), params.getModifications());
+
+        // neg_log10_p is derived from the expect score
+        Map<String, List<PeptideSpectrumMatch>> psmMap = new HashMap<>();
+        PsmPredicate psmPredicate = new PsmPredicate(1, 5, 8, 25, 1, "neg_log10_p", 2.5, PsmPredicate.ScoreOrder.LARGER);
+        new CometPEFFPepXmlStAXReader(true, modMatchResolver).parse(new ByteArrayInputStream(PEPXML.getBytes(StandardCharsets.UTF_8)),
+                new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, psmMap));
+        Assert.assertEquals(1, psmMap.size());
+
+        psmMap = new HashMap<>();
+        psmPredicate = new PsmPredicate(1, 5, 8, 25, 1, "neg_log10_p", 3.5, PsmPredicate.ScoreOrder.LARGER);
+        new CometPEFFPepXmlStAXReader(true, modMatchResolver).parse(new ByteArrayInputStream(PEPXML.getBytes(StandardCharsets.UTF_8)),
+                new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, psmMap));
+        Assert.assertEquals(0, psmMap.size());
+
+        // rank 2 hit is accepted once maxRank is 2
+        psmMap = new HashMap<>();
+        psmPredicate = new PsmPredicate(1, 2, 8, 25, 2, "xcorr", 1.0, PsmPredicate.ScoreOrder.LARGER);
+        new CometPEFFPepXmlStAXReader(true, modMatchResolver).parse(new ByteArrayInputStream(PEPXML.getBytes(StandardCharsets.UTF_8)),
+                new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, psmMap));
+        Assert.assertEquals(2, psmMap.get("run1.123.123.2").size());
+
+        // charge 2 spectrum is skipped
+        psmMap = new HashMap<>();
+        psmPredicate = new PsmPredicate(3, 5, 8, 25, 2, "xcorr", 1.0, PsmPredicate.ScoreOrder.LARGER);
+        new CometPEFFPepXmlStAXReader(true, modMatchResolver).parse(new ByteArrayInputStream(PEPXML.getBytes(StandardCharsets.UTF_8)),
+                new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, psmMap));
+        Assert.assertEquals(0, psmMap.size());
+    }
+
+    @Test
+    public void testParseRanges() throws IOException {
+
+        StringBuilder pepXml = new StringBuilder();
+        pepXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<msms_pipeline_analysis>\n <msms_run_summary base_name=\"run1\">\n");
+        for (int i = 1; i <= 200; i++) {
+            pepXml.append(createSpectrumQuery(i, i%7));
+        }
+        pepXml.append(" </msms_run_summary>\n</msms_pipeline_analysis>\n");
+
+        File file = File.createTempFile("ranges", ".pep.xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), pepXml.toString().getBytes(StandardCharsets.UTF_8));
+
+        Map<String, List<PeptideSpectrumMatch>> serialMap = parse(file, 1);
+        Map<String, List<PeptideSpectrumMatch>> rangeMap = parse(file, 4);
+
+        Assert.assertEquals(200, serialMap.size());
+        assertEquals(serialMap, rangeMap);
+    }
+
+    @Test
+    public void testParseRangesSeveralRunSummaries() throws IOException {
+
+        StringBuilder pepXml = new StringBuilder();
+        pepXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<msms_pipeline_analysis>\n");
+        for (int i = 1; i <= 100; i++) {
+            if (i%25 == 1) pepXml.append(" <msms_run_summary base_name=\"run1\">\n");
+            pepXml.append(createSpectrumQuery(i, 0));
+            if (i%25 == 0) pepXml.append(" </msms_run_summary>\n");
+        }
+        pepXml.append("</msms_pipeline_analysis>\n");
+
+        File file = File.createTempFile("ranges", ".pep.xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), pepXml.toString().getBytes(StandardCharsets.UTF_8));
+
+        Map<String, List<PeptideSpectrumMatch>> serialMap = parse(file, 1);
+        Map<String, List<PeptideSpectrumMatch>> rangeMap = parse(file, 3);
+
+        Assert.assertEquals(100, serialMap.size());
+        assertEquals(serialMap, rangeMap);
+    }
+
+    private Map<String, List<PeptideSpectrumMatch>> parse(File file, int nrRanges) {
+
+        NewAnceParams params = NewAnceParams.getInstance();
+
+        final Map<String, List<PeptideSpectrumMatch>> psmMap = new LinkedHashMap<>();
+
+        PsmPredicate psmPredicate = new PsmPredicate(1, 5, 8, 25, 1, "xcorr", 1.0, PsmPredicate.ScoreOrder.LARGER);
+        PeptideSpectrumMatchList peptideSpectrumMatchList = new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, psmMap);
+
+        ModListModMatchResolver modMatchResolver = new ModListModMatchResolver(new AbsoluteTolerance(params.getModifMatchMassTol()), params.getModifications());
+        new CometPEFFPepXmlStAXReader(true, modMatchResolver).parse(file, peptideSpectrumMatchList, nrRanges);
+
+        return psmMap;
+    }
+
+    private void assertEquals(Map<String, List<PeptideSpectrumMatch>> expected, Map<String, List<PeptideSpectrumMatch>> actual) {
+
+        Assert.assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(actual.keySet()));
+
+        for (String key : expected.keySet()) {
+
+            List<PeptideSpectrumMatch> expectedPsms = expected.get(key);
+            List<PeptideSpectrumMatch> actualPsms = actual.get(key);
+
+            Assert.assertEquals(expectedPsms.size(), actualPsms.size());
+            for (int i = 0; i < expectedPsms.size(); i++) {
+                Assert.assertEquals(expectedPsms.get(i).toSymbolString(), actualPsms.get(i).toSymbolString());
+                Assert.assertEquals(expectedPsms.get(i).getScanNr(), actualPsms.get(i).getScanNr());
+                Assert.assertEquals(expectedPsms.get(i).getProteinAcc(), actualPsms.get(i).getProteinAcc());
+                Assert.assertEquals(expectedPsms.get(i).getScore("xcorr"), actualPsms.get(i).getScore("xcorr"), 0.0);
+            }
+        }
+    }
+
+    private static String createSpectrumQuery(int scan, int nrAltProteins) {
+
+        StringBuilder query = new StringBuilder();
+        query.append("  <spectrum_query spectrum=\"run1.").append(scan).append(".").append(scan).append(".2\" start_scan=\"").append(scan)
+                .append("\" end_scan=\"").append(scan).append("\" precursor_neutral_mass=\"1000.5\" assumed_charge=\"2\" index=\"").append(scan)
+                .append("\" retention_time_sec=\"").append(scan).append(".0\">\n   <search_result>\n");
+        query.append("    <search_hit hit_rank=\"1\" peptide=\"PEPTIDEKR\" protein=\"PROT").append(scan)
+                .append("\" num_matched_ions=\"5\" tot_num_ions=\"16\" massdiff=\"0.01\" num_missed_cleavages=\"0\">\n");
+        for (int i = 0; i < nrAltProteins; i++) {
+            query.append("     <alternative_protein protein=\"ALT").append(i).append("\"/>\n");
+        }
+        query.append("     <search_score name=\"xcorr\" value=\"").append(1.0 + scan/100.0).append("\"/>\n");
+        query.append("    </search_hit>\n   </search_result>\n  </spectrum_query>\n");
+
+        return query.toString();
+    }
+}
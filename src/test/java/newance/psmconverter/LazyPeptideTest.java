@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import org.expasy.mzjava.proteomics.mol.Peptide;
+import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
+import org.expasy.mzjava.proteomics.mol.modification.Modification;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+
+/**
+ * @author Markus Müller
+ */
+
+public class LazyPeptideTest {
+
+    @Test
+    public void testLazy() {
+
+        Multimap<Integer, Modification> oxidation = ArrayListMultimap.create();
+        oxidation.put(3, Modification.parseModification("Oxidation:O"));
+        Multimap<ModAttachment, Modification> acetyl = ArrayListMultimap.create();
+        acetyl.put(ModAttachment.N_TERM, Modification.parseModification("Acetyl:C2H2O"));
+
+        LazyPeptide lazyPeptide = PeptidePool.getInstance().internLazy("PEPMIDEK", oxidation, acetyl);
+
+        Assert.assertFalse(lazyPeptide.isMaterialized());
+        Assert.assertEquals("PEPMIDEK", lazyPeptide.getSequence());
+        Assert.assertEquals(2, lazyPeptide.getModificationCount());
+        Assert.assertEquals(LazyPeptide.N_TERM_POS, lazyPeptide.getModificationPosition(0));
+        Assert.assertEquals(3, lazyPeptide.getModificationPosition(1));
+        Assert.assertEquals(1, lazyPeptide.getSideChainModifications().size());
+        Assert.assertEquals("Oxidation", lazyPeptide.getSideChainModifications().get(0).getLabel());
+        Assert.assertFalse(lazyPeptide.isMaterialized());
+
+        Peptide peptide = lazyPeptide.getPeptide();
+        Assert.assertTrue(lazyPeptide.isMaterialized());
+        Assert.assertSame(peptide, lazyPeptide.getPeptide());
+        Assert.assertEquals("PEPMIDEK", peptide.toSymbolString());
+        Assert.assertEquals(peptide.toString(), lazyPeptide.toString());
+
+        Assert.assertSame(lazyPeptide, PeptidePool.getInstance().internLazy("PEPMIDEK", oxidation, acetyl));
+        Assert.assertEquals(lazyPeptide, LazyPeptide.of(peptide));
+        Assert.assertEquals(lazyPeptide.hashCode(), LazyPeptide.of(peptide).hashCode());
+    }
+
+    @Test
+    public void testModificationColumns() {
+
+        LazyPeptide unmodified = LazyPeptide.of(Peptide.parse("PEPTIDE"));
+        Assert.assertEquals("NA\tNA\tNA\tNA", unmodified.getModificationColumns());
+
+        Multimap<Integer, Modification> oxidation = ArrayListMultimap.create();
+        oxidation.put(3, Modification.parseModification("Oxidation:O"));
+        LazyPeptide modified = PeptidePool.getInstance().internLazy("PEPMIDE", oxidation, ArrayListMultimap.<ModAttachment, Modification>create());
+
+        String columns = modified.getModificationColumns();
+        Assert.assertEquals("Oxidation\t4\t"+String.format("%.5f", 15.994915)+"\tM", columns);
+        Assert.assertSame(columns, modified.getModificationColumns());
+    }
+
+    @Test
+    public void testPsm() {
+
+        LazyPeptide lazyPeptide = PeptidePool.getInstance().internLazy("PEPTIDEK", ArrayListMultimap.<Integer, Modification>create(),
+                ArrayListMultimap.<ModAttachment, Modification>create());
+
+        PeptideSpectrumMatch psm = new PeptideSpectrumMatch("file", lazyPeptide, Collections.singleton("protein1"), ScoreSchema.of("xcorr"), new double[]{1.0}, 2, 1,
+                10.0f, 100, 1000.0, false, false, null, null);
+
+        Assert.assertEquals("PEPTIDEK", psm.toSymbolString());
+        Assert.assertSame(lazyPeptide, psm.getLazyPeptide());
+        Assert.assertFalse(lazyPeptide.isMaterialized());
+        Assert.assertEquals("PEPTIDEK", psm.getPeptide().toSymbolString());
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * @author Markus Müller
+ */
+
+public class MaxQuantPeptideIndexTest {
+
+    @Test
+    public void testLoad() throws IOException {
+
+        File dir = Files.createTempDirectory("maxquant").toFile();
+        File peptidesFile = new File(dir, "peptides.txt");
+        File snapshotFile = new File(dir, "peptides.txt" + MaxQuantPeptideIndex.SNAPSHOT_EXTENSION);
+        dir.deleteOnExit();
+        peptidesFile.deleteOnExit();
+        snapshotFile.deleteOnExit();
+
+        String peptides = "Sequence\tLength\tLeading razor protein\tMutated\tMutation names\n" +
+                "PEPTIDEK\t8\tP12345\tNo\t\n" +
+                "KEDITPEP\t8\tREV__P12345\tNo\t\n" +
+                "PEPTIDEKK\t9\tP12345\tYes\tK9R\n";
+        Files.write(peptidesFile.toPath(), peptides.getBytes(StandardCharsets.UTF_8));
+
+        MaxQuantPeptideIndex index = MaxQuantPeptideIndex.load(peptidesFile);
+        Assert.assertTrue(snapshotFile.exists());
+        checkIndex(index);
+
+        // loaded from the snapshot
+        checkIndex(MaxQuantPeptideIndex.load(peptidesFile));
+
+        // outdated snapshot is ignored
+        Files.write(peptidesFile.toPath(), (peptides + "SAMPLER\t7\tQ12345\tNo\t\n").getBytes(StandardCharsets.UTF_8));
+        index = MaxQuantPeptideIndex.load(peptidesFile);
+        Assert.assertEquals(4, index.size());
+        Assert.assertEquals("Q12345", index.getProtein("SAMPLER"));
+
+        MaxQuantPeptideIndex shared = MaxQuantPeptideIndex.get(peptidesFile);
+        Assert.assertSame(shared, MaxQuantPeptideIndex.get(new File(dir, "peptides.txt")));
+        MaxQuantPeptideIndex.clear();
+
+        Assert.assertEquals(0, MaxQuantPeptideIndex.load(new File(dir, "missing.txt")).size());
+    }
+
+    private void checkIndex(MaxQuantPeptideIndex index) {
+
+        Assert.assertEquals(3, index.size());
+        Assert.assertTrue(index.containsPeptide("PEPTIDEK"));
+        Assert.assertEquals("P12345", index.getProtein("PEPTIDEK"));
+        Assert.assertEquals("DECOY_P12345", index.getProtein("KEDITPEP"));
+        Assert.assertFalse(index.isMutated("PEPTIDEK"));
+        Assert.assertTrue(index.isMutated("PEPTIDEKK"));
+        Assert.assertEquals("K9R", index.getMutationNames("PEPTIDEKK"));
+        Assert.assertFalse(index.containsPeptide("SAMPLER"));
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import newance.util.PsmPredicate;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * @author Markus Müller
+ */
+
+public class MaxQuantPsmReader2Test {
+
+    private static final String MSMS_HEADER = "Raw file\tScan number\tScan index\tSequence\tLength\tMissed cleavages\tModified sequence\tProteins\tCharge\t" +
+            "Mass\tMass Error [ppm]\tRetention time\tScore\tDelta score\tLocalization prob\tNumber of Matches\tIntensity coverage\tReverse\n";
+
+    @Test
+    public void testParse() throws IOException {
+
+        File dir = Files.createTempDirectory("maxquant").toFile();
+        File msmsFile = new File(dir, "msms.txt");
+        File peptidesFile = new File(dir, "peptides.txt");
+        dir.deleteOnExit();
+        msmsFile.deleteOnExit();
+        peptidesFile.deleteOnExit();
+        new File(dir, "peptides.txt" + MaxQuantPeptideIndex.SNAPSHOT_EXTENSION).deleteOnExit();
+
+        String msms = MSMS_HEADER +
+                "run1\t1001\t17\tPEPTIDEK\t8\t0\t_PEPTIDEK_\tP12345;Q12345\t2\t927.4549\t-1.25\t35.6\t120.5\t80.25\tNaN\t12\t0.345\t\r\n" +
+                "run1\t1002\t18\tKEDITPEP\t8\t1\t_KEDITPEP_\tREV__P12345\t3\t927.4549\t0.5\t36.1\t60\t10\t1\t8\t0.2\t+\r\n" +
+                "run1\t1003\t19\tPEPTIDEKK\t9\t1\t_PEPTIDEKK_\tP12345\t4\t1055.5\t0.5\t37\t100\t50\t1\t8\t0.2\t\r\n" +
+                "run2\t1001\t5\tPEPTIDEK\t8\t0\t_PEPTIDEK_\tP12345;Q12345\t2\t927.4549\t1E-1\t12\t90\t30\t1\t10\t0.5\t\r\n";
+        String peptides = "Sequence\tLeading razor protein\tMutated\tMutation names\n" +
+                "PEPTIDEK\tP12345\tNo\t\n" +
+                "KEDITPEP\tREV__P12345\tNo\t\n" +
+                "PEPTIDEKK\tP12345\tYes\tK9R\n";
+
+        Files.write(msmsFile.toPath(), msms.getBytes(StandardCharsets.UTF_8));
+        Files.write(peptidesFile.toPath(), peptides.getBytes(StandardCharsets.UTF_8));
+
+        final Map<String, List<PeptideSpectrumMatch>> psmMap = new HashMap<>();
+        PsmPredicate psmPredicate = new PsmPredicate(1, 3, 7, 25, 1, "Score", 0.0, PsmPredicate.ScoreOrder.LARGER);
+        PeptideSpectrumMatchList peptideSpectrumMatchList = new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, psmMap);
+
+        new MaxQuantPsmReader2().parse(msmsFile, peptideSpectrumMatchList);
+
+        Assert.assertEquals(3, psmMap.size());
+
+        PeptideSpectrumMatch psm = psmMap.get("run1.1001.1001.2").get(0);
+        Assert.assertEquals("PEPTIDEK", psm.toSymbolString());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("P12345", "Q12345")), psm.getProteinAcc());
+        Assert.assertFalse(psm.isDecoy());
+        Assert.assertFalse(psm.isVariant());
+        Assert.assertEquals(1001, psm.getScanNr());
+        Assert.assertEquals(927.4549, psm.getNeutralPrecMass(), 0.0);
+        Assert.assertEquals(120.5, psm.getScore("Score"), 0.0);
+        Assert.assertEquals(80.25, psm.getScore("Delta score"), 0.0);
+        Assert.assertEquals(-1.25, psm.getScore("Mass Error [ppm]"), 0.0);
+        Assert.assertEquals(12.0, psm.getScore("Number of Matches"), 0.0);
+        Assert.assertEquals(0.345, psm.getScore("Intensity coverage"), 0.0);
+        Assert.assertTrue(Double.isNaN(psm.getScore("Localization prob")));
+
+        psm = psmMap.get("run1.1002.1002.3").get(0);
+        Assert.assertTrue(psm.isDecoy());
+        Assert.assertEquals(Collections.singleton("DECOY_P12345"), psm.getProteinAcc());
+
+        psm = psmMap.get("run2.1001.1001.2").get(0);
+        Assert.assertEquals(0.1, psm.getScore("Mass Error [ppm]"), 0.0);
+        Assert.assertEquals("PEPTIDEK", psm.toSymbolString());
+    }
+
+    @Test
+    public void testParseRanges() throws IOException {
+
+        File dir = Files.createTempDirectory("maxquant").toFile();
+        File msmsFile = new File(dir, "msms.txt");
+        dir.deleteOnExit();
+        msmsFile.deleteOnExit();
+
+        String[] sequences = {"PEPTIDEK", "KEDITPEP", "PEPTIDEKK", "ELVISLIVESK", "SAMPLER"};
+        StringBuilder msms = new StringBuilder(MSMS_HEADER);
+        for (int i = 0; i < 5000; i++) {
+
+            String sequence = sequences[i % sequences.length];
+            msms.append("run").append(i % 3).append("\t").append(1000 + i / 3).append("\t").append(i).append("\t").append(sequence).append("\t")
+                    .append(sequence.length()).append("\t0\t_").append(sequence).append("_\tP").append(i % 7).append("\t").append(2 + i % 2).append("\t")
+                    .append(800 + i * 0.01).append("\t0.5\t").append(i * 0.1).append("\t").append(50 + i % 100).append("\t10\t1\t8\t0.2\t\n");
+        }
+        Files.write(msmsFile.toPath(), msms.toString().getBytes(StandardCharsets.UTF_8));
+
+        PsmPredicate psmPredicate = new PsmPredicate(1, 3, 7, 25, 1, "Score", 0.0, PsmPredicate.ScoreOrder.LARGER);
+
+        final Map<String, List<PeptideSpectrumMatch>> serialMap = new LinkedHashMap<>();
+        new MaxQuantPsmReader2().parse(msmsFile, new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, serialMap));
+
+        final Map<String, List<PeptideSpectrumMatch>> rangeMap = new LinkedHashMap<>();
+        new MaxQuantPsmReader2().parse(msmsFile, new PeptideSpectrumMatchList(new SpectrumKeyFunctionImpl(), psmPredicate, rangeMap), 7);
+
+        Assert.assertEquals(5000, serialMap.size());
+        Assert.assertEquals(new ArrayList<>(serialMap.keySet()), new ArrayList<>(rangeMap.keySet()));
+
+        for (String key : serialMap.keySet()) {
+
+            PeptideSpectrumMatch serialPsm = serialMap.get(key).get(0);
+            PeptideSpectrumMatch rangePsm = rangeMap.get(key).get(0);
+
+            Assert.assertEquals(1, rangeMap.get(key).size());
+            Assert.assertEquals(serialPsm.toSymbolString(), rangePsm.toSymbolString());
+            Assert.assertEquals(serialPsm.getProteinAcc(), rangePsm.getProteinAcc());
+            Assert.assertEquals(serialPsm.getScore("Score"), rangePsm.getScore("Score"), 0.0);
+            Assert.assertEquals(serialPsm.getRetentionTime(), rangePsm.getRetentionTime(), 0.0);
+            Assert.assertEquals(serialPsm.getNeutralPrecMass(), rangePsm.getNeutralPrecMass(), 0.0);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import com.google.common.base.Optional;
+import org.expasy.mzjava.proteomics.mol.AminoAcid;
+import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
+import org.expasy.mzjava.proteomics.mol.modification.Modification;
+import org.expasy.mzjava.proteomics.ms.ident.ModificationMatch;
+import org.expasy.mzjava.proteomics.ms.ident.ModificationMatchResolver;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Markus Müller
+ */
+
+public class ModificationResolutionCacheTest {
+
+    @Test
+    public void testResolve() {
+
+        final Modification oxidation = Modification.parseModification("Oxidation:O");
+        final AtomicInteger nrCalls = new AtomicInteger(0);
+
+        ModificationMatchResolver resolver = new ModificationMatchResolver() {
+            @Override
+            public Optional<Modification> resolve(ModificationMatch modMatch) {
+                nrCalls.incrementAndGet();
+                return Optional.of(oxidation);
+            }
+        };
+
+        ModificationResolutionCache cache = new ModificationResolutionCache(resolver);
+
+        ModificationMatch modMatch = new ModificationMatch(15.9949, AminoAcid.M, 3, ModAttachment.SIDE_CHAIN);
+        Assert.assertEquals(oxidation, cache.resolve(modMatch, AminoAcid.M, ModAttachment.SIDE_CHAIN, 15.9949).get());
+        Assert.assertEquals(oxidation, cache.resolve(modMatch, AminoAcid.M, ModAttachment.SIDE_CHAIN, 15.9949).get());
+        Assert.assertEquals(oxidation, cache.resolve(modMatch, AminoAcid.M, ModAttachment.SIDE_CHAIN, 15.9946).get());
+        Assert.assertEquals(2, nrCalls.get());
+
+        cache.resolve(modMatch, AminoAcid.W, ModAttachment.SIDE_CHAIN, 15.9949);
+        cache.resolve(modMatch, null, ModAttachment.N_TERM, 15.9949);
+        cache.resolve(modMatch, AminoAcid.M, ModAttachment.SIDE_CHAIN, 31.9898);
+        Assert.assertEquals(5, nrCalls.get());
+
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(5, cache.getMisses());
+        Assert.assertEquals(5, cache.size());
+        Assert.assertEquals(1/6.0, cache.getHitRate(), 0.000001);
+    }
+
+    @Test
+    public void testExactMass() {
+
+        final AtomicInteger nrCalls = new AtomicInteger(0);
+
+        ModificationMatchResolver resolver = new ModificationMatchResolver() {
+            @Override
+            public Optional<Modification> resolve(ModificationMatch modMatch) {
+                nrCalls.incrementAndGet();
+                return Optional.absent();
+            }
+        };
+
+        ModificationResolutionCache cache = new ModificationResolutionCache(resolver);
+
+        ModificationMatch modMatch = new ModificationMatch(42.0106, null, 0, ModAttachment.N_TERM);
+        Assert.assertFalse(cache.resolve(modMatch, null, ModAttachment.N_TERM, 42.0106).isPresent());
+        Assert.assertFalse(cache.resolve(modMatch, null, ModAttachment.N_TERM, 42.0106).isPresent());
+        Assert.assertFalse(cache.resolve(modMatch, null, ModAttachment.N_TERM, 42.0107).isPresent());
+        Assert.assertEquals(2, nrCalls.get());
+    }
+
+    @Test
+    public void testCloseMasses() {
+
+        final Modification oxidation = Modification.parseModification("Oxidation:O");
+
+        // 15.9951 and 15.9999 both round to 1600 for a quantum of 0.01, but only the first one matches oxidation
+        final ModificationMatch match1 = new ModificationMatch(15.9951, AminoAcid.M, 3, ModAttachment.SIDE_CHAIN);
+        final ModificationMatch match2 = new ModificationMatch(15.9999, AminoAcid.M, 3, ModAttachment.SIDE_CHAIN);
+
+        ModificationMatchResolver resolver = new ModificationMatchResolver() {
+            @Override
+            public Optional<Modification> resolve(ModificationMatch modMatch) {
+                return (modMatch == match1) ? Optional.of(oxidation) : Optional.<Modification>absent();
+            }
+        };
+
+        ModificationResolutionCache cache = new ModificationResolutionCache(resolver);
+        Assert.assertTrue(cache.resolve(match1, AminoAcid.M, ModAttachment.SIDE_CHAIN, 15.9951).isPresent());
+        Assert.assertFalse(cache.resolve(match2, AminoAcid.M, ModAttachment.SIDE_CHAIN, 15.9999).isPresent());
+
+        cache = new ModificationResolutionCache(resolver);
+        Assert.assertFalse(cache.resolve(match2, AminoAcid.M, ModAttachment.SIDE_CHAIN, 15.9999).isPresent());
+        Assert.assertTrue(cache.resolve(match1, AminoAcid.M, ModAttachment.SIDE_CHAIN, 15.9951).isPresent());
+    }
+}
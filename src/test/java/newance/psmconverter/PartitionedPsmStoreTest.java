@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Markus Müller
+ */
+
+public class PartitionedPsmStoreTest {
+
+    @Test
+    public void testPublish() {
+
+        PartitionedPsmStore store = getStore();
+
+        Assert.assertEquals(2, store.getNrPartitions());
+        Assert.assertEquals(3, store.getSpectrumCount());
+
+        Map<String, List<PeptideSpectrumMatch>> psms = store.toMap();
+        Assert.assertEquals(3, psms.size());
+        Assert.assertEquals(2, psms.get("spec1").size());
+        Assert.assertSame(psms, store.toMap());
+
+        // the spectra were moved to the flattened map
+        Assert.assertTrue(store.getPartition("file1").isEmpty());
+        Assert.assertEquals(3, store.getSpectrumCount());
+
+        AtomicInteger cnt = new AtomicInteger(0);
+        store.forEachParallel((key, list) -> cnt.addAndGet(list.size()));
+        Assert.assertEquals(4, cnt.get());
+    }
+
+    @Test
+    public void testPublishAfterToMap() {
+
+        PartitionedPsmStore store = getStore();
+        Map<String, List<PeptideSpectrumMatch>> psms = store.toMap();
+
+        Map<String, List<PeptideSpectrumMatch>> partition3 = new HashMap<>();
+        partition3.put("spec4", PsmTableTest.getPsms().get("spec1"));
+        store.publish("file3", partition3);
+
+        Assert.assertEquals(4, store.getSpectrumCount());
+        Assert.assertSame(psms, store.toMap());
+        Assert.assertEquals(4, psms.size());
+        Assert.assertEquals(2, psms.get("spec4").size());
+
+        PsmTable table = PsmTable.of(store, PsmTable.Storage.HEAP);
+        Assert.assertEquals(6, table.size());
+        Assert.assertEquals(4, table.getSpectrumCount());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnmodifiable() {
+
+        PartitionedPsmStore store = getStore();
+
+        store.getPartition("file1").get("spec1").clear();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPublishTwice() {
+
+        PartitionedPsmStore store = getStore();
+
+        store.publish("file1", new HashMap<>());
+    }
+
+    @Test
+    public void testPsmTable() {
+
+        PartitionedPsmStore store = getStore();
+        PsmTable table = PsmTable.of(store, PsmTable.Storage.HEAP);
+
+        Assert.assertEquals(0, store.getNrPartitions());
+        Assert.assertEquals(4, table.size());
+        Assert.assertEquals(3, table.getSpectrumCount());
+        Assert.assertEquals(2, table.getEndRow(table.getSpectrumIndex("spec1"))-table.getFirstRow(table.getSpectrumIndex("spec1")));
+    }
+
+    @Test
+    public void testPsmTableSharedSpectrum() {
+
+        Map<String, List<PeptideSpectrumMatch>> psms = PsmTableTest.getPsms();
+
+        // spec1 is found in both partitions, e.g. two psm files searched on the same raw file
+        Map<String, List<PeptideSpectrumMatch>> partition1 = new HashMap<>();
+        partition1.put("spec1", Collections.singletonList(psms.get("spec1").get(0)));
+        partition1.put("spec2", psms.get("spec2"));
+        Map<String, List<PeptideSpectrumMatch>> partition2 = new HashMap<>();
+        partition2.put("spec1", Collections.singletonList(psms.get("spec1").get(1)));
+        partition2.put("spec3", psms.get("spec3"));
+
+        PartitionedPsmStore store = new PartitionedPsmStore();
+        store.publish("file1", new HashMap<>(partition1));
+        store.publish("file2", new HashMap<>(partition2));
+        List<PeptideSpectrumMatch> expected = store.toMap().get("spec1");
+
+        store = new PartitionedPsmStore();
+        store.publish("file1", new HashMap<>(partition1));
+        store.publish("file2", new HashMap<>(partition2));
+        PsmTable table = PsmTable.of(store, PsmTable.Storage.HEAP);
+
+        Assert.assertEquals(4, table.size());
+        Assert.assertEquals(3, table.getSpectrumCount());
+
+        int spectrumIndex = table.getSpectrumIndex("spec1");
+        Assert.assertEquals(2, table.getEndRow(spectrumIndex)-table.getFirstRow(spectrumIndex));
+        for (int i = 0; i < expected.size(); i++) {
+            int row = table.getFirstRow(spectrumIndex)+i;
+            Assert.assertEquals(expected.get(i).getRank(), table.getRank(row));
+            Assert.assertEquals(expected.get(i).getSpectrumFile(), table.getSpectrumFile(row));
+            Assert.assertEquals(expected.get(i).getScore("xcorr"), table.getScore(row, "xcorr"), 0.0);
+            Assert.assertEquals(spectrumIndex, table.getSpectrumIndex(row));
+        }
+
+        for (String key : Arrays.asList("spec2", "spec3")) {
+            spectrumIndex = table.getSpectrumIndex(key);
+            Assert.assertEquals(psms.get(key).size(), table.getEndRow(spectrumIndex)-table.getFirstRow(spectrumIndex));
+            Assert.assertEquals(psms.get(key).get(0).getRank(), table.getRank(table.getFirstRow(spectrumIndex)));
+        }
+    }
+
+    private static PartitionedPsmStore getStore() {
+
+        Map<String, List<PeptideSpectrumMatch>> psms = PsmTableTest.getPsms();
+
+        Map<String, List<PeptideSpectrumMatch>> partition1 = new HashMap<>();
+        partition1.put("spec1", psms.get("spec1"));
+        Map<String, List<PeptideSpectrumMatch>> partition2 = new HashMap<>();
+        partition2.put("spec2", psms.get("spec2"));
+        partition2.put("spec3", psms.get("spec3"));
+
+        PartitionedPsmStore store = new PartitionedPsmStore();
+        store.publish("file1", partition1);
+        store.publish("file2", partition2);
+
+        return store;
+    }
+}
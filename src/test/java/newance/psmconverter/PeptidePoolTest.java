@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import org.expasy.mzjava.proteomics.mol.Peptide;
+import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
+import org.expasy.mzjava.proteomics.mol.modification.Modification;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Markus Müller
+ */
+
+public class PeptidePoolTest {
+
+    @Test
+    public void testIntern() {
+
+        PeptidePool pool = PeptidePool.getInstance();
+
+        Multimap<Integer, Modification> noSideChainMods = ArrayListMultimap.create();
+        Multimap<ModAttachment, Modification> noTermMods = ArrayListMultimap.create();
+
+        Multimap<Integer, Modification> oxidation = ArrayListMultimap.create();
+        oxidation.put(3, Modification.parseModification("Oxidation:O"));
+
+        Multimap<ModAttachment, Modification> acetyl = ArrayListMultimap.create();
+        acetyl.put(ModAttachment.N_TERM, Modification.parseModification("Acetyl:C2H2O"));
+
+        Peptide peptide1 = pool.intern("PEPMIDE", noSideChainMods, noTermMods);
+        Peptide peptide2 = pool.intern("PEPMIDE", ArrayListMultimap.<Integer, Modification>create(), ArrayListMultimap.<ModAttachment, Modification>create());
+        Assert.assertSame(peptide1, peptide2);
+
+        Peptide modPeptide1 = pool.intern("PEPMIDE", oxidation, noTermMods);
+        Peptide modPeptide2 = pool.intern("PEPMIDE", oxidation, noTermMods);
+        Assert.assertSame(modPeptide1, modPeptide2);
+        Assert.assertNotSame(peptide1, modPeptide1);
+
+        Peptide termPeptide = pool.intern("PEPMIDE", noSideChainMods, acetyl);
+        Assert.assertNotSame(peptide1, termPeptide);
+        Assert.assertNotSame(modPeptide1, termPeptide);
+
+        Assert.assertEquals("PEPMIDE", PeptidePool.getSignature("PEPMIDE", noSideChainMods, noTermMods));
+        Assert.assertTrue(PeptidePool.getSignature("PEPMIDE", oxidation, noTermMods).startsWith("PEPMIDE|3:Oxidation:"));
+        Assert.assertTrue(PeptidePool.getSignature("PEPMIDE", noSideChainMods, acetyl).startsWith("PEPMIDE|n:Acetyl:"));
+    }
+}
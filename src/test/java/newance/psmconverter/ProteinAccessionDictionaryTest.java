@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import gnu.trove.map.hash.TObjectDoubleHashMap;
+import org.expasy.mzjava.proteomics.mol.Peptide;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+/**
+ * @author Markus Müller
+ */
+
+public class ProteinAccessionDictionaryTest {
+
+    @Test
+    public void testGetSet() {
+
+        ProteinAccessionDictionary dictionary = ProteinAccessionDictionary.getInstance();
+
+        ProteinAccessionSet set1 = dictionary.getSet(new HashSet<>(Arrays.asList("sp|P2", "sp|P1", "tr|P3")));
+        ProteinAccessionSet set2 = dictionary.getSet(Arrays.asList("tr|P3", "sp|P1", "sp|P2", "sp|P1"));
+
+        Assert.assertSame(set1, set2);
+        Assert.assertEquals(3, set1.size());
+        Assert.assertEquals(Arrays.asList("sp|P1", "sp|P2", "tr|P3"), new ArrayList<>(set1));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("sp|P2", "sp|P1", "tr|P3")), set1);
+        Assert.assertEquals(set1, new HashSet<>(Arrays.asList("sp|P2", "sp|P1", "tr|P3")));
+        Assert.assertEquals(new HashSet<>(set1).hashCode(), set1.hashCode());
+        Assert.assertTrue(set1.contains("sp|P2"));
+        Assert.assertFalse(set1.contains("sp|P4"));
+
+        Assert.assertSame(set1, dictionary.union(set1, Collections.singleton("sp|P2")));
+
+        ProteinAccessionSet set3 = dictionary.union(set1, Collections.singleton("sp|P4"));
+        Assert.assertEquals(Arrays.asList("sp|P1", "sp|P2", "sp|P4", "tr|P3"), new ArrayList<>(set3));
+        Assert.assertEquals(3, set1.size());
+    }
+
+    @Test
+    public void testAddProteinAcc() {
+
+        Set<String> proteins = new HashSet<>(Arrays.asList("sp|P1", "sp|P2"));
+
+        PeptideSpectrumMatch psm1 = new PeptideSpectrumMatch("run1", Peptide.parse("PEPTIDE"), proteins, new TObjectDoubleHashMap<>(),
+                2, 1, 10.0f, 1, 799.3, false, false, null, null);
+        PeptideSpectrumMatch psm2 = new PeptideSpectrumMatch("run1", Peptide.parse("PEPTIDE"), proteins, new TObjectDoubleHashMap<>(),
+                2, 1, 10.0f, 2, 799.3, false, false, null, null);
+
+        Assert.assertSame(psm1.getProteinAcc(), psm2.getProteinAcc());
+
+        psm1.addProteinAcc(Collections.singleton("sp|P3"));
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("sp|P1", "sp|P2", "sp|P3")), psm1.getProteinAcc());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("sp|P1", "sp|P2")), psm2.getProteinAcc());
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import gnu.trove.map.TObjectDoubleMap;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
+import newance.util.NewAnceParams;
+import org.expasy.mzjava.proteomics.mol.AminoAcid;
+import org.expasy.mzjava.proteomics.mol.Peptide;
+import org.expasy.mzjava.proteomics.mol.modification.ModAttachment;
+import org.expasy.mzjava.proteomics.mol.modification.Modification;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * @author Markus Müller
+ */
+
+public class PsmFileCacheTest {
+
+    @Test
+    public void testWriteRead() throws IOException {
+
+        File cacheDir = Files.createTempDirectory("psmcache").toFile();
+        cacheDir.deleteOnExit();
+        File psmFile = new File(cacheDir, "test.pep.xml");
+
+        Multimap<Integer, Modification> sideChainMods = ArrayListMultimap.create();
+        sideChainMods.put(3, Modification.parseModification("Oxidation:O"));
+        Peptide modPeptide = new Peptide(Arrays.asList(AminoAcid.P, AminoAcid.E, AminoAcid.P, AminoAcid.M, AminoAcid.I, AminoAcid.D, AminoAcid.E),
+                sideChainMods, ArrayListMultimap.<ModAttachment, Modification>create());
+
+        TObjectDoubleMap<String> scores1 = new TObjectDoubleHashMap<>();
+        scores1.put("xcorr", 2.5);
+        scores1.put("spscore", 300.0);
+        TObjectDoubleMap<String> scores2 = new TObjectDoubleHashMap<>();
+        scores2.put("xcorr", 1.5);
+        scores2.put("Localization prob", Double.NaN);
+
+        Map<String, List<PeptideSpectrumMatch>> psms = new HashMap<>();
+        psms.put("run1.1.1.2", new ArrayList<>(Arrays.asList(
+                new PeptideSpectrumMatch("run1", Peptide.parse("PEPTIDE"), new HashSet<>(Arrays.asList("P1", "P2")), scores1, 2, 1, 10.5f,
+                        1, 799.3, false, false, null, null),
+                new PeptideSpectrumMatch("run1", modPeptide, new HashSet<>(Collections.singletonList("DECOY_P1")), scores2, 2, 2, 10.5f,
+                        1, 799.3, true, false, null, null))));
+        psms.put("run1.2.2.3", new ArrayList<>(Collections.singletonList(
+                new PeptideSpectrumMatch("run1", modPeptide, new HashSet<>(Arrays.asList("P1", "P2")), scores2, 3, 1, 11.0f,
+                        2, 1000.1, false, true, Arrays.asList(1, 4), Arrays.asList('A', 'L')))));
+
+        PsmFileCache cache = new PsmFileCache(cacheDir, psmFile, "key1");
+        Assert.assertNull(cache.read());
+
+        cache.write(psms);
+        cache.getCacheFile().deleteOnExit();
+        Assert.assertArrayEquals(new String[]{cache.getCacheFile().getName()}, cacheDir.list());
+
+        Map<String, List<PeptideSpectrumMatch>> cached = new PsmFileCache(cacheDir, psmFile, "key1").read();
+
+        Assert.assertNotNull(cached);
+        Assert.assertEquals(psms.keySet(), cached.keySet());
+        for (String key : psms.keySet()) {
+
+            List<PeptideSpectrumMatch> expected = psms.get(key);
+            List<PeptideSpectrumMatch> actual = cached.get(key);
+            Assert.assertEquals(expected.size(), actual.size());
+
+            for (int i = 0; i < expected.size(); i++) {
+
+                PeptideSpectrumMatch e = expected.get(i);
+                PeptideSpectrumMatch a = actual.get(i);
+
+                Assert.assertEquals(e.getSpectrumFile(), a.getSpectrumFile());
+                Assert.assertEquals(e.getPeptide(), a.getPeptide());
+                Assert.assertEquals(e.getProteinAcc(), a.getProteinAcc());
+                Assert.assertEquals(e.getScoreMap().keySet(), a.getScoreMap().keySet());
+                for (String score : e.getScoreMap().keySet()) Assert.assertEquals(e.getScore(score), a.getScore(score), 0.0);
+                Assert.assertEquals(e.getCharge(), a.getCharge());
+                Assert.assertEquals(e.getRank(), a.getRank());
+                Assert.assertEquals(e.getRetentionTime(), a.getRetentionTime(), 0.0);
+                Assert.assertEquals(e.getScanNr(), a.getScanNr());
+                Assert.assertEquals(e.getNeutralPrecMass(), a.getNeutralPrecMass(), 0.0);
+                Assert.assertEquals(e.isDecoy(), a.isDecoy());
+                Assert.assertEquals(e.isVariant(), a.isVariant());
+                Assert.assertEquals(e.getVariantPositions(), a.getVariantPositions());
+                Assert.assertEquals(e.getVariantWTAAs(), a.getVariantWTAAs());
+            }
+        }
+
+        // different key, different cache file
+        Assert.assertNull(new PsmFileCache(cacheDir, psmFile, "key2").read());
+    }
+
+    @Test
+    public void testCacheKey() throws IOException {
+
+        File file = File.createTempFile("cachekey", ".txt");
+        file.deleteOnExit();
+
+        SinglePsmFileConverter converter = new SinglePsmFileConverter(file, new PartitionedPsmStore()) {
+            @Override
+            protected Map<String, List<PeptideSpectrumMatch>> parsePsmFile() {
+                return new HashMap<>();
+            }
+        };
+
+        String key = converter.getCacheKey();
+        Assert.assertEquals(key, converter.getCacheKey());
+
+        // unresolved MaxQuant modifications are dropped, so the psms depend on the modification translations
+        Map<String, String> modTranslations = NewAnceParams.getInstance().getModTranslations();
+        modTranslations.put("me", "Methyl");
+        try {
+            Assert.assertNotEquals(key, converter.getCacheKey());
+        } finally {
+            modTranslations.remove("me");
+        }
+
+        Assert.assertEquals(key, converter.getCacheKey());
+    }
+}
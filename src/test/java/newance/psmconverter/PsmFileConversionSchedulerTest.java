@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Markus Müller
+ */
+
+public class PsmFileConversionSchedulerTest {
+
+    @Test
+    public void testLargestFileFirst() throws IOException {
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        PartitionedPsmStore psms = new PartitionedPsmStore();
+
+        List<SinglePsmFileConverter> converters = new ArrayList<>();
+        for (int size : new int[]{10, 1000, 100}) {
+
+            File file = File.createTempFile("scheduler", ".txt");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[size]);
+
+            converters.add(new SinglePsmFileConverter(file, psms) {
+                @Override
+                protected Map<String, List<PeptideSpectrumMatch>> parsePsmFile() {
+                    order.add(String.valueOf(psmFile.length()));
+                    return new HashMap<>();
+                }
+            });
+        }
+
+        new PsmFileConversionScheduler(1, Long.MAX_VALUE).run(converters);
+
+        Assert.assertEquals(Arrays.asList("1000", "100", "10"), order);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testException() throws IOException {
+
+        File file = File.createTempFile("scheduler", ".txt");
+        file.deleteOnExit();
+
+        SinglePsmFileConverter converter = new SinglePsmFileConverter(file, new PartitionedPsmStore()) {
+            @Override
+            protected Map<String, List<PeptideSpectrumMatch>> parsePsmFile() {
+                throw new IllegalStateException("parse error");
+            }
+        };
+
+        new PsmFileConversionScheduler(2, Long.MAX_VALUE).run(Collections.singletonList(converter));
+    }
+
+    @Test
+    public void testHeapBudget() throws IOException {
+
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        PartitionedPsmStore psms = new PartitionedPsmStore();
+
+        List<SinglePsmFileConverter> converters = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+
+            File file = File.createTempFile("scheduler", ".txt");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[(i == 0) ? 5000 : 400]);
+
+            converters.add(new SinglePsmFileConverter(file, psms) {
+                @Override
+                protected Map<String, List<PeptideSpectrumMatch>> parsePsmFile() {
+                    int n = running.incrementAndGet();
+                    maxRunning.accumulateAndGet(n, Math::max);
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    return new HashMap<>();
+                }
+            });
+        }
+
+        // the 5000 byte file exceeds the budget and runs alone, at most two 400 byte files fit into the budget. Whether
+        // two files actually overlap depends on the thread timing, so only the bound is checked.
+        PsmFileConversionScheduler scheduler = new PsmFileConversionScheduler(4, 1000);
+        scheduler.run(converters);
+
+        Assert.assertTrue(maxRunning.get() >= 1 && maxRunning.get() <= 2);
+        Assert.assertEquals(5000, scheduler.getMaxReservedBytes());
+        Assert.assertEquals(0, scheduler.getReservedBytes());
+    }
+}
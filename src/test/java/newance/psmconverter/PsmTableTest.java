@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import gnu.trove.map.TObjectDoubleMap;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
+import newance.util.PsmGrouper;
+import org.expasy.mzjava.proteomics.mol.Peptide;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * @author Markus Müller
+ */
+
+public class PsmTableTest {
+
+    @Test
+    public void testColumns() {
+
+        PsmTable table = PsmTable.of(getPsms());
+
+        Assert.assertEquals(4, table.size());
+        Assert.assertEquals(3, table.getSpectrumCount());
+        Assert.assertEquals(2, table.getNrPeptides());
+
+        int spec1 = table.getSpectrumIndex("spec1");
+        Assert.assertEquals(2, table.getEndRow(spec1)-table.getFirstRow(spec1));
+        Assert.assertEquals(-1, table.getSpectrumIndex("spec4"));
+
+        int row = table.getFirstRow(spec1)+1;
+        Assert.assertEquals("spec1", table.getSpectrumKey(row));
+        Assert.assertEquals("PEPTIDER", table.getPeptide(row).toString());
+        Assert.assertEquals(3, table.getCharge(row));
+        Assert.assertEquals(2, table.getRank(row));
+        Assert.assertEquals(102, table.getScanNr(row));
+        Assert.assertEquals(100.5f, table.getRetentionTime(row), 0.00001);
+        Assert.assertEquals(1002.2, table.getNeutralPrecMass(row), 0.00001);
+        Assert.assertTrue(table.isDecoy(row));
+        Assert.assertFalse(table.isVariant(row));
+        Assert.assertEquals(2.0, table.getScore(row, "xcorr"), 0.00001);
+        Assert.assertEquals(0.0, table.getScore(row, "Score"), 0.00001);
+        Assert.assertEquals("spectrumFile2", table.getSpectrumFile(row));
+
+        int spec2Row = table.getFirstRow(table.getSpectrumIndex("spec2"));
+        Assert.assertTrue(table.isVariant(spec2Row));
+        Assert.assertEquals(Arrays.asList(1, 3), table.getVariantPositions(spec2Row));
+        Assert.assertEquals(Arrays.asList('A', 'K'), table.getVariantWTAAs(spec2Row));
+        Assert.assertEquals(10.0, table.getScore(spec2Row, "Score"), 0.00001);
+        Assert.assertFalse(table.getScoreSchema(spec2Row).contains("xcorr"));
+    }
+
+    @Test
+    public void testGetPsm() {
+
+        Map<String, List<PeptideSpectrumMatch>> psms = getPsms();
+        PsmTable table = PsmTable.of(psms);
+
+        for (int row = 0; row < table.size(); row++) {
+            PeptideSpectrumMatch psm = table.getPsm(row);
+            PeptideSpectrumMatch original = psms.get(table.getSpectrumKey(row)).get(row-table.getFirstRow(table.getSpectrumIndex(row)));
+
+            Assert.assertEquals(original.getPeptide().toString(), psm.getPeptide().toString());
+            Assert.assertEquals(original.getProteinAcc(), psm.getProteinAcc());
+            Assert.assertEquals(original.getScoreMap(), psm.getScoreMap());
+            Assert.assertEquals(original.getCharge(), psm.getCharge());
+            Assert.assertEquals(original.getRank(), psm.getRank());
+            Assert.assertEquals(original.getScanNr(), psm.getScanNr());
+            Assert.assertEquals(original.isDecoy(), psm.isDecoy());
+            Assert.assertEquals(original.getSpectrumFile(), psm.getSpectrumFile());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddSpectrumTwice() {
+
+        Map<String, List<PeptideSpectrumMatch>> psms = getPsms();
+        PsmTable table = PsmTable.of(psms);
+
+        table.add("spec1", psms.get("spec1"));
+    }
+
+    @Test
+    public void testSelection() {
+
+        PsmTable table = PsmTable.of(getPsms());
+        PsmSelection all = table.selectAll();
+
+        Assert.assertEquals(4, all.size());
+        Assert.assertEquals(3, all.getSpectrumCount());
+
+        PsmSelection noDecoys = all.selectNoDecoys();
+        Assert.assertEquals(3, noDecoys.size());
+        Assert.assertEquals(3, noDecoys.getSpectrumCount());
+        Assert.assertEquals(1, noDecoys.getRows("spec1").length);
+        Assert.assertEquals(2, all.getRows("spec1").length);
+        Assert.assertEquals(0, all.getRows("spec4").length);
+
+        Map<String, Integer> spectrumSizes = new HashMap<>();
+        all.forEachSpectrum((key, rows) -> spectrumSizes.put(key, rows.length));
+        Assert.assertEquals(3, spectrumSizes.size());
+        Assert.assertEquals(2, spectrumSizes.get("spec1").intValue());
+        Assert.assertEquals(1, spectrumSizes.get("spec3").intValue());
+
+        PsmGrouper rankGrouper = new PsmGrouper() {
+            @Override
+            public String apply(String s, PeptideSpectrumMatch psm) {
+                return (psm.getRank() == 1) ? "first" : "other";
+            }
+
+            @Override
+            public String getMasterGroup() {
+                return "first";
+            }
+
+            @Override
+            public Set<String> getGroups() {
+                return new HashSet<>(Arrays.asList("first", "other"));
+            }
+        };
+
+        Assert.assertEquals(3, all.selectGroup(rankGrouper, "first").size());
+        Assert.assertEquals(1, all.selectGroup(rankGrouper, "other").size());
+        Assert.assertEquals(0, all.selectGroup(rankGrouper, "none").size());
+        Assert.assertEquals(0, noDecoys.selectGroup(rankGrouper, "other").size());
+    }
+
+    @Test
+    public void testOffHeap() {
+
+        Map<String, List<PeptideSpectrumMatch>> psms = getPsms();
+        PsmTable heapTable = PsmTable.of(psms);
+
+        try (PsmTable offHeapTable = PsmTable.of(psms, PsmTable.Storage.OFF_HEAP)) {
+
+            Assert.assertEquals(heapTable.size(), offHeapTable.size());
+            Assert.assertEquals(heapTable.getSpectrumCount(), offHeapTable.getSpectrumCount());
+
+            for (int row = 0; row < heapTable.size(); row++) {
+                Assert.assertEquals(heapTable.getSpectrumKey(row), offHeapTable.getSpectrumKey(row));
+                Assert.assertEquals(heapTable.getCharge(row), offHeapTable.getCharge(row));
+                Assert.assertEquals(heapTable.getRank(row), offHeapTable.getRank(row));
+                Assert.assertEquals(heapTable.getScanNr(row), offHeapTable.getScanNr(row));
+                Assert.assertEquals(heapTable.getRetentionTime(row), offHeapTable.getRetentionTime(row), 0.0);
+                Assert.assertEquals(heapTable.getNeutralPrecMass(row), offHeapTable.getNeutralPrecMass(row), 0.0);
+                Assert.assertEquals(heapTable.isDecoy(row), offHeapTable.isDecoy(row));
+                Assert.assertEquals(heapTable.isVariant(row), offHeapTable.isVariant(row));
+                Assert.assertEquals(heapTable.getPeptide(row), offHeapTable.getPeptide(row));
+                Assert.assertEquals(heapTable.getProteinAcc(row), offHeapTable.getProteinAcc(row));
+                Assert.assertEquals(heapTable.getPsm(row).getScoreMap(), offHeapTable.getPsm(row).getScoreMap());
+            }
+        }
+    }
+
+    @Test
+    public void testOffHeapRegions() {
+
+        TObjectDoubleMap<String> scoreMap = new TObjectDoubleHashMap<>();
+        scoreMap.put("xcorr", 1.0);
+        scoreMap.put("deltacn", 0.1);
+        scoreMap.put("spscore", 100.0);
+
+        // the score column needs more than one region
+        int nrRows = MappedPsmColumnStore.REGION_SIZE/(8*3)+1000;
+
+        try (PsmTable table = PsmTable.createOffHeap(new File(System.getProperty("java.io.tmpdir")))) {
+
+            for (int i = 0; i < nrRows; i++) {
+                PeptideSpectrumMatch psm = new PeptideSpectrumMatch("spectrumFile", Peptide.parse("PEPTIDE"), Collections.singleton("protein1"),
+                        ScoreSchema.of("xcorr", "deltacn", "spscore"), new double[]{0.1, 100.0, i}, 2, 1, i, i, 1001.1, i%2==0, false, null, null);
+                table.add("spec"+i, Collections.singletonList(psm));
+            }
+
+            Assert.assertEquals(nrRows, table.size());
+            for (int row = 0; row < nrRows; row += 997) {
+                Assert.assertEquals(row, table.getScore(row, "xcorr"), 0.0);
+                Assert.assertEquals(row, table.getScanNr(row));
+                Assert.assertEquals(row%2==0, table.isDecoy(row));
+            }
+            Assert.assertEquals(nrRows-1, table.getScore(nrRows-1, "xcorr"), 0.0);
+        }
+    }
+
+    public static Map<String, List<PeptideSpectrumMatch>> getPsms() {
+
+        Map<String, List<PeptideSpectrumMatch>> psms = new LinkedHashMap<>();
+
+        Set<String> prots = new HashSet<>(Arrays.asList("protein1", "protein2"));
+
+        TObjectDoubleMap<String> scoreMap = new TObjectDoubleHashMap<>();
+        scoreMap.put("xcorr", 1.0);
+        scoreMap.put("deltacn", 0.1);
+        scoreMap.put("spscore", 100.0);
+
+        psms.put("spec1", new ArrayList<>());
+        psms.get("spec1").add(new PeptideSpectrumMatch("spectrumFile1", Peptide.parse("PEPTIDE"), prots, scoreMap, 2, 1,
+                100, 101, 1001.1, false, false, null, null));
+
+        scoreMap = new TObjectDoubleHashMap<>();
+        scoreMap.put("xcorr", 2.0);
+        scoreMap.put("deltacn", 0.2);
+        scoreMap.put("spscore", 200.0);
+
+        psms.get("spec1").add(new PeptideSpectrumMatch("spectrumFile2", Peptide.parse("PEPTIDER"), prots, scoreMap, 3, 2,
+                100.5f, 102, 1002.2, true, false, null, null));
+
+        scoreMap = new TObjectDoubleHashMap<>();
+        scoreMap.put("Score", 10.0);
+
+        psms.put("spec2", new ArrayList<>());
+        psms.get("spec2").add(new PeptideSpectrumMatch("spectrumFile1", Peptide.parse("PEPTIDE"), Collections.singleton("protein3"), scoreMap, 2, 1,
+                101, 103, 1001.1, false, true, Arrays.asList(1, 3), Arrays.asList('A', 'K')));
+
+        psms.put("spec3", new ArrayList<>());
+        psms.get("spec3").add(new PeptideSpectrumMatch("spectrumFile1", Peptide.parse("PEPTIDER"), prots, scoreMap, 2, 1,
+                102, 104, 1002.2, false, false, null, null));
+
+        return psms;
+    }
+}
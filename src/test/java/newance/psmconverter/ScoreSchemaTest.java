@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import gnu.trove.map.TObjectDoubleMap;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
+import org.expasy.mzjava.proteomics.mol.Peptide;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * @author Markus Müller
+ */
+
+public class ScoreSchemaTest {
+
+    @Test
+    public void testSchema() {
+
+        ScoreSchema schema = ScoreSchema.of("xcorr", "deltacn", "spscore");
+
+        Assert.assertSame(schema, ScoreSchema.of("spscore", "xcorr", "deltacn"));
+        Assert.assertNotSame(schema, ScoreSchema.of("xcorr", "deltacn"));
+        Assert.assertEquals(3, schema.size());
+        Assert.assertEquals(Arrays.asList("deltacn", "spscore", "xcorr"), schema.getNames());
+        Assert.assertEquals(2, schema.getSlot("xcorr"));
+        Assert.assertEquals(-1, schema.getSlot("expect"));
+        Assert.assertTrue(schema.contains("deltacn"));
+        Assert.assertFalse(schema.contains("expect"));
+
+        TObjectDoubleMap<String> scoreMap = new TObjectDoubleHashMap<>();
+        scoreMap.put("xcorr", 2.5);
+        scoreMap.put("spscore", 300);
+        scoreMap.put("deltacn", Double.NaN);
+
+        Assert.assertSame(schema, ScoreSchema.of(scoreMap));
+        scoreMap.put("expect", 0.01);
+        Assert.assertNotSame(schema, ScoreSchema.of(scoreMap));
+    }
+
+    @Test
+    public void testPsmScores() {
+
+        TObjectDoubleMap<String> scoreMap = new TObjectDoubleHashMap<>();
+        scoreMap.put("xcorr", 2.5);
+        scoreMap.put("spscore", 300);
+        scoreMap.put("deltacn", Double.NaN);
+
+        PeptideSpectrumMatch psm1 = new PeptideSpectrumMatch("run1", Peptide.parse("PEPTIDE"), Collections.singleton("P1"), scoreMap, 2, 1, 10.5f,
+                100, 1000.5, false, false, null, null);
+
+        scoreMap.put("xcorr", 3.5);
+        PeptideSpectrumMatch psm2 = new PeptideSpectrumMatch("run1", Peptide.parse("PEPTIDE"), Collections.singleton("P1"), scoreMap, 2, 1, 10.5f,
+                100, 1000.5, false, false, null, null);
+
+        Assert.assertSame(psm1.getScoreSchema(), psm2.getScoreSchema());
+
+        int slot = psm1.getScoreSchema().getSlot("xcorr");
+        Assert.assertEquals(2.5, psm1.getScore(slot), 0.0);
+        Assert.assertEquals(3.5, psm2.getScore(slot), 0.0);
+        Assert.assertEquals(300, psm1.getScore("spscore"), 0.0);
+        Assert.assertTrue(Double.isNaN(psm1.getScore("deltacn")));
+        Assert.assertEquals(0.0, psm1.getScore("expect"), 0.0);
+        Assert.assertEquals(0.0, psm1.getScore(-1), 0.0);
+        Assert.assertTrue(psm1.hasScore("xcorr"));
+        Assert.assertFalse(psm1.hasScore("expect"));
+        Assert.assertEquals(3, psm1.getScoreMap().size());
+        Assert.assertEquals(2.5, psm1.getScoreMap().get("xcorr"), 0.0);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Markus Müller
+ */
+
+public class SpectrumIdDictionaryTest {
+
+    @Test
+    public void testPackedKey() {
+
+        SpectrumIdDictionary dictionary = SpectrumIdDictionary.getInstance();
+
+        long id = dictionary.getId("run1.12345.12345.2");
+
+        Assert.assertEquals(12345L, SpectrumIdDictionary.getScanNr(id));
+        Assert.assertEquals(2, SpectrumIdDictionary.getCharge(id));
+        Assert.assertEquals("run1.12345.12345.2", dictionary.getKey(id));
+
+        long id2 = dictionary.getId("run1.12346.12346.3");
+        Assert.assertEquals(SpectrumIdDictionary.getRawFileId(id), SpectrumIdDictionary.getRawFileId(id2));
+        Assert.assertNotEquals(id, id2);
+
+        Assert.assertEquals(id, dictionary.getId("run1.12345.12345.2"));
+    }
+
+    @Test
+    public void testFallbackKey() {
+
+        SpectrumIdDictionary dictionary = SpectrumIdDictionary.getInstance();
+
+        String[] keys = {"spec1", "run1.123.124.2", "run1.0123.0123.2", "run.1.1.x", "a.b"};
+
+        for (String key : keys) {
+            long id = dictionary.getId(key);
+
+            Assert.assertEquals(0, SpectrumIdDictionary.getCharge(id));
+            Assert.assertEquals(key, dictionary.getKey(id));
+            Assert.assertEquals(id, dictionary.getId(key));
+        }
+
+        Assert.assertNotEquals(dictionary.getId("spec1"), dictionary.getId("spec2"));
+    }
+
+    @Test
+    public void testManyFallbackKeys() {
+
+        SpectrumIdDictionary dictionary = SpectrumIdDictionary.getInstance();
+
+        int nrRawFiles = dictionary.getNrRawFiles();
+
+        // more keys than there are raw file ids
+        for (int i = 0; i < 1100000; i++) {
+            String key = "scan=" + i;
+            Assert.assertEquals(key, dictionary.getKey(dictionary.getId(key)));
+        }
+
+        Assert.assertEquals(nrRawFiles, dictionary.getNrRawFiles());
+        Assert.assertEquals("run2.7.7.1", dictionary.getKey(dictionary.getId("run2.7.7.1")));
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.psmconverter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * @author Markus Müller
+ */
+
+public class SpectrumKeyFunctionImplTest {
+
+    @Test
+    public void testApply() {
+
+        SpectrumKeyFunctionImpl keyFunction = new SpectrumKeyFunctionImpl();
+
+        Assert.assertEquals("run1.123.123.2", keyFunction.apply(new SpectrumInfo("run1.00123.00123.2")));
+        Assert.assertEquals("run1.123.123.2", keyFunction.apply(new SpectrumInfo("run1.123.123.2 File:\"run1.raw\", NativeID:\"scan=123\"")));
+        Assert.assertEquals("run1..1.2", keyFunction.apply(new SpectrumInfo("run1.0.01.2")));
+
+        String spectrum = "run1.123.123.2";
+        Assert.assertSame(spectrum, keyFunction.apply(new SpectrumInfo(spectrum)));
+    }
+
+    @Test
+    public void testNormalize() {
+
+        Pattern regEx = Pattern.compile("\\.[0]+");
+        Random random = new Random(17);
+        char[] chars = {'.', '0', '0', '1', 'a', ' ', '_'};
+
+        for (int i = 0; i < 100000; i++) {
+
+            StringBuilder comment = new StringBuilder("r");
+            int length = random.nextInt(20);
+            for (int j = 0; j < length; j++) comment.append(chars[random.nextInt(chars.length)]);
+            if (random.nextInt(10) == 0) comment.insert(0, ' ');
+
+            String title = comment.toString();
+            int firstSpace = title.indexOf(' ');
+            String expected = regEx.matcher(firstSpace >= 1 ? title.substring(0, firstSpace) : title).replaceAll(".");
+
+            Assert.assertEquals(title, expected, SpectrumKeyFunctionImpl.normalize(title));
+        }
+    }
+
+    @Test
+    public void testSpectrumFile() {
+
+        SpectrumInfo spectrumInfo1 = new SpectrumInfo(new String("run1.00123.00123.2"));
+        SpectrumInfo spectrumInfo2 = new SpectrumInfo(new String("run1.00124.00124.2"));
+        SpectrumInfo spectrumInfo3 = new SpectrumInfo(new String("run12.00124.00124.2"));
+
+        Assert.assertEquals("run1", spectrumInfo1.getSpectrumFile());
+        Assert.assertSame(spectrumInfo1.getSpectrumFile(), spectrumInfo2.getSpectrumFile());
+        Assert.assertEquals("run12", spectrumInfo3.getSpectrumFile());
+        Assert.assertSame(spectrumInfo1.getSpectrumFile(), new SpectrumInfo("run1.00125.00125.3").getSpectrumFile());
+    }
+}
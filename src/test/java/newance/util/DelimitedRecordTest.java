@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2019, SIB/LICR. All rights reserved
+ *
+ * SIB, Swiss Institute of Bioinformatics
+ * Ludwig Institute for Cancer Research (LICR)
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. Neither the name of the SIB/LICR nor the names of
+ * its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL SIB/LICR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package newance.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * @author Markus Müller
+ */
+
+public class DelimitedRecordTest {
+
+    @Test
+    public void testFields() {
+
+        DelimitedRecord record = new DelimitedRecord('\t');
+        record.set("Raw file\tScan number\t\tCharge");
+
+        Assert.assertEquals(4, record.getNrFields());
+        Assert.assertEquals(1, record.getColumnIndex("Scan number"));
+        Assert.assertEquals(3, record.getColumnIndex("charge"));
+        Assert.assertEquals(-1, record.getColumnIndex("Score"));
+        Assert.assertEquals("Raw file", record.getString(0));
+        Assert.assertEquals("", record.getString(2));
+        Assert.assertNull(record.getString(4));
+        Assert.assertTrue(record.isEmpty(2));
+        Assert.assertTrue(record.equals(3, "Charge"));
+        Assert.assertFalse(record.equals(3, "Charg"));
+
+        record.set("run1\t123\t-7\t\t+3");
+        Assert.assertEquals(123, record.getInt(1));
+        Assert.assertEquals(-7, record.getInt(2));
+        Assert.assertEquals(0, record.getInt(3));
+        Assert.assertEquals(3, record.getInt(4));
+        Assert.assertEquals(0, record.getInt(5));
+        Assert.assertEquals(0.0, record.getDouble(3), 0.0);
+    }
+
+    @Test
+    public void testGetDouble() {
+
+        DelimitedRecord record = new DelimitedRecord('\t');
+
+        String[] values = {"0", "-0.0", "1", "1.5", ".25", "3.", "2105.03427", "-0.000123456", "123.456E2", "1e-5", "7.5E+10",
+                "NaN", "-Infinity", "1234567890.123456789", "0.1000000000000000055511151231257827", "1e300", "4.9e-324", " 2.5"};
+
+        for (String value : values) {
+
+            record.set("x\t" + value);
+            Assert.assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)), Double.doubleToLongBits(record.getDouble(1)));
+        }
+
+        Random random = new Random(13);
+        for (int i = 0; i < 100000; i++) {
+
+            String value = Double.toString((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12) - 4));
+            if (random.nextBoolean()) value = String.format("%." + random.nextInt(10) + "f", Double.parseDouble(value));
+
+            record.set(value);
+            Assert.assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)), Double.doubleToLongBits(record.getDouble(0)));
+        }
+    }
+}